@@ -0,0 +1,37 @@
+package com.hyh0.gmath;
+
+/**
+ * Activation functions applied by the fused dense-layer kernels.
+ */
+public enum Activation {
+    /**
+     * f(z) = z
+     */
+    IDENTITY(0),
+    /**
+     * f(z) = 1 / (1 + exp(-z))
+     */
+    SIGMOID(1),
+    /**
+     * f(z) = tanh(z)
+     */
+    TANH(2),
+    /**
+     * f(z) = max(z, 0)
+     */
+    RELU(3),
+    /**
+     * Gaussian error linear unit (tanh approximation). Its gradient needs the pre-activation,
+     * so the forward pass must save it for training.
+     */
+    GELU(4);
+
+    /**
+     * Code of the activation in the OpenCL kernels.
+     */
+    final int CODE;
+
+    private Activation(int code) {
+        this.CODE = code;
+    }
+}
@@ -0,0 +1,185 @@
+package com.hyh0.gmath;
+
+/**
+ * 对称正定矩阵的Cholesky分解 (接口与JAMA的CholeskyDecomposition类似)
+ *
+ * 求得下三角矩阵L, 使 A = L*L'. 只读取A的下三角部分
+ *
+ * 采用分块的右视算法: 对角块({@value #BLOCK}*{@value #BLOCK})在主机端用双精度分解, 其下方的块用三角求解得到,
+ * 右下角的子矩阵用对称秩k更新(只计算下三角), 矩阵始终留在显存中
+ */
+public class CholeskyDecomposition {
+    /**
+     * 对角块的大小
+     */
+    private static final int BLOCK = 64;
+
+    private Matrix L;
+    private int n;
+    private boolean isspd;
+    private double[] diagonal; // L的对角线
+
+    /**
+     * Cholesky分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            对称正定的方阵
+     */
+    public CholeskyDecomposition(Matrix A) {
+        n = A.getRowDimension();
+        isspd = (A.getColumnDimension() == n);
+        L = A.copy();
+        diagonal = new double[n];
+        GMath gMath = Matrix.getGMath();
+        Matrix workspace = n > BLOCK ? new Matrix(BLOCK, n - BLOCK) : null;
+        for (int k0 = 0; k0 < n && isspd; k0 += BLOCK) {
+            int kb = Math.min(BLOCK, n - k0);
+            int k1 = k0 + kb - 1;
+
+            // 在主机端分解对角块
+            Matrix A11 = L.getMatrixView(k0, k1, k0, k1);
+            double[][] a = A11.getArrayCopy();
+            for (int j = 0; j < kb && isspd; j++) {
+                double d = a[j][j];
+                for (int k = 0; k < j; k++) {
+                    d -= a[j][k] * a[j][k];
+                }
+                if (d <= 0.0) {
+                    isspd = false;
+                    break;
+                }
+                a[j][j] = Math.sqrt(d);
+                diagonal[k0 + j] = a[j][j];
+                for (int i = j + 1; i < kb; i++) {
+                    double s = a[i][j];
+                    for (int k = 0; k < j; k++) {
+                        s -= a[i][k] * a[j][k];
+                    }
+                    a[i][j] = s / a[j][j];
+                }
+                for (int k = j + 1; k < kb; k++) {
+                    a[j][k] = 0.0;
+                }
+            }
+            if (!isspd) {
+                A11.release();
+                break;
+            }
+            A11.set(a);
+
+            if (k1 < n - 1) {
+                // L21' = L11^-1 * A21'
+                Matrix A21 = L.getMatrixView(k1 + 1, n - 1, k0, k1);
+                Matrix L21T = workspace.getMatrixView(0, kb - 1, 0, n - k1 - 2);
+                gMath.transpose(A21, L21T);
+                MatrixMath.solveTriangular(A11, L21T, true, false);
+                gMath.transpose(L21T, A21);
+                // A22 -= L21 * L21', 之后只会读取A22的下三角
+                Matrix A22 = L.getMatrixView(k1 + 1, n - 1, k1 + 1, n - 1);
+                gMath.syrk(-1, L21T, 1, A22, false);
+                A21.release();
+                L21T.release();
+                A22.release();
+            }
+            A11.release();
+        }
+        if (workspace != null)
+            workspace.release();
+        if (isspd)
+            gMath.triangle(L, L, true, false);
+    }
+
+    /**
+     * 矩阵是否对称正定
+     *
+     * @return 如果分解成功则为true
+     */
+    public boolean isSPD() {
+        return isspd;
+    }
+
+    /**
+     * 获取三角因子L
+     *
+     * @return L
+     */
+    public Matrix getL() {
+        return L.copy();
+    }
+
+    /**
+     * 计算行列式的自然对数 (直接求行列式很容易溢出)
+     *
+     * @return log(det(A))
+     * @exception RuntimeException
+     *                矩阵不是对称正定的
+     */
+    public double logDet() {
+        if (!isspd) {
+            throw new RuntimeException("矩阵不是对称正定的");
+        }
+        double sum = 0;
+        for (int j = 0; j < n; j++) {
+            sum += Math.log(diagonal[j]);
+        }
+        return 2 * sum;
+    }
+
+    /**
+     * 前向代换, 解 L*Y = B
+     *
+     * @param B
+     *            行数与A相同的矩阵, 运算后保存结果
+     * @return B
+     */
+    public Matrix forwardSubstitute(Matrix B) {
+        checkSolvable(B);
+        return MatrixMath.solveTriangular(L, B, true, false);
+    }
+
+    /**
+     * 回代, 解 L'*X = Y (直接按转置的方式读取L, 不保存L')
+     *
+     * @param Y
+     *            行数与A相同的矩阵, 运算后保存结果
+     * @return Y
+     */
+    public Matrix backSubstitute(Matrix Y) {
+        checkSolvable(Y);
+        return MatrixMath.solveTriangular(L, Y, true, true, false);
+    }
+
+    /**
+     * 解方程组 A*X = B
+     *
+     * @param B
+     *            行数与A相同的矩阵
+     * @return 保存解X的新矩阵
+     * @exception IllegalArgumentException
+     *                矩阵的行数不符
+     * @exception RuntimeException
+     *                矩阵不是对称正定的
+     */
+    public Matrix solve(Matrix B) {
+        checkSolvable(B);
+        Matrix X = B.copy();
+        forwardSubstitute(X);
+        return backSubstitute(X);
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        L.release();
+    }
+
+    private void checkSolvable(Matrix B) {
+        if (B.getRowDimension() != n) {
+            throw new IllegalArgumentException("矩阵的行数不符");
+        }
+        if (!isspd) {
+            throw new RuntimeException("矩阵不是对称正定的");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.hyh0.gmath;
+
+/**
+ * 二维卷积 (互相关) 层的几何描述与计算
+ *
+ * 输入是 {@link TensorShape} 描述的 N*C*H*W 张量, K个 C*R*S 的卷积核保存在 K * (C*R*S) 的矩阵中 (每行一个卷积核),
+ * 输出是 N*K*P*Q 的张量, 其中 P = (H + 2*padding - R) / stride + 1, Q同理.
+ * 前向和反向计算都使用隐式GEMM: 内核按块从输入中直接收集im2col矩阵的元素, 不需要申请im2col的临时矩阵
+ */
+public class Convolution {
+    private final TensorShape input;
+    private final TensorShape output;
+    private final int filters;
+    private final int kernelHeight;
+    private final int kernelWidth;
+    private final int stride;
+    private final int padding;
+
+    /**
+     * @param input
+     *            输入张量的形状
+     * @param filters
+     *            卷积核的个数 (输出的通道数)
+     * @param kernelHeight
+     *            卷积核的高
+     * @param kernelWidth
+     *            卷积核的宽
+     * @param stride
+     *            步长
+     * @param padding
+     *            四周补0的宽度
+     */
+    public Convolution(TensorShape input, int filters, int kernelHeight, int kernelWidth, int stride, int padding) {
+        if (filters <= 0 || kernelHeight <= 0 || kernelWidth <= 0 || stride <= 0 || padding < 0)
+            throw new IllegalArgumentException("卷积的参数不合法");
+        int p = (input.getHeight() + 2 * padding - kernelHeight) / stride + 1;
+        int q = (input.getWidth() + 2 * padding - kernelWidth) / stride + 1;
+        if (input.getHeight() + 2 * padding < kernelHeight || input.getWidth() + 2 * padding < kernelWidth)
+            throw new IllegalArgumentException("卷积核比补0后的输入大");
+        this.input = input;
+        this.output = new TensorShape(input.getBatchSize(), filters, p, q);
+        this.filters = filters;
+        this.kernelHeight = kernelHeight;
+        this.kernelWidth = kernelWidth;
+        this.stride = stride;
+        this.padding = padding;
+    }
+
+    /**
+     * 前向计算 output = conv(input, weights) + bias
+     *
+     * @param input
+     *            输入张量
+     * @param weights
+     *            K * (C*R*S) 的卷积核
+     * @param bias
+     *            K个元素的偏置向量 (为null时不加偏置)
+     * @param output
+     *            保存结果的张量
+     * @return output
+     */
+    public Matrix forward(Matrix input, Matrix weights, Matrix bias, Matrix output) {
+        Matrix.getGMath().convolutionForward(this, input, weights, bias, output);
+        return output;
+    }
+
+    /**
+     * 对输入的梯度 (转置卷积)
+     *
+     * @param gradOutput
+     *            对输出的梯度
+     * @param weights
+     *            K * (C*R*S) 的卷积核
+     * @param gradInput
+     *            保存对输入的梯度
+     * @return gradInput
+     */
+    public Matrix backwardData(Matrix gradOutput, Matrix weights, Matrix gradInput) {
+        Matrix.getGMath().convolutionBackwardData(this, gradOutput, weights, gradInput);
+        return gradInput;
+    }
+
+    /**
+     * 对卷积核和偏置的梯度
+     *
+     * @param input
+     *            前向计算的输入
+     * @param gradOutput
+     *            对输出的梯度
+     * @param gradWeights
+     *            K * (C*R*S) 的矩阵, 保存对卷积核的梯度
+     * @param gradBias
+     *            K个元素的向量, 保存对偏置的梯度 (为null时不计算)
+     */
+    public void backwardFilter(Matrix input, Matrix gradOutput, Matrix gradWeights, Matrix gradBias) {
+        Matrix.getGMath().convolutionBackwardFilter(this, input, gradOutput, gradWeights, gradBias);
+    }
+
+    /**
+     * @return 输入张量的形状
+     */
+    public TensorShape getInputShape() {
+        return input;
+    }
+
+    /**
+     * @return 输出张量的形状
+     */
+    public TensorShape getOutputShape() {
+        return output;
+    }
+
+    /**
+     * @return 卷积核的个数K
+     */
+    public int getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return 卷积核的高R
+     */
+    public int getKernelHeight() {
+        return kernelHeight;
+    }
+
+    /**
+     * @return 卷积核的宽S
+     */
+    public int getKernelWidth() {
+        return kernelWidth;
+    }
+
+    /**
+     * @return 步长
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return 补0的宽度
+     */
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * @return 保存卷积核的矩阵的列数 C*R*S
+     */
+    public int getWeightColumns() {
+        return input.getChannels() * kernelHeight * kernelWidth;
+    }
+}
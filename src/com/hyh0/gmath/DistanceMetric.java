@@ -0,0 +1,24 @@
+package com.hyh0.gmath;
+
+/**
+ * Distance between two rows, used by pairwise distances and nearest-neighbour search.
+ */
+public enum DistanceMetric {
+    /**
+     * |x - y|^2
+     */
+    SQUARED_EUCLIDEAN(0),
+    /**
+     * 1 - x.y / (|x| |y|), or 1 when either row is zero
+     */
+    COSINE(1);
+
+    /**
+     * Code of the metric in the OpenCL kernels.
+     */
+    final int CODE;
+
+    private DistanceMetric(int code) {
+        this.CODE = code;
+    }
+}
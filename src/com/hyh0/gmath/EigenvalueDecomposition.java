@@ -0,0 +1,370 @@
+package com.hyh0.gmath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对称矩阵的特征值分解 (接口与JAMA的EigenvalueDecomposition类似, 但只支持对称矩阵)
+ *
+ * 求得特征值组成的对角矩阵D和特征向量组成的正交矩阵V, 使 A = V*D*V'
+ *
+ * 先用分块的Householder变换把A化为三对角矩阵: 每 {@value #BLOCK} 列的反射在主机端逐列生成(每列需要一次设备上的矩阵向量乘法),
+ * 然后用两次矩阵乘法对右下角的子矩阵做秩2k更新. 三对角矩阵的特征值和特征向量在主机端用隐式QL迭代求解, 最后在设备上把反射作用到特征向量上
+ */
+public class EigenvalueDecomposition {
+    /**
+     * 面板的列数
+     */
+    private static final int BLOCK = 32;
+
+    private int n;
+    private double[] d; // 特征值
+    private Matrix V = null;
+
+    /**
+     * 对称矩阵的特征值分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            对称矩阵
+     */
+    public EigenvalueDecomposition(Matrix A) {
+        this(A, true);
+    }
+
+    /**
+     * 对称矩阵的特征值分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            对称矩阵
+     * @param computeVectors
+     *            是否计算特征向量(只需要特征值时可以省去大部分计算)
+     */
+    public EigenvalueDecomposition(Matrix A, boolean computeVectors) {
+        n = A.getRowDimension();
+        if (A.getColumnDimension() != n) {
+            throw new IllegalArgumentException("矩阵必须是方阵");
+        }
+        GMath gMath = Matrix.getGMath();
+        Matrix work = A.copy();
+        d = new double[n];
+        double[] e = new double[n]; // e[i]为三对角矩阵(i, i+1)位置的元素
+        List<double[][]> blockT = new ArrayList<double[][]>();
+
+        for (int k0 = 0; k0 < n; k0 += BLOCK) {
+            int jb = Math.min(BLOCK, n - k0);
+            int r = n - k0;
+            double[][] VP = new double[r][jb]; // 面板的Householder向量(行号相对于k0)
+            double[][] WP = new double[r][jb];
+            double[] tau = new double[Math.min(jb, n - 1 - k0)];
+            for (int j = 0; j < jb; j++) {
+                int c = k0 + j;
+                // 第c列(对角线及以下)加上本面板中尚未作用到显存的更新
+                Matrix column = work.getMatrixView(c, n - 1, c, c);
+                double[][] a = column.getArrayCopy();
+                column.release();
+                for (int t = 0; t < a.length; t++) {
+                    for (int l = 0; l < j; l++) {
+                        a[t][0] -= VP[j + t][l] * WP[j][l] + WP[j + t][l] * VP[j][l];
+                    }
+                }
+                d[c] = a[0][0];
+                if (c == n - 1)
+                    break;
+
+                // 生成使 x = a(1:) 变为 beta*e1 的反射 I - tau*v*v'
+                int s = a.length - 1;
+                double alpha = a[1][0];
+                double xnorm = 0;
+                for (int t = 2; t <= s; t++) {
+                    xnorm = Math.hypot(xnorm, a[t][0]);
+                }
+                double[] v = new double[s];
+                v[0] = 1;
+                if (xnorm == 0.0) {
+                    tau[j] = 0.0;
+                    e[c] = alpha;
+                } else {
+                    double beta = alpha >= 0 ? -Math.hypot(alpha, xnorm) : Math.hypot(alpha, xnorm);
+                    tau[j] = (beta - alpha) / beta;
+                    double scale = 1.0 / (alpha - beta);
+                    for (int t = 1; t < s; t++) {
+                        v[t] = a[t + 1][0] * scale;
+                    }
+                    e[c] = beta;
+                }
+                // Householder向量保存在第c列次对角线以下, 用于最后计算特征向量
+                double[][] stored = new double[s][1];
+                stored[0][0] = e[c];
+                for (int t = 1; t < s; t++) {
+                    stored[t][0] = v[t];
+                }
+                Matrix below = work.getMatrixView(c + 1, n - 1, c, c);
+                below.set(stored);
+                below.release();
+                for (int t = 0; t < s; t++) {
+                    VP[j + 1 + t][j] = v[t];
+                }
+                if (tau[j] == 0.0)
+                    continue;
+
+                // y = A22 * v, A22 还没有加上本面板的更新
+                double[][] vData = new double[s][1];
+                for (int t = 0; t < s; t++) {
+                    vData[t][0] = v[t];
+                }
+                Matrix vMatrix = new Matrix(vData);
+                Matrix yMatrix = new Matrix(s, 1);
+                Matrix A22 = work.getMatrixView(c + 1, n - 1, c + 1, n - 1);
+                gMath.multiply(A22, vMatrix, yMatrix);
+                double[][] y = yMatrix.getArrayCopy();
+                A22.release();
+                vMatrix.release();
+                yMatrix.release();
+                for (int l = 0; l < j; l++) {
+                    double wv = 0, vv = 0;
+                    for (int t = 0; t < s; t++) {
+                        wv += WP[j + 1 + t][l] * v[t];
+                        vv += VP[j + 1 + t][l] * v[t];
+                    }
+                    for (int t = 0; t < s; t++) {
+                        y[t][0] -= VP[j + 1 + t][l] * wv + WP[j + 1 + t][l] * vv;
+                    }
+                }
+                // w = tau*y - (tau^2/2)*(y'*v)*v
+                double wv = 0;
+                for (int t = 0; t < s; t++) {
+                    y[t][0] *= tau[j];
+                    wv += y[t][0] * v[t];
+                }
+                double alpha2 = -0.5 * tau[j] * wv;
+                for (int t = 0; t < s; t++) {
+                    WP[j + 1 + t][j] = y[t][0] + alpha2 * v[t];
+                }
+            }
+
+            // A22 -= V*W' + W*V'
+            int e0 = k0 + jb;
+            if (e0 < n) {
+                int r2 = n - e0;
+                double[][] v2 = new double[r2][jb], v2T = new double[jb][r2];
+                double[][] w2 = new double[r2][jb], w2T = new double[jb][r2];
+                for (int i = 0; i < r2; i++) {
+                    for (int l = 0; l < jb; l++) {
+                        v2[i][l] = v2T[l][i] = VP[jb + i][l];
+                        w2[i][l] = w2T[l][i] = WP[jb + i][l];
+                    }
+                }
+                Matrix vm = new Matrix(v2), vmT = new Matrix(v2T);
+                Matrix wm = new Matrix(w2), wmT = new Matrix(w2T);
+                Matrix A22 = work.getMatrixView(e0, n - 1, e0, n - 1);
+                gMath.multiply(-1, vm, wmT, 1, A22);
+                gMath.multiply(-1, wm, vmT, 1, A22);
+                A22.release();
+                vm.release();
+                vmT.release();
+                wm.release();
+                wmT.release();
+            }
+
+            if (computeVectors && tau.length > 0) {
+                // 面板中的反射作用在k0+1行以下, 向量的第一个元素在面板的对角线上
+                double[][] p = new double[r - 1][tau.length];
+                for (int i = 0; i < r - 1; i++) {
+                    for (int l = 0; l < tau.length; l++) {
+                        p[i][l] = VP[i + 1][l];
+                    }
+                }
+                blockT.add(QRDecomposition.triangularFactor(p, tau));
+            }
+        }
+
+        double[][] z = computeVectors ? new double[n][n] : null;
+        if (computeVectors) {
+            for (int i = 0; i < n; i++) {
+                z[i][i] = 1;
+            }
+        }
+        tql2(d, e, z);
+
+        if (computeVectors) {
+            // V = H1*H2*...*Z, 从最后一块开始作用
+            double[][] data = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < n; k++) {
+                    data[k][i] = z[i][k];
+                }
+            }
+            V = new Matrix(data);
+            for (int block = blockT.size() - 1; block >= 0; block--) {
+                int k0 = block * BLOCK;
+                double[][] T = blockT.get(block);
+                Matrix panel = work.getMatrixView(k0 + 1, n - 1, k0, k0 + T.length - 1);
+                Matrix target = V.getMatrixView(k0 + 1, n - 1, 0, n - 1);
+                QRDecomposition.applyReflectors(panel, T, target, false);
+                panel.release();
+                target.release();
+            }
+        }
+        work.release();
+    }
+
+    /**
+     * 对称三对角矩阵的隐式QL迭代 (改写自JAMA/EISPACK的tql2), 特征值按升序排列
+     *
+     * @param d
+     *            对角线, 运算后为特征值
+     * @param e
+     *            e[i]为(i, i+1)位置的元素, 运算后被破坏
+     * @param z
+     *            z[i]为第i个特征向量, 为null时不计算特征向量
+     */
+    private static void tql2(double[] d, double[] e, double[][] z) {
+        int n = d.length;
+        e[n - 1] = 0.0;
+        double f = 0.0;
+        double tst1 = 0.0;
+        double eps = Math.pow(2.0, -52.0);
+        for (int l = 0; l < n; l++) {
+            // Find small subdiagonal element
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while (m < n) {
+                if (Math.abs(e[m]) <= eps * tst1) {
+                    break;
+                }
+                m++;
+            }
+            // If m == l, d[l] is an eigenvalue, otherwise, iterate.
+            if (m > l) {
+                do {
+                    // Compute implicit shift
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2.0 * e[l]);
+                    double r = Math.hypot(p, 1.0);
+                    if (p < 0) {
+                        r = -r;
+                    }
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for (int i = l + 2; i < n; i++) {
+                        d[i] -= h;
+                    }
+                    f = f + h;
+
+                    // Implicit QL transformation.
+                    p = d[m];
+                    double c = 1.0;
+                    double c2 = c;
+                    double c3 = c;
+                    double el1 = e[l + 1];
+                    double s = 0.0;
+                    double s2 = 0.0;
+                    for (int i = m - 1; i >= l; i--) {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = Math.hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+                        // Accumulate transformation.
+                        if (z != null) {
+                            double[] zi = z[i], zi1 = z[i + 1];
+                            for (int k = 0; k < n; k++) {
+                                h = zi1[k];
+                                zi1[k] = s * zi[k] + c * h;
+                                zi[k] = c * zi[k] - s * h;
+                            }
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+                    // Check for convergence.
+                } while (Math.abs(e[l]) > eps * tst1);
+            }
+            d[l] = d[l] + f;
+            e[l] = 0.0;
+        }
+
+        // Sort eigenvalues and corresponding vectors.
+        for (int i = 0; i < n - 1; i++) {
+            int k = i;
+            double p = d[i];
+            for (int j = i + 1; j < n; j++) {
+                if (d[j] < p) {
+                    k = j;
+                    p = d[j];
+                }
+            }
+            if (k != i) {
+                d[k] = d[i];
+                d[i] = p;
+                if (z != null) {
+                    double[] temp = z[i];
+                    z[i] = z[k];
+                    z[k] = temp;
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取特征向量矩阵
+     *
+     * @return V (第j列是第j个特征值对应的特征向量)
+     * @exception IllegalStateException
+     *                分解时没有计算特征向量
+     */
+    public Matrix getV() {
+        if (V == null) {
+            throw new IllegalStateException("分解时没有计算特征向量");
+        }
+        return V.copy();
+    }
+
+    /**
+     * 获取特征值(升序排列)
+     *
+     * @return 特征值
+     */
+    public double[] getRealEigenvalues() {
+        return d.clone();
+    }
+
+    /**
+     * 获取特征值的虚部 (对称矩阵全部为0)
+     *
+     * @return 特征值的虚部
+     */
+    public double[] getImagEigenvalues() {
+        return new double[n];
+    }
+
+    /**
+     * 获取特征值组成的对角矩阵
+     *
+     * @return D
+     */
+    public Matrix getD() {
+        double[][] data = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            data[i][i] = d[i];
+        }
+        return new Matrix(data);
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        if (V != null)
+            V.release();
+    }
+}
@@ -1,323 +1,1883 @@
 /*
  * Matrix operate
+ *
+ * Every matrix is passed as (buffer, offset, pitch): element (m, n) is stored at
+ * buffer[offset + m * pitch + n], so views that share the storage of a bigger
+ * matrix can be used directly without copying.
  */
 
-// let mr = m1 + m2
-kernel void matrixAdd(global const float* m1, global const float* m2, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = m1[iGID] + m2[iGID];
+// element-wise kernels walk an M * N matrix as float4 quads with a grid-stride loop, so the
+// host sizes the launch from the number of compute units instead of M * N: quad i covers
+// row i / quads and columns 4 * (i % quads) .. 4 * (i % quads) + 3 of it. the last quad of
+// a row may be partial (count < 4), it is loaded padded with 0 and only count elements are
+// stored. vload4 / vstore4 only need the alignment of a float, so views work unchanged
+#define FOR_EACH_QUAD(M, N) \
+    int quads = ((N) + 3) / 4; \
+    int total = (M) * quads; \
+    for (int i = get_global_id(0); i < total; i += get_global_size(0)) { \
+        int m = i / quads; \
+        int n = (i - m * quads) * 4; \
+        int count = min(4, (N) - n);
+#define END_FOR_EACH_QUAD }
+
+// load the quad starting at src (step 0 repeats src[0], see the broadcasting kernels)
+inline float4 loadQuad(global const float* src, int step, int count) {
+    if (step == 0)
+        return (float4)(src[0]);
+    if (count == 4)
+        return vload4(0, src);
+    float4 v = (float4)(0.0f);
+    v.x = src[0];
+    if (count > 1) v.y = src[1];
+    if (count > 2) v.z = src[2];
+    return v;
+}
+
+// store the first count elements of a quad
+inline void storeQuad(float4 v, global float* dst, int count) {
+    if (count == 4) {
+        vstore4(v, 0, dst);
+        return;
+    }
+    dst[0] = v.x;
+    if (count > 1) dst[1] = v.y;
+    if (count > 2) dst[2] = v.z;
+}
+
+// let mr = m1 (op) m2 element-wise
+// matrixAdd, matrixSubtract, arrayMultiply and arrayDivide broadcast their inputs: element (m, n)
+// of an input is read at offset + m * pitch + n * step, an input with a single row has pitch 0
+// and an input with a single column has step 0, so it is repeated over the whole of mr
+#define BROADCAST_KERNEL(name, op) \
+kernel void name( \
+        global const float* m1, int m1Offset, int m1Pitch, int m1Step, \
+        global const float* m2, int m2Offset, int m2Pitch, int m2Step, \
+        global float* mr, int mrOffset, int mrPitch, int M, int N) { \
+    FOR_EACH_QUAD(M, N) \
+        float4 a = loadQuad(m1 + m1Offset + m * m1Pitch + n * m1Step, m1Step, count); \
+        float4 b = loadQuad(m2 + m2Offset + m * m2Pitch + n * m2Step, m2Step, count); \
+        storeQuad(a op b, mr + mrOffset + m * mrPitch + n, count); \
+    END_FOR_EACH_QUAD \
+}
+
+BROADCAST_KERNEL(matrixAdd, +)
+BROADCAST_KERNEL(matrixSubtract, -)
+BROADCAST_KERNEL(arrayMultiply, *)
+BROADCAST_KERNEL(arrayDivide, /)
+
+// let result = f(x) element-wise, expression is evaluated on a float4 x
+// (the padding lanes of a partial quad are computed too but never stored)
+#define UNARY_KERNEL(name, expression) \
+kernel void name( \
+        global const float* inputMatrix, int inputOffset, int inputPitch, \
+        global float* resultMatrix, int resultOffset, int resultPitch, int M, int N) { \
+    FOR_EACH_QUAD(M, N) \
+        float4 x = loadQuad(inputMatrix + inputOffset + m * inputPitch + n, 1, count); \
+        storeQuad(expression, resultMatrix + resultOffset + m * resultPitch + n, count); \
+    END_FOR_EACH_QUAD \
 }
 
-// let mr = m1 - m2
-kernel void matrixSubtract(global const float* m1, global const float* m2, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = m1[iGID] - m2[iGID];
+// the same with one extra scalar argument after M and N
+#define UNARY_KERNEL_WITH(name, type, argument, expression) \
+kernel void name( \
+        global const float* inputMatrix, int inputOffset, int inputPitch, \
+        global float* resultMatrix, int resultOffset, int resultPitch, int M, int N, type argument) { \
+    FOR_EACH_QUAD(M, N) \
+        float4 x = loadQuad(inputMatrix + inputOffset + m * inputPitch + n, 1, count); \
+        storeQuad(expression, resultMatrix + resultOffset + m * resultPitch + n, count); \
+    END_FOR_EACH_QUAD \
 }
 
 // fill matrix with random number (now it is a test code for temporary use)
-kernel void rand(global float* matrix, float lowerLimit, float upperLimit, int seed) {
-    int iGID = get_global_id(0);
+kernel void rand(global float* matrix, int offset, int pitch, float lowerLimit, float upperLimit, int seed) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    int iGID = m * get_global_size(1) + n;
     seed = (seed * iGID) % 10000;
     int times = (66941 * seed + 92655) % 10;
     for(int i = 0; i < times; i++) {
         seed = (66941 * seed + 92655) % 10000;
     }
-    matrix[iGID] = (upperLimit - lowerLimit)/10000*seed + lowerLimit;
+    matrix[offset + m * pitch + n] = (upperLimit - lowerLimit)/10000*seed + lowerLimit;
 }
 
-// transpose matrix
-kernel void transpose(global const float* matrix, global float* mr, int M, int N) {
+// integer hash (lowbias32), used as a counter-based random number generator:
+// the same (seed, position) always gives the same number, no state is kept between launches
+inline uint hash32(uint x) {
+    x ^= x >> 16;
+    x *= 0x7feb352dU;
+    x ^= x >> 15;
+    x *= 0x846ca68bU;
+    x ^= x >> 16;
+    return x;
+}
+
+// uniform float in (0, 1) from the top 24 bits of a hash
+inline float hashToUnit(uint x) {
+    return ((float) (x >> 8) + 0.5f) * (1.0f / 16777216.0f);
+}
+
+// fill the matrix with normally distributed numbers (Box-Muller on two hashed counters)
+kernel void randn(global float* matrix, int offset, int pitch, float mean, float deviation, int seed) {
     int m = get_global_id(0);
     int n = get_global_id(1);
+    uint key = hash32((uint) seed);
+    uint id = (uint) (m * get_global_size(1) + n);
+    float u1 = hashToUnit(hash32(key + 2 * id));
+    float u2 = hashToUnit(hash32(key + 2 * id + 1));
+    float z = sqrt(-2.0f * log(u1)) * cos(6.28318530718f * u2);
+    matrix[offset + m * pitch + n] = mean + deviation * z;
+}
+
+// transpose matrix
+// each work group moves a TRANSPOSE_TILE * TRANSPOSE_TILE tile through local memory,
+// so both the loads and the stores are coalesced.
+// dimension 0 walks the columns and dimension 1 walks the rows of the source matrix,
+// the work group size must be TRANSPOSE_TILE * TRANSPOSE_TILE
+#define TRANSPOSE_TILE 16
+kernel void transpose(
+        global const float* matrix, int offset, int pitch,
+        global float* mr, int mrOffset, int mrPitch,
+        int M, int N) {
+    // one extra column so that reading a column of the tile does not hit the same bank
+    local float tile[TRANSPOSE_TILE][TRANSPOSE_TILE + 1];
+    int ln = get_local_id(0);
+    int lm = get_local_id(1);
+    int tileM = get_group_id(1) * TRANSPOSE_TILE;
+    int tileN = get_group_id(0) * TRANSPOSE_TILE;
     
-    mr[n * M + m] = matrix[m * N + n];
+    if (tileM + lm < M && tileN + ln < N)
+        tile[lm][ln] = matrix[offset + (tileM + lm) * pitch + tileN + ln];
+    barrier(CLK_LOCAL_MEM_FENCE);
+    if (tileN + lm < N && tileM + ln < M)
+        mr[mrOffset + (tileN + lm) * mrPitch + tileM + ln] = tile[ln][lm];
 }
 
-// copy a matrix
-kernel void copy(global const float* originalMatrix, global float* newMatrix) {
-    int id = get_global_id(0);
-    newMatrix[id] = originalMatrix[id];
+// transpose a square matrix in place
+// the work group (i, j) with i < j swaps the tiles (i, j) and (j, i),
+// the groups with i == j transpose the tile on the diagonal and the ones with i > j have nothing to do
+kernel void transposeInPlace(global float* matrix, int offset, int pitch, int N) {
+    local float tile1[TRANSPOSE_TILE][TRANSPOSE_TILE + 1];
+    local float tile2[TRANSPOSE_TILE][TRANSPOSE_TILE + 1];
+    int tileM = get_group_id(1) * TRANSPOSE_TILE;
+    int tileN = get_group_id(0) * TRANSPOSE_TILE;
+    if (tileM > tileN)
+        return;
+    int ln = get_local_id(0);
+    int lm = get_local_id(1);
+    
+    if (tileM + lm < N && tileN + ln < N)
+        tile1[lm][ln] = matrix[offset + (tileM + lm) * pitch + tileN + ln];
+    if (tileN + lm < N && tileM + ln < N)
+        tile2[lm][ln] = matrix[offset + (tileN + lm) * pitch + tileM + ln];
+    barrier(CLK_LOCAL_MEM_FENCE);
+    if (tileN + lm < N && tileM + ln < N)
+        matrix[offset + (tileN + lm) * pitch + tileM + ln] = tile1[ln][lm];
+    if (tileM + lm < N && tileN + ln < N)
+        matrix[offset + (tileM + lm) * pitch + tileN + ln] = tile2[ln][lm];
+}
+
+// copy a region of a matrix
+// both offsets already point to the top left corner of the region
+UNARY_KERNEL(copy2D, x)
+
+// gather the selected rows and columns of a matrix
+// mr(i, j) = m1(rows[i], columns[j])
+kernel void gather(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global float* mr, int mrOffset, int mrPitch,
+        global const int* rows, global const int* columns) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    mr[mrOffset + m * mrPitch + n] = m1[m1Offset + rows[m] * m1Pitch + columns[n]];
 }
 
-//copy a matrix
-kernel void copy2D(global const float* originalMatrix, global float* newMatrix,
-        const int originalMatrixN, const int newMatrixN,
-        const int offsetErrorM, const int offsetErrorN,
-        const int offsetM, const int offsetN) {
-    int mIdO = get_global_id(0) + offsetM;
-    int nIdO = get_global_id(1) + offsetN;
-    int mIdN = mIdO + offsetErrorM;
-    int nIdN = nIdO + offsetErrorN;
-    newMatrix[mIdN * newMatrixN + nIdN] = originalMatrix[mIdO * originalMatrixN + nIdO];
+// scatter a matrix into the selected rows and columns of another one
+// mr(rows[i], columns[j]) = m1(i, j)
+kernel void scatter(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global float* mr, int mrOffset, int mrPitch,
+        global const int* rows, global const int* columns) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    mr[mrOffset + rows[m] * mrPitch + columns[n]] = m1[m1Offset + m * m1Pitch + n];
 }
 
 // let mr = k * m
-kernel void matrixScalarMultiply(global const float* m, float k, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = m[iGID] * k;
+UNARY_KERNEL_WITH(matrixScalarMultiply, float, k, x * k)
+
+// load count (< 8) floats into the first elements of a float8, the rest is 0
+inline float8 loadPartial8(global const float* src, int count) {
+    float8 v = (float8)(0.0f);
+    if (count > 0) v.s0 = src[0];
+    if (count > 1) v.s1 = src[1];
+    if (count > 2) v.s2 = src[2];
+    if (count > 3) v.s3 = src[3];
+    if (count > 4) v.s4 = src[4];
+    if (count > 5) v.s5 = src[5];
+    if (count > 6) v.s6 = src[6];
+    return v;
 }
 
-// let mr = m1 * m2
-// M : number of rows in m1
-// N : number of rows in m2 (also number of columns in m1)
-// P : number of columns in m2
-kernel void matrixMultiply(
-        global const float* m1,
-        global const float* m2,
-        global float* mr,
-        int M, int N, int P) {
-    
-    int mID = get_global_id(0);
-    int nID = get_global_id(1);
-    
-    float sum = 0;
-    
-    int m1StartPoint = mID * N;
-    for(int i = 0; i < N; i++) {
-        sum += m1[m1StartPoint + i] * m2[nID + i * P];
-    }
-    mr[mID * P + nID] = sum;
+// dst[k] = value[k] + beta * dst[k] for the first count (< 8) elements, dst is not read when beta is 0
+inline void storePartial8(float8 value, global float* dst, int count, float beta) {
+    if (count > 0) dst[0] = beta == 0.0f ? value.s0 : value.s0 + beta * dst[0];
+    if (count > 1) dst[1] = beta == 0.0f ? value.s1 : value.s1 + beta * dst[1];
+    if (count > 2) dst[2] = beta == 0.0f ? value.s2 : value.s2 + beta * dst[2];
+    if (count > 3) dst[3] = beta == 0.0f ? value.s3 : value.s3 + beta * dst[3];
+    if (count > 4) dst[4] = beta == 0.0f ? value.s4 : value.s4 + beta * dst[4];
+    if (count > 5) dst[5] = beta == 0.0f ? value.s5 : value.s5 + beta * dst[5];
+    if (count > 6) dst[6] = beta == 0.0f ? value.s6 : value.s6 + beta * dst[6];
 }
 
-// let mr = m1 * m2
-// M : number of rows in m1 (must can be divisible by 8)
-// N : number of rows in m2 (also number of columns in m1) (must can be divisible by 8)
+// let mr = alpha * m1 * m2 + beta * mr
+// M : number of rows in m1
+// N : number of rows in m2 (also number of columns in m1)
 // P : number of columns in m2
-// this function is faster than the one above
+// maxMId, maxNId : number of blocks in each direction (ceil(M / 8), ceil(P / 8))
+// each work item computes a WORK_ITEM_M * WORK_ITEM_N block, the rows of m2 and mr
+// in the block are read and written as float8 (aligned when the row pitch is padded).
+// blocks on the bottom and right edges are handled in the same launch: rows past M read
+// a valid row and are not stored, columns past P are loaded as 0 and not stored
+// mr is not read when beta is 0
 #define WORK_ITEM_M 8
 #define WORK_ITEM_N 8
 kernel void matrixMultiplyN(
-        global const float* m1,
-        global const float* m2,
-        global float* mr,
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global float* mr, int mrOffset, int mrPitch,
         int M, int N, int P, 
-        int maxMId, int maxNId) {
+        int maxMId, int maxNId,
+        float alpha, float beta) {
     if (get_global_id(0) >= maxMId)
         return;
     if (get_global_id(1) >= maxNId)
         return;
     int mID = get_global_id(0) * WORK_ITEM_M;
     int nID = get_global_id(1) * WORK_ITEM_N;
+    int rows = min(WORK_ITEM_M, M - mID);
+    int columns = min(WORK_ITEM_N, P - nID);
     
-    float sum[WORK_ITEM_M][WORK_ITEM_N];
+    float8 sum[WORK_ITEM_M];
     float data1[WORK_ITEM_M];
-    float data2[WORK_ITEM_N];
+    float8 data2;
     
+    for(int m = 0; m < WORK_ITEM_M; m++) {
+        sum[m] = (float8)(0.0f);
+    }
     for(int n = 0; n < N; n++) {
         for(int i = 0; i < WORK_ITEM_M; i++) {
-            data1[i] = m1[(mID + i) * N + n];
-        }
-        for(int i = 0; i < WORK_ITEM_N; i++) {
-            data2[i] = m2[nID + n * P + i];
+            data1[i] = m1[m1Offset + min(mID + i, M - 1) * m1Pitch + n];
         }
+        global const float* row2 = m2 + m2Offset + n * m2Pitch + nID;
+        if (columns == WORK_ITEM_N)
+            data2 = vload8(0, row2);
+        else
+            data2 = loadPartial8(row2, columns);
         
-        if(n == 0) {
-            for(int m = 0; m < WORK_ITEM_M; m++) {
-                for(int n = 0; n < WORK_ITEM_N; n++) {
-                    sum[m][n] = data1[m] * data2[n];
-                }
+        for(int m = 0; m < WORK_ITEM_M; m++) {
+            sum[m] += data1[m] * data2;
+        }
+    }
+    for(int m = 0; m < rows; m++) {
+        global float* row = mr + mrOffset + (mID + m) * mrPitch + nID;
+        if (columns < WORK_ITEM_N)
+            storePartial8(alpha * sum[m], row, columns, beta);
+        else if (beta == 0.0f)
+            vstore8(alpha * sum[m], 0, row);
+        else
+            vstore8(alpha * sum[m] + beta * vload8(0, row), 0, row);
+    }
+}
+
+// let mr = alpha * op(m1) * op(m2) + beta * mr, where op(x) is x' when the flag is not 0 and x otherwise
+// M * N is the size of op(m1), N * P the size of op(m2). the transposed operands are read in place
+// instead of being copied by transpose first: a transposed m1 is read like X in syrkN (8 consecutive
+// elements of one row), a transposed m2 reads one element from each of 8 rows. blocks are computed
+// like matrixMultiplyN, mr is not read when beta is 0
+kernel void matrixMultiplyT(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global float* mr, int mrOffset, int mrPitch,
+        int M, int N, int P,
+        int maxMId, int maxNId,
+        int transpose1, int transpose2,
+        float alpha, float beta) {
+    if (get_global_id(0) >= maxMId)
+        return;
+    if (get_global_id(1) >= maxNId)
+        return;
+    int mID = get_global_id(0) * WORK_ITEM_M;
+    int nID = get_global_id(1) * WORK_ITEM_N;
+    int rows = min(WORK_ITEM_M, M - mID);
+    int columns = min(WORK_ITEM_N, P - nID);
+
+    float8 sum[WORK_ITEM_M];
+    float data1[WORK_ITEM_M];
+    float data2[WORK_ITEM_N];
+
+    for (int m = 0; m < WORK_ITEM_M; m++) {
+        sum[m] = (float8)(0.0f);
+    }
+    for (int n = 0; n < N; n++) {
+        if (transpose1) {
+            global const float* row1 = m1 + m1Offset + n * m1Pitch + mID;
+            vstore8(rows == WORK_ITEM_M ? vload8(0, row1) : loadPartial8(row1, rows), 0, data1);
+        } else {
+            for (int i = 0; i < WORK_ITEM_M; i++)
+                data1[i] = m1[m1Offset + min(mID + i, M - 1) * m1Pitch + n];
+        }
+        if (transpose2) {
+            for (int i = 0; i < WORK_ITEM_N; i++)
+                data2[i] = i < columns ? m2[m2Offset + (nID + i) * m2Pitch + n] : 0.0f;
+        } else {
+            global const float* row2 = m2 + m2Offset + n * m2Pitch + nID;
+            vstore8(columns == WORK_ITEM_N ? vload8(0, row2) : loadPartial8(row2, columns), 0, data2);
+        }
+        float8 b = vload8(0, data2);
+        for (int m = 0; m < WORK_ITEM_M; m++) {
+            sum[m] += data1[m] * b;
+        }
+    }
+    for (int m = 0; m < rows; m++) {
+        global float* row = mr + mrOffset + (mID + m) * mrPitch + nID;
+        if (columns < WORK_ITEM_N)
+            storePartial8(alpha * sum[m], row, columns, beta);
+        else if (beta == 0.0f)
+            vstore8(alpha * sum[m], 0, row);
+        else
+            vstore8(alpha * sum[m] + beta * vload8(0, row), 0, row);
+    }
+}
+
+// let C = alpha * X' * X + beta * C, only the lower (or upper) triangle of C is computed
+// X is K * N, C is N * N. every work item computes an 8 * 8 block of C like matrixMultiplyN,
+// both operands are rows of X (read as float8), so X is never transposed. blocks that lie
+// entirely in the other triangle return at once, diagonal blocks store only their own triangle
+// C is not read when beta is 0
+kernel void syrkN(
+        global const float* X, int xOffset, int xPitch,
+        global float* C, int cOffset, int cPitch,
+        int K, int N, int maxId, int upper,
+        float alpha, float beta) {
+    int bm = get_global_id(0);
+    int bn = get_global_id(1);
+    if (bm >= maxId || bn >= maxId)
+        return;
+    if (upper ? bm > bn : bm < bn)
+        return;
+    int mID = bm * WORK_ITEM_M;
+    int nID = bn * WORK_ITEM_N;
+    int rows = min(WORK_ITEM_M, N - mID);
+    int columns = min(WORK_ITEM_N, N - nID);
+
+    float8 sum[WORK_ITEM_M];
+    float data1[WORK_ITEM_M];
+    for (int m = 0; m < WORK_ITEM_M; m++) {
+        sum[m] = (float8)(0.0f);
+    }
+    for (int k = 0; k < K; k++) {
+        global const float* row = X + xOffset + k * xPitch;
+        vstore8(rows == WORK_ITEM_M ? vload8(0, row + mID) : loadPartial8(row + mID, rows), 0, data1);
+        float8 data2 = columns == WORK_ITEM_N ? vload8(0, row + nID) : loadPartial8(row + nID, columns);
+        for (int m = 0; m < WORK_ITEM_M; m++) {
+            sum[m] += data1[m] * data2;
+        }
+    }
+    for (int m = 0; m < rows; m++) {
+        global float* out = C + cOffset + (mID + m) * cPitch + nID;
+        if (bm == bn) {
+            float values[WORK_ITEM_N];
+            vstore8(alpha * sum[m], 0, values);
+            int first = upper ? m : 0;
+            int last = upper ? columns : min(m + 1, columns);
+            for (int n = first; n < last; n++)
+                out[n] = beta == 0.0f ? values[n] : values[n] + beta * out[n];
+        } else if (columns < WORK_ITEM_N) {
+            storePartial8(alpha * sum[m], out, columns, beta);
+        } else if (beta == 0.0f) {
+            vstore8(alpha * sum[m], 0, out);
+        } else {
+            vstore8(alpha * sum[m] + beta * vload8(0, out), 0, out);
+        }
+    }
+}
+
+// copy the lower (or upper when upper != 0) triangle of a square matrix into the other one
+kernel void symmetrize(global float* C, int offset, int pitch, int upper) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    if (upper ? m > n : m < n)
+        C[offset + m * pitch + n] = C[offset + n * pitch + m];
+}
+
+// activation functions of the fused dense layer, the codes match the Java enum Activation:
+// 0 identity, 1 sigmoid, 2 tanh, 3 relu, 4 gelu (tanh approximation)
+// the gradient takes the output of the activation, except for gelu where the output does not
+// determine the input, so gelu takes the pre-activation saved by the forward pass
+#define GELU_K0 0.7978845608f
+#define GELU_K1 0.044715f
+#define ACTIVATION_FUNCTIONS(suffix, type, one) \
+inline type activate##suffix(type z, int activation) { \
+    switch (activation) { \
+    case 1: return 1.0f / (1.0f + exp(-z)); \
+    case 2: return tanh(z); \
+    case 3: return fmax(z, 0.0f); \
+    case 4: return 0.5f * z * (1.0f + tanh(GELU_K0 * (z + GELU_K1 * z * z * z))); \
+    default: return z; \
+    } \
+} \
+inline type activationGradient##suffix(type c, int activation) { \
+    type t; \
+    switch (activation) { \
+    case 1: return c * (1.0f - c); \
+    case 2: return 1.0f - c * c; \
+    case 3: return sign(c); \
+    case 4: \
+        t = tanh(GELU_K0 * (c + GELU_K1 * c * c * c)); \
+        return 0.5f * (1.0f + t) + 0.5f * c * (1.0f - t * t) * GELU_K0 * (1.0f + 3.0f * GELU_K1 * c * c); \
+    default: return one; \
+    } \
+}
+
+ACTIVATION_FUNCTIONS(, float, 1.0f)
+ACTIVATION_FUNCTIONS(8, float8, (float8)(1.0f))
+
+// let Y = activation(X * W + bias), the epilogue of matrixMultiplyN, so the product never
+// goes to global memory before the activation
+// X is M * N, W is N * P, Y is M * P. bias is a vector of P elements (element k at
+// biasOffset + k * biasStep), it is skipped when hasBias is 0
+// Z receives the pre-activation X * W + bias when saveZ is not 0 (needed for the gelu gradient)
+kernel void denseForwardN(
+        global const float* X, int xOffset, int xPitch,
+        global const float* W, int wOffset, int wPitch,
+        global float* Y, int yOffset, int yPitch,
+        global float* Z, int zOffset, int zPitch,
+        global const float* bias, int biasOffset, int biasStep,
+        int M, int N, int P,
+        int maxMId, int maxNId,
+        int hasBias, int saveZ, int activation) {
+    if (get_global_id(0) >= maxMId)
+        return;
+    if (get_global_id(1) >= maxNId)
+        return;
+    int mID = get_global_id(0) * WORK_ITEM_M;
+    int nID = get_global_id(1) * WORK_ITEM_N;
+    int rows = min(WORK_ITEM_M, M - mID);
+    int columns = min(WORK_ITEM_N, P - nID);
+
+    float8 sum[WORK_ITEM_M];
+    float data1[WORK_ITEM_M];
+    float8 data2;
+
+    for(int m = 0; m < WORK_ITEM_M; m++) {
+        sum[m] = (float8)(0.0f);
+    }
+    for(int n = 0; n < N; n++) {
+        for(int i = 0; i < WORK_ITEM_M; i++) {
+            data1[i] = X[xOffset + min(mID + i, M - 1) * xPitch + n];
+        }
+        global const float* row2 = W + wOffset + n * wPitch + nID;
+        if (columns == WORK_ITEM_N)
+            data2 = vload8(0, row2);
+        else
+            data2 = loadPartial8(row2, columns);
+
+        for(int m = 0; m < WORK_ITEM_M; m++) {
+            sum[m] += data1[m] * data2;
+        }
+    }
+
+    float b[WORK_ITEM_N];
+    for (int k = 0; k < WORK_ITEM_N; k++) {
+        b[k] = hasBias && k < columns ? bias[biasOffset + (nID + k) * biasStep] : 0.0f;
+    }
+    float8 b8 = vload8(0, b);
+    for(int m = 0; m < rows; m++) {
+        float8 z = sum[m] + b8;
+        float8 y = activate8(z, activation);
+        global float* row = Y + yOffset + (mID + m) * yPitch + nID;
+        global float* rowZ = Z + zOffset + (mID + m) * zPitch + nID;
+        if (columns < WORK_ITEM_N) {
+            storePartial8(y, row, columns, 0.0f);
+            if (saveZ)
+                storePartial8(z, rowZ, columns, 0.0f);
+        } else {
+            vstore8(y, 0, row);
+            if (saveZ)
+                vstore8(z, 0, rowZ);
+        }
+    }
+}
+
+// backward pass of denseForwardN: mr = op1 * op2 + beta * mr where one operand is the gradient
+// of the pre-activation dY .* activationGradient(cache), computed while the operand is loaded,
+// and the other one is the transpose of a forward operand, read in place like matrixMultiplyT
+// gradientSide 0: op1 = dY .* f'(cache) (m1 is dY, M * N), op2 = m2' (m2 is W, P * N), used for
+//   dX = dZ * W'
+// gradientSide 1: op1 = m1' (m1 is X, N * M), op2 = dY .* f'(cache) (m2 is dY, N * P), used for
+//   dW = X' * dZ; the work items of the first block row also add up the columns of dZ into the
+//   bias gradient (element k at biasOffset + k * biasStep) when hasBias is not 0
+// M, N, P are the sizes of the operands, cache has the same shape as dY
+// mr and the bias gradient are not read when beta is 0
+kernel void denseBackwardN(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global const float* cache, int cacheOffset, int cachePitch,
+        global float* mr, int mrOffset, int mrPitch,
+        global float* biasGradient, int biasOffset, int biasStep,
+        int M, int N, int P,
+        int maxMId, int maxNId,
+        int gradientSide, int hasBias, int activation, float beta) {
+    if (get_global_id(0) >= maxMId)
+        return;
+    if (get_global_id(1) >= maxNId)
+        return;
+    int mID = get_global_id(0) * WORK_ITEM_M;
+    int nID = get_global_id(1) * WORK_ITEM_N;
+    int rows = min(WORK_ITEM_M, M - mID);
+    int columns = min(WORK_ITEM_N, P - nID);
+    int sumBias = gradientSide == 1 && hasBias && mID == 0;
+
+    float8 sum[WORK_ITEM_M];
+    float data1[WORK_ITEM_M];
+    float8 data2;
+    float8 biasSum = (float8)(0.0f);
+
+    for(int m = 0; m < WORK_ITEM_M; m++) {
+        sum[m] = (float8)(0.0f);
+    }
+    for(int n = 0; n < N; n++) {
+        if (gradientSide == 0) {
+            for(int i = 0; i < WORK_ITEM_M; i++) {
+                int index = min(mID + i, M - 1);
+                data1[i] = m1[m1Offset + index * m1Pitch + n]
+                        * activationGradient(cache[cacheOffset + index * cachePitch + n], activation);
             }
+            float w[WORK_ITEM_N];
+            for (int i = 0; i < WORK_ITEM_N; i++)
+                w[i] = i < columns ? m2[m2Offset + (nID + i) * m2Pitch + n] : 0.0f;
+            data2 = vload8(0, w);
         } else {
-            for(int m = 0; m < WORK_ITEM_M; m++) {
-                for(int n = 0; n < WORK_ITEM_N; n++) {
-                    sum[m][n] += data1[m] * data2[n];
-                }
+            global const float* row1 = m1 + m1Offset + n * m1Pitch + mID;
+            vstore8(rows == WORK_ITEM_M ? vload8(0, row1) : loadPartial8(row1, rows), 0, data1);
+            global const float* row2 = m2 + m2Offset + n * m2Pitch + nID;
+            global const float* rowCache = cache + cacheOffset + n * cachePitch + nID;
+            if (columns == WORK_ITEM_N)
+                data2 = vload8(0, row2) * activationGradient8(vload8(0, rowCache), activation);
+            else
+                data2 = loadPartial8(row2, columns) * activationGradient8(loadPartial8(rowCache, columns), activation);
+            biasSum += data2;
+        }
+
+        for(int m = 0; m < WORK_ITEM_M; m++) {
+            sum[m] += data1[m] * data2;
+        }
+    }
+    for(int m = 0; m < rows; m++) {
+        global float* row = mr + mrOffset + (mID + m) * mrPitch + nID;
+        if (columns < WORK_ITEM_N)
+            storePartial8(sum[m], row, columns, beta);
+        else if (beta == 0.0f)
+            vstore8(sum[m], 0, row);
+        else
+            vstore8(sum[m] + beta * vload8(0, row), 0, row);
+    }
+    if (sumBias) {
+        float b[WORK_ITEM_N];
+        vstore8(biasSum, 0, b);
+        for (int k = 0; k < columns; k++) {
+            global float* dst = biasGradient + biasOffset + (nID + k) * biasStep;
+            *dst = beta == 0.0f ? b[k] : b[k] + beta * *dst;
+        }
+    }
+}
+
+// y = alpha * A * x + beta * y (A is M * N, x and y are column vectors)
+// each work group reduces one row of A: the work items read the row as float4 with a stride
+// of the work group size, then the partial sums are added up in local memory
+// (the local size must be a power of 2), y is not read when beta is 0
+kernel void gemv(
+        global const float* A, int aOffset, int aPitch,
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int M, int N, float alpha, float beta, local float* scratch) {
+    int row = get_group_id(0);
+    int lid = get_local_id(0);
+    int size = get_local_size(0);
+    global const float* a = A + aOffset + row * aPitch;
+    global const float* xv = x + xOffset;
+    float4 sum4 = (float4)(0.0f);
+    int quads = N / 4;
+    if (xPitch == 1) {
+        for (int i = lid; i < quads; i += size)
+            sum4 += vload4(i, a) * vload4(i, xv);
+    } else {
+        for (int i = lid; i < quads; i += size) {
+            int n = i * 4;
+            sum4 += vload4(i, a) * (float4)(xv[n * xPitch], xv[(n + 1) * xPitch],
+                    xv[(n + 2) * xPitch], xv[(n + 3) * xPitch]);
+        }
+    }
+    float sum = sum4.x + sum4.y + sum4.z + sum4.w;
+    for (int n = quads * 4 + lid; n < N; n += size)
+        sum += a[n] * xv[n * xPitch];
+    scratch[lid] = sum;
+    for (int stride = size / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (lid < stride)
+            scratch[lid] += scratch[lid + stride];
+    }
+    if (lid == 0) {
+        int yi = yOffset + row * yPitch;
+        y[yi] = beta == 0.0f ? alpha * scratch[0] : alpha * scratch[0] + beta * y[yi];
+    }
+}
+
+// y = alpha * x * A + beta * y (x is a 1 * N row vector, A is N * P, y is a 1 * P row vector)
+// dimension 0 walks groups of 4 columns, so the rows of A are read as coalesced float4;
+// the rows are split between the work items of dimension 1 and added up in local memory
+// (the local size of dimension 1 must be a power of 2), y is not read when beta is 0.
+// with several groups in dimension 1 each group takes every slices-th block of rows and
+// writes its sum to row `slice` of y, which then holds partial sums for gevmReduce
+kernel void gevm(
+        global const float* x, int xOffset, int xPitch,
+        global const float* A, int aOffset, int aPitch,
+        global float* y, int yOffset, int yPitch,
+        int N, int P, float alpha, float beta, local float4* scratch) {
+    int lx = get_local_id(0);
+    int ly = get_local_id(1);
+    int sizeX = get_local_size(0);
+    int sizeY = get_local_size(1);
+    int slice = get_group_id(1);
+    int slices = get_num_groups(1);
+    int column = get_global_id(0) * 4;
+    float4 sum = (float4)(0.0f);
+    if (column < P) {
+        for (int i = slice * sizeY + ly; i < N; i += slices * sizeY) {
+            global const float* row = A + aOffset + i * aPitch + column;
+            float4 a;
+            if (column + 3 < P) {
+                a = vload4(0, row);
+            } else {
+                a = (float4)(row[0], 0.0f, 0.0f, 0.0f);
+                if (column + 1 < P)
+                    a.y = row[1];
+                if (column + 2 < P)
+                    a.z = row[2];
             }
+            sum += x[xOffset + i] * a;
         }
     }
-    for(int m = 0; m < WORK_ITEM_M; m++) {
-        for(int n = 0; n < WORK_ITEM_N; n++) {
-            mr[(mID + m) * P + nID + n] = sum[m][n];
+    scratch[ly * sizeX + lx] = sum;
+    for (int stride = sizeY / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (ly < stride)
+            scratch[ly * sizeX + lx] += scratch[(ly + stride) * sizeX + lx];
+    }
+    if (ly == 0 && column < P) {
+        sum = alpha * scratch[lx];
+        global float* out = y + yOffset + slice * yPitch + column;
+        int count = min(4, P - column);
+        for (int k = 0; k < count; k++) {
+            float value = k == 0 ? sum.x : k == 1 ? sum.y : k == 2 ? sum.z : sum.w;
+            out[k] = beta == 0.0f ? value : value + beta * out[k];
+        }
+    }
+}
+
+// second pass of gevm: y = alpha * (sum of the rows of partial) + beta * y,
+// one work item for each column, y is not read when beta is 0
+kernel void gevmReduce(
+        global const float* partial, int pOffset, int pPitch,
+        global float* y, int yOffset, int yPitch,
+        int slices, float alpha, float beta) {
+    int j = get_global_id(1);
+    float sum = 0.0f;
+    for (int s = 0; s < slices; s++)
+        sum += partial[pOffset + s * pPitch + j];
+    global float* out = y + yOffset + j;
+    *out = beta == 0.0f ? alpha * sum : alpha * sum + beta * *out;
+}
+
+// swap the rows rowStart + i and pivots[i] (i = 0, 1, ..., count - 1) one after another
+// each work item handles one column, the columns in [skipStart, skipEnd) are left untouched
+kernel void swapRows(
+        global float* matrix, int offset, int pitch,
+        global const int* pivots, int rowStart, int count,
+        int skipStart, int skipEnd) {
+    int n = get_global_id(0);
+    if (n >= skipStart && n < skipEnd)
+        return;
+    for (int i = 0; i < count; i++) {
+        int p = pivots[i];
+        if (p != rowStart + i) {
+            int a = offset + (rowStart + i) * pitch + n;
+            int b = offset + p * pitch + n;
+            float temp = matrix[a];
+            matrix[a] = matrix[b];
+            matrix[b] = temp;
+        }
+    }
+}
+
+// solve op(T) * X = B for a small triangular T (N * N), X is written to B
+// each work item handles one column of B
+// op(T) is T', read in place, when transpose != 0 and T otherwise
+// lower != 0 : op(T) is lower triangular, otherwise upper triangular (the other half is not read)
+// unitDiagonal != 0 : the diagonal of T is taken as 1 and not read
+kernel void triangularSolve(
+        global const float* t, int tOffset, int tPitch,
+        global float* b, int bOffset, int bPitch,
+        int N, int lower, int transpose, int unitDiagonal) {
+    int n = get_global_id(0);
+    // element (i, k) of op(T) is at t[i * rowStep + k * columnStep]
+    int rowStep = transpose ? 1 : tPitch;
+    int columnStep = transpose ? tPitch : 1;
+    for (int step = 0; step < N; step++) {
+        int i = lower ? step : N - 1 - step;
+        float x = b[bOffset + i * bPitch + n];
+        if (lower) {
+            for (int k = 0; k < i; k++)
+                x -= t[tOffset + i * rowStep + k * columnStep] * b[bOffset + k * bPitch + n];
+        } else {
+            for (int k = i + 1; k < N; k++)
+                x -= t[tOffset + i * rowStep + k * columnStep] * b[bOffset + k * bPitch + n];
         }
+        if (!unitDiagonal)
+            x /= t[tOffset + i * tPitch + i];
+        b[bOffset + i * bPitch + n] = x;
     }
 }
 
+// mr = the lower (lower != 0) or upper triangle of m1 with zeros elsewhere
+// the diagonal is set to 1 when unitDiagonal != 0
+kernel void triangle(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global float* mr, int mrOffset, int mrPitch,
+        int lower, int unitDiagonal) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    float value;
+    if (m == n)
+        value = unitDiagonal ? 1.0f : m1[m1Offset + m * m1Pitch + n];
+    else if ((m > n) == (lower != 0))
+        value = m1[m1Offset + m * m1Pitch + n];
+    else
+        value = 0.0f;
+    mr[mrOffset + m * mrPitch + n] = value;
+}
+
+// copy the diagonal of m1 to the column vector mr
+kernel void diagonal(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global float* mr, int mrOffset, int mrPitch) {
+    int i = get_global_id(0);
+    mr[mrOffset + i * mrPitch] = m1[m1Offset + i * m1Pitch + i];
+}
+
+// ---------------------------------------------------------------------------
+// reductions and vector updates for the iterative solvers
+// vectors are column vectors: element i is at offset + i * pitch
+// scalars that the solvers need between launches live in a small device buffer,
+// a coefficient is given as (index, sign) and means sign * scalars[index] (just sign when index < 0)
+// ---------------------------------------------------------------------------
+
+inline float coefficient(global const float* scalars, int index, float sign) {
+    return index < 0 ? sign : sign * scalars[index];
+}
+
+// tree reduction of scratch[0 .. get_local_size(0) - 1] (the local size must be a power of 2),
+// the sum ends up in scratch[0]
+inline void reduceLocal(local float* scratch) {
+    int lid = get_local_id(0);
+    for (int stride = get_local_size(0) / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (lid < stride)
+            scratch[lid] += scratch[lid + stride];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+}
+
+// partial[group] = part of x . y, each work item walks the vectors with a grid stride
+kernel void dotPartial(
+        global const float* x, int xOffset, int xPitch,
+        global const float* y, int yOffset, int yPitch,
+        int length, global float* partial, local float* scratch) {
+    float sum = 0.0f;
+    for (int i = get_global_id(0); i < length; i += get_global_size(0))
+        sum += x[xOffset + i * xPitch] * y[yOffset + i * yPitch];
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        partial[get_group_id(0)] = scratch[0];
+}
+
+// partial[group] = part of the sum of squares of an M * N matrix (for the Frobenius norm)
+kernel void sumSquaresPartial(
+        global const float* m1, int m1Offset, int m1Pitch,
+        int M, int N, global float* partial, local float* scratch) {
+    float sum = 0.0f;
+    for (int i = get_global_id(0); i < M * N; i += get_global_size(0)) {
+        float value = m1[m1Offset + (i / N) * m1Pitch + i % N];
+        sum += value * value;
+    }
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        partial[get_group_id(0)] = scratch[0];
+}
+
+// like reduceLocal, but the maximum ends up in scratch[0]
+inline void reduceMaxLocal(local float* scratch) {
+    int lid = get_local_id(0);
+    for (int stride = get_local_size(0) / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (lid < stride)
+            scratch[lid] = max(scratch[lid], scratch[lid + stride]);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+}
+
+// softmax cross entropy of an M * N logits matrix against integer class labels, in one pass:
+// every work group walks its rows, finds the row maximum and the sum of exp(x - max) in local memory,
+// then adds log(sum) - (x[label] - max) to the loss and (when writeGradient is not 0) writes
+// grad = scale * (softmax(x) - onehot(label)). rows whose label is not in [0, N) are ignored (zero gradient)
+// partial[group] = scale * the loss of the rows of this group
+kernel void softmaxCrossEntropyPartial(
+        global const float* logits, int logitsOffset, int logitsPitch,
+        global const int* labels,
+        global float* grad, int gradOffset, int gradPitch,
+        int M, int N, int writeGradient, float scale,
+        global float* partial, local float* scratch) {
+    int lid = get_local_id(0);
+    int size = get_local_size(0);
+    float loss = 0.0f;
+    for (int row = get_group_id(0); row < M; row += get_num_groups(0)) {
+        global const float* x = logits + logitsOffset + row * logitsPitch;
+        float rowMax = -MAXFLOAT;
+        for (int n = lid; n < N; n += size)
+            rowMax = max(rowMax, x[n]);
+        scratch[lid] = rowMax;
+        reduceMaxLocal(scratch);
+        rowMax = scratch[0];
+        barrier(CLK_LOCAL_MEM_FENCE);
+
+        // the logit of the label is read before the barriers of the sum reduction: grad may be
+        // logits itself (in place), and other work items overwrite the row after those barriers
+        int label = labels[row];
+        int valid = label >= 0 && label < N;
+        float target = lid == 0 && valid ? x[label] : 0.0f;
+        float sum = 0.0f;
+        for (int n = lid; n < N; n += size)
+            sum += exp(x[n] - rowMax);
+        scratch[lid] = sum;
+        reduceLocal(scratch);
+        sum = scratch[0];
+        barrier(CLK_LOCAL_MEM_FENCE);
+
+        if (lid == 0 && valid)
+            loss += log(sum) - (target - rowMax);
+        if (writeGradient) {
+            global float* g = grad + gradOffset + row * gradPitch;
+            float inverse = scale / sum;
+            for (int n = lid; n < N; n += size)
+                g[n] = valid ? exp(x[n] - rowMax) * inverse - (n == label ? scale : 0.0f) : 0.0f;
+        }
+    }
+    scratch[lid] = loss;
+    reduceLocal(scratch);
+    if (lid == 0)
+        partial[get_group_id(0)] = scale * scratch[0];
+}
+
+// y += c * x, then partial[group] = part of y . y (residual update and its norm in one pass)
+kernel void axpyDotPartial(
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int length, global const float* scalars, int index, float sign,
+        global float* partial, local float* scratch) {
+    float c = coefficient(scalars, index, sign);
+    float sum = 0.0f;
+    for (int i = get_global_id(0); i < length; i += get_global_size(0)) {
+        int yi = yOffset + i * yPitch;
+        float value = y[yi] + c * x[xOffset + i * xPitch];
+        y[yi] = value;
+        sum += value * value;
+    }
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        partial[get_group_id(0)] = scratch[0];
+}
+
+// z = d .* r, then partial[group] = part of r . z (Jacobi preconditioner, d holds 1 / diag(A))
+kernel void multiplyDotPartial(
+        global const float* d, int dOffset, int dPitch,
+        global const float* r, int rOffset, int rPitch,
+        global float* z, int zOffset, int zPitch,
+        int length, global float* partial, local float* scratch) {
+    float sum = 0.0f;
+    for (int i = get_global_id(0); i < length; i += get_global_size(0)) {
+        float ri = r[rOffset + i * rPitch];
+        float zi = d[dOffset + i * dPitch] * ri;
+        z[zOffset + i * zPitch] = zi;
+        sum += ri * zi;
+    }
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        partial[get_group_id(0)] = scratch[0];
+}
+
+// scalars[index] = sum of partial[0 .. count - 1], launched as a single work group
+kernel void sumPartial(
+        global const float* partial, int count,
+        global float* scalars, int index, local float* scratch) {
+    float sum = 0.0f;
+    for (int i = get_local_id(0); i < count; i += get_local_size(0))
+        sum += partial[i];
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        scalars[index] = scratch[0];
+}
+
+// scalars[result] = (scalars[a] / scalars[b]) * (scalars[c] / scalars[d]), a single work item
+// an index < 0 stands for 1, a zero denominator gives 0 (so a breakdown stops the update instead of spreading NaN)
+kernel void scalarRatio(global float* scalars, int a, int b, int c, int d, int result) {
+    float numerator = (a < 0 ? 1.0f : scalars[a]) * (c < 0 ? 1.0f : scalars[c]);
+    float denominator = (b < 0 ? 1.0f : scalars[b]) * (d < 0 ? 1.0f : scalars[d]);
+    scalars[result] = denominator == 0.0f ? 0.0f : numerator / denominator;
+}
+
+// y += c * x
+kernel void axpyScalar(
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int length, global const float* scalars, int index, float sign) {
+    int i = get_global_id(0);
+    if (i < length)
+        y[yOffset + i * yPitch] += coefficient(scalars, index, sign) * x[xOffset + i * xPitch];
+}
+
+// y = x + c * y
+kernel void xpbyScalar(
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int length, global const float* scalars, int index, float sign) {
+    int i = get_global_id(0);
+    int yi = yOffset + i * yPitch;
+    if (i < length)
+        y[yi] = x[xOffset + i * xPitch] + coefficient(scalars, index, sign) * y[yi];
+}
+
+// p = r + beta * (p - omega * v), the BiCGSTAB search direction
+kernel void bicgDirection(
+        global const float* r, int rOffset, int rPitch,
+        global const float* v, int vOffset, int vPitch,
+        global float* p, int pOffset, int pPitch,
+        int length, global const float* scalars, int betaIndex, int omegaIndex) {
+    int i = get_global_id(0);
+    int pi = pOffset + i * pPitch;
+    if (i < length)
+        p[pi] = r[rOffset + i * rPitch]
+                + scalars[betaIndex] * (p[pi] - scalars[omegaIndex] * v[vOffset + i * vPitch]);
+}
+
+/*
+ * Sparse matrices in CSR format: the non zeros of row m are values[rowPointers[m]] ..
+ * values[rowPointers[m + 1] - 1], their columns are stored in columnIndices
+ */
+
+// let matrix = value
+kernel void fill(global float* matrix, int offset, int pitch, int M, int N, float value) {
+    FOR_EACH_QUAD(M, N)
+        storeQuad((float4)(value), matrix + offset + m * pitch + n, count);
+    END_FOR_EACH_QUAD
+}
+
+// y = alpha * A * x + beta * y (A is a M * N CSR matrix, x and y are column vectors)
+// each row is reduced by `lanes` neighbouring work items (a power of 2 that divides the local
+// size), so rows with many non zeros read values and columnIndices coalesced and short rows
+// do not leave most of a work group idle; y is not read when beta is 0
+kernel void csrMultiplyVector(
+        global const int* rowPointers, global const int* columnIndices, global const float* values,
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int M, int lanes, float alpha, float beta, local float* scratch) {
+    int lid = get_local_id(0);
+    int lane = lid & (lanes - 1);
+    int row = get_global_id(0) / lanes;
+    float sum = 0.0f;
+    if (row < M) {
+        int end = rowPointers[row + 1];
+        for (int j = rowPointers[row] + lane; j < end; j += lanes)
+            sum += values[j] * x[xOffset + columnIndices[j] * xPitch];
+    }
+    scratch[lid] = sum;
+    for (int stride = lanes / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (lane < stride)
+            scratch[lid] += scratch[lid + stride];
+    }
+    if (lane == 0 && row < M) {
+        int yi = yOffset + row * yPitch;
+        y[yi] = beta == 0.0f ? alpha * scratch[lid] : alpha * scratch[lid] + beta * y[yi];
+    }
+}
+
+// C = alpha * A * B + beta * C (A is a M * K CSR matrix, B is K * N)
+// dimension 0 walks the columns, so the work items of a row read the same non zero
+// (a broadcast) and neighbouring elements of a row of B; C is not read when beta is 0
+kernel void csrMultiplyMatrix(
+        global const int* rowPointers, global const int* columnIndices, global const float* values,
+        global const float* B, int bOffset, int bPitch,
+        global float* C, int cOffset, int cPitch,
+        int M, int N, float alpha, float beta) {
+    int n = get_global_id(0);
+    int m = get_global_id(1);
+    if (m >= M || n >= N)
+        return;
+    float sum = 0.0f;
+    int end = rowPointers[m + 1];
+    for (int j = rowPointers[m]; j < end; j++)
+        sum += values[j] * B[bOffset + columnIndices[j] * bPitch + n];
+    int ci = cOffset + m * cPitch + n;
+    C[ci] = beta == 0.0f ? alpha * sum : alpha * sum + beta * C[ci];
+}
+
+// count the non zeros of every row of a dense matrix into rowPointers[m + 1]
+kernel void denseRowCount(
+        global const float* A, int aOffset, int aPitch, int N, global int* rowPointers) {
+    int m = get_global_id(0);
+    global const float* a = A + aOffset + m * aPitch;
+    int count = 0;
+    for (int n = 0; n < N; n++)
+        count += a[n] != 0.0f;
+    rowPointers[m + 1] = count;
+}
+
+// turn the row counts in p[1..M] into row pointers (inclusive prefix sum, p[0] = 0)
+// run by a single work group: every work item adds up a contiguous chunk, the chunk sums
+// are scanned in local memory (the local size must be a power of 2), then every work item
+// writes the running sums of its chunk
+kernel void scanRowPointers(global int* p, int M, local int* scratch) {
+    int lid = get_local_id(0);
+    int size = get_local_size(0);
+    int chunk = (M + size - 1) / size;
+    int start = 1 + lid * chunk;
+    int end = min(start + chunk, M + 1);
+    int sum = 0;
+    for (int i = start; i < end; i++)
+        sum += p[i];
+    scratch[lid] = sum;
+    barrier(CLK_LOCAL_MEM_FENCE);
+    for (int stride = 1; stride < size; stride *= 2) {
+        int left = lid >= stride ? scratch[lid - stride] : 0;
+        barrier(CLK_LOCAL_MEM_FENCE);
+        scratch[lid] += left;
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+    int running = lid == 0 ? 0 : scratch[lid - 1];
+    for (int i = start; i < end; i++) {
+        running += p[i];
+        p[i] = running;
+    }
+    if (lid == 0)
+        p[0] = 0;
+}
+
+// copy the non zeros of every row of a dense matrix to the place given by rowPointers
+kernel void denseToCsr(
+        global const float* A, int aOffset, int aPitch, int N,
+        global const int* rowPointers, global int* columnIndices, global float* values) {
+    int m = get_global_id(0);
+    global const float* a = A + aOffset + m * aPitch;
+    int j = rowPointers[m];
+    for (int n = 0; n < N; n++) {
+        float value = a[n];
+        if (value != 0.0f) {
+            columnIndices[j] = n;
+            values[j] = value;
+            j++;
+        }
+    }
+}
+
+// write the non zeros of every row into a dense matrix (the other elements must already be 0)
+kernel void csrToDense(
+        global const int* rowPointers, global const int* columnIndices, global const float* values,
+        global float* A, int aOffset, int aPitch) {
+    int m = get_global_id(0);
+    int end = rowPointers[m + 1];
+    for (int j = rowPointers[m]; j < end; j++)
+        A[aOffset + m * aPitch + columnIndices[j]] = values[j];
+}
+
+/*
+ * Optimizer updates: every kernel reads the gradient and the state of a parameter once and
+ * writes the parameter and the state back in the same pass. the weight decay is added to
+ * the gradient (L2 regularization) before the update
+ */
+
+// v = momentum * v + g, p -= lr * v (or lr * (g + momentum * v) for Nesterov momentum)
+inline void momentumQuad(float4* p, float4 g, float4* v, float lr, float momentum, int nesterov,
+        float weightDecay) {
+    g += weightDecay * *p;
+    *v = momentum * *v + g;
+    *p -= lr * (nesterov ? g + momentum * *v : *v);
+}
+
+// m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2,
+// p -= lr * (m * c1) / (sqrt(v * c2) + epsilon), c1 and c2 are the bias corrections 1 / (1 - beta^t)
+inline void adamQuad(float4* p, float4 g, float4* m, float4* v, float lr, float beta1, float beta2,
+        float epsilon, float c1, float c2, float weightDecay) {
+    g += weightDecay * *p;
+    *m = beta1 * *m + (1.0f - beta1) * g;
+    *v = beta2 * *v + (1.0f - beta2) * g * g;
+    *p -= lr * (*m * c1) / (sqrt(*v * c2) + epsilon);
+}
+
+// s = decay * s + (1 - decay) * g^2, p -= lr * g / (sqrt(s) + epsilon)
+inline void rmsPropQuad(float4* p, float4 g, float4* s, float lr, float decay, float epsilon,
+        float weightDecay) {
+    g += weightDecay * *p;
+    *s = decay * *s + (1.0f - decay) * g * g;
+    *p -= lr * g / (sqrt(*s) + epsilon);
+}
+
+kernel void momentumUpdate(
+        global float* p, int pOffset, int pPitch,
+        global const float* g, int gOffset, int gPitch,
+        global float* v, int vOffset, int vPitch,
+        int M, int N, float lr, float momentum, int nesterov, float weightDecay) {
+    FOR_EACH_QUAD(M, N)
+        global float* pq = p + pOffset + m * pPitch + n;
+        global float* vq = v + vOffset + m * vPitch + n;
+        float4 pv = loadQuad(pq, 1, count);
+        float4 vv = loadQuad(vq, 1, count);
+        momentumQuad(&pv, loadQuad(g + gOffset + m * gPitch + n, 1, count), &vv, lr, momentum, nesterov,
+                weightDecay);
+        storeQuad(pv, pq, count);
+        storeQuad(vv, vq, count);
+    END_FOR_EACH_QUAD
+}
+
+kernel void adamUpdate(
+        global float* p, int pOffset, int pPitch,
+        global const float* g, int gOffset, int gPitch,
+        global float* m1, int m1Offset, int m1Pitch,
+        global float* m2, int m2Offset, int m2Pitch,
+        int M, int N, float lr, float beta1, float beta2, float epsilon, float c1, float c2,
+        float weightDecay) {
+    FOR_EACH_QUAD(M, N)
+        global float* pq = p + pOffset + m * pPitch + n;
+        global float* mq = m1 + m1Offset + m * m1Pitch + n;
+        global float* vq = m2 + m2Offset + m * m2Pitch + n;
+        float4 pv = loadQuad(pq, 1, count);
+        float4 mv = loadQuad(mq, 1, count);
+        float4 vv = loadQuad(vq, 1, count);
+        adamQuad(&pv, loadQuad(g + gOffset + m * gPitch + n, 1, count), &mv, &vv, lr, beta1, beta2, epsilon,
+                c1, c2, weightDecay);
+        storeQuad(pv, pq, count);
+        storeQuad(mv, mq, count);
+        storeQuad(vv, vq, count);
+    END_FOR_EACH_QUAD
+}
+
+kernel void rmsPropUpdate(
+        global float* p, int pOffset, int pPitch,
+        global const float* g, int gOffset, int gPitch,
+        global float* s, int sOffset, int sPitch,
+        int M, int N, float lr, float decay, float epsilon, float weightDecay) {
+    FOR_EACH_QUAD(M, N)
+        global float* pq = p + pOffset + m * pPitch + n;
+        global float* sq = s + sOffset + m * sPitch + n;
+        float4 pv = loadQuad(pq, 1, count);
+        float4 sv = loadQuad(sq, 1, count);
+        rmsPropQuad(&pv, loadQuad(g + gOffset + m * gPitch + n, 1, count), &sv, lr, decay, epsilon,
+                weightDecay);
+        storeQuad(pv, pq, count);
+        storeQuad(sv, sq, count);
+    END_FOR_EACH_QUAD
+}
+
+// multi-tensor variants: all the matrices of a MatrixPack live in one buffer, and the packs
+// of the parameters, gradients and states share the same layout. table holds 5 ints per
+// matrix (offset, pitch, M, N, index of its first quad), the quads of all the matrices are
+// numbered consecutively and walked by one grid-stride loop, the matrix of a quad is found
+// by a binary search over the table
+#define FOR_EACH_PACKED_QUAD(table, tensors, total) \
+    for (int i = get_global_id(0); i < (total); i += get_global_size(0)) { \
+        int low = 0, high = (tensors) - 1; \
+        while (low < high) { \
+            int mid = (low + high + 1) / 2; \
+            if (table[mid * 5 + 4] <= i) \
+                low = mid; \
+            else \
+                high = mid - 1; \
+        } \
+        global const int* d = table + low * 5; \
+        int quads = (d[3] + 3) / 4; \
+        int m = (i - d[4]) / quads; \
+        int n = (i - d[4] - m * quads) * 4; \
+        int count = min(4, d[3] - n); \
+        int e = d[0] + m * d[1] + n;
+
+kernel void momentumUpdateMulti(
+        global float* p, global const float* g, global float* v,
+        global const int* table, int tensors, int total,
+        float lr, float momentum, int nesterov, float weightDecay) {
+    FOR_EACH_PACKED_QUAD(table, tensors, total)
+        float4 pv = loadQuad(p + e, 1, count);
+        float4 vv = loadQuad(v + e, 1, count);
+        momentumQuad(&pv, loadQuad(g + e, 1, count), &vv, lr, momentum, nesterov, weightDecay);
+        storeQuad(pv, p + e, count);
+        storeQuad(vv, v + e, count);
+    END_FOR_EACH_QUAD
+}
+
+kernel void adamUpdateMulti(
+        global float* p, global const float* g, global float* m1, global float* m2,
+        global const int* table, int tensors, int total,
+        float lr, float beta1, float beta2, float epsilon, float c1, float c2, float weightDecay) {
+    FOR_EACH_PACKED_QUAD(table, tensors, total)
+        float4 pv = loadQuad(p + e, 1, count);
+        float4 mv = loadQuad(m1 + e, 1, count);
+        float4 vv = loadQuad(m2 + e, 1, count);
+        adamQuad(&pv, loadQuad(g + e, 1, count), &mv, &vv, lr, beta1, beta2, epsilon, c1, c2, weightDecay);
+        storeQuad(pv, p + e, count);
+        storeQuad(mv, m1 + e, count);
+        storeQuad(vv, m2 + e, count);
+    END_FOR_EACH_QUAD
+}
+
+kernel void rmsPropUpdateMulti(
+        global float* p, global const float* g, global float* s,
+        global const int* table, int tensors, int total,
+        float lr, float decay, float epsilon, float weightDecay) {
+    FOR_EACH_PACKED_QUAD(table, tensors, total)
+        float4 pv = loadQuad(p + e, 1, count);
+        float4 sv = loadQuad(s + e, 1, count);
+        rmsPropQuad(&pv, loadQuad(g + e, 1, count), &sv, lr, decay, epsilon, weightDecay);
+        storeQuad(pv, p + e, count);
+        storeQuad(sv, s + e, count);
+    END_FOR_EACH_QUAD
+}
+
 // compare two matrix
 // and save the number of elements that are differnt in result
 #define ERROR_ALLOWED 0.001f
-kernel void compare(global const float* m1, global const float* m2, global int* result, float errorAllowed) {
-    int id = get_global_id(0);
-    float error = m1[id] - m2[id];
+kernel void compare(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global int* result, float errorAllowed) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    float error = m1[m1Offset + m * m1Pitch + n] - m2[m2Offset + m * m2Pitch + n];
     if(error > errorAllowed || error < -errorAllowed)
         atomic_inc(result);
 }
 
-// mr = m1 .* m2
-kernel void arrayMultiply(global const float* m1, global const float* m2, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = m1[iGID] * m2[iGID];
+// mr = k ./ m
+UNARY_KERNEL_WITH(scalarDivide, float, k, k / x)
+
+// fused BLAS-1 style kernels: one pass over the operands and no temporary matrix
+
+// y = alpha * x + beta * y (axpy when beta is 1)
+kernel void axpby(
+        global const float* x, int xOffset, int xPitch,
+        global float* y, int yOffset, int yPitch,
+        int M, int N, float alpha, float beta) {
+    FOR_EACH_QUAD(M, N)
+        global float* yq = y + yOffset + m * yPitch + n;
+        float4 xv = loadQuad(x + xOffset + m * xPitch + n, 1, count);
+        storeQuad(alpha * xv + beta * loadQuad(yq, 1, count), yq, count);
+    END_FOR_EACH_QUAD
 }
 
-// mr = m1 ./ m2
-kernel void arrayDivide(global const float* m1, global const float* m2, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = m1[iGID] / m2[iGID];
+// mr = m1 .* m2 + m3 (rounded once)
+kernel void arrayFma(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global const float* m3, int m3Offset, int m3Pitch,
+        global float* mr, int mrOffset, int mrPitch, int M, int N) {
+    FOR_EACH_QUAD(M, N)
+        float4 a = loadQuad(m1 + m1Offset + m * m1Pitch + n, 1, count);
+        float4 b = loadQuad(m2 + m2Offset + m * m2Pitch + n, 1, count);
+        float4 c = loadQuad(m3 + m3Offset + m * m3Pitch + n, 1, count);
+        storeQuad(fma(a, b, c), mr + mrOffset + m * mrPitch + n, count);
+    END_FOR_EACH_QUAD
 }
 
-// mr = k ./ m
-kernel void scalarDivide(float k, global const float* m, global float* mr) {
-    int iGID = get_global_id(0);
-    mr[iGID] = k / m[iGID];
+// mr = m1 + t * (m2 - m1)
+kernel void lerp(
+        global const float* m1, int m1Offset, int m1Pitch,
+        global const float* m2, int m2Offset, int m2Pitch,
+        global float* mr, int mrOffset, int mrPitch, int M, int N, float t) {
+    FOR_EACH_QUAD(M, N)
+        float4 a = loadQuad(m1 + m1Offset + m * m1Pitch + n, 1, count);
+        float4 b = loadQuad(m2 + m2Offset + m * m2Pitch + n, 1, count);
+        storeQuad(mix(a, b, t), mr + mrOffset + m * mrPitch + n, count);
+    END_FOR_EACH_QUAD
 }
+
 /*
  * Math functions
  */
 
+
 //use sigmoid function to compute every element in inputMatrix
 //and save the result in result matrix
-kernel void sigmoid(
-     global const float* inputMatrix, 
-     global float* resultMatrix) {
- int id = get_global_id(0);
- resultMatrix[id] = 1.0f / (1.0f + native_exp(-inputMatrix[id]));
-}
+UNARY_KERNEL(sigmoid, 1.0f / (1.0f + native_exp(-x)))
+
+UNARY_KERNEL(kAbs, fabs(x))
+UNARY_KERNEL(kAcos, acos(x))
+UNARY_KERNEL(kAsin, asin(x))
+UNARY_KERNEL(kAtan, atan(x))
+UNARY_KERNEL(kCos, native_cos(x))
+UNARY_KERNEL(kSin, native_sin(x))
+UNARY_KERNEL(kTan, native_tan(x))
+UNARY_KERNEL(kCosh, cosh(x))
+UNARY_KERNEL(kSinh, sinh(x))
+UNARY_KERNEL(kTanh, tanh(x))
+UNARY_KERNEL(kLog, native_log(x))
+UNARY_KERNEL(kLog2, native_log2(x))
+UNARY_KERNEL(kLog10, native_log10(x))
+UNARY_KERNEL(kExp, native_exp(x))
+UNARY_KERNEL(kExp2, native_exp2(x))
+UNARY_KERNEL(kExp10, native_exp10(x))
+UNARY_KERNEL(kSqrt, native_sqrt(x))
+UNARY_KERNEL(kRsqrt, native_rsqrt(x))
+UNARY_KERNEL_WITH(kPow, float, power, pow(x, (float4)(power)))
+UNARY_KERNEL_WITH(kPow2, float, power, pow((float4)(power), x))
+UNARY_KERNEL_WITH(kPown, int, power, pown(x, (int4)(power)))
 
-kernel void kAbs(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = fabs(inputMatrix[id]);
+/*
+ * Convolution and pooling. a batch of NCHW tensors is a matrix with one sample per row,
+ * element (c, h, w) of sample n is at offset + n * pitch + (c * H + h) * W + w
+ * the filters of a convolution are a K * (C * R * S) matrix, the output is N * (K * P * Q)
+ */
+
+#define CONV_TILE 16
+#define CONV_GEOMETRY int N, int C, int H, int W, int K, int R, int S, int P, int Q, int stride, int pad
+
+// in[c][h][w] of one sample for the output position (p, q) and the reduction index j = (c, r, s),
+// 0 in the padding
+inline float gatherInput(global const float* sample, int j, int p, int q,
+        int H, int W, int R, int S, int stride, int pad) {
+    int c = j / (R * S);
+    int rs = j % (R * S);
+    int h = p * stride - pad + rs / S;
+    int w = q * stride - pad + rs % S;
+    return h >= 0 && h < H && w >= 0 && w < W ? sample[(c * H + h) * W + w] : 0.0f;
 }
 
-kernel void kAcos(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = acos(inputMatrix[id]);
+// dOut[k][p][q] of one sample that input position (h, w) contributed to through the reduction
+// index j = (k, r, s), 0 when no output position reads (h, w) with that filter tap
+inline float gatherOutput(global const float* sample, int j, int h, int w,
+        int R, int S, int P, int Q, int stride, int pad) {
+    int k = j / (R * S);
+    int rs = j % (R * S);
+    int ph = h + pad - rs / S;
+    int qw = w + pad - rs % S;
+    if (ph < 0 || qw < 0 || ph % stride != 0 || qw % stride != 0)
+        return 0.0f;
+    ph /= stride;
+    qw /= stride;
+    return ph < P && qw < Q ? sample[(k * P + ph) * Q + qw] : 0.0f;
 }
 
-kernel void kAsin(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = asin(inputMatrix[id]);
+// sum = A[row][0 .. length - 1] . B[0 .. length - 1][column] with CONV_TILE * CONV_TILE tiles in local
+// memory, the tiles are gathered through LOAD_A(j) (for the row of this work item) and LOAD_B(j)
+// (for its column), so the im2col matrix only ever exists one tile at a time. work items outside
+// the rows * columns result still load tiles and take part in the barriers
+#define IMPLICIT_GEMM(rows, columns, length) \
+    local float tileA[CONV_TILE][CONV_TILE]; \
+    local float tileB[CONV_TILE][CONV_TILE]; \
+    int lr = get_local_id(0); \
+    int lc = get_local_id(1); \
+    float sum = 0.0f; \
+    for (int t = 0; t < (length); t += CONV_TILE) { \
+        tileA[lr][lc] = row < (rows) && t + lc < (length) ? LOAD_A(t + lc) : 0.0f; \
+        tileB[lr][lc] = column < (columns) && t + lr < (length) ? LOAD_B(t + lr) : 0.0f; \
+        barrier(CLK_LOCAL_MEM_FENCE); \
+        for (int i = 0; i < CONV_TILE; i++) \
+            sum += tileA[lr][i] * tileB[i][lc]; \
+        barrier(CLK_LOCAL_MEM_FENCE); \
+    }
+
+// out[n][k][p][q] = sum of weights[k][c][r][s] * in[n][c][p * stride - pad + r][q * stride - pad + s] + bias[k]
+// implicit GEMM of weights (K * CRS) and the virtual im2col matrix (CRS * NPQ), global size K * NPQ
+kernel void convForward(
+        global const float* in, int inOffset, int inPitch,
+        global const float* weights, int wOffset, int wPitch,
+        global float* out, int outOffset, int outPitch,
+        global const float* bias, int biasOffset, int biasStep, int hasBias,
+        CONV_GEOMETRY) {
+    int row = get_global_id(0);
+    int column = get_global_id(1);
+    int PQ = P * Q;
+    int n = column / PQ;
+    int p = column % PQ / Q;
+    int q = column % Q;
+    global const float* sample = in + inOffset + n * inPitch;
+#define LOAD_A(j) weights[wOffset + row * wPitch + (j)]
+#define LOAD_B(j) gatherInput(sample, j, p, q, H, W, R, S, stride, pad)
+    IMPLICIT_GEMM(K, N * PQ, C * R * S)
+#undef LOAD_A
+#undef LOAD_B
+    if (row < K && column < N * PQ)
+        out[outOffset + n * outPitch + row * PQ + p * Q + q] = hasBias ? sum + bias[biasOffset + row * biasStep] : sum;
 }
 
-kernel void kAtan(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = atan(inputMatrix[id]);
+// dIn[n][c][h][w] = sum of weights[k][c][r][s] * dOut[n][k][p][q] over the output positions that read (h, w)
+// implicit GEMM of the transposed weights (C * KRS) and the virtual matrix of dOut (KRS * NHW)
+kernel void convBackwardData(
+        global const float* dOut, int dOutOffset, int dOutPitch,
+        global const float* weights, int wOffset, int wPitch,
+        global float* dIn, int dInOffset, int dInPitch,
+        CONV_GEOMETRY) {
+    int row = get_global_id(0);
+    int column = get_global_id(1);
+    int HW = H * W;
+    int n = column / HW;
+    int h = column % HW / W;
+    int w = column % W;
+    int RS = R * S;
+    global const float* sample = dOut + dOutOffset + n * dOutPitch;
+#define LOAD_A(j) weights[wOffset + (j) / RS * wPitch + row * RS + (j) % RS]
+#define LOAD_B(j) gatherOutput(sample, j, h, w, R, S, P, Q, stride, pad)
+    IMPLICIT_GEMM(C, N * HW, K * RS)
+#undef LOAD_A
+#undef LOAD_B
+    if (row < C && column < N * HW)
+        dIn[dInOffset + n * dInPitch + row * HW + h * W + w] = sum;
 }
 
-kernel void kCos(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_cos(inputMatrix[id]);
+// dWeights[k][c][r][s] = sum of dOut[n][k][p][q] * in[n][c][p * stride - pad + r][q * stride - pad + s]
+// implicit GEMM of dOut (K * NPQ) and the virtual transposed im2col matrix (NPQ * CRS)
+kernel void convBackwardFilter(
+        global const float* in, int inOffset, int inPitch,
+        global const float* dOut, int dOutOffset, int dOutPitch,
+        global float* dWeights, int wOffset, int wPitch,
+        CONV_GEOMETRY) {
+    int row = get_global_id(0);
+    int column = get_global_id(1);
+    int PQ = P * Q;
+#define LOAD_A(j) dOut[dOutOffset + (j) / PQ * dOutPitch + row * PQ + (j) % PQ]
+#define LOAD_B(j) gatherInput(in + inOffset + (j) / PQ * inPitch, column, (j) % PQ / Q, (j) % Q, \
+        H, W, R, S, stride, pad)
+    IMPLICIT_GEMM(K, C * R * S, N * PQ)
+#undef LOAD_A
+#undef LOAD_B
+    if (row < K && column < C * R * S)
+        dWeights[wOffset + row * wPitch + column] = sum;
 }
 
-kernel void kSin(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_sin(inputMatrix[id]);
+// dBias[k] = sum of dOut[n][k][p][q] over n, p, q, one work group for each k
+kernel void convBiasGradient(
+        global const float* dOut, int dOutOffset, int dOutPitch,
+        global float* dBias, int biasOffset, int biasStep,
+        int N, int PQ, local float* scratch) {
+    int k = get_group_id(0);
+    float sum = 0.0f;
+    for (int i = get_local_id(0); i < N * PQ; i += get_local_size(0))
+        sum += dOut[dOutOffset + i / PQ * dOutPitch + k * PQ + i % PQ];
+    scratch[get_local_id(0)] = sum;
+    reduceLocal(scratch);
+    if (get_local_id(0) == 0)
+        dBias[biasOffset + k * biasStep] = scratch[0];
 }
 
-kernel void kTan(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_tan(inputMatrix[id]);
+// out[n][c][p][q] = maximum (or mean when average is not 0) of the R * S window of in[n][c] at
+// (p * stride - pad, q * stride - pad). the padding is skipped, so the mean only counts elements
+// inside the input. one work item for each output element (global size N * CPQ)
+kernel void poolForward(
+        global const float* in, int inOffset, int inPitch,
+        global float* out, int outOffset, int outPitch,
+        int C, int H, int W, int R, int S, int P, int Q, int stride, int pad, int average) {
+    int n = get_global_id(0);
+    int i = get_global_id(1);
+    int p = i / Q % P;
+    int q = i % Q;
+    global const float* plane = in + inOffset + n * inPitch + i / (P * Q) * H * W;
+    int h0 = max(p * stride - pad, 0);
+    int w0 = max(q * stride - pad, 0);
+    int h1 = min(p * stride - pad + R, H);
+    int w1 = min(q * stride - pad + S, W);
+    float result = average ? 0.0f : -MAXFLOAT;
+    for (int h = h0; h < h1; h++) {
+        for (int w = w0; w < w1; w++)
+            result = average ? result + plane[h * W + w] : max(result, plane[h * W + w]);
+    }
+    out[outOffset + n * outPitch + i] = average ? result / ((h1 - h0) * (w1 - w0)) : result;
 }
 
-kernel void kCosh(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = cosh(inputMatrix[id]);
+// dIn[n][c][h][w] = sum of dOut[n][c][p][q] over the windows that contain (h, w): divided by the window size
+// for the mean, only the windows whose (first) maximum is (h, w) for the maximum. the maximum is found
+// again from the input, so the forward pass does not keep indices. one work item for each input element
+kernel void poolBackward(
+        global const float* in, int inOffset, int inPitch,
+        global const float* dOut, int dOutOffset, int dOutPitch,
+        global float* dIn, int dInOffset, int dInPitch,
+        int C, int H, int W, int R, int S, int P, int Q, int stride, int pad, int average) {
+    int n = get_global_id(0);
+    int i = get_global_id(1);
+    int c = i / (H * W);
+    int h = i / W % H;
+    int w = i % W;
+    global const float* plane = in + inOffset + n * inPitch + c * H * W;
+    global const float* gradient = dOut + dOutOffset + n * dOutPitch + c * P * Q;
+    int pStart = h + pad < R ? 0 : (h + pad - R) / stride + 1;
+    int qStart = w + pad < S ? 0 : (w + pad - S) / stride + 1;
+    int pEnd = min((h + pad) / stride, P - 1);
+    int qEnd = min((w + pad) / stride, Q - 1);
+    float sum = 0.0f;
+    for (int p = pStart; p <= pEnd; p++) {
+        for (int q = qStart; q <= qEnd; q++) {
+            int h0 = max(p * stride - pad, 0);
+            int w0 = max(q * stride - pad, 0);
+            int h1 = min(p * stride - pad + R, H);
+            int w1 = min(q * stride - pad + S, W);
+            if (average) {
+                sum += gradient[p * Q + q] / ((h1 - h0) * (w1 - w0));
+                continue;
+            }
+            int best = h0 * W + w0;
+            for (int y = h0; y < h1; y++) {
+                for (int x = w0; x < w1; x++) {
+                    if (plane[y * W + x] > plane[best])
+                        best = y * W + x;
+                }
+            }
+            if (best == h * W + w)
+                sum += gradient[p * Q + q];
+        }
+    }
+    dIn[dInOffset + n * dInPitch + i] = sum;
 }
 
-kernel void kSinh(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = sinh(inputMatrix[id]);
+/*
+ * Distances between the rows of two matrices. the metric codes match the Java enum DistanceMetric:
+ * 0 squared Euclidean, 1 cosine distance (1 - cosine similarity, 1 when either row is 0)
+ */
+
+inline float distanceFromDot(float dot, float xNorm, float yNorm, int metric) {
+    if (metric == 1)
+        return xNorm == 0.0f || yNorm == 0.0f ? 1.0f : 1.0f - dot * rsqrt(xNorm * yNorm);
+    return max(xNorm + yNorm - 2.0f * dot, 0.0f);
 }
 
-kernel void kTanh(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = tanh(inputMatrix[id]);
+// norms[m] = sum of X[m][n]^2, one work item for each row
+kernel void rowSquaredNorms(
+        global const float* X, int xOffset, int xPitch,
+        global float* norms, int normsOffset, int normsPitch,
+        int M, int N) {
+    int m = get_global_id(0);
+    if (m >= M)
+        return;
+    global const float* row = X + xOffset + m * xPitch;
+    float sum = 0.0f;
+    for (int n = 0; n < N; n++)
+        sum += row[n] * row[n];
+    norms[normsOffset + m * normsPitch] = sum;
 }
 
-kernel void kLog(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_log(inputMatrix[id]);
+// D[m][n] = distance of row m of X and row n of Y, where D holds the dot products X * Y' on entry
+// (the GEMM part of the expansion |x|^2 + |y|^2 - 2 x.y), the squared norms are column vectors
+kernel void distanceFromProducts(
+        global float* D, int dOffset, int dPitch,
+        global const float* xNorms, int xOffset, int xPitch,
+        global const float* yNorms, int yOffset, int yPitch,
+        int metric) {
+    int m = get_global_id(0);
+    int n = get_global_id(1);
+    global float* d = D + dOffset + m * dPitch + n;
+    *d = distanceFromDot(*d, xNorms[xOffset + m * xPitch], yNorms[yOffset + n * yPitch], metric);
 }
 
-kernel void kLog2(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_log2(inputMatrix[id]);
+// merges one tile of distances into the sorted k nearest lists, one work group for each query row.
+// row m of the tile holds the distances of query m to the rows first .. first + C - 1 of Y (computed by
+// the GEMM and distanceFromProducts), the lists are rows of distances (M * k) and of indices (pitch k,
+// from iOffset) and take part as candidates when first > 0. every work item takes the candidates with a
+// stride of the group size and keeps its own k best sorted in local memory, then k rounds of a group
+// arg-min take the best head of all lists. the local size must be a power of 2
+kernel void knnMerge(
+        global const float* T, int tOffset, int tPitch,
+        global float* distances, int dOffset, int dPitch,
+        global int* indices, int iOffset,
+        int C, int k, int first,
+        local float* bestDistances, local int* bestIndices,
+        local float* scratch, local int* owners) {
+    int m = get_group_id(0);
+    int lid = get_local_id(0);
+    int size = get_local_size(0);
+    global const float* tile = T + tOffset + m * tPitch;
+    global float* listDistances = distances + dOffset + m * dPitch;
+    global int* listIndices = indices + iOffset + m * k;
+
+    local float* myDistances = bestDistances + lid * k;
+    local int* myIndices = bestIndices + lid * k;
+    for (int i = 0; i < k; i++) {
+        myDistances[i] = MAXFLOAT;
+        myIndices[i] = -1;
+    }
+    int candidates = first > 0 ? C + k : C;
+    for (int c = lid; c < candidates; c += size) {
+        float distance = c < C ? tile[c] : listDistances[c - C];
+        if (distance < myDistances[k - 1]) {
+            int i = k - 1;
+            for (; i > 0 && myDistances[i - 1] > distance; i--) {
+                myDistances[i] = myDistances[i - 1];
+                myIndices[i] = myIndices[i - 1];
+            }
+            myDistances[i] = distance;
+            myIndices[i] = c < C ? first + c : listIndices[c - C];
+        }
+    }
+
+    // every read of the old lists happens before the first barrier, so the winners may overwrite them
+    int head = 0;
+    for (int r = 0; r < k; r++) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        scratch[lid] = head < k ? myDistances[head] : MAXFLOAT;
+        owners[lid] = lid;
+        for (int stride = size / 2; stride > 0; stride /= 2) {
+            barrier(CLK_LOCAL_MEM_FENCE);
+            if (lid < stride && scratch[lid + stride] < scratch[lid]) {
+                scratch[lid] = scratch[lid + stride];
+                owners[lid] = owners[lid + stride];
+            }
+        }
+        barrier(CLK_LOCAL_MEM_FENCE);
+        int winner = owners[0];
+        if (lid == winner) {
+            listDistances[r] = myDistances[head];
+            listIndices[r] = myIndices[head];
+            head++;
+        }
+    }
 }
 
-kernel void kLog10(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_log10(inputMatrix[id]);
+/*
+ * k-means clustering. centroids are the rows of a K * D matrix, labels are a device int buffer
+ */
+
+// like reduceLocal, but finds the maximum of scratch and carries its owner along, both end up in [0]
+inline void reduceArgMaxLocal(local float* scratch, local int* owners) {
+    int lid = get_local_id(0);
+    for (int stride = get_local_size(0) / 2; stride > 0; stride /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (lid < stride && scratch[lid + stride] > scratch[lid]) {
+            scratch[lid] = scratch[lid + stride];
+            owners[lid] = owners[lid + stride];
+        }
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
 }
 
-kernel void kExp(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_exp(inputMatrix[id]);
+// labels[m] = index of the centroid nearest to row m of X, found from |c|^2 - 2 x.c (cNorms holds |c|^2),
+// one work item for each point. distances[m] = Euclidean distance to that centroid (skipped when
+// hasDistances is 0), changes[0] counts the labels that moved
+kernel void assignClusters(
+        global const float* X, int xOffset, int xPitch,
+        global const float* C, int cOffset, int cPitch,
+        global const float* cNorms, int normsOffset, int normsPitch,
+        global int* labels,
+        global float* distances, int dOffset, int dPitch, int hasDistances,
+        int M, int D, int K, global int* changes) {
+    int m = get_global_id(0);
+    if (m >= M)
+        return;
+    global const float* x = X + xOffset + m * xPitch;
+    float best = MAXFLOAT;
+    int label = 0;
+    for (int k = 0; k < K; k++) {
+        global const float* c = C + cOffset + k * cPitch;
+        float dot = 0.0f;
+        for (int j = 0; j < D; j++)
+            dot += x[j] * c[j];
+        float score = cNorms[normsOffset + k * normsPitch] - 2.0f * dot;
+        if (score < best) {
+            best = score;
+            label = k;
+        }
+    }
+    if (labels[m] != label) {
+        labels[m] = label;
+        atomic_inc(changes);
+    }
+    if (hasDistances) {
+        float norm = 0.0f;
+        for (int j = 0; j < D; j++)
+            norm += x[j] * x[j];
+        distances[dOffset + m * dPitch] = sqrt(max(norm + best, 0.0f));
+    }
 }
 
-kernel void kExp2(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_exp2(inputMatrix[id]);
+// *p += value on a float in local memory (OpenCL 1.1 has no atomic add for floats)
+inline void atomicAddLocal(volatile local float* p, float value) {
+    float old;
+    do {
+        old = *p;
+    } while (atomic_cmpxchg((volatile local uint*) p, as_uint(old), as_uint(old + value)) != as_uint(old));
 }
 
-kernel void kExp10(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_exp10(inputMatrix[id]);
+// segmented reduction of the points by label, first pass over the clusters k0 .. k0 + KB - 1 and the
+// columns j0 .. j0 + DB - 1: the work items of a group form rows of `lanes` items (both powers of 2), every
+// row takes the points with a stride of all the rows of the range and its items split the columns, so
+// adjacent items read adjacent elements. the group adds up its points in local memory and then writes
+// the block to its own rows g * K + k of the partial sums and counts. labels outside the block are skipped
+kernel void clusterSumsPartial(
+        global const float* X, int xOffset, int xPitch,
+        global const int* labels,
+        global float* sums, int sOffset, int sPitch,
+        global float* counts, int cOffset, int cPitch,
+        int M, int K, int k0, int KB, int j0, int DB, int lanes,
+        local float* blockSums, local int* blockCounts) {
+    int g = get_group_id(0);
+    int lid = get_local_id(0);
+    int size = get_local_size(0);
+    for (int i = lid; i < KB * DB; i += size)
+        blockSums[i] = 0.0f;
+    for (int i = lid; i < KB; i += size)
+        blockCounts[i] = 0;
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    int rows = size / lanes;
+    int lane = lid % lanes;
+    for (int i = g * rows + lid / lanes; i < M; i += get_num_groups(0) * rows) {
+        int k = labels[i] - k0;
+        if (k < 0 || k >= KB)
+            continue;
+        global const float* x = X + xOffset + i * xPitch + j0;
+        for (int j = lane; j < DB; j += lanes)
+            atomicAddLocal(blockSums + k * DB + j, x[j]);
+        if (lane == 0)
+            atomic_inc(blockCounts + k);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    global float* groupSums = sums + sOffset + (g * K + k0) * sPitch + j0;
+    for (int i = lid; i < KB * DB; i += size)
+        groupSums[i / DB * sPitch + i % DB] = blockSums[i];
+    for (int i = lid; i < KB; i += size)
+        counts[cOffset + (g * K + k0 + i) * cPitch] = blockCounts[i];
 }
 
-kernel void kSqrt(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_sqrt(inputMatrix[id]);
+// second pass: sums[k][j] = sum of the groups' partial sums, counts[k] likewise (by the items with j = 0),
+// one work item for each element of the K * D sums
+kernel void clusterSumsReduce(
+        global const float* partialSums, int psOffset, int psPitch,
+        global const float* partialCounts, int pcOffset, int pcPitch,
+        global float* sums, int sOffset, int sPitch,
+        global float* counts, int cOffset, int cPitch,
+        int K, int groups) {
+    int k = get_global_id(0);
+    int j = get_global_id(1);
+    float sum = 0.0f;
+    float count = 0.0f;
+    for (int g = 0; g < groups; g++) {
+        sum += partialSums[psOffset + (g * K + k) * psPitch + j];
+        count += partialCounts[pcOffset + (g * K + k) * pcPitch];
+    }
+    sums[sOffset + k * sPitch + j] = sum;
+    if (j == 0)
+        counts[cOffset + k * cPitch] = count;
 }
 
-kernel void kRsqrt(
-        global const float* inputMatrix, 
-        global float* resultMatrix) {
-    int id = get_global_id(0);
-    resultMatrix[id] = native_rsqrt(inputMatrix[id]);
+// C[k] = sums[k] / counts[k] (Lloyd), or with running totals (mini-batch, hasTotals not 0)
+// C[k] += (sums[k] - counts[k] * C[k]) / (totals[k] + counts[k]), i.e. every point seen so far has the
+// same weight. centroids without points stay where they are. shifts[k][j] = how far C[k][j] moved
+kernel void updateCentroids(
+        global float* C, int cOffset, int cPitch,
+        global const float* sums, int sOffset, int sPitch,
+        global const float* counts, int countsOffset, int countsPitch,
+        global const float* totals, int tOffset, int tPitch, int hasTotals,
+        global float* shifts, int shiftsOffset, int shiftsPitch) {
+    int k = get_global_id(0);
+    int j = get_global_id(1);
+    global float* c = C + cOffset + k * cPitch + j;
+    float count = counts[countsOffset + k * countsPitch];
+    float old = *c;
+    float updated = old;
+    if (count > 0.0f) {
+        float sum = sums[sOffset + k * sPitch + j];
+        updated = hasTotals ? old + (sum - count * old) / (totals[tOffset + k * tPitch] + count) : sum / count;
+    }
+    *c = updated;
+    shifts[shiftsOffset + k * shiftsPitch + j] = updated - old;
 }
 
-kernel void kPow(
-        global const float* inputMatrix, 
-        global float* resultMatrix,
-        float power) {
-    int id = get_global_id(0);
-    resultMatrix[id] = pow(inputMatrix[id], power);
+// k-means++ seeding, sampling step: partial arg-max over the points of log(u) / w, where w is the squared
+// distance to the nearest chosen centroid and u comes from the counter-based hash (Efraimidis-Spirakis
+// weighted sampling: the arg-max is point m with probability w[m] / sum of w)
+kernel void seedScorePartial(
+        global const float* weights, int wOffset, int wPitch,
+        int M, int key,
+        global float* partialScores, global int* partialIndices,
+        local float* scratch, local int* owners) {
+    int lid = get_local_id(0);
+    float best = -MAXFLOAT;
+    int index = 0;
+    uint hashedKey = hash32((uint) key);
+    for (int m = get_global_id(0); m < M; m += get_global_size(0)) {
+        float w = weights[wOffset + m * wPitch];
+        float score = w > 0.0f ? log(hashToUnit(hash32(hashedKey + (uint) m))) / w : -MAXFLOAT;
+        if (score > best) {
+            best = score;
+            index = m;
+        }
+    }
+    scratch[lid] = best;
+    owners[lid] = index;
+    reduceArgMaxLocal(scratch, owners);
+    if (lid == 0) {
+        partialScores[get_group_id(0)] = scratch[0];
+        partialIndices[get_group_id(0)] = owners[0];
+    }
 }
 
-kernel void kPow2(
-        global const float* inputMatrix, 
-        global float* resultMatrix,
-        float power) {
-    int id = get_global_id(0);
-    resultMatrix[id] = pow(power, inputMatrix[id]);
+// sampling step, launched as a single work group: picks the best of the partial results and copies
+// that row of X into row `row` of C
+kernel void seedSelect(
+        global const float* partialScores, global const int* partialIndices, int count,
+        global const float* X, int xOffset, int xPitch,
+        global float* C, int cOffset, int cPitch,
+        int row, int D, local float* scratch, local int* owners) {
+    int lid = get_local_id(0);
+    float best = -MAXFLOAT;
+    int index = 0;
+    for (int i = lid; i < count; i += get_local_size(0)) {
+        if (partialScores[i] > best) {
+            best = partialScores[i];
+            index = partialIndices[i];
+        }
+    }
+    scratch[lid] = best;
+    owners[lid] = index;
+    reduceArgMaxLocal(scratch, owners);
+    global const float* x = X + xOffset + owners[0] * xPitch;
+    for (int j = lid; j < D; j += get_local_size(0))
+        C[cOffset + row * cPitch + j] = x[j];
 }
 
-kernel void kPown(
-        global const float* inputMatrix, 
-        global float* resultMatrix,
-        int power) {
-    int id = get_global_id(0);
-    resultMatrix[id] = pown(inputMatrix[id], power);
+// weights[m] = min(weights[m], |x - C[row]|^2), one work item for each point (overwrites when first is not 0)
+kernel void seedDistances(
+        global const float* X, int xOffset, int xPitch,
+        global const float* C, int cOffset, int cPitch,
+        global float* weights, int wOffset, int wPitch,
+        int row, int M, int D, int first) {
+    int m = get_global_id(0);
+    if (m >= M)
+        return;
+    global const float* x = X + xOffset + m * xPitch;
+    global const float* c = C + cOffset + row * cPitch;
+    float distance = 0.0f;
+    for (int j = 0; j < D; j++)
+        distance += (x[j] - c[j]) * (x[j] - c[j]);
+    global float* w = weights + wOffset + m * wPitch;
+    *w = first ? distance : min(*w, distance);
 }
@@ -1,17 +1,25 @@
 package com.hyh0.gmath;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Random;
 
 import com.hyh0.gmath.debug.Tools;
 
 import com.jogamp.opencl.CLBuffer;
 import com.jogamp.opencl.CLCommandQueue;
 import com.jogamp.opencl.CLContext;
+import com.jogamp.opencl.CLEventList;
 import com.jogamp.opencl.CLDevice;
 import com.jogamp.opencl.CLKernel;
 import com.jogamp.opencl.CLMemory;
 import com.jogamp.opencl.CLProgram;
+import com.jogamp.opencl.CLSubBuffer;
 
 class GMath {
 
@@ -23,16 +31,72 @@ class GMath {
     private CLKernel kMatrixAdd;
     private CLKernel kMatrixSubtract;
     private CLKernel kRand;
-    private CLKernel kMatrixMultiply;
+    private CLKernel kRandn;
     private CLKernel kMatrixMultiplyN;
+    private CLKernel kMatrixMultiplyT;
+    private CLKernel kSyrkN;
+    private CLKernel kSymmetrize;
+    private CLKernel kDenseForwardN;
+    private CLKernel kDenseBackwardN;
+    private CLKernel kConvForward;
+    private CLKernel kConvBackwardData;
+    private CLKernel kConvBackwardFilter;
+    private CLKernel kConvBiasGradient;
+    private CLKernel kPoolForward;
+    private CLKernel kPoolBackward;
+    private CLKernel kRowSquaredNorms;
+    private CLKernel kDistanceFromProducts;
+    private CLKernel kKnnMerge;
+    private CLKernel kAssignClusters;
+    private CLKernel kClusterSumsPartial;
+    private CLKernel kClusterSumsReduce;
+    private CLKernel kUpdateCentroids;
+    private CLKernel kSeedScorePartial;
+    private CLKernel kSeedSelect;
+    private CLKernel kSeedDistances;
     private CLKernel kCompare;
     private CLKernel kScalarMultiply;
     private CLKernel kTranspose;
-    private CLKernel kCopy;
+    private CLKernel kTransposeInPlace;
     private CLKernel kCopy2D;
+    private CLKernel kGather;
+    private CLKernel kScatter;
     private CLKernel kArrayMultiply;
     private CLKernel kArrayDivide;
     private CLKernel kScalarDivide;
+    private CLKernel kAxpby;
+    private CLKernel kArrayFma;
+    private CLKernel kLerp;
+    private CLKernel kMomentumUpdate;
+    private CLKernel kAdamUpdate;
+    private CLKernel kRmsPropUpdate;
+    private CLKernel kMomentumUpdateMulti;
+    private CLKernel kAdamUpdateMulti;
+    private CLKernel kRmsPropUpdateMulti;
+    private CLKernel kSwapRows;
+    private CLKernel kTriangularSolve;
+    private CLKernel kTriangle;
+    private CLKernel kDiagonal;
+    private CLKernel kGemv;
+    private CLKernel kGevm;
+    private CLKernel kGevmReduce;
+    private CLKernel kDotPartial;
+    private CLKernel kSumSquaresPartial;
+    private CLKernel kSoftmaxCrossEntropyPartial;
+    private CLKernel kAxpyDotPartial;
+    private CLKernel kMultiplyDotPartial;
+    private CLKernel kSumPartial;
+    private CLKernel kScalarRatio;
+    private CLKernel kAxpyScalar;
+    private CLKernel kXpbyScalar;
+    private CLKernel kBicgDirection;
+    private CLKernel kFill;
+    private CLKernel kCsrMultiplyVector;
+    private CLKernel kCsrMultiplyMatrix;
+    private CLKernel kDenseRowCount;
+    private CLKernel kScanRowPointers;
+    private CLKernel kDenseToCsr;
+    private CLKernel kCsrToDense;
 
     private CLKernel kAbs;
     private CLKernel kAcos;
@@ -57,10 +121,18 @@ class GMath {
     private CLKernel kPown;
     private CLKernel kSigmoid;
 
+    private final int TRANSPOSE_TILE = 16; // 转置时每个工作组处理的方块边长(需要与cl中的大小对应)
     private final int MULTIPLY_WORK_ITEM_M = 8; // 矩阵乘法每个工作项处理的矩阵行数(需要与cl中的大小对应)
     private final int MULTIPLY_WORK_ITEM_N = 8; // 矩阵乘法每个工作项处理的矩阵列数(需要与cl中的大小对应)
+    private final int GEMV_GROUP_SIZE = 64; // 矩阵向量乘法每个工作组的大小(每组计算一行)
+    private final int GEVM_GROUP_SIZE = 16; // 向量矩阵乘法工作组每个方向的大小
+    private final int GEVM_GROUPS = 256; // 向量矩阵乘法把行分给多个工作组时希望达到的工作组总数
+    private final int GEVM_ROWS_PER_ITEM = 16; // 向量矩阵乘法每个工作项至少累加的行数
+    private final int ELEMENTWISE_GROUP_SIZE = 64; // 逐元素运算工作组的大小
+    private final int ELEMENTWISE_GROUPS_PER_UNIT = 8; // 逐元素运算每个计算单元分到的工作组数
     private int groupSizeForMultiplicationM; // 对于矩阵乘法的最优工作组大小(m方向)
     private int groupSizeForMultiplicationN; // 对于矩阵乘法的最优工作组大小(n方向)
+    private final Random random = new Random(); // 为设备上的随机数内核提供种子
 
     /**
      * 完成OpenCl的初始化 (!!用完后需要调用release方法释放资源)
@@ -84,16 +156,72 @@ class GMath {
             kMatrixAdd = program.createCLKernel("matrixAdd");
             kMatrixSubtract = program.createCLKernel("matrixSubtract");
             kRand = program.createCLKernel("rand");
-            kMatrixMultiply = program.createCLKernel("matrixMultiply");
+            kRandn = program.createCLKernel("randn");
             kMatrixMultiplyN = program.createCLKernel("matrixMultiplyN");
+            kMatrixMultiplyT = program.createCLKernel("matrixMultiplyT");
+            kSyrkN = program.createCLKernel("syrkN");
+            kSymmetrize = program.createCLKernel("symmetrize");
+            kDenseForwardN = program.createCLKernel("denseForwardN");
+            kDenseBackwardN = program.createCLKernel("denseBackwardN");
+            kConvForward = program.createCLKernel("convForward");
+            kConvBackwardData = program.createCLKernel("convBackwardData");
+            kConvBackwardFilter = program.createCLKernel("convBackwardFilter");
+            kConvBiasGradient = program.createCLKernel("convBiasGradient");
+            kPoolForward = program.createCLKernel("poolForward");
+            kPoolBackward = program.createCLKernel("poolBackward");
+            kRowSquaredNorms = program.createCLKernel("rowSquaredNorms");
+            kDistanceFromProducts = program.createCLKernel("distanceFromProducts");
+            kKnnMerge = program.createCLKernel("knnMerge");
+            kAssignClusters = program.createCLKernel("assignClusters");
+            kClusterSumsPartial = program.createCLKernel("clusterSumsPartial");
+            kClusterSumsReduce = program.createCLKernel("clusterSumsReduce");
+            kUpdateCentroids = program.createCLKernel("updateCentroids");
+            kSeedScorePartial = program.createCLKernel("seedScorePartial");
+            kSeedSelect = program.createCLKernel("seedSelect");
+            kSeedDistances = program.createCLKernel("seedDistances");
             kCompare = program.createCLKernel("compare");
             kScalarMultiply = program.createCLKernel("matrixScalarMultiply");
             kTranspose = program.createCLKernel("transpose");
-            kCopy = program.createCLKernel("copy");
+            kTransposeInPlace = program.createCLKernel("transposeInPlace");
             kCopy2D = program.createCLKernel("copy2D");
+            kGather = program.createCLKernel("gather");
+            kScatter = program.createCLKernel("scatter");
             kArrayMultiply = program.createCLKernel("arrayMultiply");
             kArrayDivide = program.createCLKernel("arrayDivide");
             kScalarDivide = program.createCLKernel("scalarDivide");
+            kAxpby = program.createCLKernel("axpby");
+            kArrayFma = program.createCLKernel("arrayFma");
+            kLerp = program.createCLKernel("lerp");
+            kMomentumUpdate = program.createCLKernel("momentumUpdate");
+            kAdamUpdate = program.createCLKernel("adamUpdate");
+            kRmsPropUpdate = program.createCLKernel("rmsPropUpdate");
+            kMomentumUpdateMulti = program.createCLKernel("momentumUpdateMulti");
+            kAdamUpdateMulti = program.createCLKernel("adamUpdateMulti");
+            kRmsPropUpdateMulti = program.createCLKernel("rmsPropUpdateMulti");
+            kSwapRows = program.createCLKernel("swapRows");
+            kTriangularSolve = program.createCLKernel("triangularSolve");
+            kTriangle = program.createCLKernel("triangle");
+            kDiagonal = program.createCLKernel("diagonal");
+            kGemv = program.createCLKernel("gemv");
+            kGevm = program.createCLKernel("gevm");
+            kGevmReduce = program.createCLKernel("gevmReduce");
+            kDotPartial = program.createCLKernel("dotPartial");
+            kSumSquaresPartial = program.createCLKernel("sumSquaresPartial");
+            kSoftmaxCrossEntropyPartial = program.createCLKernel("softmaxCrossEntropyPartial");
+            kAxpyDotPartial = program.createCLKernel("axpyDotPartial");
+            kMultiplyDotPartial = program.createCLKernel("multiplyDotPartial");
+            kSumPartial = program.createCLKernel("sumPartial");
+            kScalarRatio = program.createCLKernel("scalarRatio");
+            kAxpyScalar = program.createCLKernel("axpyScalar");
+            kXpbyScalar = program.createCLKernel("xpbyScalar");
+            kBicgDirection = program.createCLKernel("bicgDirection");
+            kFill = program.createCLKernel("fill");
+            kCsrMultiplyVector = program.createCLKernel("csrMultiplyVector");
+            kCsrMultiplyMatrix = program.createCLKernel("csrMultiplyMatrix");
+            kDenseRowCount = program.createCLKernel("denseRowCount");
+            kScanRowPointers = program.createCLKernel("scanRowPointers");
+            kDenseToCsr = program.createCLKernel("denseToCsr");
+            kCsrToDense = program.createCLKernel("csrToDense");
 
             kSigmoid = program.createCLKernel("sigmoid");
             kAbs = program.createCLKernel("kAbs");
@@ -143,30 +271,32 @@ class GMath {
     }
 
     /**
-     * 转置矩阵
+     * 转置矩阵 (通过局部内存分块转置, 读写都是合并访问)
      * 
      * @param 原矩阵
-     * @param 储存结果的矩阵(不能与原矩阵相同)
+     * @param 储存结果的矩阵(与原矩阵相同时原地转置, 此时必须是方阵)
      */
     public void transpose(Matrix m, Matrix result) {
         if (m.getRowDimension() != result.getColumnDimension() || m.getColumnDimension() != result.getRowDimension()) {
             throw newIllegalArgumentException("矩阵大小不符合转制条件", m, result);
         } else if (m == result) {
-            throw newIllegalArgumentException("转置矩阵的原矩阵与结果矩阵不能相同", m, result);
+            kTransposeInPlace.setArg(setMatrixArgs(kTransposeInPlace, 0, m), m.getRowDimension());
+            queue.put2DRangeKernel(kTransposeInPlace, 0, 0,
+                    roundUp(TRANSPOSE_TILE, m.getColumnDimension()), roundUp(TRANSPOSE_TILE, m.getRowDimension()),
+                    TRANSPOSE_TILE, TRANSPOSE_TILE);
         } else {
-            kTranspose.setArg(0, m.getArg());
-            kTranspose.setArg(1, result.getArg());
-            kTranspose.setArg(2, m.getRowDimension());
-            kTranspose.setArg(3, m.getColumnDimension());
-            queue.put2DRangeKernel(kTranspose, 0, 0, m.getRowDimension(), m.getColumnDimension(), 0, 0);
+            int index = setMatrixArgs(kTranspose, setMatrixArgs(kTranspose, 0, m), result);
+            kTranspose.setArg(index++, m.getRowDimension());
+            kTranspose.setArg(index++, m.getColumnDimension());
+            queue.put2DRangeKernel(kTranspose, 0, 0,
+                    roundUp(TRANSPOSE_TILE, m.getColumnDimension()), roundUp(TRANSPOSE_TILE, m.getRowDimension()),
+                    TRANSPOSE_TILE, TRANSPOSE_TILE);
         }
     }
 
     public void copy(Matrix originalMatrix, Matrix newMatrix) {
         checkMatrix(originalMatrix, newMatrix);
-        kCopy.setArg(0, originalMatrix.getArg());
-        kCopy.setArg(1, newMatrix.getArg());
-        queue.put1DRangeKernel(kCopy, 0, originalMatrix.getRowDimension() * originalMatrix.getColumnDimension(), 0);
+        putBinaryKernel(kCopy2D, originalMatrix, newMatrix);
     }
 
     /**
@@ -208,238 +338,2411 @@ class GMath {
             throw new IllegalArgumentException(message);
         }
         kCopy2D.setArg(0, originalMatrix.getArg());
-        kCopy2D.setArg(1, newMatrix.getArg());
-        kCopy2D.setArg(2, originalMatrix.getColumnDimension());
-        kCopy2D.setArg(3, newMatrix.getColumnDimension());
-        kCopy2D.setArg(4, startPointMN - startPointMO);
-        kCopy2D.setArg(5, startPointNN - startPointNO);
-        kCopy2D.setArg(6, startPointMO);
-        kCopy2D.setArg(7, startPointNO);
-        queue.put2DRangeKernel(kCopy2D, 0, 0, mLength, nLength, 0, 0);
+        kCopy2D.setArg(1, originalMatrix.getOffset() + startPointMO * originalMatrix.getPitch() + startPointNO);
+        kCopy2D.setArg(2, originalMatrix.getPitch());
+        kCopy2D.setArg(3, newMatrix.getArg());
+        kCopy2D.setArg(4, newMatrix.getOffset() + startPointMN * newMatrix.getPitch() + startPointNN);
+        kCopy2D.setArg(5, newMatrix.getPitch());
+        putGridStrideKernel(kCopy2D, 6, mLength, nLength);
+    }
+
+    /**
+     * 把矩阵中选定的行与列复制到结果矩阵中 result(i, j) = m(rows[i], columns[j])
+     * 
+     * 行列下标以小的设备端缓冲区传入内核, 只传输与计算被选中的元素
+     * 
+     * @param m
+     *            原矩阵
+     * @param rows
+     *            行下标
+     * @param columns
+     *            列下标
+     * @param result
+     *            保存结果的矩阵(rows.length * columns.length)
+     */
+    public void gather(Matrix m, int[] rows, int[] columns, Matrix result) {
+        if (result.getRowDimension() != rows.length || result.getColumnDimension() != columns.length) {
+            throw newIllegalArgumentException("结果矩阵与下标数组的大小不符", m, result);
+        }
+        checkIndices(rows, m.getRowDimension());
+        checkIndices(columns, m.getColumnDimension());
+        putIndexedKernel(kGather, m, result, rows, columns);
+    }
+
+    /**
+     * 把矩阵复制到结果矩阵中选定的行与列 result(rows[i], columns[j]) = m(i, j)
+     * 
+     * 下标有重复时, 重复位置上的结果不确定
+     * 
+     * @param m
+     *            原矩阵(rows.length * columns.length)
+     * @param rows
+     *            行下标
+     * @param columns
+     *            列下标
+     * @param result
+     *            保存结果的矩阵
+     */
+    public void scatter(Matrix m, int[] rows, int[] columns, Matrix result) {
+        if (m.getRowDimension() != rows.length || m.getColumnDimension() != columns.length) {
+            throw newIllegalArgumentException("原矩阵与下标数组的大小不符", m, result);
+        }
+        checkIndices(rows, result.getRowDimension());
+        checkIndices(columns, result.getColumnDimension());
+        putIndexedKernel(kScatter, m, result, rows, columns);
+    }
+
+    private void putIndexedKernel(CLKernel kernel, Matrix m, Matrix result, int[] rows, int[] columns) {
+        if (rows.length == 0 || columns.length == 0)
+            return;
+        CLBuffer<IntBuffer> rowBuffer = createIndexBuffer(rows);
+        CLBuffer<IntBuffer> columnBuffer = createIndexBuffer(columns);
+        int index = setMatrixArgs(kernel, setMatrixArgs(kernel, 0, m), result);
+        kernel.setArg(index++, rowBuffer);
+        kernel.setArg(index++, columnBuffer);
+        queue.put2DRangeKernel(kernel, 0, 0, rows.length, columns.length, 0, 0);
+        // OpenCl会在使用它们的内核完成后才真正释放缓冲区
+        rowBuffer.release();
+        columnBuffer.release();
+    }
+
+    private CLBuffer<IntBuffer> createIndexBuffer(int[] indices) {
+        CLBuffer<IntBuffer> buffer = context.createIntBuffer(indices.length, CLMemory.Mem.READ_ONLY);
+        buffer.getBuffer().put(indices);
+        buffer.getBuffer().position(0);
+        queue.putWriteBuffer(buffer, true);
+        return buffer;
+    }
+
+    private static void checkIndices(int[] indices, int length) {
+        for (int i : indices) {
+            if (i < 0 || i >= length)
+                throw new ArrayIndexOutOfBoundsException("Submatrix indices");
+        }
     }
 
     /**
      * 将两个矩阵相加并将结果保存在第三个矩阵中
      * 
-     * @param m1
-     *            输入矩阵1
-     * @param m2
-     *            输入矩阵2
-     * @param mr
-     *            保存结果的矩阵
+     * 输入矩阵可以是1*N的行向量或M*1的列向量, 此时它被广播到结果的每一行(列), 不需要展开成完整的矩阵
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void add(Matrix m1, Matrix m2, Matrix mr) {
+        putBroadcastKernel(kMatrixAdd, m1, m2, mr); // 执行内核
+    }
+
+    /**
+     * 将两个矩阵相减并将结果保存在第三个矩阵中 (行向量或列向量的输入会被广播, 见 {@link #add})
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void substract(Matrix m1, Matrix m2, Matrix mr) {
+        putBroadcastKernel(kMatrixSubtract, m1, m2, mr); // 执行内核
+    }
+
+    /**
+     * 矩阵数乘
+     * 
+     * @param m
+     *            被数乘的矩阵
+     * @param k
+     *            常数项
+     * @param result
+     *            储存结果的矩阵
+     */
+    public void multiply(Matrix m, double k, Matrix result) {
+        checkMatrix(m, result);
+        kScalarMultiply.setArg(8, (float) k);
+        putBinaryKernel(kScalarMultiply, m, result);
+    }
+
+    /**
+     * 将两个矩阵相乘并将结果保存在第三个矩阵中
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void multiply(Matrix m1, Matrix m2, Matrix mr) {
+        multiply(1, m1, m2, 0, mr);
+    }
+
+    /**
+     * mr = alpha * m1 * m2 + beta * mr
+     * 
+     * @param alpha
+     *            乘积的系数
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param beta
+     *            结果矩阵原有值的系数(为0时不读取结果矩阵)
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void multiply(double alpha, Matrix m1, Matrix m2, double beta, Matrix mr) {
+        if (m1.getRowDimension() == mr.getRowDimension() && m1.getColumnDimension() == m2.getRowDimension()
+                && m2.getColumnDimension() == mr.getColumnDimension()) {
+            // 矩阵与向量相乘时使用专门的内核
+            if (m2.getColumnDimension() == 1) {
+                putGemv(alpha, m1, m2, beta, mr);
+                return;
+            }
+            if (m1.getRowDimension() == 1) {
+                putGevm(alpha, m1, m2, beta, mr);
+                return;
+            }
+
+            if (alpha == 1 && beta == 0 && strassenThreshold > 0 && m1.getRowDimension() >= strassenThreshold
+                    && m1.getColumnDimension() >= strassenThreshold && m2.getColumnDimension() >= strassenThreshold) {
+                putStrassen(m1, m2, mr);
+                return;
+            }
+            putMatrixMultiply(alpha, m1, m2, beta, mr);
+        } else {
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", m1, m2, mr);
+        }
+    }
+
+    /*
+     * 分块矩阵乘法内核 mr = alpha * m1 * m2 + beta * mr
+     */
+    private void putMatrixMultiply(double alpha, Matrix m1, Matrix m2, double beta, Matrix mr) {
+        // 每个工作项计算8*8的块, 边缘不足8*8的块在同一个内核中处理
+        int globalWorkSizeM = (m1.getRowDimension() + MULTIPLY_WORK_ITEM_M - 1) / MULTIPLY_WORK_ITEM_M;
+        int globalWorkSizeN = (m2.getColumnDimension() + MULTIPLY_WORK_ITEM_N - 1) / MULTIPLY_WORK_ITEM_N;
+        int index = setMatrixArgs(kMatrixMultiplyN, 0, m1);
+        index = setMatrixArgs(kMatrixMultiplyN, index, m2);
+        index = setMatrixArgs(kMatrixMultiplyN, index, mr);
+        kMatrixMultiplyN.setArg(index++, m1.getRowDimension());
+        kMatrixMultiplyN.setArg(index++, m1.getColumnDimension());
+        kMatrixMultiplyN.setArg(index++, m2.getColumnDimension());
+        kMatrixMultiplyN.setArg(index++, globalWorkSizeM);
+        kMatrixMultiplyN.setArg(index++, globalWorkSizeN);
+        kMatrixMultiplyN.setArg(index++, (float) alpha);
+        kMatrixMultiplyN.setArg(index++, (float) beta);
+        queue.put2DRangeKernel(kMatrixMultiplyN, 0, 0,
+                roundUp(groupSizeForMultiplicationM, globalWorkSizeM),
+                roundUp(groupSizeForMultiplicationN, globalWorkSizeN),
+                groupSizeForMultiplicationM,
+                groupSizeForMultiplicationN);
+    }
+
+    /**
+     * mr = alpha * op(m1) * op(m2) + beta * mr, op(x)在transpose为true时是x', 否则是x
+     * 
+     * 转置的操作数由内核直接按转置的方式读取, 不需要先复制一份转置矩阵
+     * 
+     * @param alpha
+     *            乘积的系数
+     * @param m1
+     *            输入矩阵1
+     * @param transpose1
+     *            是否使用m1的转置
+     * @param m2
+     *            输入矩阵2
+     * @param transpose2
+     *            是否使用m2的转置
+     * @param beta
+     *            结果矩阵原有值的系数(为0时不读取结果矩阵)
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void multiply(double alpha, Matrix m1, boolean transpose1, Matrix m2, boolean transpose2, double beta,
+            Matrix mr) {
+        if (!transpose1 && !transpose2) {
+            multiply(alpha, m1, m2, beta, mr);
+            return;
+        }
+        int M = transpose1 ? m1.getColumnDimension() : m1.getRowDimension();
+        int N = transpose1 ? m1.getRowDimension() : m1.getColumnDimension();
+        int P = transpose2 ? m2.getRowDimension() : m2.getColumnDimension();
+        if ((transpose2 ? m2.getColumnDimension() : m2.getRowDimension()) != N || mr.getRowDimension() != M
+                || mr.getColumnDimension() != P) {
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", m1, m2, mr);
+        }
+        int globalWorkSizeM = (M + MULTIPLY_WORK_ITEM_M - 1) / MULTIPLY_WORK_ITEM_M;
+        int globalWorkSizeN = (P + MULTIPLY_WORK_ITEM_N - 1) / MULTIPLY_WORK_ITEM_N;
+        int index = setMatrixArgs(kMatrixMultiplyT, 0, m1);
+        index = setMatrixArgs(kMatrixMultiplyT, index, m2);
+        index = setMatrixArgs(kMatrixMultiplyT, index, mr);
+        index = setArgs(kMatrixMultiplyT, index, M, N, P, globalWorkSizeM, globalWorkSizeN);
+        index = setArgs(kMatrixMultiplyT, index, transpose1 ? 1 : 0, transpose2 ? 1 : 0, alpha, beta);
+        queue.put2DRangeKernel(kMatrixMultiplyT, 0, 0,
+                roundUp(groupSizeForMultiplicationM, globalWorkSizeM),
+                roundUp(groupSizeForMultiplicationN, globalWorkSizeN),
+                groupSizeForMultiplicationM,
+                groupSizeForMultiplicationN);
+    }
+
+    /**
+     * 对称秩k更新 c = alpha * x' * x + beta * c, 只计算c的下三角(或上三角)部分, 计算量约为普通乘法的一半
+     * 
+     * 内核直接按行读取x, 不需要先转置. 另一半三角的元素不会被修改
+     * 
+     * @param alpha
+     *            乘积的系数
+     * @param x
+     *            k*n的矩阵
+     * @param beta
+     *            c原有值的系数(为0时不读取c)
+     * @param c
+     *            n*n的矩阵, 保存结果
+     * @param upper
+     *            计算上三角(否则为下三角), 都包括对角线
+     */
+    public void syrk(double alpha, Matrix x, double beta, Matrix c, boolean upper) {
+        int n = x.getColumnDimension();
+        if (c.getRowDimension() != n || c.getColumnDimension() != n) {
+            throw newIllegalArgumentException("结果矩阵必须是边长等于x列数的方阵", x, c);
+        }
+        int blocks = (n + MULTIPLY_WORK_ITEM_M - 1) / MULTIPLY_WORK_ITEM_M;
+        int index = setMatrixArgs(kSyrkN, setMatrixArgs(kSyrkN, 0, x), c);
+        kSyrkN.setArg(index++, x.getRowDimension());
+        kSyrkN.setArg(index++, n);
+        kSyrkN.setArg(index++, blocks);
+        kSyrkN.setArg(index++, upper ? 1 : 0);
+        kSyrkN.setArg(index++, (float) alpha);
+        kSyrkN.setArg(index++, (float) beta);
+        queue.put2DRangeKernel(kSyrkN, 0, 0,
+                roundUp(groupSizeForMultiplicationM, blocks),
+                roundUp(groupSizeForMultiplicationN, blocks),
+                groupSizeForMultiplicationM,
+                groupSizeForMultiplicationN);
+    }
+
+    /**
+     * 把方阵一侧的三角部分复制到另一侧, 使其成为对称矩阵
+     * 
+     * @param c
+     *            方阵
+     * @param upper
+     *            以上三角为准(否则以下三角为准)
+     */
+    public void symmetrize(Matrix c, boolean upper) {
+        if (c.getRowDimension() != c.getColumnDimension()) {
+            throw newIllegalArgumentException("只有方阵才能对称化", c);
+        }
+        int index = setMatrixArgs(kSymmetrize, 0, c);
+        kSymmetrize.setArg(index++, upper ? 1 : 0);
+        putElementwiseKernel(kSymmetrize, c);
+    }
+
+    /*
+     * =================================================================
+     * 全连接层: 在矩阵乘法内核中完成偏置和激活函数, 反向传播在读取操作数时乘激活函数的导数
+     * =================================================================
+     */
+
+    /**
+     * 全连接层的前向计算 y = activation(x * w + bias), 偏置和激活函数在乘法内核写回结果之前完成,
+     * 乘积不需要先写到显存
+     * 
+     * @param x
+     *            m*n的输入
+     * @param w
+     *            n*p的权重
+     * @param bias
+     *            p个元素的行向量或列向量, 加到每一行上(为null时不加偏置)
+     * @param activation
+     *            激活函数
+     * @param y
+     *            m*p的矩阵, 保存结果
+     * @param preActivation
+     *            m*p的矩阵, 保存激活前的值 x * w + bias (为null时不保存, 使用GELU时反向传播需要它)
+     */
+    public void denseForward(Matrix x, Matrix w, Matrix bias, Activation activation, Matrix y,
+            Matrix preActivation) {
+        int m = x.getRowDimension();
+        int p = w.getColumnDimension();
+        if (x.getColumnDimension() != w.getRowDimension() || y.getRowDimension() != m || y.getColumnDimension() != p)
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", x, w, y);
+        if (preActivation != null && (preActivation.getRowDimension() != m || preActivation.getColumnDimension() != p))
+            throw newIllegalArgumentException("保存激活前的值的矩阵必须与结果矩阵大小相同", y, preActivation);
+        checkVector(bias, p, y);
+        int blocksM = (m + MULTIPLY_WORK_ITEM_M - 1) / MULTIPLY_WORK_ITEM_M;
+        int blocksN = (p + MULTIPLY_WORK_ITEM_N - 1) / MULTIPLY_WORK_ITEM_N;
+        int index = setMatrixArgs(kDenseForwardN, setMatrixArgs(kDenseForwardN, 0, x), w);
+        index = setMatrixArgs(kDenseForwardN, index, y);
+        index = setMatrixArgs(kDenseForwardN, index, preActivation == null ? y : preActivation);
+        index = setVectorArgs(kDenseForwardN, index, bias == null ? y : bias);
+        kDenseForwardN.setArg(index++, m);
+        kDenseForwardN.setArg(index++, x.getColumnDimension());
+        kDenseForwardN.setArg(index++, p);
+        kDenseForwardN.setArg(index++, blocksM);
+        kDenseForwardN.setArg(index++, blocksN);
+        kDenseForwardN.setArg(index++, bias == null ? 0 : 1);
+        kDenseForwardN.setArg(index++, preActivation == null ? 0 : 1);
+        kDenseForwardN.setArg(index++, activation.CODE);
+        queue.put2DRangeKernel(kDenseForwardN, 0, 0,
+                roundUp(groupSizeForMultiplicationM, blocksM),
+                roundUp(groupSizeForMultiplicationN, blocksN),
+                groupSizeForMultiplicationM,
+                groupSizeForMultiplicationN);
+    }
+
+    /**
+     * 全连接层对输入的梯度 gradX = (gradY .* f'(cache)) * w', 导数在读取gradY时计算,
+     * w'由内核直接按转置读取, 激活前的梯度和w的转置都不需要写到显存
+     * 
+     * @param gradY
+     *            m*p, 对层输出的梯度
+     * @param cache
+     *            m*p, 前向计算的输出y (GELU时为前向保存的激活前的值)
+     * @param activation
+     *            前向计算使用的激活函数
+     * @param w
+     *            n*p, 前向计算使用的权重
+     * @param gradX
+     *            m*n的矩阵, 保存结果
+     */
+    public void denseBackwardInput(Matrix gradY, Matrix cache, Activation activation, Matrix w, Matrix gradX) {
+        int m = gradY.getRowDimension();
+        checkMatrix(gradY, cache);
+        if (gradY.getColumnDimension() != w.getColumnDimension() || gradX.getRowDimension() != m
+                || gradX.getColumnDimension() != w.getRowDimension())
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", gradY, w, gradX);
+        putDenseBackward(gradY, w, cache, gradX, null, 0, activation, 0);
+    }
+
+    /**
+     * 全连接层对权重和偏置的梯度 gradW = x' * (gradY .* f'(cache)) + beta * gradW, gradBias是激活前的梯度各列的和,
+     * 导数在读取gradY时计算, x'由内核直接按转置读取, 偏置的梯度在同一个内核中求出
+     * 
+     * @param x
+     *            m*n, 前向计算的输入
+     * @param gradY
+     *            m*p, 对层输出的梯度
+     * @param cache
+     *            m*p, 前向计算的输出y (GELU时为前向保存的激活前的值)
+     * @param activation
+     *            前向计算使用的激活函数
+     * @param gradW
+     *            n*p的矩阵, 保存权重的梯度
+     * @param gradBias
+     *            p个元素的行向量或列向量, 保存偏置的梯度(为null时不计算)
+     * @param beta
+     *            梯度原有值的系数(用于累加多批梯度, 为0时不读取原有值)
+     */
+    public void denseBackwardWeights(Matrix x, Matrix gradY, Matrix cache, Activation activation, Matrix gradW,
+            Matrix gradBias, double beta) {
+        int p = gradY.getColumnDimension();
+        checkMatrix(gradY, cache);
+        if (x.getRowDimension() != gradY.getRowDimension() || gradW.getRowDimension() != x.getColumnDimension()
+                || gradW.getColumnDimension() != p)
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", x, gradY, gradW);
+        checkVector(gradBias, p, gradW);
+        putDenseBackward(x, gradY, cache, gradW, gradBias, 1, activation, beta);
+    }
+
+    /*
+     * 反向传播内核 mr = op1 * op2 + beta * mr, gradientSide为0时op1是 gradY .* f'(cache), op2是m2',
+     * 为1时op1是m1', op2是 gradY .* f'(cache)
+     */
+    private void putDenseBackward(Matrix m1, Matrix m2, Matrix cache, Matrix mr, Matrix gradBias, int gradientSide,
+            Activation activation, double beta) {
+        int blocksM = (mr.getRowDimension() + MULTIPLY_WORK_ITEM_M - 1) / MULTIPLY_WORK_ITEM_M;
+        int blocksN = (mr.getColumnDimension() + MULTIPLY_WORK_ITEM_N - 1) / MULTIPLY_WORK_ITEM_N;
+        int index = setMatrixArgs(kDenseBackwardN, setMatrixArgs(kDenseBackwardN, 0, m1), m2);
+        index = setMatrixArgs(kDenseBackwardN, setMatrixArgs(kDenseBackwardN, index, cache), mr);
+        index = setVectorArgs(kDenseBackwardN, index, gradBias == null ? mr : gradBias);
+        kDenseBackwardN.setArg(index++, mr.getRowDimension());
+        kDenseBackwardN.setArg(index++, gradientSide == 0 ? m1.getColumnDimension() : m1.getRowDimension());
+        kDenseBackwardN.setArg(index++, mr.getColumnDimension());
+        kDenseBackwardN.setArg(index++, blocksM);
+        kDenseBackwardN.setArg(index++, blocksN);
+        kDenseBackwardN.setArg(index++, gradientSide);
+        kDenseBackwardN.setArg(index++, gradBias == null ? 0 : 1);
+        kDenseBackwardN.setArg(index++, activation.CODE);
+        kDenseBackwardN.setArg(index++, (float) beta);
+        queue.put2DRangeKernel(kDenseBackwardN, 0, 0,
+                roundUp(groupSizeForMultiplicationM, blocksM),
+                roundUp(groupSizeForMultiplicationN, blocksN),
+                groupSizeForMultiplicationM,
+                groupSizeForMultiplicationN);
+    }
+
+    /*
+     * 设置向量参数 (缓冲区, 偏移, 元素间距), 行向量和列向量都可以
+     */
+    private static int setVectorArgs(CLKernel kernel, int index, Matrix vector) {
+        kernel.setArg(index++, vector.getArg());
+        kernel.setArg(index++, vector.getOffset());
+        kernel.setArg(index++, vector.getColumnDimension() == 1 ? vector.getPitch() : 1);
+        return index;
+    }
+
+    /*
+     * vector为null或者是length个元素的行向量或列向量
+     */
+    private void checkVector(Matrix vector, int length, Matrix matrix) {
+        if (vector != null && !(vector.getRowDimension() == 1 && vector.getColumnDimension() == length)
+                && !(vector.getColumnDimension() == 1 && vector.getRowDimension() == length))
+            throw newIllegalArgumentException("向量的长度不符合条件", vector, matrix);
+    }
+
+    /*
+     * =================================================================
+     * Strassen-Winograd矩阵乘法: 每层递归用7次子矩阵乘法和15次加减法代替8次乘法, 子矩阵小于cutoff时使用分块乘法内核
+     * =================================================================
+     */
+    private int strassenThreshold = 8192; // 三个维度都不小于它时multiply自动使用Strassen算法(0表示不使用)
+    private int strassenCutoff = 2048; // 递归到任一维度不大于它时改用普通乘法
+    private final MatrixPool strassenWorkspace = new MatrixPool(); // 递归中临时矩阵的显存池, 每次调用结束时清空
+    private final MatrixPool workspace = new MatrixPool(); // 向量矩阵乘法和聚类中临时矩阵的显存池
+
+    /**
+     * 设置multiply自动使用Strassen-Winograd算法的矩阵大小
+     * 
+     * @param threshold
+     *            三个维度都不小于它时使用, 0表示不自动使用
+     */
+    public void setStrassenThreshold(int threshold) {
+        this.strassenThreshold = threshold;
+    }
+
+    public int getStrassenThreshold() {
+        return strassenThreshold;
+    }
+
+    /**
+     * 设置Strassen-Winograd递归的终止大小 (与设备有关, 通常在普通乘法达到峰值性能的大小附近最快)
+     * 
+     * @param cutoff
+     *            任一维度不大于它时改用普通乘法
+     */
+    public void setStrassenCutoff(int cutoff) {
+        if (cutoff < 1)
+            throw new IllegalArgumentException("cutoff必须是正数");
+        this.strassenCutoff = cutoff;
+    }
+
+    public int getStrassenCutoff() {
+        return strassenCutoff;
+    }
+
+    /**
+     * 释放向量矩阵乘法和聚类缓存的临时显存 (Strassen算法使用单独的显存池, 在每次调用结束时自行释放)
+     */
+    public void clearWorkspace() {
+        workspace.clear();
+    }
+
+    /**
+     * 用Strassen-Winograd算法计算 mr = m1 * m2 (不受自动选择的大小限制)
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param mr
+     *            保存结果的矩阵(不能与输入矩阵的显存重叠)
+     */
+    public void multiplyStrassen(Matrix m1, Matrix m2, Matrix mr) {
+        if (m1.getRowDimension() != mr.getRowDimension() || m1.getColumnDimension() != m2.getRowDimension()
+                || m2.getColumnDimension() != mr.getColumnDimension()) {
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", m1, m2, mr);
+        }
+        putStrassen(m1, m2, mr);
+    }
+
+    /**
+     * 比较Strassen-Winograd算法与普通乘法的结果
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @return 相对误差 ||S - C||F / ||C||F, S为Strassen算法的结果, C为普通乘法的结果
+     */
+    public double strassenError(Matrix m1, Matrix m2) {
+        Matrix classic = new Matrix(m1.getRowDimension(), m2.getColumnDimension());
+        Matrix fast = new Matrix(m1.getRowDimension(), m2.getColumnDimension());
+        multiplyStrassen(m1, m2, fast);
+        putMatrixMultiply(1, m1, m2, 0, classic);
+        substract(fast, classic, fast);
+        double error = normF(fast) / normF(classic);
+        classic.release();
+        fast.release();
+        return error;
+    }
+
+    /*
+     * Strassen算法的入口: 递归中C的子块会在读取A, B之前被写入, 所以结果不能与输入重叠.
+     * 递归用到的临时矩阵在结束时释放, 不会一直占用显存
+     */
+    private void putStrassen(Matrix A, Matrix B, Matrix C) {
+        if (overlaps(A, C) || overlaps(B, C)) {
+            throw new IllegalArgumentException("结果矩阵不能与输入矩阵的显存重叠");
+        }
+        strassen(A, B, C, false);
+        strassenWorkspace.clear();
+    }
+
+    /*
+     * C = A * B (accumulate为true时 C += A * B)
+     * 奇数维度把最后一行/列剥离出来, 偶数部分递归, 剥离部分用矩阵向量乘法补上
+     */
+    private void strassen(Matrix A, Matrix B, Matrix C, boolean accumulate) {
+        int m = A.getRowDimension();
+        int k = A.getColumnDimension();
+        int n = B.getColumnDimension();
+        if (Math.min(m, Math.min(k, n)) <= strassenCutoff) {
+            putMatrixMultiply(1, A, B, accumulate ? 1 : 0, C);
+            return;
+        }
+        if (accumulate) {
+            Matrix W = strassenWorkspace.acquire(m, n);
+            strassen(A, B, W, false);
+            add(C, W, C);
+            strassenWorkspace.recycle(W);
+            return;
+        }
+        int hm = m / 2, hk = k / 2, hn = n / 2;
+        Matrix A11 = A.getMatrixView(0, hm - 1, 0, hk - 1), A12 = A.getMatrixView(0, hm - 1, hk, 2 * hk - 1);
+        Matrix A21 = A.getMatrixView(hm, 2 * hm - 1, 0, hk - 1), A22 = A.getMatrixView(hm, 2 * hm - 1, hk, 2 * hk - 1);
+        Matrix B11 = B.getMatrixView(0, hk - 1, 0, hn - 1), B12 = B.getMatrixView(0, hk - 1, hn, 2 * hn - 1);
+        Matrix B21 = B.getMatrixView(hk, 2 * hk - 1, 0, hn - 1), B22 = B.getMatrixView(hk, 2 * hk - 1, hn, 2 * hn - 1);
+        Matrix C11 = C.getMatrixView(0, hm - 1, 0, hn - 1), C12 = C.getMatrixView(0, hm - 1, hn, 2 * hn - 1);
+        Matrix C21 = C.getMatrixView(hm, 2 * hm - 1, 0, hn - 1), C22 = C.getMatrixView(hm, 2 * hm - 1, hn, 2 * hn - 1);
+        Matrix X = strassenWorkspace.acquire(hm, hk);
+        Matrix Y = strassenWorkspace.acquire(hk, hn);
+        Matrix Z = strassenWorkspace.acquire(hm, hn);
+
+        strassen(A11, B11, Z, false); // Z = P1 = A11*B11
+        strassen(A12, B21, C11, false);
+        add(C11, Z, C11); // C11 = P1 + P2
+        add(A21, A22, X); // X = S1
+        substract(B12, B11, Y); // Y = T1
+        strassen(X, Y, C22, false); // C22 = P5 = S1*T1
+        substract(X, A11, X); // X = S2 = S1 - A11
+        substract(B22, Y, Y); // Y = T2 = B22 - T1
+        strassen(X, Y, Z, true); // Z = U2 = P1 + S2*T2
+        substract(A12, X, X); // X = S4 = A12 - S2
+        strassen(X, B22, C12, false); // C12 = P3 = S4*B22
+        substract(Y, B21, Y); // Y = T4 = T2 - B21
+        strassen(A22, Y, C21, false); // C21 = P4 = A22*T4
+        add(C12, Z, C12);
+        add(C12, C22, C12); // C12 = P3 + U2 + P5
+        substract(A11, A21, X); // X = S3
+        substract(B22, B12, Y); // Y = T3
+        strassen(X, Y, Z, true); // Z = U3 = U2 + S3*T3
+        add(C22, Z, C22); // C22 = U3 + P5
+        substract(Z, C21, C21); // C21 = U3 - P4
+
+        strassenWorkspace.recycle(X);
+        strassenWorkspace.recycle(Y);
+        strassenWorkspace.recycle(Z);
+        for (Matrix view : new Matrix[] { A11, A12, A21, A22, B11, B12, B21, B22, C11, C12, C21, C22 })
+            view.release();
+
+        if (k % 2 != 0) { // C(0:2hm, 0:2hn) += A(0:2hm, k-1) * B(k-1, 0:2hn)
+            Matrix a = A.getMatrixView(0, 2 * hm - 1, k - 1, k - 1);
+            Matrix b = B.getMatrixView(k - 1, k - 1, 0, 2 * hn - 1);
+            Matrix c = C.getMatrixView(0, 2 * hm - 1, 0, 2 * hn - 1);
+            putMatrixMultiply(1, a, b, 1, c);
+            a.release();
+            b.release();
+            c.release();
+        }
+        if (n % 2 != 0) { // C(0:2hm, n-1) = A(0:2hm, :) * B(:, n-1)
+            Matrix a = A.getMatrixView(0, 2 * hm - 1, 0, k - 1);
+            Matrix b = B.getMatrixView(0, k - 1, n - 1, n - 1);
+            Matrix c = C.getMatrixView(0, 2 * hm - 1, n - 1, n - 1);
+            putGemv(1, a, b, 0, c);
+            a.release();
+            b.release();
+            c.release();
+        }
+        if (m % 2 != 0) { // C(m-1, :) = A(m-1, :) * B
+            Matrix a = A.getMatrixView(m - 1, m - 1, 0, k - 1);
+            Matrix c = C.getMatrixView(m - 1, m - 1, 0, n - 1);
+            putGevm(1, a, B, 0, c);
+            a.release();
+            c.release();
+        }
+    }
+
+    /*
+     * mr = alpha * m1 * m2 + beta * mr, m2与mr是列向量, 每个工作组计算一行
+     */
+    private void putGemv(double alpha, Matrix m1, Matrix m2, double beta, Matrix mr) {
+        int groupSize = Integer.highestOneBit(Math.min(GEMV_GROUP_SIZE, device.getMaxWorkGroupSize()));
+        int index = setMatrixArgs(kGemv, setMatrixArgs(kGemv, setMatrixArgs(kGemv, 0, m1), m2), mr);
+        kGemv.setArg(index++, m1.getRowDimension());
+        kGemv.setArg(index++, m1.getColumnDimension());
+        kGemv.setArg(index++, (float) alpha);
+        kGemv.setArg(index++, (float) beta);
+        kGemv.setNullArg(index++, groupSize * 4);
+        queue.put1DRangeKernel(kGemv, 0, m1.getRowDimension() * groupSize, groupSize);
+    }
+
+    /*
+     * mr = alpha * m1 * m2 + beta * mr, m1与mr是行向量, 每个工作项计算4列
+     * 
+     * 列数较少而行数很多时只靠一个工作组归约每4列太慢, 这时把行分成若干段, 每段由一组工作组计算,
+     * 各段的部分和写到临时矩阵的一行, 再用第二个内核加起来
+     */
+    private void putGevm(double alpha, Matrix m1, Matrix m2, double beta, Matrix mr) {
+        int groupSizeX = GEVM_GROUP_SIZE;
+        int groupSizeY = Integer
+                .highestOneBit(Math.max(1, Math.min(GEVM_GROUP_SIZE, device.getMaxWorkGroupSize() / groupSizeX)));
+        int rows = m2.getRowDimension();
+        int columns = m2.getColumnDimension();
+        int quads = (columns + 3) / 4;
+        int columnGroups = (quads + groupSizeX - 1) / groupSizeX;
+        int rowsPerSlice = groupSizeY * GEVM_ROWS_PER_ITEM;
+        int slices = Math.max(1, Math.min((rows + rowsPerSlice - 1) / rowsPerSlice, GEVM_GROUPS / columnGroups));
+        if (slices == 1) {
+            putGevm(alpha, m1, m2, beta, mr, groupSizeX, groupSizeY, 1);
+            return;
+        }
+        Matrix partial = workspace.acquire(slices, columns);
+        putGevm(1, m1, m2, 0, partial, groupSizeX, groupSizeY, slices);
+        int index = setMatrixArgs(kGevmReduce, setMatrixArgs(kGevmReduce, 0, partial), mr);
+        setArgs(kGevmReduce, index, slices, alpha, beta);
+        putElementwiseKernel(kGevmReduce, mr);
+        workspace.recycle(partial);
+    }
+
+    private void putGevm(double alpha, Matrix m1, Matrix m2, double beta, Matrix mr, int groupSizeX,
+            int groupSizeY, int slices) {
+        int quads = (m2.getColumnDimension() + 3) / 4;
+        int index = setMatrixArgs(kGevm, setMatrixArgs(kGevm, setMatrixArgs(kGevm, 0, m1), m2), mr);
+        kGevm.setArg(index++, m2.getRowDimension());
+        kGevm.setArg(index++, m2.getColumnDimension());
+        kGevm.setArg(index++, (float) alpha);
+        kGevm.setArg(index++, (float) beta);
+        kGevm.setNullArg(index++, groupSizeX * groupSizeY * 16);
+        queue.put2DRangeKernel(kGevm, 0, 0, roundUp(groupSizeX, quads), groupSizeY * slices, groupSizeX, groupSizeY);
+    }
+
+    /*
+     * =================================================================
+     * 核外矩阵乘法: 矩阵保存在主机内存(可以按行分段)或文件中, 按块流经显存.
+     * 上传, 计算, 下载分别在三个队列上进行, 每种块有两份显存(双缓冲), 用事件同步, 使传输与计算重叠
+     * =================================================================
+     */
+
+    /**
+     * 计算 c = a * b, 三个矩阵都按行优先连续保存在主机端的一个缓冲区中
+     * 
+     * 一个缓冲区最多只能容纳2^31-1个元素(MappedByteBuffer最多2GB), 更大的矩阵请按行分段
+     * ({@link #multiplyOutOfCore(FloatBuffer[], FloatBuffer[], FloatBuffer[], int, int, int, int)})
+     * 或者直接使用文件({@link #multiplyOutOfCore(FileChannel, FileChannel, FileChannel, int, int, int, int)})
+     * 
+     * @param a
+     *            m*k的矩阵(直接缓冲区, 从当前位置开始)
+     * @param b
+     *            k*n的矩阵(直接缓冲区)
+     * @param c
+     *            保存结果的m*n矩阵(直接缓冲区)
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长, 显存中同时保存6个这样的方块
+     */
+    public void multiplyOutOfCore(FloatBuffer a, FloatBuffer b, FloatBuffer c, int m, int k, int n, int tileSize) {
+        multiplyOutOfCore(new FloatBuffer[] { a }, new FloatBuffer[] { b }, new FloatBuffer[] { c }, m, k, n,
+                tileSize);
+    }
+
+    /**
+     * 计算 c = a * b, 三个矩阵都按行优先保存在文件中(本机字节序的float, 从文件开头开始), 可以远大于内存和显存
+     * 
+     * 文件按不超过2GB的整行分段映射到内存, 块在映射的内存与显存之间直接传输
+     * 
+     * @param a
+     *            保存m*k矩阵的文件
+     * @param b
+     *            保存k*n矩阵的文件
+     * @param c
+     *            保存结果的文件(必须以读写方式打开, 不够大时会被扩展)
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长, 显存中同时保存6个这样的方块
+     * @throws IOException
+     *             映射文件失败
+     */
+    public void multiplyOutOfCore(FileChannel a, FileChannel b, FileChannel c, int m, int k, int n, int tileSize)
+            throws IOException {
+        if (m <= 0 || k <= 0 || n <= 0)
+            throw newIllegalArgumentException("矩阵和块的大小必须是正数");
+        multiplyOutOfCore(mapRows(a, MapMode.READ_ONLY, m, k), mapRows(b, MapMode.READ_ONLY, k, n),
+                mapRows(c, MapMode.READ_WRITE, m, n), m, k, n, tileSize);
+    }
+
+    /**
+     * 计算 c = a * b, 每个矩阵按行分成若干段, 每段是一个保存连续若干整行(行优先)的直接缓冲区,
+     * 矩阵的总大小不受单个缓冲区2GB的限制
+     * 
+     * 块只在显存中分配(没有主机端的镜像), 每次传输时块跨越的每一段各用一次矩形传输, 主机端的位置都在段内计算
+     * 
+     * @param a
+     *            m*k的矩阵按行分成的段(从各自的当前位置开始, 除最后一段外剩余的元素个数必须是k的整数倍)
+     * @param b
+     *            k*n的矩阵按行分成的段
+     * @param c
+     *            保存结果的m*n矩阵按行分成的段
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长, 显存中同时保存6个这样的方块
+     */
+    public void multiplyOutOfCore(FloatBuffer[] a, FloatBuffer[] b, FloatBuffer[] c, int m, int k, int n,
+            int tileSize) {
+        if (m <= 0 || k <= 0 || n <= 0 || tileSize <= 0)
+            throw newIllegalArgumentException("矩阵和块的大小必须是正数");
+        int tilePitch = roundUp(MULTIPLY_WORK_ITEM_N, tileSize);
+        if ((long) tileSize * tilePitch * 4 > Integer.MAX_VALUE)
+            throw newIllegalArgumentException("块太大, 一个块不能超过2GB");
+        int[] aRows = rowBlocks(a, m, k), bRows = rowBlocks(b, k, n), cRows = rowBlocks(c, m, n);
+
+        CLBuffer<?>[] aTiles = new CLBuffer<?>[2], bTiles = new CLBuffer<?>[2], cTiles = new CLBuffer<?>[2];
+        // 与显存块共用同一个cl_mem, 只是把主机端指针换成用户的每一段, 供矩形传输使用(不能单独释放)
+        CLBuffer<?>[][] aHosts = new CLBuffer<?>[2][], bHosts = new CLBuffer<?>[2][], cHosts = new CLBuffer<?>[2][];
+        CLEventList[] uploaded = new CLEventList[2], computed = new CLEventList[2], downloaded = new CLEventList[2];
+        for (int i = 0; i < 2; i++) {
+            aTiles[i] = context.createBuffer(tileSize * tilePitch * 4, CLMemory.Mem.READ_WRITE);
+            bTiles[i] = context.createBuffer(tileSize * tilePitch * 4, CLMemory.Mem.READ_WRITE);
+            cTiles[i] = context.createBuffer(tileSize * tilePitch * 4, CLMemory.Mem.READ_WRITE);
+            aHosts[i] = hostViews(aTiles[i], a);
+            bHosts[i] = hostViews(bTiles[i], b);
+            cHosts[i] = hostViews(cTiles[i], c);
+            uploaded[i] = new CLEventList(1);
+            computed[i] = new CLEventList(1);
+            downloaded[i] = new CLEventList(1);
+        }
+        CLCommandQueue upload = device.createCommandQueue();
+        CLCommandQueue download = device.createCommandQueue();
+        long tilePitchBytes = tilePitch * 4L;
+
+        long step = 0, tile = 0;
+        for (int i0 = 0; i0 < m; i0 += tileSize) {
+            int rows = Math.min(tileSize, m - i0);
+            for (int j0 = 0; j0 < n; j0 += tileSize, tile++) {
+                int columns = Math.min(tileSize, n - j0);
+                int cs = (int) (tile % 2);
+                for (int p0 = 0; p0 < k; p0 += tileSize, step++) {
+                    int depth = Math.min(tileSize, k - p0);
+                    int s = (int) (step % 2);
+
+                    // 上传: 等两步之前使用这组显存块的计算完成后覆盖它
+                    waitForEvents(upload, computed[s]);
+                    putTileRect(upload, true, aHosts[s], aRows, i0, rows, p0, depth, k, tilePitchBytes);
+                    putTileRect(upload, true, bHosts[s], bRows, p0, depth, j0, columns, n, tilePitchBytes);
+                    putMarker(upload, uploaded[s]);
+                    upload.flush();
+
+                    // 计算: 结果块在第一步覆盖原有值, 需要先等两块之前的下载完成
+                    waitForEvents(queue, uploaded[s]);
+                    if (p0 == 0)
+                        waitForEvents(queue, downloaded[cs]);
+                    putMatrixMultiply(1, tileMatrix(aTiles[s], rows, depth, tilePitch),
+                            tileMatrix(bTiles[s], depth, columns, tilePitch), p0 == 0 ? 0 : 1,
+                            tileMatrix(cTiles[cs], rows, columns, tilePitch));
+                    putMarker(queue, computed[s]);
+                    queue.flush();
+
+                    // 下载: 整个结果块累加完成后写回主机
+                    if (p0 + depth == k) {
+                        waitForEvents(download, computed[s]);
+                        putTileRect(download, false, cHosts[cs], cRows, i0, rows, j0, columns, n, tilePitchBytes);
+                        putMarker(download, downloaded[cs]);
+                        download.flush();
+                    }
+                }
+            }
+        }
+
+        download.finish();
+        queue.finish();
+        upload.finish();
+        upload.release();
+        download.release();
+        for (int i = 0; i < 2; i++) {
+            uploaded[i].release();
+            computed[i].release();
+            downloaded[i].release();
+            aTiles[i].release();
+            bTiles[i].release();
+            cTiles[i].release();
+        }
+    }
+
+    /*
+     * 检查按行分段的缓冲区, 返回每段的行数
+     */
+    private int[] rowBlocks(FloatBuffer[] blocks, int rows, int columns) {
+        int[] blockRows = new int[blocks.length];
+        long total = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (!blocks[i].isDirect())
+                throw newIllegalArgumentException("核外矩阵乘法需要直接缓冲区");
+            if (i < blocks.length - 1 && blocks[i].remaining() % columns != 0)
+                throw newIllegalArgumentException("除最后一段外, 每段必须保存整数行(每行" + columns + "个元素)");
+            blockRows[i] = blocks[i].remaining() / columns;
+            total += blockRows[i];
+        }
+        if (total < rows)
+            throw newIllegalArgumentException("缓冲区小于矩阵的大小: " + rows + "*" + columns);
+        return blockRows;
+    }
+
+    /*
+     * 与显存块共用cl_mem, 主机指针分别为每一段(从其当前位置开始)的缓冲区对象
+     */
+    private static CLBuffer<?>[] hostViews(CLBuffer<?> tile, FloatBuffer[] blocks) {
+        CLBuffer<?>[] views = new CLBuffer<?>[blocks.length];
+        for (int i = 0; i < blocks.length; i++)
+            views[i] = tile.cloneWith(blocks[i].slice());
+        return views;
+    }
+
+    /*
+     * 用只在显存中分配的块构造矩阵(只用于设置内核参数, 不需要释放)
+     */
+    @SuppressWarnings("unchecked")
+    private static Matrix tileMatrix(CLBuffer<?> tile, int rows, int columns, int pitch) {
+        return new Matrix((CLBuffer<FloatBuffer>) tile, 0, rows, columns, pitch);
+    }
+
+    /*
+     * 在显存块与主机端矩阵中第row0行起rows行, 第column0列起width列的区域之间传输(write为true时上传),
+     * 区域跨越的每一段各用一次矩形传输. hosts[i]与blockRows[i]是第i段的缓冲区对象和行数, columns是主机端矩阵的列数
+     */
+    private static void putTileRect(CLCommandQueue queue, boolean write, CLBuffer<?>[] hosts, int[] blockRows,
+            int row0, int rows, int column0, int width, int columns, long tilePitch) {
+        long hostPitch = columns * 4L;
+        long end = (long) row0 + rows;
+        long start = 0; // 当前段第一行在矩阵中的行号
+        for (int i = 0; i < hosts.length && start < end; start += blockRows[i++]) {
+            long first = Math.max(row0, start);
+            long last = Math.min(end, start + blockRows[i]);
+            if (first >= last)
+                continue;
+            int tileRow = (int) (first - row0);
+            int hostRow = (int) (first - start);
+            int count = (int) (last - first);
+            if (write)
+                queue.putWriteBufferRect(hosts[i], 0, tileRow, column0 * 4, hostRow, width * 4, count, tilePitch, 0,
+                        hostPitch, 0, false, null, null);
+            else
+                queue.putReadBufferRect(hosts[i], 0, tileRow, column0 * 4, hostRow, width * 4, count, tilePitch, 0,
+                        hostPitch, 0, false, null, null);
+        }
+    }
+
+    /*
+     * 把文件中rows*columns的矩阵按不超过2GB的整行分段映射到内存
+     */
+    private static FloatBuffer[] mapRows(FileChannel channel, MapMode mode, int rows, int columns)
+            throws IOException {
+        int blockRows = Math.max(1, Integer.MAX_VALUE / 4 / columns);
+        FloatBuffer[] blocks = new FloatBuffer[(rows + blockRows - 1) / blockRows];
+        for (int i = 0; i < blocks.length; i++) {
+            int count = Math.min(blockRows, rows - i * blockRows);
+            long position = (long) i * blockRows * columns * 4;
+            blocks[i] = channel.map(mode, position, (long) count * columns * 4).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        return blocks;
+    }
+
+    /*
+     * 让队列中之后的命令等待事件完成(没有事件时不等待)
+     */
+    private static void waitForEvents(CLCommandQueue queue, CLEventList events) {
+        if (events.size() > 0)
+            queue.putWaitForEvents(events, false);
+    }
+
+    /*
+     * 释放上一次的事件, 在队列中放入新的标记, 它在之前的命令全部完成时发生
+     */
+    private static void putMarker(CLCommandQueue queue, CLEventList events) {
+        events.release();
+        queue.putMarker(events);
+    }
+
+    private static int roundUp(int groupSize, int globalSize) {
+        if (groupSize <= 0)
+            return globalSize;
+        int r = globalSize % groupSize;
+        if (r == 0) {
+            return globalSize;
+        } else {
+            return globalSize + groupSize - r;
+        }
+    }
+
+    /**
+     * 依次交换矩阵的第 rowStart+i 行与第 pivots[i] 行 (i = 0, 1, ..., pivots.length-1)
+     * 
+     * @param m
+     *            矩阵
+     * @param rowStart
+     *            第一个被交换的行
+     * @param pivots
+     *            与之交换的行
+     * @param skipStart
+     *            不需要交换的列的起点
+     * @param skipEnd
+     *            不需要交换的列的终点(不包含)
+     */
+    public void swapRows(Matrix m, int rowStart, int[] pivots, int skipStart, int skipEnd) {
+        checkIndices(pivots, m.getRowDimension());
+        if (pivots.length == 0 || (skipStart <= 0 && skipEnd >= m.getColumnDimension()))
+            return;
+        CLBuffer<IntBuffer> pivotBuffer = createIndexBuffer(pivots);
+        int index = setMatrixArgs(kSwapRows, 0, m);
+        kSwapRows.setArg(index++, pivotBuffer);
+        kSwapRows.setArg(index++, rowStart);
+        kSwapRows.setArg(index++, pivots.length);
+        kSwapRows.setArg(index++, skipStart);
+        kSwapRows.setArg(index++, skipEnd);
+        queue.put1DRangeKernel(kSwapRows, 0, m.getColumnDimension(), 0);
+        pivotBuffer.release();
+    }
+
+    /**
+     * 解三角方程组 T * X = B, 结果保存在B中 (每个工作项计算一列, 只适合较小的T)
+     * 
+     * @param t
+     *            三角矩阵(方阵)
+     * @param b
+     *            方程右侧的矩阵, 运算后保存结果
+     * @param lower
+     *            T是否是下三角矩阵(否则为上三角矩阵)
+     * @param unitDiagonal
+     *            是否把T的对角线视为1
+     */
+    public void triangularSolve(Matrix t, Matrix b, boolean lower, boolean unitDiagonal) {
+        triangularSolve(t, b, lower, false, unitDiagonal);
+    }
+
+    /**
+     * 解三角方程组 op(T) * X = B, op(T)在transpose为true时是T'(直接按转置读取T), 结果保存在B中
+     * 
+     * @param t
+     *            三角矩阵(方阵)
+     * @param b
+     *            方程右侧的矩阵, 运算后保存结果
+     * @param lower
+     *            T(而不是op(T))是否是下三角矩阵
+     * @param transpose
+     *            是否解转置的方程组
+     * @param unitDiagonal
+     *            是否把T的对角线视为1
+     */
+    public void triangularSolve(Matrix t, Matrix b, boolean lower, boolean transpose, boolean unitDiagonal) {
+        if (t.getRowDimension() != t.getColumnDimension() || t.getRowDimension() != b.getRowDimension()) {
+            throw newIllegalArgumentException("矩阵的大小不符合解三角方程组的条件", t, b);
+        }
+        int index = setMatrixArgs(kTriangularSolve, setMatrixArgs(kTriangularSolve, 0, t), b);
+        kTriangularSolve.setArg(index++, t.getRowDimension());
+        kTriangularSolve.setArg(index++, lower != transpose ? 1 : 0);
+        kTriangularSolve.setArg(index++, transpose ? 1 : 0);
+        kTriangularSolve.setArg(index++, unitDiagonal ? 1 : 0);
+        queue.put1DRangeKernel(kTriangularSolve, 0, b.getColumnDimension(), 0);
+    }
+
+    /**
+     * 取出矩阵的下三角或上三角部分, 其余元素为0
+     * 
+     * @param m
+     *            原矩阵(不小于结果矩阵)
+     * @param result
+     *            保存结果的矩阵
+     * @param lower
+     *            取下三角(否则取上三角)
+     * @param unitDiagonal
+     *            是否把对角线设置为1
+     */
+    public void triangle(Matrix m, Matrix result, boolean lower, boolean unitDiagonal) {
+        if (m.getRowDimension() < result.getRowDimension() || m.getColumnDimension() < result.getColumnDimension()) {
+            throw newIllegalArgumentException("原矩阵小于结果矩阵", m, result);
+        }
+        int index = setMatrixArgs(kTriangle, setMatrixArgs(kTriangle, 0, m), result);
+        kTriangle.setArg(index++, lower ? 1 : 0);
+        kTriangle.setArg(index++, unitDiagonal ? 1 : 0);
+        putElementwiseKernel(kTriangle, result);
+    }
+
+    /**
+     * 把矩阵的对角线复制到列向量中
+     * 
+     * @param m
+     *            原矩阵
+     * @param result
+     *            保存结果的列向量(长度为min(行数, 列数))
+     */
+    public void diagonal(Matrix m, Matrix result) {
+        if (result.getColumnDimension() != 1
+                || result.getRowDimension() != Math.min(m.getRowDimension(), m.getColumnDimension())) {
+            throw newIllegalArgumentException("结果矩阵应该是长度与对角线相同的列向量", m, result);
+        }
+        setMatrixArgs(kDiagonal, setMatrixArgs(kDiagonal, 0, m), result);
+        queue.put1DRangeKernel(kDiagonal, 0, result.getRowDimension(), 0);
+    }
+
+    /**
+     * 逐元素相乘 mr = m1 .* m2 (行向量或列向量的输入会被广播, 见 {@link #add})
+     */
+    public void arrayTimes(Matrix m1, Matrix m2, Matrix mr) {
+        putBroadcastKernel(kArrayMultiply, m1, m2, mr);
+    }
+
+    /**
+     * 逐元素相除 mr = m1 ./ m2 (行向量或列向量的输入会被广播, 见 {@link #add})
+     */
+    public void arrayDivides(Matrix m1, Matrix m2, Matrix mr) {
+        putBroadcastKernel(kArrayDivide, m1, m2, mr);
+    }
+
+    public void scalarDivides(double k, Matrix m, Matrix mr) {
+        checkMatrix(m, mr);
+        kScalarDivide.setArg(8, (float) k);
+        putBinaryKernel(kScalarDivide, m, mr);
+    }
+
+    /**
+     * y = alpha * x + beta * y, 一次读写完成 (beta为1时即axpy)
+     * 
+     * @param alpha
+     *            x的系数
+     * @param x
+     *            输入矩阵
+     * @param beta
+     *            y原有值的系数
+     * @param y
+     *            输入矩阵, 运算后保存结果
+     */
+    public void axpby(double alpha, Matrix x, double beta, Matrix y) {
+        checkMatrix(x, y);
+        kAxpby.setArg(8, (float) alpha);
+        kAxpby.setArg(9, (float) beta);
+        putBinaryKernel(kAxpby, x, y);
+    }
+
+    /**
+     * 逐元素乘加 mr = m1 .* m2 + m3 (只舍入一次)
+     * 
+     * @param m1
+     *            输入矩阵1
+     * @param m2
+     *            输入矩阵2
+     * @param m3
+     *            输入矩阵3
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void fma(Matrix m1, Matrix m2, Matrix m3, Matrix mr) {
+        checkMatrix(m1, m2);
+        checkMatrix(m1, m3);
+        checkMatrix(m1, mr);
+        int index = setMatrixArgs(kArrayFma, setMatrixArgs(kArrayFma, setMatrixArgs(kArrayFma, 0, m1), m2), m3);
+        index = setMatrixArgs(kArrayFma, index, mr);
+        putGridStrideKernel(kArrayFma, index, mr.getRowDimension(), mr.getColumnDimension());
+    }
+
+    /**
+     * 线性插值 mr = m1 + t * (m2 - m1)
+     * 
+     * @param m1
+     *            t为0时的值
+     * @param m2
+     *            t为1时的值
+     * @param t
+     *            插值系数
+     * @param mr
+     *            保存结果的矩阵
+     */
+    public void lerp(Matrix m1, Matrix m2, double t, Matrix mr) {
+        checkMatrix(m1, m2);
+        checkMatrix(m1, mr);
+        int index = setMatrixArgs(kLerp, setMatrixArgs(kLerp, setMatrixArgs(kLerp, 0, m1), m2), mr);
+        kLerp.setArg(index + 2, (float) t);
+        putGridStrideKernel(kLerp, index, mr.getRowDimension(), mr.getColumnDimension());
+    }
+
+    /**
+     * 将输入矩阵中的值经过sigmoid函数计算后储存在结果矩阵中
+     * 
+     * @param inputMatrix
+     *            输入矩阵
+     * @param resultMatrix
+     *            结果矩阵
+     */
+    public void sigmoid(Matrix inputMatrix, Matrix resultMatrix) {
+        putUnaryKernel(kSigmoid, inputMatrix, resultMatrix);
+    }
+
+    private CLBuffer<IntBuffer> isEqualResultBuffer;
+    private boolean isEqualResultBufferInited = false;
+
+    /**
+     * 比较两个矩阵是否相等
+     * 
+     * @param m1
+     *            矩阵1
+     * @param m2
+     *            矩阵2
+     * @param errorAllowed
+     *            允许的误差
+     * @return 如果矩阵相等返回true
+     */
+    public boolean compare(Matrix m1, Matrix m2, double errorAllowed) {
+        checkMatrix(m1, m2);
+        if (!isEqualResultBufferInited) {
+            isEqualResultBuffer = context.createIntBuffer(1, CLMemory.Mem.READ_WRITE);
+            isEqualResultBufferInited = true;
+        }
+        isEqualResultBuffer.getBuffer().position(0);
+        isEqualResultBuffer.getBuffer().put(0);
+        isEqualResultBuffer.getBuffer().position(0);
+        queue.putWriteBuffer(isEqualResultBuffer, false);
+        int index = setMatrixArgs(kCompare, setMatrixArgs(kCompare, 0, m1), m2);
+        kCompare.setArg(index++, isEqualResultBuffer);
+        kCompare.setArg(index++, (float) errorAllowed);
+        putElementwiseKernel(kCompare, m1);
+        queue.putReadBuffer(isEqualResultBuffer, true);
+
+        if (isEqualResultBuffer.getBuffer().get(0) > 0)
+            return false;
+        else
+            return true;
+    }
+
+    /**
+     * 比较两个矩阵是否相等
+     * 
+     * @param m1
+     *            矩阵1
+     * @param m2
+     *            矩阵2
+     * @return 如果矩阵相等返回true
+     */
+    public boolean compare(Matrix m1, Matrix m2) {
+        return compare(m1, m2, 0.000001);
+    }
+
+    /*
+     * =================================================================
+     * 迭代法解方程组: 向量更新, 点积和矩阵向量乘法全部在设备上完成, 迭代中需要的标量保存在设备上的scalarBuffer中,
+     * 每次迭代只把残差的平方读回主机判断是否收敛
+     * =================================================================
+     */
+    private final int REDUCTION_GROUPS = 64; // 点积时使用的工作组数
+    private final int SCALAR_SLOTS = 16; // scalarBuffer的大小
+    // CG与BiCGSTAB在scalarBuffer中使用的位置
+    private final int SLOT_RHO = 0; // 0与1交替保存本次与上次的 r'z (BiCGSTAB为 rhat'r)
+    private final int SLOT_PQ = 2; // p'Ap (BiCGSTAB为 rhat'v)
+    private final int SLOT_RR = 3; // r'r
+    private final int SLOT_ALPHA = 4;
+    private final int SLOT_BETA = 5;
+    private final int SLOT_OMEGA = 6;
+    private final int SLOT_TS = 7;
+    private final int SLOT_TT = 8;
+    private CLBuffer<FloatBuffer> partialBuffer;
+    private CLBuffer<FloatBuffer> scalarBuffer;
+    private int reductionGroupSize;
+    private boolean reductionBuffersInited = false;
+
+    private void initReductionBuffers() {
+        if (reductionBuffersInited)
+            return;
+        partialBuffer = context.createFloatBuffer(REDUCTION_GROUPS, CLMemory.Mem.READ_WRITE);
+        scalarBuffer = context.createFloatBuffer(SCALAR_SLOTS, CLMemory.Mem.READ_WRITE);
+        // 树形归约要求工作组大小是2的幂
+        reductionGroupSize = Integer.highestOneBit(Math.min(256, device.getMaxWorkGroupSize()));
+        reductionBuffersInited = true;
+    }
+
+    /**
+     * 计算两个列向量的点积
+     * 
+     * @param x
+     *            列向量x
+     * @param y
+     *            列向量y
+     * @return x'y
+     */
+    public double dot(Matrix x, Matrix y) {
+        checkVectors(x, y);
+        initReductionBuffers();
+        putDot(x, y, 0);
+        return readScalars()[0];
+    }
+
+    /**
+     * 计算矩阵的Frobenius范数
+     * 
+     * @param m
+     *            矩阵
+     * @return 所有元素平方和的平方根
+     */
+    public double normF(Matrix m) {
+        initReductionBuffers();
+        int index = setMatrixArgs(kSumSquaresPartial, 0, m);
+        kSumSquaresPartial.setArg(index++, m.getRowDimension());
+        kSumSquaresPartial.setArg(index++, m.getColumnDimension());
+        putReduction(kSumSquaresPartial, index, 0);
+        return Math.sqrt(readScalars()[0]);
+    }
+
+    /**
+     * softmax交叉熵损失, 每个工作组按行计算softmax, 损失和梯度在同一个内核中求出, 不生成中间的概率矩阵
+     * 
+     * @param logits
+     *            m*n的矩阵, 每行是一个样本在n个类别上的得分
+     * @param labels
+     *            m个样本的类别 (不在 [0, n) 内的样本会被忽略)
+     * @param grad
+     *            m*n的矩阵, 保存平均损失对logits的梯度 (softmax(logits) - onehot(labels)) / m, 为null时不计算
+     *            (可以就是logits, 此时梯度覆盖logits)
+     * @return 所有样本的平均损失
+     */
+    public double softmaxCrossEntropy(Matrix logits, Labels labels, Matrix grad) {
+        int m = logits.getRowDimension();
+        int n = logits.getColumnDimension();
+        if (labels.length() != m)
+            throw newIllegalArgumentException("标签的个数必须等于logits的行数", logits);
+        if (grad != null)
+            checkMatrix(logits, grad);
+        initReductionBuffers();
+        // 类别较少时缩小工作组, 使每行的归约不浪费工作项
+        int size = reductionGroupSize;
+        while (size > 32 && size / 2 >= n)
+            size /= 2;
+        int index = setMatrixArgs(kSoftmaxCrossEntropyPartial, 0, logits);
+        kSoftmaxCrossEntropyPartial.setArg(index++, labels.getBuffer());
+        index = setMatrixArgs(kSoftmaxCrossEntropyPartial, index, grad == null ? logits : grad);
+        kSoftmaxCrossEntropyPartial.setArg(index++, m);
+        kSoftmaxCrossEntropyPartial.setArg(index++, n);
+        kSoftmaxCrossEntropyPartial.setArg(index++, grad == null ? 0 : 1);
+        kSoftmaxCrossEntropyPartial.setArg(index++, 1.0f / m);
+        kSoftmaxCrossEntropyPartial.setArg(index++, partialBuffer);
+        kSoftmaxCrossEntropyPartial.setNullArg(index++, size * 4);
+        queue.put1DRangeKernel(kSoftmaxCrossEntropyPartial, 0, REDUCTION_GROUPS * size, size);
+        putSum(0);
+        return readScalars()[0];
+    }
+
+    /**
+     * 用(预处理)共轭梯度法解对称正定方程组 A*x = b
+     * 
+     * @param A
+     *            对称正定矩阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @param jacobi
+     *            是否使用Jacobi(对角线)预处理
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public int conjugateGradient(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations, boolean jacobi) {
+        checkSystem(A, b, x);
+        initReductionBuffers();
+        int n = b.getRowDimension();
+        double threshold = residualThreshold(b, tolerance);
+
+        Matrix r = new Matrix(n, 1);
+        copy(b, r);
+        multiply(-1, A, x, 1, r);
+        Matrix p = new Matrix(n, 1);
+        Matrix q = new Matrix(n, 1);
+        Matrix d = jacobi ? inverseDiagonal(A) : null;
+        Matrix z = jacobi ? new Matrix(n, 1) : r;
+
+        int rho = SLOT_RHO;
+        if (jacobi) {
+            putJacobi(d, r, z, rho);
+            putDot(r, r, SLOT_RR);
+        } else {
+            putDot(r, r, rho);
+        }
+        float[] scalars = readScalars();
+        int iterations = Math.sqrt(scalars[jacobi ? SLOT_RR : rho]) <= threshold ? 0 : -1;
+        copy(z, p);
+        for (int k = 1; k <= maxIterations && iterations < 0; k++) {
+            int next = 1 - rho;
+            // alpha = r'z / p'Ap
+            multiply(A, p, q);
+            putDot(p, q, SLOT_PQ);
+            putRatio(rho, SLOT_PQ, -1, -1, SLOT_ALPHA);
+            putAxpy(p, x, SLOT_ALPHA, 1);
+            if (jacobi) {
+                putAxpyDot(q, r, SLOT_ALPHA, -1, SLOT_RR);
+                putJacobi(d, r, z, next);
+            } else {
+                putAxpyDot(q, r, SLOT_ALPHA, -1, next);
+            }
+            scalars = readScalars();
+            if (Math.sqrt(scalars[jacobi ? SLOT_RR : next]) <= threshold) {
+                iterations = k;
+                break;
+            }
+            // p = z + beta * p, beta = 本次r'z / 上次r'z
+            putRatio(next, rho, -1, -1, SLOT_BETA);
+            putXpby(z, p, SLOT_BETA, 1);
+            rho = next;
+        }
+
+        r.release();
+        p.release();
+        q.release();
+        if (jacobi) {
+            d.release();
+            z.release();
+        }
+        return iterations;
+    }
+
+    /**
+     * 用(右预处理)BiCGSTAB法解一般的方程组 A*x = b
+     * 
+     * @param A
+     *            方阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @param jacobi
+     *            是否使用Jacobi(对角线)预处理
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public int biCGStab(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations, boolean jacobi) {
+        checkSystem(A, b, x);
+        initReductionBuffers();
+        int n = b.getRowDimension();
+        double threshold = residualThreshold(b, tolerance);
+
+        Matrix r = new Matrix(n, 1);
+        copy(b, r);
+        multiply(-1, A, x, 1, r);
+        Matrix rHat = new Matrix(n, 1);
+        copy(r, rHat);
+        Matrix p = new Matrix(n, 1);
+        Matrix v = new Matrix(n, 1);
+        Matrix t = new Matrix(n, 1);
+        Matrix d = jacobi ? inverseDiagonal(A) : null;
+        Matrix pHat = jacobi ? new Matrix(n, 1) : p;
+        Matrix sHat = jacobi ? new Matrix(n, 1) : r;
+
+        // 上次的rho, alpha, omega都初始化为1, 第一次迭代时 p = r
+        int rho = SLOT_RHO;
+        FloatBuffer initial = scalarBuffer.getBuffer();
+        initial.put(1 - rho, 1).put(SLOT_ALPHA, 1).put(SLOT_OMEGA, 1);
+        initial.position(0);
+        queue.putWriteBuffer(scalarBuffer, true);
+        putDot(r, r, SLOT_RR);
+        int iterations = Math.sqrt(readScalars()[SLOT_RR]) <= threshold ? 0 : -1;
+        for (int k = 1; k <= maxIterations && iterations < 0; k++) {
+            int last = 1 - rho;
+            // p = r + beta * (p - omega * v), beta = (rho / 上次rho) * (alpha / omega)
+            putDot(rHat, r, rho);
+            putRatio(rho, last, SLOT_ALPHA, SLOT_OMEGA, SLOT_BETA);
+            int index = setMatrixArgs(kBicgDirection,
+                    setMatrixArgs(kBicgDirection, setMatrixArgs(kBicgDirection, 0, r), v), p);
+            kBicgDirection.setArg(index++, n);
+            kBicgDirection.setArg(index++, scalarBuffer);
+            kBicgDirection.setArg(index++, SLOT_BETA);
+            kBicgDirection.setArg(index++, SLOT_OMEGA);
+            queue.put1DRangeKernel(kBicgDirection, 0, n, 0);
+            if (jacobi)
+                arrayTimes(d, p, pHat);
+            // alpha = rho / rhat'v, s = r - alpha * v (s直接保存在r中)
+            multiply(A, pHat, v);
+            putDot(rHat, v, SLOT_PQ);
+            putRatio(rho, SLOT_PQ, -1, -1, SLOT_ALPHA);
+            putAxpy(v, r, SLOT_ALPHA, -1);
+            if (jacobi)
+                arrayTimes(d, r, sHat);
+            // omega = t's / t't
+            multiply(A, sHat, t);
+            putDot(t, r, SLOT_TS);
+            putDot(t, t, SLOT_TT);
+            putRatio(SLOT_TS, SLOT_TT, -1, -1, SLOT_OMEGA);
+            // x += alpha * phat + omega * shat, r = s - omega * t
+            putAxpy(pHat, x, SLOT_ALPHA, 1);
+            putAxpy(sHat, x, SLOT_OMEGA, 1);
+            putAxpyDot(t, r, SLOT_OMEGA, -1, SLOT_RR);
+            if (Math.sqrt(readScalars()[SLOT_RR]) <= threshold)
+                iterations = k;
+            rho = last;
+        }
+
+        r.release();
+        rHat.release();
+        p.release();
+        v.release();
+        t.release();
+        if (jacobi) {
+            d.release();
+            pHat.release();
+            sHat.release();
+        }
+        return iterations;
+    }
+
+    private void checkVectors(Matrix x, Matrix y) {
+        if (x.getColumnDimension() != 1 || y.getColumnDimension() != 1 || x.getRowDimension() != y.getRowDimension())
+            throw newIllegalArgumentException("需要长度相同的列向量", x, y);
+    }
+
+    private void checkSystem(Matrix A, Matrix b, Matrix x) {
+        checkVectors(b, x);
+        if (A.getRowDimension() != A.getColumnDimension() || A.getRowDimension() != b.getRowDimension())
+            throw newIllegalArgumentException("矩阵的大小不符合解方程组的条件", A, b, x);
+    }
+
+    /*
+     * 收敛时残差范数的上限 tolerance * ||b|| (b = 0 时使用绝对误差)
+     */
+    private double residualThreshold(Matrix b, double tolerance) {
+        putDot(b, b, SLOT_RR);
+        double norm = Math.sqrt(readScalars()[SLOT_RR]);
+        return tolerance * (norm == 0 ? 1 : norm);
+    }
+
+    /*
+     * Jacobi预处理使用的 1 / diag(A)
+     */
+    private Matrix inverseDiagonal(Matrix A) {
+        Matrix d = new Matrix(A.getRowDimension(), 1);
+        diagonal(A, d);
+        scalarDivides(1, d, d);
+        return d;
+    }
+
+    private float[] readScalars() {
+        scalarBuffer.getBuffer().position(0);
+        queue.putReadBuffer(scalarBuffer, true);
+        float[] scalars = new float[SCALAR_SLOTS];
+        scalarBuffer.getBuffer().get(scalars);
+        scalarBuffer.getBuffer().position(0);
+        return scalars;
+    }
+
+    /*
+     * 把partialBuffer中各工作组的部分和加起来保存到scalarBuffer[slot]
+     */
+    private void putSum(int slot) {
+        kSumPartial.setArg(0, partialBuffer);
+        kSumPartial.setArg(1, REDUCTION_GROUPS);
+        kSumPartial.setArg(2, scalarBuffer);
+        kSumPartial.setArg(3, slot);
+        kSumPartial.setNullArg(4, reductionGroupSize * 4);
+        queue.put1DRangeKernel(kSumPartial, 0, reductionGroupSize, reductionGroupSize);
+    }
+
+    private void putReduction(CLKernel kernel, int index, int slot) {
+        kernel.setArg(index++, partialBuffer);
+        kernel.setNullArg(index++, reductionGroupSize * 4);
+        queue.put1DRangeKernel(kernel, 0, REDUCTION_GROUPS * reductionGroupSize, reductionGroupSize);
+        putSum(slot);
+    }
+
+    /*
+     * scalarBuffer[slot] = x'y
+     */
+    private void putDot(Matrix x, Matrix y, int slot) {
+        int index = setMatrixArgs(kDotPartial, setMatrixArgs(kDotPartial, 0, x), y);
+        kDotPartial.setArg(index++, x.getRowDimension());
+        putReduction(kDotPartial, index, slot);
+    }
+
+    /*
+     * y += c * x, scalarBuffer[slot] = y'y
+     */
+    private void putAxpyDot(Matrix x, Matrix y, int coefficient, float sign, int slot) {
+        int index = setMatrixArgs(kAxpyDotPartial, setMatrixArgs(kAxpyDotPartial, 0, x), y);
+        kAxpyDotPartial.setArg(index++, x.getRowDimension());
+        kAxpyDotPartial.setArg(index++, scalarBuffer);
+        kAxpyDotPartial.setArg(index++, coefficient);
+        kAxpyDotPartial.setArg(index++, sign);
+        putReduction(kAxpyDotPartial, index, slot);
+    }
+
+    /*
+     * z = d .* r, scalarBuffer[slot] = r'z
+     */
+    private void putJacobi(Matrix d, Matrix r, Matrix z, int slot) {
+        int index = setMatrixArgs(kMultiplyDotPartial,
+                setMatrixArgs(kMultiplyDotPartial, setMatrixArgs(kMultiplyDotPartial, 0, d), r), z);
+        kMultiplyDotPartial.setArg(index++, r.getRowDimension());
+        putReduction(kMultiplyDotPartial, index, slot);
+    }
+
+    /*
+     * scalarBuffer[result] = (scalarBuffer[a] / scalarBuffer[b]) * (scalarBuffer[c] / scalarBuffer[d]), 小于0的位置表示1
+     */
+    private void putRatio(int a, int b, int c, int d, int result) {
+        kScalarRatio.setArgs(scalarBuffer, a, b, c, d, result);
+        queue.put1DRangeKernel(kScalarRatio, 0, 1, 1);
+    }
+
+    /*
+     * y += sign * scalarBuffer[coefficient] * x
+     */
+    private void putAxpy(Matrix x, Matrix y, int coefficient, float sign) {
+        putVectorUpdate(kAxpyScalar, x, y, coefficient, sign);
+    }
+
+    /*
+     * y = x + sign * scalarBuffer[coefficient] * y
+     */
+    private void putXpby(Matrix x, Matrix y, int coefficient, float sign) {
+        putVectorUpdate(kXpbyScalar, x, y, coefficient, sign);
+    }
+
+    private void putVectorUpdate(CLKernel kernel, Matrix x, Matrix y, int coefficient, float sign) {
+        int index = setMatrixArgs(kernel, setMatrixArgs(kernel, 0, x), y);
+        kernel.setArg(index++, x.getRowDimension());
+        kernel.setArg(index++, scalarBuffer);
+        kernel.setArg(index++, coefficient);
+        kernel.setArg(index++, sign);
+        queue.put1DRangeKernel(kernel, 0, x.getRowDimension(), 0);
+    }
+
+    /*
+     * =================================================================
+     * 距离矩阵与k近邻: 距离由 |x|^2 + |y|^2 - 2 x.y 展开, 点积部分用 (读取转置的) 矩阵乘法计算
+     * =================================================================
+     */
+    private final int KNN_GROUP_SIZE = 64; // k近邻合并时工作组的大小
+    private final int KNN_QUERY_BLOCK = 1024; // k近邻搜索每次处理的查询行数
+    private final int KNN_TILE = 1 << 22; // k近邻搜索的距离块最多占用的元素个数
+
+    /**
+     * 计算两组行向量两两之间的距离 result[i][j] = distance(x的第i行, y的第j行)
+     * 
+     * 点积 x * y' 由矩阵乘法直接按转置读取y求出, 每行的范数只计算一次, 最后一个内核把点积就地换算成距离
+     * 
+     * @param x
+     *            m*d的矩阵
+     * @param y
+     *            n*d的矩阵
+     * @param metric
+     *            距离的种类
+     * @param result
+     *            m*n的矩阵, 保存结果
+     */
+    public void pairwiseDistances(Matrix x, Matrix y, DistanceMetric metric, Matrix result) {
+        int m = x.getRowDimension();
+        int n = y.getRowDimension();
+        int d = x.getColumnDimension();
+        if (y.getColumnDimension() != d || result.getRowDimension() != m || result.getColumnDimension() != n)
+            throw newIllegalArgumentException("x与y的列数必须相同, 结果矩阵必须是 x的行数*y的行数", x, y, result);
+        Matrix xNorms = new Matrix(m, 1);
+        Matrix yNorms = new Matrix(n, 1);
+        putRowSquaredNorms(x, xNorms);
+        putRowSquaredNorms(y, yNorms);
+        putDistances(x, y, xNorms, yNorms, metric, result);
+        xNorms.release();
+        yNorms.release();
+    }
+
+    /**
+     * k近邻搜索: 对x的每一行找出y中距离最近的k行
+     * 
+     * 按块处理: 一块查询与一段y的距离由矩阵乘法算出, 再由每个查询一个工作组合并进各自的k个候选,
+     * 不生成完整的距离矩阵. k太大使候选放不进局部内存时在主机上合并
+     * 
+     * @param x
+     *            m*d的查询矩阵
+     * @param y
+     *            n*d的数据矩阵
+     * @param k
+     *            近邻的个数 (不大于n)
+     * @param metric
+     *            距离的种类
+     * @return 每个查询的k个近邻的距离和行号
+     */
+    public NearestNeighbors knn(Matrix x, Matrix y, int k, DistanceMetric metric) {
+        int m = x.getRowDimension();
+        int n = y.getRowDimension();
+        int d = x.getColumnDimension();
+        if (y.getColumnDimension() != d)
+            throw newIllegalArgumentException("x与y的列数必须相同", x, y);
+        if (k <= 0 || k > n)
+            throw new IllegalArgumentException("k必须在1到y的行数之间: k = " + k);
+        int groupSize = Integer.highestOneBit(Math.min(KNN_GROUP_SIZE, device.getMaxWorkGroupSize()));
+        while (groupSize > 0 && 8L * groupSize * (k + 1) > device.getLocalMemSize())
+            groupSize /= 2;
+
+        Matrix xNorms = new Matrix(m, 1);
+        Matrix yNorms = new Matrix(n, 1);
+        putRowSquaredNorms(x, xNorms);
+        putRowSquaredNorms(y, yNorms);
+        int queryBlock = Math.min(m, KNN_QUERY_BLOCK);
+        int chunk = Math.min(n, Math.max(k, KNN_TILE / queryBlock)); // 第一段至少有k个候选
+        Matrix tile = workspace.acquire(queryBlock, chunk);
+        Matrix distances = new Matrix(m, k);
+        CLBuffer<IntBuffer> indexBuffer = null;
+        if (groupSize > 0)
+            indexBuffer = context.createIntBuffer(m * k, CLMemory.Mem.READ_WRITE);
+        double[][] hostDistances = groupSize > 0 ? null : new double[m][k];
+        int[][] indices = new int[m][k];
+
+        for (int q = 0; q < m; q += queryBlock) {
+            int rows = Math.min(queryBlock, m - q);
+            Matrix queries = x.getMatrixView(q, q + rows - 1, 0, d - 1);
+            Matrix queryNorms = xNorms.getMatrixView(q, q + rows - 1, 0, 0);
+            for (int first = 0; first < n; first += chunk) {
+                int columns = Math.min(chunk, n - first);
+                Matrix points = y.getMatrixView(first, first + columns - 1, 0, d - 1);
+                Matrix pointNorms = yNorms.getMatrixView(first, first + columns - 1, 0, 0);
+                Matrix part = tile.getMatrixView(0, rows - 1, 0, columns - 1);
+                putDistances(queries, points, queryNorms, pointNorms, metric, part);
+                if (groupSize > 0) {
+                    Matrix list = distances.getMatrixView(q, q + rows - 1, 0, k - 1);
+                    int index = setMatrixArgs(kKnnMerge, setMatrixArgs(kKnnMerge, 0, part), list);
+                    kKnnMerge.setArg(index++, indexBuffer);
+                    index = setArgs(kKnnMerge, index, q * k, columns, k, first);
+                    kKnnMerge.setNullArg(index++, groupSize * k * 4);
+                    kKnnMerge.setNullArg(index++, groupSize * k * 4);
+                    kKnnMerge.setNullArg(index++, groupSize * 4);
+                    kKnnMerge.setNullArg(index++, groupSize * 4);
+                    queue.put1DRangeKernel(kKnnMerge, 0, rows * groupSize, groupSize);
+                    list.release();
+                } else {
+                    mergeNeighbors(part.getArrayCopy(), first, q, hostDistances, indices);
+                }
+                part.release();
+                pointNorms.release();
+                points.release();
+            }
+            queryNorms.release();
+            queries.release();
+        }
+
+        if (groupSize > 0) {
+            queue.putReadBuffer(indexBuffer, true);
+            IntBuffer data = indexBuffer.getBuffer();
+            for (int i = 0; i < m; i++) {
+                data.get(indices[i]);
+            }
+            indexBuffer.release();
+        } else {
+            distances.set(hostDistances);
+        }
+        workspace.recycle(tile);
+        xNorms.release();
+        yNorms.release();
+        return new NearestNeighbors(distances, indices);
+    }
+
+    /*
+     * result = x与y各行之间的距离, xNorms与yNorms是两者每行的平方和
+     */
+    private void putDistances(Matrix x, Matrix y, Matrix xNorms, Matrix yNorms, DistanceMetric metric,
+            Matrix result) {
+        multiply(1, x, false, y, true, 0, result);
+        int index = setMatrixArgs(kDistanceFromProducts, 0, result);
+        index = setMatrixArgs(kDistanceFromProducts, setMatrixArgs(kDistanceFromProducts, index, xNorms), yNorms);
+        kDistanceFromProducts.setArg(index++, metric.CODE);
+        putElementwiseKernel(kDistanceFromProducts, result);
+    }
+
+    /*
+     * 在主机上把一块距离 (查询从q行起, y从first行起) 并入每个查询按距离排好序的k个候选
+     */
+    private static void mergeNeighbors(double[][] tile, int first, int q, double[][] distances, int[][] indices) {
+        for (int i = 0; i < tile.length; i++) {
+            double[] best = distances[q + i];
+            int[] bestIndices = indices[q + i];
+            if (first == 0) {
+                Arrays.fill(best, Double.MAX_VALUE);
+                Arrays.fill(bestIndices, -1);
+            }
+            for (int j = 0; j < tile[i].length; j++) {
+                double distance = tile[i][j];
+                if (distance >= best[best.length - 1])
+                    continue;
+                int r = best.length - 1;
+                for (; r > 0 && best[r - 1] > distance; r--) {
+                    best[r] = best[r - 1];
+                    bestIndices[r] = bestIndices[r - 1];
+                }
+                best[r] = distance;
+                bestIndices[r] = first + j;
+            }
+        }
+    }
+
+    /*
+     * norms的第i个元素 = matrix第i行的平方和
+     */
+    private void putRowSquaredNorms(Matrix matrix, Matrix norms) {
+        int index = setMatrixArgs(kRowSquaredNorms, setMatrixArgs(kRowSquaredNorms, 0, matrix), norms);
+        kRowSquaredNorms.setArg(index++, matrix.getRowDimension());
+        kRowSquaredNorms.setArg(index++, matrix.getColumnDimension());
+        int groupSize = Math.min(ELEMENTWISE_GROUP_SIZE, device.getMaxWorkGroupSize());
+        queue.put1DRangeKernel(kRowSquaredNorms, 0, roundUp(groupSize, matrix.getRowDimension()), groupSize);
+    }
+
+    /*
+     * =================================================================
+     * k-means聚类: 分配, 按类别的分段归约, 更新中心和k-means++初始化都在设备上完成, 每次迭代只读回两个标量
+     * =================================================================
+     */
+    private final int CLUSTER_GROUP_SIZE = 256; // 分段归约时每个工作组的大小
+    private final int CLUSTER_PARTIAL_LIMIT = 1 << 24; // 分段归约的部分和最多占用的元素个数
+
+    /**
+     * 把每个点分到最近的中心 (一个工作项处理一个点)
+     * 
+     * @param x
+     *            n*d的矩阵, 每行一个点
+     * @param centroids
+     *            k*d的矩阵, 每行一个中心
+     * @param labels
+     *            n个标签, 保存每个点所属的中心 (原有的值用于统计改变的个数)
+     * @param distances
+     *            n*1的矩阵, 保存每个点到所属中心的欧氏距离 (为null时不计算)
+     * @return 标签改变的点的个数
+     */
+    public int assignClusters(Matrix x, Matrix centroids, Labels labels, Matrix distances) {
+        int n = x.getRowDimension();
+        int k = centroids.getRowDimension();
+        if (centroids.getColumnDimension() != x.getColumnDimension())
+            throw newIllegalArgumentException("点与中心的维数必须相同", x, centroids);
+        if (labels.length() != n)
+            throw newIllegalArgumentException("标签的个数必须等于点的个数", x);
+        checkVector(distances, n, x);
+        Matrix norms = new Matrix(k, 1);
+        putRowSquaredNorms(centroids, norms);
+        CLBuffer<IntBuffer> changes = context.createIntBuffer(1, CLMemory.Mem.READ_WRITE);
+        changes.getBuffer().put(0, 0);
+        queue.putWriteBuffer(changes, false);
+
+        int index = setMatrixArgs(kAssignClusters, setMatrixArgs(kAssignClusters, 0, x), centroids);
+        index = setMatrixArgs(kAssignClusters, index, norms);
+        kAssignClusters.setArg(index++, labels.getBuffer());
+        index = setVectorArgs(kAssignClusters, index, distances == null ? norms : distances);
+        kAssignClusters.setArg(index++, distances == null ? 0 : 1);
+        index = setArgs(kAssignClusters, index, n, x.getColumnDimension(), k);
+        kAssignClusters.setArg(index++, changes);
+        int groupSize = Math.min(ELEMENTWISE_GROUP_SIZE, device.getMaxWorkGroupSize());
+        queue.put1DRangeKernel(kAssignClusters, 0, roundUp(groupSize, n), groupSize);
+        queue.putReadBuffer(changes, true);
+        int changed = changes.getBuffer().get(0);
+        changes.release();
+        norms.release();
+        return changed;
+    }
+
+    /**
+     * 按标签求每一类的点的和与个数 (分段归约: 各工作组先在局部内存中累加交错分到的点, 写成部分和, 再把部分和相加)
+     * 
+     * @param x
+     *            n*d的矩阵, 每行一个点
+     * @param labels
+     *            n个标签 (不在 [0, k) 内的点不参与计算)
+     * @param sums
+     *            k*d的矩阵, 保存每一类的点的和
+     * @param counts
+     *            k*1的矩阵, 保存每一类的点的个数
+     */
+    public void clusterSums(Matrix x, Labels labels, Matrix sums, Matrix counts) {
+        int n = x.getRowDimension();
+        int d = x.getColumnDimension();
+        int k = sums.getRowDimension();
+        if (sums.getColumnDimension() != d)
+            throw newIllegalArgumentException("和的列数必须等于点的维数", x, sums);
+        if (labels.length() != n)
+            throw newIllegalArgumentException("标签的个数必须等于点的个数", x);
+        checkVector(counts, k, sums);
+        // 一块类别*一块列的和放在局部内存中, 每个点由lanes个相邻的工作项按列分工
+        int groupSize = Integer.highestOneBit(Math.min(CLUSTER_GROUP_SIZE, device.getMaxWorkGroupSize()));
+        int localFloats = (int) (device.getLocalMemSize() / 4);
+        int dBlock = Math.min(d, localFloats / 2);
+        int kBlock = Math.min(k, localFloats / (dBlock + 1));
+        int lanes = Math.min(groupSize, Integer.highestOneBit(2 * dBlock - 1));
+        int rows = groupSize / lanes;
+        // 工作组数随计算单元增加, 部分和的总大小不超过CLUSTER_PARTIAL_LIMIT
+        int groups = Math.min(device.getMaxComputeUnits() * ELEMENTWISE_GROUPS_PER_UNIT, (n + rows - 1) / rows);
+        groups = Math.max(1, Math.min(groups, CLUSTER_PARTIAL_LIMIT / (k * d)));
+        Matrix partialSums = workspace.acquire(groups * k, d);
+        Matrix partialCounts = workspace.acquire(groups * k, 1);
+
+        int index = setMatrixArgs(kClusterSumsPartial, 0, x);
+        kClusterSumsPartial.setArg(index++, labels.getBuffer());
+        index = setMatrixArgs(kClusterSumsPartial, index, partialSums);
+        index = setMatrixArgs(kClusterSumsPartial, index, partialCounts);
+        for (int k0 = 0; k0 < k; k0 += kBlock) {
+            for (int j0 = 0; j0 < d; j0 += dBlock) {
+                int clusters = Math.min(kBlock, k - k0);
+                int columns = Math.min(dBlock, d - j0);
+                int i = setArgs(kClusterSumsPartial, index, n, k, k0, clusters, j0, columns, lanes);
+                kClusterSumsPartial.setNullArg(i++, clusters * columns * 4);
+                kClusterSumsPartial.setNullArg(i++, clusters * 4);
+                queue.put1DRangeKernel(kClusterSumsPartial, 0, groups * groupSize, groupSize);
+            }
+        }
+
+        index = setMatrixArgs(kClusterSumsReduce, setMatrixArgs(kClusterSumsReduce, 0, partialSums), partialCounts);
+        index = setMatrixArgs(kClusterSumsReduce, index, sums);
+        index = setVectorArgs(kClusterSumsReduce, index, counts);
+        setArgs(kClusterSumsReduce, index, k, groups);
+        putElementwiseKernel(kClusterSumsReduce, sums);
+        workspace.recycle(partialSums);
+        workspace.recycle(partialCounts);
+    }
+
+    /**
+     * 用每一类的和与个数更新中心, 没有点的中心保持不变
+     * 
+     * @param centroids
+     *            k*d的矩阵, 每行一个中心
+     * @param sums
+     *            k*d的矩阵, 每一类的点的和
+     * @param counts
+     *            k*1的矩阵, 每一类的点的个数
+     * @param totals
+     *            k*1的矩阵, 之前各批中每一类的点的总数 (小批量模式, 中心是所有见过的点的平均值; 为null时中心直接取这一批的平均值)
+     * @return 所有中心移动距离的平方和
+     */
+    public double updateCentroids(Matrix centroids, Matrix sums, Matrix counts, Matrix totals) {
+        int k = centroids.getRowDimension();
+        checkMatrix(centroids, sums);
+        checkVector(counts, k, centroids);
+        checkVector(totals, k, centroids);
+        Matrix shifts = workspace.acquire(k, centroids.getColumnDimension());
+        int index = setMatrixArgs(kUpdateCentroids, setMatrixArgs(kUpdateCentroids, 0, centroids), sums);
+        index = setVectorArgs(kUpdateCentroids, setVectorArgs(kUpdateCentroids, index, counts),
+                totals == null ? counts : totals);
+        kUpdateCentroids.setArg(index++, totals == null ? 0 : 1);
+        setMatrixArgs(kUpdateCentroids, index, shifts);
+        putElementwiseKernel(kUpdateCentroids, centroids);
+        double shift = normF(shifts);
+        workspace.recycle(shifts);
+        return shift * shift;
+    }
+
+    /**
+     * k-means++初始化: 第一个中心均匀随机地选取, 之后每个中心按到已选中心的最短距离的平方加权随机选取
+     * 
+     * 随机数由设备上的计数器哈希产生, 加权抽样用 log(u)/w 的最大值代替前缀和, 所以选取过程不需要把数据读回主机
+     * 
+     * @param x
+     *            n*d的矩阵, 每行一个点
+     * @param centroids
+     *            k*d的矩阵, 保存选出的中心
+     * @param seed
+     *            随机数种子
      */
-    public void add(Matrix m1, Matrix m2, Matrix mr) {
-        checkMatrix(m1, m2);
-        checkMatrix(m2, mr);
-        kMatrixAdd.setArg(0, m1.getArg());
-        kMatrixAdd.setArg(1, m2.getArg());
-        kMatrixAdd.setArg(2, mr.getArg());
-        queue.put1DRangeKernel(kMatrixAdd, 0, m1.getRowDimension() * m1.getColumnDimension(), 0); // 执行内核
+    public void kMeansPlusPlus(Matrix x, Matrix centroids, int seed) {
+        int n = x.getRowDimension();
+        int d = x.getColumnDimension();
+        int k = centroids.getRowDimension();
+        if (centroids.getColumnDimension() != d)
+            throw newIllegalArgumentException("点与中心的维数必须相同", x, centroids);
+        if (k > n)
+            throw newIllegalArgumentException("中心的个数不能超过点的个数", x, centroids);
+        initReductionBuffers();
+        Matrix weights = new Matrix(n, 1);
+        fill(weights, 1);
+        CLBuffer<IntBuffer> partialIndices = context.createIntBuffer(REDUCTION_GROUPS, CLMemory.Mem.READ_WRITE);
+        int groupSize = Math.min(ELEMENTWISE_GROUP_SIZE, device.getMaxWorkGroupSize());
+        for (int row = 0; row < k; row++) {
+            kSeedScorePartial.setArgs(weights.getArg(), weights.getOffset(), weights.getPitch(), n, seed * k + row,
+                    partialBuffer, partialIndices);
+            kSeedScorePartial.setNullArg(7, reductionGroupSize * 4);
+            kSeedScorePartial.setNullArg(8, reductionGroupSize * 4);
+            queue.put1DRangeKernel(kSeedScorePartial, 0, REDUCTION_GROUPS * reductionGroupSize, reductionGroupSize);
+
+            kSeedSelect.setArg(0, partialBuffer);
+            kSeedSelect.setArg(1, partialIndices);
+            kSeedSelect.setArg(2, REDUCTION_GROUPS);
+            int index = setMatrixArgs(kSeedSelect, setMatrixArgs(kSeedSelect, 3, x), centroids);
+            index = setArgs(kSeedSelect, index, row, d);
+            kSeedSelect.setNullArg(index++, reductionGroupSize * 4);
+            kSeedSelect.setNullArg(index++, reductionGroupSize * 4);
+            queue.put1DRangeKernel(kSeedSelect, 0, reductionGroupSize, reductionGroupSize);
+
+            if (row + 1 < k) {
+                index = setMatrixArgs(kSeedDistances, setMatrixArgs(kSeedDistances, 0, x), centroids);
+                index = setMatrixArgs(kSeedDistances, index, weights);
+                setArgs(kSeedDistances, index, row, n, d, row == 0 ? 1 : 0);
+                queue.put1DRangeKernel(kSeedDistances, 0, roundUp(groupSize, n), groupSize);
+            }
+        }
+        queue.finish();
+        partialIndices.release();
+        weights.release();
+    }
+
+    /*
+     * =================================================================
+     * 卷积与池化: 张量是每个样本一行的矩阵加上NCHW形状, 卷积用隐式GEMM按块收集im2col的元素
+     * =================================================================
+     */
+    private static final int CONV_TILE = 16; // 隐式GEMM的块大小 (与GMath.cl中的CONV_TILE相同)
+
+    /*
+     * output = conv(input, weights) + bias
+     */
+    void convolutionForward(Convolution conv, Matrix input, Matrix weights, Matrix bias, Matrix output) {
+        checkConvolution(conv, input, weights, output);
+        checkVector(bias, conv.getFilters(), weights);
+        int index = setMatrixArgs(kConvForward, setMatrixArgs(kConvForward, 0, input), weights);
+        index = setVectorArgs(kConvForward, setMatrixArgs(kConvForward, index, output), bias == null ? output : bias);
+        kConvForward.setArg(index++, bias == null ? 0 : 1);
+        setConvolutionArgs(kConvForward, index, conv);
+        TensorShape out = conv.getOutputShape();
+        putTiledKernel(kConvForward, conv.getFilters(), out.getBatchSize() * out.getHeight() * out.getWidth());
+    }
+
+    /*
+     * gradInput = 卷积对输入的梯度
+     */
+    void convolutionBackwardData(Convolution conv, Matrix gradOutput, Matrix weights, Matrix gradInput) {
+        checkConvolution(conv, gradInput, weights, gradOutput);
+        int index = setMatrixArgs(kConvBackwardData, setMatrixArgs(kConvBackwardData, 0, gradOutput), weights);
+        index = setMatrixArgs(kConvBackwardData, index, gradInput);
+        setConvolutionArgs(kConvBackwardData, index, conv);
+        TensorShape in = conv.getInputShape();
+        putTiledKernel(kConvBackwardData, in.getChannels(), in.getBatchSize() * in.getHeight() * in.getWidth());
+    }
+
+    /*
+     * gradWeights, gradBias = 卷积对卷积核和偏置的梯度
+     */
+    void convolutionBackwardFilter(Convolution conv, Matrix input, Matrix gradOutput, Matrix gradWeights,
+            Matrix gradBias) {
+        checkConvolution(conv, input, gradWeights, gradOutput);
+        checkVector(gradBias, conv.getFilters(), gradWeights);
+        int index = setMatrixArgs(kConvBackwardFilter, setMatrixArgs(kConvBackwardFilter, 0, input), gradOutput);
+        index = setMatrixArgs(kConvBackwardFilter, index, gradWeights);
+        setConvolutionArgs(kConvBackwardFilter, index, conv);
+        putTiledKernel(kConvBackwardFilter, conv.getFilters(), conv.getWeightColumns());
+        if (gradBias != null) {
+            initReductionBuffers();
+            TensorShape out = conv.getOutputShape();
+            index = setVectorArgs(kConvBiasGradient, setMatrixArgs(kConvBiasGradient, 0, gradOutput), gradBias);
+            kConvBiasGradient.setArg(index++, out.getBatchSize());
+            kConvBiasGradient.setArg(index++, out.getHeight() * out.getWidth());
+            kConvBiasGradient.setNullArg(index++, reductionGroupSize * 4);
+            queue.put1DRangeKernel(kConvBiasGradient, 0, conv.getFilters() * reductionGroupSize, reductionGroupSize);
+        }
+    }
+
+    /*
+     * 最大池化或平均池化
+     */
+    void pool(Pooling pooling, Matrix input, Matrix output, boolean average) {
+        checkTensor(pooling.getInputShape(), input);
+        checkTensor(pooling.getOutputShape(), output);
+        int index = setMatrixArgs(kPoolForward, setMatrixArgs(kPoolForward, 0, input), output);
+        setPoolingArgs(kPoolForward, index, pooling, average);
+        putElementwiseKernel(kPoolForward, output);
+    }
+
+    /*
+     * 池化的反向计算 (平均池化不读取input)
+     */
+    void poolBackward(Pooling pooling, Matrix input, Matrix gradOutput, Matrix gradInput, boolean average) {
+        checkTensor(pooling.getInputShape(), input);
+        checkTensor(pooling.getOutputShape(), gradOutput);
+        checkTensor(pooling.getInputShape(), gradInput);
+        int index = setMatrixArgs(kPoolBackward, setMatrixArgs(kPoolBackward, 0, input), gradOutput);
+        index = setMatrixArgs(kPoolBackward, index, gradInput);
+        setPoolingArgs(kPoolBackward, index, pooling, average);
+        putElementwiseKernel(kPoolBackward, gradInput);
+    }
+
+    /*
+     * 隐式GEMM内核: 每个工作项计算rows*columns结果中的一个元素, 工作组是 CONV_TILE*CONV_TILE 的块
+     */
+    private void putTiledKernel(CLKernel kernel, int rows, int columns) {
+        queue.put2DRangeKernel(kernel, 0, 0, roundUp(CONV_TILE, rows), roundUp(CONV_TILE, columns), CONV_TILE,
+                CONV_TILE);
+    }
+
+    private static void setConvolutionArgs(CLKernel kernel, int index, Convolution conv) {
+        TensorShape in = conv.getInputShape();
+        TensorShape out = conv.getOutputShape();
+        setArgs(kernel, index, in.getBatchSize(), in.getChannels(), in.getHeight(), in.getWidth(), conv.getFilters(),
+                conv.getKernelHeight(), conv.getKernelWidth(), out.getHeight(), out.getWidth(), conv.getStride(),
+                conv.getPadding());
+    }
+
+    private static void setPoolingArgs(CLKernel kernel, int index, Pooling pooling, boolean average) {
+        TensorShape in = pooling.getInputShape();
+        TensorShape out = pooling.getOutputShape();
+        setArgs(kernel, index, in.getChannels(), in.getHeight(), in.getWidth(), pooling.getWindowHeight(),
+                pooling.getWindowWidth(), out.getHeight(), out.getWidth(), pooling.getStride(), pooling.getPadding(),
+                average ? 1 : 0);
+    }
+
+    /*
+     * input和output符合卷积的输入输出形状, weights是 K * (C*R*S) 的矩阵
+     */
+    private void checkConvolution(Convolution conv, Matrix input, Matrix weights, Matrix output) {
+        checkTensor(conv.getInputShape(), input);
+        checkTensor(conv.getOutputShape(), output);
+        if (weights.getRowDimension() != conv.getFilters() || weights.getColumnDimension() != conv.getWeightColumns())
+            throw newIllegalArgumentException("卷积核矩阵必须是 K * (C*R*S) 的", weights);
+    }
+
+    private void checkTensor(TensorShape shape, Matrix matrix) {
+        if (!shape.matches(matrix))
+            throw newIllegalArgumentException("矩阵与张量的形状 " + shape + " 不符", matrix);
     }
 
+    /*
+     * =================================================================
+     * 优化器更新: 每个内核一次读取参数, 梯度和状态并写回, 多张量版本在一次启动中更新整个MatrixPack
+     * =================================================================
+     */
+
     /**
-     * 将两个矩阵相减并将结果保存在第三个矩阵中
+     * 带动量的SGD: v = momentum * v + g, p -= lr * v (Nesterov动量时 p -= lr * (g + momentum * v))
      * 
-     * @param m1
-     *            输入矩阵1
-     * @param m2
-     *            输入矩阵2
-     * @param mr
-     *            保存结果的矩阵
+     * @param p
+     *            参数
+     * @param g
+     *            梯度
+     * @param v
+     *            速度(与参数大小相同, 初始为0)
+     * @param lr
+     *            学习率
+     * @param momentum
+     *            动量系数
+     * @param nesterov
+     *            是否使用Nesterov动量
+     * @param weightDecay
+     *            L2正则化系数(加到梯度上)
      */
-    public void substract(Matrix m1, Matrix m2, Matrix mr) {
-        checkMatrix(m1, m2);
-        checkMatrix(m2, mr);
-        kMatrixSubtract.setArg(0, m1.getArg());
-        kMatrixSubtract.setArg(1, m2.getArg());
-        kMatrixSubtract.setArg(2, mr.getArg());
-        queue.put1DRangeKernel(kMatrixSubtract, 0, m1.getRowDimension() * m1.getColumnDimension(), 0); // 执行内核
+    public void momentumUpdate(Matrix p, Matrix g, Matrix v, double lr, double momentum, boolean nesterov,
+            double weightDecay) {
+        checkMatrix(p, g);
+        checkMatrix(p, v);
+        int index = setMatrixArgs(kMomentumUpdate,
+                setMatrixArgs(kMomentumUpdate, setMatrixArgs(kMomentumUpdate, 0, p), g), v);
+        setArgs(kMomentumUpdate, index + 2, (float) lr, (float) momentum, nesterov ? 1 : 0, (float) weightDecay);
+        putGridStrideKernel(kMomentumUpdate, index, p.getRowDimension(), p.getColumnDimension());
     }
 
     /**
-     * 矩阵数乘
+     * 多张量的带动量SGD, 参数见 {@link #momentumUpdate(Matrix, Matrix, Matrix, double, double, boolean, double)}
+     */
+    public void momentumUpdate(MatrixPack p, MatrixPack g, MatrixPack v, double lr, double momentum,
+            boolean nesterov, double weightDecay) {
+        checkLayout(p, g, v);
+        int index = setPackArgs(kMomentumUpdateMulti, p, g, v);
+        setArgs(kMomentumUpdateMulti, index, (float) lr, (float) momentum, nesterov ? 1 : 0, (float) weightDecay);
+        putPackKernel(kMomentumUpdateMulti, p);
+    }
+
+    /**
+     * Adam: m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2,
+     * p -= lr * m' / (sqrt(v') + epsilon), m'和v'是经过偏差修正的矩估计
      * 
+     * @param p
+     *            参数
+     * @param g
+     *            梯度
      * @param m
-     *            被数乘的矩阵
-     * @param k
-     *            常数项
-     * @param result
-     *            储存结果的矩阵
+     *            一阶矩(与参数大小相同, 初始为0)
+     * @param v
+     *            二阶矩(与参数大小相同, 初始为0)
+     * @param lr
+     *            学习率
+     * @param beta1
+     *            一阶矩的衰减率
+     * @param beta2
+     *            二阶矩的衰减率
+     * @param epsilon
+     *            防止除以0的小常数
+     * @param weightDecay
+     *            L2正则化系数(加到梯度上)
+     * @param step
+     *            当前是第几步(从1开始), 用于偏差修正
      */
-    public void multiply(Matrix m, double k, Matrix result) {
-        checkMatrix(m, result);
-        kScalarMultiply.setArg(0, m.getArg());
-        kScalarMultiply.setArg(1, (float) k);
-        kScalarMultiply.setArg(2, result.getArg());
-        queue.put1DRangeKernel(kScalarMultiply, 0, m.getRowDimension() * m.getColumnDimension(), 0);
+    public void adamUpdate(Matrix p, Matrix g, Matrix m, Matrix v, double lr, double beta1, double beta2,
+            double epsilon, double weightDecay, int step) {
+        checkMatrix(p, g);
+        checkMatrix(p, m);
+        checkMatrix(p, v);
+        int index = setMatrixArgs(kAdamUpdate, setMatrixArgs(kAdamUpdate, 0, p), g);
+        index = setMatrixArgs(kAdamUpdate, setMatrixArgs(kAdamUpdate, index, m), v);
+        setAdamArgs(kAdamUpdate, index + 2, lr, beta1, beta2, epsilon, weightDecay, step);
+        putGridStrideKernel(kAdamUpdate, index, p.getRowDimension(), p.getColumnDimension());
     }
 
     /**
-     * 将两个矩阵相乘并将结果保存在第三个矩阵中
+     * 多张量的Adam, 参数见 {@link #adamUpdate(Matrix, Matrix, Matrix, Matrix, double, double, double, double, double, int)}
+     */
+    public void adamUpdate(MatrixPack p, MatrixPack g, MatrixPack m, MatrixPack v, double lr, double beta1,
+            double beta2, double epsilon, double weightDecay, int step) {
+        checkLayout(p, g, m, v);
+        int index = setPackArgs(kAdamUpdateMulti, p, g, m, v);
+        setAdamArgs(kAdamUpdateMulti, index, lr, beta1, beta2, epsilon, weightDecay, step);
+        putPackKernel(kAdamUpdateMulti, p);
+    }
+
+    /**
+     * RMSProp: s = decay * s + (1 - decay) * g^2, p -= lr * g / (sqrt(s) + epsilon)
      * 
-     * @param m1
-     *            输入矩阵1
-     * @param m2
-     *            输入矩阵2
-     * @param mr
-     *            保存结果的矩阵
+     * @param p
+     *            参数
+     * @param g
+     *            梯度
+     * @param s
+     *            梯度平方的滑动平均(与参数大小相同, 初始为0)
+     * @param lr
+     *            学习率
+     * @param decay
+     *            滑动平均的衰减率
+     * @param epsilon
+     *            防止除以0的小常数
+     * @param weightDecay
+     *            L2正则化系数(加到梯度上)
      */
-    public void multiply(Matrix m1, Matrix m2, Matrix mr) {
-        if (m1.getRowDimension() == mr.getRowDimension() && m1.getColumnDimension() == m2.getRowDimension()
-                && m2.getColumnDimension() == mr.getColumnDimension()) {
+    public void rmsPropUpdate(Matrix p, Matrix g, Matrix s, double lr, double decay, double epsilon,
+            double weightDecay) {
+        checkMatrix(p, g);
+        checkMatrix(p, s);
+        int index = setMatrixArgs(kRmsPropUpdate,
+                setMatrixArgs(kRmsPropUpdate, setMatrixArgs(kRmsPropUpdate, 0, p), g), s);
+        setArgs(kRmsPropUpdate, index + 2, (float) lr, (float) decay, (float) epsilon, (float) weightDecay);
+        putGridStrideKernel(kRmsPropUpdate, index, p.getRowDimension(), p.getColumnDimension());
+    }
 
-            // 第一轮运算时(8*8为一组计算)时的Work Size大小,向下取整
-            int globalWorkSizeM = m1.getRowDimension() / MULTIPLY_WORK_ITEM_M;
-            int globalWorkSizeN = m2.getColumnDimension() / MULTIPLY_WORK_ITEM_N;
-
-            // 第二轮运算(计算第一轮的剩余元素时)的起始点
-            int offsetM = globalWorkSizeM * MULTIPLY_WORK_ITEM_M;
-            int offsetN = globalWorkSizeN * MULTIPLY_WORK_ITEM_N;
-
-            // 第二轮运算(计算第一轮的剩余元素时)的Work Size大小
-            int globalWorkSizeReamainM = m1.getRowDimension() - offsetM;
-            int globalWorkSizeReamainN = m2.getColumnDimension() - offsetN;
-
-            if (globalWorkSizeM != 0 && globalWorkSizeN != 0) {
-                kMatrixMultiplyN.setArg(0, m1.getArg());
-                kMatrixMultiplyN.setArg(1, m2.getArg());
-                kMatrixMultiplyN.setArg(2, mr.getArg());
-                kMatrixMultiplyN.setArg(3, m1.getRowDimension());
-                kMatrixMultiplyN.setArg(4, m1.getColumnDimension());
-                kMatrixMultiplyN.setArg(5, m2.getColumnDimension());
-                kMatrixMultiplyN.setArg(6, globalWorkSizeM);
-                kMatrixMultiplyN.setArg(7, globalWorkSizeN);
-                queue.put2DRangeKernel(kMatrixMultiplyN, 0, 0,
-                        roundUp(groupSizeForMultiplicationM, globalWorkSizeM),
-                        roundUp(groupSizeForMultiplicationN, globalWorkSizeN),
-                        groupSizeForMultiplicationM,
-                        groupSizeForMultiplicationN);
-            }
-            if (m1.getRowDimension() % MULTIPLY_WORK_ITEM_M != 0) {
-                kMatrixMultiply.setArg(0, m1.getArg());
-                kMatrixMultiply.setArg(1, m2.getArg());
-                kMatrixMultiply.setArg(2, mr.getArg());
-                kMatrixMultiply.setArg(3, m1.getRowDimension());
-                kMatrixMultiply.setArg(4, m1.getColumnDimension());
-                kMatrixMultiply.setArg(5, m2.getColumnDimension());
-                queue.put2DRangeKernel(kMatrixMultiply, offsetM, 0, globalWorkSizeReamainM, m2.getColumnDimension(), 0,
-                        0);
-            }
-            if (m2.getColumnDimension() % MULTIPLY_WORK_ITEM_N != 0 && m1.getRowDimension() > globalWorkSizeReamainM) {
-                kMatrixMultiply.setArg(0, m1.getArg());
-                kMatrixMultiply.setArg(1, m2.getArg());
-                kMatrixMultiply.setArg(2, mr.getArg());
-                kMatrixMultiply.setArg(3, m1.getRowDimension());
-                kMatrixMultiply.setArg(4, m1.getColumnDimension());
-                kMatrixMultiply.setArg(5, m2.getColumnDimension());
-                queue.put2DRangeKernel(kMatrixMultiply, 0, offsetN, m1.getRowDimension() - globalWorkSizeReamainM,
-                        globalWorkSizeReamainN, 0, 0);
-            }
-        } else {
-            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件", m1, m2, mr);
-        }
+    /**
+     * 多张量的RMSProp, 参数见 {@link #rmsPropUpdate(Matrix, Matrix, Matrix, double, double, double, double)}
+     */
+    public void rmsPropUpdate(MatrixPack p, MatrixPack g, MatrixPack s, double lr, double decay, double epsilon,
+            double weightDecay) {
+        checkLayout(p, g, s);
+        int index = setPackArgs(kRmsPropUpdateMulti, p, g, s);
+        setArgs(kRmsPropUpdateMulti, index, (float) lr, (float) decay, (float) epsilon, (float) weightDecay);
+        putPackKernel(kRmsPropUpdateMulti, p);
     }
 
-    private static int roundUp(int groupSize, int globalSize) {
-        if (groupSize <= 0)
-            return globalSize;
-        int r = globalSize % groupSize;
-        if (r == 0) {
-            return globalSize;
-        } else {
-            return globalSize + groupSize - r;
+    /*
+     * 设置Adam的超参数, 偏差修正 1 / (1 - beta^step) 在主机端用双精度计算
+     */
+    private static void setAdamArgs(CLKernel kernel, int index, double lr, double beta1, double beta2,
+            double epsilon, double weightDecay, int step) {
+        if (step < 1)
+            throw new IllegalArgumentException("step必须从1开始: step = " + step);
+        double c1 = 1.0 / (1.0 - Math.pow(beta1, step));
+        double c2 = 1.0 / (1.0 - Math.pow(beta2, step));
+        setArgs(kernel, index, (float) lr, (float) beta1, (float) beta2, (float) epsilon, (float) c1, (float) c2,
+                (float) weightDecay);
+    }
+
+    /*
+     * 依次设置从index开始的标量参数 (Float或Integer), 返回下一个参数的位置
+     */
+    private static int setArgs(CLKernel kernel, int index, Number... values) {
+        for (Number value : values) {
+            if (value instanceof Integer)
+                kernel.setArg(index++, value.intValue());
+            else
+                kernel.setArg(index++, value.floatValue());
         }
+        return index;
     }
 
-    public void arrayTimes(Matrix m1, Matrix m2, Matrix mr) {
-        checkMatrix(m1, m2);
-        checkMatrix(m1, mr);
-        kArrayMultiply.setArg(0, m1.getArg());
-        kArrayMultiply.setArg(1, m2.getArg());
-        kArrayMultiply.setArg(2, mr.getArg());
-        queue.put1DRangeKernel(kArrayMultiply, 0, m1.getRowDimension() * m1.getColumnDimension(), 0);
+    /*
+     * 设置多张量内核的参数 (每组矩阵的缓冲区, 布局表, 矩阵个数, float4总数), 返回下一个参数的位置
+     */
+    private static int setPackArgs(CLKernel kernel, MatrixPack... packs) {
+        int index = 0;
+        for (MatrixPack pack : packs) {
+            kernel.setArg(index++, pack.getBuffer());
+        }
+        kernel.setArg(index++, packs[0].getTable());
+        kernel.setArg(index++, packs[0].size());
+        kernel.setArg(index++, packs[0].getQuads());
+        return index;
     }
 
-    public void arrayDivides(Matrix m1, Matrix m2, Matrix mr) {
-        checkMatrix(m1, m2);
-        checkMatrix(m1, mr);
-        kArrayDivide.setArg(0, m1.getArg());
-        kArrayDivide.setArg(1, m2.getArg());
-        kArrayDivide.setArg(2, mr.getArg());
-        queue.put1DRangeKernel(kArrayDivide, 0, m1.getRowDimension() * m1.getColumnDimension(), 0);
+    /*
+     * 以整组矩阵的float4总数为范围执行跨网格循环的多张量内核
+     */
+    private void putPackKernel(CLKernel kernel, MatrixPack pack) {
+        int groupSize = Math.min(ELEMENTWISE_GROUP_SIZE, device.getMaxWorkGroupSize());
+        int globalSize = Math.min(roundUp(groupSize, pack.getQuads()),
+                device.getMaxComputeUnits() * ELEMENTWISE_GROUPS_PER_UNIT * groupSize);
+        queue.put1DRangeKernel(kernel, 0, globalSize, groupSize);
     }
 
-    public void scalarDivides(double k, Matrix m, Matrix mr) {
-        checkMatrix(m, mr);
-        kScalarDivide.setArg(0, (float) k);
-        kScalarDivide.setArg(1, m.getArg());
-        kScalarDivide.setArg(2, mr.getArg());
-        queue.put1DRangeKernel(kScalarDivide, 0, m.getRowDimension() * m.getColumnDimension(), 0);
+    private void checkLayout(MatrixPack p, MatrixPack... others) {
+        for (MatrixPack other : others) {
+            if (!p.hasSameLayout(other))
+                throw new IllegalArgumentException("矩阵组的布局不同");
+        }
     }
 
+    /*
+     * =================================================================
+     * CSR格式稀疏矩阵
+     * =================================================================
+     */
+    private final int SPARSE_GROUP_SIZE = 64; // SpMV工作组的大小
+    private final int SCAN_GROUP_SIZE = 256; // 求行指针的前缀和时唯一一个工作组的大小
+
     /**
-     * 将输入矩阵中的值经过sigmoid函数计算后储存在结果矩阵中
+     * 把矩阵的所有元素设为同一个值
      * 
-     * @param inputMatrix
-     *            输入矩阵
-     * @param resultMatrix
-     *            结果矩阵
+     * @param matrix
+     *            要填充的矩阵
+     * @param value
+     *            元素的值
      */
-    public void sigmoid(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kSigmoid.setArg(0, inputMatrix.getArg());
-        kSigmoid.setArg(1, resultMatrix.getArg());
-        queue.put1DRangeKernel(kSigmoid, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+    public void fill(Matrix matrix, double value) {
+        setMatrixArgs(kFill, 0, matrix);
+        kFill.setArg(5, (float) value);
+        putGridStrideKernel(kFill, 3, matrix.getRowDimension(), matrix.getColumnDimension());
     }
 
-    private CLBuffer<IntBuffer> isEqualResultBuffer;
-    private boolean isEqualResultBufferInited = false;
-
     /**
-     * 比较两个矩阵是否相等
+     * 稀疏矩阵乘稠密矩阵 c = alpha * a * b + beta * c (b是列向量时使用SpMV内核)
      * 
-     * @param m1
-     *            矩阵1
-     * @param m2
-     *            矩阵2
-     * @param errorAllowed
-     *            允许的误差
-     * @return 如果矩阵相等返回true
+     * @param alpha
+     *            乘积的系数
+     * @param a
+     *            稀疏矩阵
+     * @param b
+     *            稠密矩阵
+     * @param beta
+     *            结果矩阵原有值的系数(为0时不读取结果矩阵)
+     * @param c
+     *            保存结果的矩阵
      */
-    public boolean compare(Matrix m1, Matrix m2, double errorAllowed) {
-        checkMatrix(m1, m2);
-        if (!isEqualResultBufferInited) {
-            isEqualResultBuffer = context.createIntBuffer(1, CLMemory.Mem.READ_WRITE);
-            isEqualResultBufferInited = true;
+    public void multiply(double alpha, SparseMatrix a, Matrix b, double beta, Matrix c) {
+        int m = a.getRowDimension();
+        if (a.getColumnDimension() != b.getRowDimension() || c.getRowDimension() != m
+                || c.getColumnDimension() != b.getColumnDimension()) {
+            throw newIllegalArgumentException("矩阵的大小不符合相乘的条件: 稀疏矩阵 " + m + "*" + a.getColumnDimension(), b, c);
         }
-        isEqualResultBuffer.getBuffer().position(0);
-        isEqualResultBuffer.getBuffer().put(0);
-        isEqualResultBuffer.getBuffer().position(0);
-        queue.putWriteBuffer(isEqualResultBuffer, false);
-        kCompare.setArg(0, m1.getArg());
-        kCompare.setArg(1, m2.getArg());
-        kCompare.setArg(2, isEqualResultBuffer);
-        kCompare.setArg(3, (float) errorAllowed);
-        queue.put1DRangeKernel(kCompare, 0, m1.getRowDimension() * m2.getColumnDimension(), 0);
-        queue.putReadBuffer(isEqualResultBuffer, true);
+        if (b.getColumnDimension() == 1) {
+            // 每行的非零元素由lanes个相邻的工作项分担, lanes取每行平均非零元素个数附近的2的幂
+            int groupSize = Integer.highestOneBit(Math.min(SPARSE_GROUP_SIZE, device.getMaxWorkGroupSize()));
+            int lanes = Math.min(groupSize, Math.min(32, Integer.highestOneBit(Math.max(1, a.getNonZeros() / m))));
+            int index = setSparseArgs(kCsrMultiplyVector, 0, a);
+            index = setMatrixArgs(kCsrMultiplyVector, setMatrixArgs(kCsrMultiplyVector, index, b), c);
+            kCsrMultiplyVector.setArg(index++, m);
+            kCsrMultiplyVector.setArg(index++, lanes);
+            kCsrMultiplyVector.setArg(index++, (float) alpha);
+            kCsrMultiplyVector.setArg(index++, (float) beta);
+            kCsrMultiplyVector.setNullArg(index++, groupSize * 4);
+            queue.put1DRangeKernel(kCsrMultiplyVector, 0, roundUp(groupSize, m * lanes), groupSize);
+        } else {
+            int n = b.getColumnDimension();
+            int index = setSparseArgs(kCsrMultiplyMatrix, 0, a);
+            index = setMatrixArgs(kCsrMultiplyMatrix, setMatrixArgs(kCsrMultiplyMatrix, index, b), c);
+            kCsrMultiplyMatrix.setArg(index++, m);
+            kCsrMultiplyMatrix.setArg(index++, n);
+            kCsrMultiplyMatrix.setArg(index++, (float) alpha);
+            kCsrMultiplyMatrix.setArg(index++, (float) beta);
+            // 工作组在列方向取16个工作项, 使每个工作组读取B的一段连续的行
+            int groupSizeN = 16, groupSizeM = SPARSE_GROUP_SIZE / groupSizeN;
+            queue.put2DRangeKernel(kCsrMultiplyMatrix, 0, 0, roundUp(groupSizeN, n), roundUp(groupSizeM, m),
+                    groupSizeN, groupSizeM);
+        }
+    }
 
-        if (isEqualResultBuffer.getBuffer().get(0) > 0)
-            return false;
-        else
-            return true;
+    /*
+     * 在设备上把稠密矩阵转换成稀疏矩阵: 统计每行的非零元素, 用前缀和求出行指针, 读回非零元素个数后申请缓冲区并复制
+     */
+    void toSparse(Matrix dense, SparseMatrix result) {
+        int m = dense.getRowDimension();
+        int n = dense.getColumnDimension();
+        result.allocateRowPointers(m);
+        CLBuffer<IntBuffer> rowPointers = result.getRowPointers();
+
+        int index = setMatrixArgs(kDenseRowCount, 0, dense);
+        kDenseRowCount.setArg(index++, n);
+        kDenseRowCount.setArg(index++, rowPointers);
+        queue.put1DRangeKernel(kDenseRowCount, 0, m, 0);
+
+        int groupSize = Integer.highestOneBit(Math.min(SCAN_GROUP_SIZE, device.getMaxWorkGroupSize()));
+        kScanRowPointers.setArg(0, rowPointers);
+        kScanRowPointers.setArg(1, m);
+        kScanRowPointers.setNullArg(2, groupSize * 4);
+        queue.put1DRangeKernel(kScanRowPointers, 0, groupSize, groupSize);
+
+        // 只读回最后一个行指针(非零元素个数)
+        CLBuffer<IntBuffer> count = context.createIntBuffer(1, CLMemory.Mem.READ_WRITE);
+        queue.putCopyBuffer(rowPointers, count, m * 4, 0, 4, null);
+        queue.putReadBuffer(count, true);
+        int nnz = count.getBuffer().get(0);
+        count.release();
+
+        result.allocate(m, n, nnz);
+        index = setMatrixArgs(kDenseToCsr, 0, dense);
+        kDenseToCsr.setArg(index++, n);
+        setSparseArgs(kDenseToCsr, index, result);
+        queue.put1DRangeKernel(kDenseToCsr, 0, m, 0);
     }
 
-    /**
-     * 比较两个矩阵是否相等
-     * 
-     * @param m1
-     *            矩阵1
-     * @param m2
-     *            矩阵2
-     * @return 如果矩阵相等返回true
+    /*
+     * 在设备上把稀疏矩阵转换成稠密矩阵: 先把结果清零, 再写入非零元素
      */
-    public boolean compare(Matrix m1, Matrix m2) {
-        return compare(m1, m2, 0.000001);
+    void toDense(SparseMatrix a, Matrix result) {
+        if (result.getRowDimension() != a.getRowDimension()
+                || result.getColumnDimension() != a.getColumnDimension()) {
+            throw newIllegalArgumentException(
+                    "结果矩阵与稀疏矩阵的大小不符: " + a.getRowDimension() + "*" + a.getColumnDimension(), result);
+        }
+        fill(result, 0);
+        setMatrixArgs(kCsrToDense, setSparseArgs(kCsrToDense, 0, a), result);
+        queue.put1DRangeKernel(kCsrToDense, 0, a.getRowDimension(), 0);
+    }
+
+    /*
+     * 设置稀疏矩阵的三个缓冲区作为内核参数, 返回下一个参数的位置
+     */
+    private static int setSparseArgs(CLKernel kernel, int index, SparseMatrix matrix) {
+        kernel.setArg(index++, matrix.getRowPointers());
+        kernel.setArg(index++, matrix.getColumnIndices());
+        kernel.setArg(index++, matrix.getValues());
+        return index;
     }
 
     /**
@@ -454,146 +2757,230 @@ class GMath {
      */
     // TODO 当前只使用了一个粗糙的伪随机算法
     public void fillMatrixRandomly(Matrix matrix, double lowerLimit, double upperLimit) {
-        kRand.setArg(0, matrix.getArg());
-        kRand.setArg(1, (float) lowerLimit);
-        kRand.setArg(2, (float) upperLimit);
-        kRand.setArg(3, (int) (Math.random() * 100));
-        queue.put1DRangeKernel(kRand, 0, matrix.getRowDimension() * matrix.getColumnDimension(), 0);
+        int index = setMatrixArgs(kRand, 0, matrix);
+        kRand.setArg(index++, (float) lowerLimit);
+        kRand.setArg(index++, (float) upperLimit);
+        kRand.setArg(index++, (int) (Math.random() * 100));
+        putElementwiseKernel(kRand, matrix);
     }
 
-    public void abs(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kAbs.setArg(0, inputMatrix.getArg());
-        kAbs.setArg(1, resultMatrix.getArg());
-        queue.put1DRangeKernel(kAbs, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+    /**
+     * 用正态分布的随机数初始化矩阵
+     * 
+     * @param matrix
+     *            输出的矩阵
+     * @param mean
+     *            均值
+     * @param deviation
+     *            标准差
+     */
+    public void fillMatrixGaussian(Matrix matrix, double mean, double deviation) {
+        int index = setMatrixArgs(kRandn, 0, matrix);
+        kRandn.setArg(index++, (float) mean);
+        kRandn.setArg(index++, (float) deviation);
+        kRandn.setArg(index++, random.nextInt());
+        putElementwiseKernel(kRandn, matrix);
+    }
 
+    public void abs(Matrix inputMatrix, Matrix resultMatrix) {
+        putUnaryKernel(kAbs, inputMatrix, resultMatrix);
     }
 
     public void acos(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kAcos.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kAcos, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
-
+        putUnaryKernel(kAcos, inputMatrix, resultMatrix);
     }
 
     public void asin(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kAsin.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kAsin, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
-
+        putUnaryKernel(kAsin, inputMatrix, resultMatrix);
     }
 
     public void atan(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kAtan.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kAtan, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kAtan, inputMatrix, resultMatrix);
     }
 
     public void cos(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kCos.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kCos, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
-
+        putUnaryKernel(kCos, inputMatrix, resultMatrix);
     }
 
     public void sin(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kSin.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kSin, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
-
+        putUnaryKernel(kSin, inputMatrix, resultMatrix);
     }
 
     public void tan(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kTan.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kTan, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kTan, inputMatrix, resultMatrix);
     }
 
     public void cosh(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kCosh.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kCosh, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kCosh, inputMatrix, resultMatrix);
     }
 
     public void sinh(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kSinh.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kSinh, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kSinh, inputMatrix, resultMatrix);
     }
 
     public void tanh(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kTanh.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kTanh, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kTanh, inputMatrix, resultMatrix);
     }
 
     public void log(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kLog.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kLog, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kLog, inputMatrix, resultMatrix);
     }
 
     public void log2(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kLog2.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kLog2, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kLog2, inputMatrix, resultMatrix);
     }
 
     public void log10(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kLog10.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kLog10, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kLog10, inputMatrix, resultMatrix);
     }
 
     public void exp(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kExp.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kExp, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kExp, inputMatrix, resultMatrix);
     }
 
     public void exp2(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kExp2.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kExp2, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kExp2, inputMatrix, resultMatrix);
     }
 
     public void exp10(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kExp10.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kExp10, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kExp10, inputMatrix, resultMatrix);
     }
 
     public void sqrt(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kSqrt.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kSqrt, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kSqrt, inputMatrix, resultMatrix);
     }
 
     public void rsqrt(Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kRsqrt.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        queue.put1DRangeKernel(kRsqrt, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putUnaryKernel(kRsqrt, inputMatrix, resultMatrix);
     }
 
     public void pow(Matrix inputMatrix, double power, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kPow.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        kPow.setArg(2, (float) power);
-        queue.put1DRangeKernel(kPow, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        kPow.setArg(8, (float) power);
+        putUnaryKernel(kPow, inputMatrix, resultMatrix);
     }
 
     public void pow(double power, Matrix inputMatrix, Matrix resultMatrix) {
-        checkMatrix(inputMatrix, resultMatrix);
-        kPow2.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        kPow2.setArg(2, (float) power);
-        queue.put1DRangeKernel(kPow2, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        kPow2.setArg(8, (float) power);
+        putUnaryKernel(kPow2, inputMatrix, resultMatrix);
     }
 
     public void pow(Matrix inputMatrix, int power, Matrix resultMatrix) {
+        kPown.setArg(8, power);
+        putUnaryKernel(kPown, inputMatrix, resultMatrix);
+    }
+
+    /**
+     * 依次设置矩阵的缓冲区, 偏移量与行距三个内核参数
+     * 
+     * @param kernel
+     *            内核
+     * @param index
+     *            第一个参数的位置
+     * @param matrix
+     *            矩阵
+     * @return 下一个参数的位置
+     */
+    private static int setMatrixArgs(CLKernel kernel, int index, Matrix matrix) {
+        kernel.setArg(index++, matrix.getArg());
+        kernel.setArg(index++, matrix.getOffset());
+        kernel.setArg(index++, matrix.getPitch());
+        return index;
+    }
+
+    /*
+     * 两个矩阵是否使用同一块显存中相交的区域 (视图可能是子缓冲区, 先换算到根缓冲区中的位置)
+     */
+    private static boolean overlaps(Matrix a, Matrix b) {
+        CLBuffer<FloatBuffer> rootA = a.getArg(), rootB = b.getArg();
+        long startA = a.getOffset(), startB = b.getOffset();
+        if (rootA.isSubBuffer()) {
+            startA += ((CLSubBuffer<FloatBuffer>) rootA).getOffset();
+            rootA = ((CLSubBuffer<FloatBuffer>) rootA).getParent();
+        }
+        if (rootB.isSubBuffer()) {
+            startB += ((CLSubBuffer<FloatBuffer>) rootB).getOffset();
+            rootB = ((CLSubBuffer<FloatBuffer>) rootB).getParent();
+        }
+        if (rootA != rootB)
+            return false;
+        long endA = startA + (long) (a.getRowDimension() - 1) * a.getPitch() + a.getColumnDimension();
+        long endB = startB + (long) (b.getRowDimension() - 1) * b.getPitch() + b.getColumnDimension();
+        if (endA <= startA || endB <= startB || endA <= startB || endB <= startA)
+            return false;
+        if (a.getPitch() != b.getPitch())
+            return true; // 行距不同时按首尾范围保守判断
+        // 行距相同时按二维的矩形判断, 同一个矩阵中不相交的子矩阵可以作为输入和结果
+        long pitch = a.getPitch();
+        long rowA = startA / pitch, columnA = startA % pitch;
+        long rowB = startB / pitch, columnB = startB % pitch;
+        return rowA < rowB + b.getRowDimension() && rowB < rowA + a.getRowDimension()
+                && columnA < columnB + b.getColumnDimension() && columnB < columnA + a.getColumnDimension();
+    }
+
+    /*
+     * 以矩阵的大小为二维范围执行内核, 每个工作项处理一个元素 (用于结果与元素位置有关的内核)
+     */
+    private void putElementwiseKernel(CLKernel kernel, Matrix matrix) {
+        queue.put2DRangeKernel(kernel, 0, 0, matrix.getRowDimension(), matrix.getColumnDimension(), 0, 0);
+    }
+
+    /*
+     * 执行向量化的逐元素运算内核 (参数 M, N 位于index处)
+     * 内核以float4为单位用跨网格循环遍历矩阵, 全局大小按计算单元数确定(每个计算单元若干个工作组), 与元素个数无关
+     */
+    private void putGridStrideKernel(CLKernel kernel, int index, int m, int n) {
+        kernel.setArg(index++, m);
+        kernel.setArg(index++, n);
+        int groupSize = Math.min(ELEMENTWISE_GROUP_SIZE, device.getMaxWorkGroupSize());
+        int quads = m * ((n + 3) / 4);
+        int globalSize = Math.min(roundUp(groupSize, quads),
+                device.getMaxComputeUnits() * ELEMENTWISE_GROUPS_PER_UNIT * groupSize);
+        queue.put1DRangeKernel(kernel, 0, globalSize, groupSize);
+    }
+
+    /*
+     * 执行参数为 (输入矩阵, 结果矩阵, M, N, ...) 的逐元素运算内核
+     */
+    private void putUnaryKernel(CLKernel kernel, Matrix inputMatrix, Matrix resultMatrix) {
         checkMatrix(inputMatrix, resultMatrix);
-        kPown.setArgs(inputMatrix.getArg(), resultMatrix.getArg());
-        kPown.setArg(2, power);
-        queue.put1DRangeKernel(kPown, 0, inputMatrix.getRowDimension() * inputMatrix.getColumnDimension(), 0);
+        putBinaryKernel(kernel, inputMatrix, resultMatrix);
+    }
+
+    private void putBinaryKernel(CLKernel kernel, Matrix m1, Matrix m2) {
+        int index = setMatrixArgs(kernel, setMatrixArgs(kernel, 0, m1), m2);
+        putGridStrideKernel(kernel, index, m1.getRowDimension(), m1.getColumnDimension());
+    }
+
+    /*
+     * 执行参数为 (输入矩阵1, 输入矩阵2, 结果矩阵) 的可广播逐元素运算内核, 运算范围是结果矩阵的大小
+     */
+    private void putBroadcastKernel(CLKernel kernel, Matrix m1, Matrix m2, Matrix mr) {
+        checkBroadcast(m1, mr);
+        checkBroadcast(m2, mr);
+        int index = setBroadcastArgs(kernel, setBroadcastArgs(kernel, 0, m1), m2);
+        index = setMatrixArgs(kernel, index, mr);
+        putGridStrideKernel(kernel, index, mr.getRowDimension(), mr.getColumnDimension());
+    }
+
+    /*
+     * 设置可广播的矩阵参数 (缓冲区, 偏移, 行距, 列距): 只有一行时行距为0, 只有一列时列距为0
+     */
+    private static int setBroadcastArgs(CLKernel kernel, int index, Matrix matrix) {
+        kernel.setArg(index++, matrix.getArg());
+        kernel.setArg(index++, matrix.getOffset());
+        kernel.setArg(index++, matrix.getRowDimension() == 1 ? 0 : matrix.getPitch());
+        kernel.setArg(index++, matrix.getColumnDimension() == 1 ? 0 : 1);
+        return index;
+    }
+
+    /*
+     * 输入矩阵的每个维度必须与结果矩阵相同或者为1
+     */
+    private void checkBroadcast(Matrix m, Matrix result) {
+        if ((m.getRowDimension() != result.getRowDimension() && m.getRowDimension() != 1)
+                || (m.getColumnDimension() != result.getColumnDimension() && m.getColumnDimension() != 1)) {
+            throw newIllegalArgumentException("矩阵的大小不能广播到结果矩阵", m, result);
+        }
     }
 
     /**
@@ -611,6 +2998,10 @@ class GMath {
         return this.context;
     }
 
+    public CLDevice getDevice() {
+        return this.device;
+    }
+
     @Override
     protected void finalize() {
         this.release();
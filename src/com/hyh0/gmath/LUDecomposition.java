@@ -0,0 +1,209 @@
+package com.hyh0.gmath;
+
+/**
+ * 带部分主元的LU分解 (接口与JAMA的LUDecomposition类似)
+ *
+ * 对 m*n 的矩阵A, 求得单位下三角矩阵L, 上三角矩阵U 和置换向量piv, 使 A(piv,:) = L*U
+ *
+ * 采用分块的右视算法: 每次取出 {@value #BLOCK} 列的面板在主机端用双精度分解(选主元需要逐列比较, 不适合在设备上做),
+ * 然后在设备上交换其余列的行, 用三角求解得到U的行块, 再用矩阵乘法更新右下角的子矩阵. 绝大部分计算量都在最后的矩阵乘法中
+ */
+public class LUDecomposition {
+    /**
+     * 面板的列数
+     */
+    private static final int BLOCK = 64;
+
+    private Matrix LU;
+    private int m, n;
+    private int pivsign;
+    private int[] piv;
+    private double[] diagonal; // U的对角线
+
+    /**
+     * LU分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            要分解的矩阵
+     */
+    public LUDecomposition(Matrix A) {
+        m = A.getRowDimension();
+        n = A.getColumnDimension();
+        LU = A.copy();
+        piv = new int[m];
+        for (int i = 0; i < m; i++) {
+            piv[i] = i;
+        }
+        pivsign = 1;
+        GMath gMath = Matrix.getGMath();
+        int k = Math.min(m, n);
+        diagonal = new double[k];
+        for (int k0 = 0; k0 < k; k0 += BLOCK) {
+            int kb = Math.min(BLOCK, k - k0);
+            int k1 = k0 + kb - 1;
+
+            // 在主机端分解面板 LU(k0:m-1, k0:k1)
+            Matrix panel = LU.getMatrixView(k0, m - 1, k0, k1);
+            double[][] p = panel.getArrayCopy();
+            int[] pivots = new int[kb];
+            for (int j = 0; j < kb; j++) {
+                int pivot = j;
+                for (int i = j + 1; i < p.length; i++) {
+                    if (Math.abs(p[i][j]) > Math.abs(p[pivot][j])) {
+                        pivot = i;
+                    }
+                }
+                pivots[j] = k0 + pivot;
+                if (pivot != j) {
+                    double[] row = p[pivot];
+                    p[pivot] = p[j];
+                    p[j] = row;
+                    int t = piv[k0 + pivot];
+                    piv[k0 + pivot] = piv[k0 + j];
+                    piv[k0 + j] = t;
+                    pivsign = -pivsign;
+                }
+                diagonal[k0 + j] = p[j][j];
+                if (p[j][j] != 0.0) {
+                    for (int i = j + 1; i < p.length; i++) {
+                        p[i][j] /= p[j][j];
+                        for (int c = j + 1; c < kb; c++) {
+                            p[i][c] -= p[i][j] * p[j][c];
+                        }
+                    }
+                }
+            }
+            panel.set(p);
+            panel.release();
+
+            // 面板以外的列做同样的行交换
+            gMath.swapRows(LU, k0, pivots, k0, k1 + 1);
+
+            if (k1 < n - 1) {
+                // U12 = L11^-1 * A12
+                Matrix L11 = LU.getMatrixView(k0, k1, k0, k1);
+                Matrix U12 = LU.getMatrixView(k0, k1, k1 + 1, n - 1);
+                MatrixMath.solveTriangular(L11, U12, true, true);
+                if (k1 < m - 1) {
+                    // A22 -= L21 * U12
+                    Matrix L21 = LU.getMatrixView(k1 + 1, m - 1, k0, k1);
+                    Matrix A22 = LU.getMatrixView(k1 + 1, m - 1, k1 + 1, n - 1);
+                    gMath.multiply(-1, L21, U12, 1, A22);
+                    L21.release();
+                    A22.release();
+                }
+                L11.release();
+                U12.release();
+            }
+        }
+    }
+
+    /**
+     * 矩阵是否非奇异
+     *
+     * @return 如果U的对角线上没有0则为true
+     */
+    public boolean isNonsingular() {
+        for (int j = 0; j < n; j++) {
+            if (j >= diagonal.length || diagonal[j] == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获取单位下三角矩阵L (m*min(m,n))
+     *
+     * @return L
+     */
+    public Matrix getL() {
+        Matrix L = new Matrix(m, Math.min(m, n));
+        Matrix.getGMath().triangle(LU, L, true, true);
+        return L;
+    }
+
+    /**
+     * 获取上三角矩阵U (min(m,n)*n)
+     *
+     * @return U
+     */
+    public Matrix getU() {
+        Matrix U = new Matrix(Math.min(m, n), n);
+        Matrix.getGMath().triangle(LU, U, false, false);
+        return U;
+    }
+
+    /**
+     * 获取置换向量
+     *
+     * @return piv
+     */
+    public int[] getPivot() {
+        return piv.clone();
+    }
+
+    /**
+     * 获取置换向量(double类型)
+     *
+     * @return piv
+     */
+    public double[] getDoublePivot() {
+        double[] vals = new double[m];
+        for (int i = 0; i < m; i++) {
+            vals[i] = (double) piv[i];
+        }
+        return vals;
+    }
+
+    /**
+     * 计算行列式
+     *
+     * @return det(A)
+     * @exception IllegalArgumentException
+     *                矩阵不是方阵
+     */
+    public double det() {
+        if (m != n) {
+            throw new IllegalArgumentException("矩阵必须是方阵");
+        }
+        double d = (double) pivsign;
+        for (int j = 0; j < n; j++) {
+            d *= diagonal[j];
+        }
+        return d;
+    }
+
+    /**
+     * 解方程组 A*X = B
+     *
+     * @param B
+     *            行数与A相同的矩阵
+     * @return X 使 L*U*X = B(piv,:)
+     * @exception IllegalArgumentException
+     *                矩阵的行数不符或A不是方阵
+     * @exception RuntimeException
+     *                矩阵是奇异的
+     */
+    public Matrix solve(Matrix B) {
+        if (B.getRowDimension() != m) {
+            throw new IllegalArgumentException("矩阵的行数不符");
+        }
+        if (m != n) {
+            throw new IllegalArgumentException("矩阵必须是方阵");
+        }
+        if (!this.isNonsingular()) {
+            throw new RuntimeException("矩阵是奇异的");
+        }
+        Matrix X = B.getMatrix(piv, 0, B.getColumnDimension() - 1);
+        MatrixMath.solveTriangular(LU, X, true, true);
+        MatrixMath.solveTriangular(LU, X, false, false);
+        return X;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        LU.release();
+    }
+}
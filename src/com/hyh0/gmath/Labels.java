@@ -0,0 +1,101 @@
+package com.hyh0.gmath;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.jogamp.opencl.CLBuffer;
+import com.jogamp.opencl.CLMemory;
+
+/**
+ * 保存在显存中的整数类别标签 (每个样本一个, 用于 {@link MatrixMath#softmaxCrossEntropy} 和聚类)
+ *
+ * 每一批数据可以用 {@link #set(int[])} 写入同一个缓冲区, 不需要重新申请显存
+ */
+public class Labels {
+    private CLBuffer<IntBuffer> buffer;
+    private int length;
+
+    /**
+     * 把主机端的标签复制到显存
+     *
+     * @param labels
+     *            每个样本的类别 (不在 [0, 类别数) 内的样本会被忽略)
+     */
+    public Labels(int[] labels) {
+        if (labels.length == 0)
+            throw new IllegalArgumentException("标签的个数必须是正数");
+        allocate(labels.length);
+        set(labels);
+    }
+
+    /**
+     * 创建标签, 全部初始化为-1 (未分类)
+     *
+     * @param length
+     *            标签的个数
+     */
+    public Labels(int length) {
+        if (length <= 0)
+            throw new IllegalArgumentException("标签的个数必须是正数");
+        allocate(length);
+        int[] labels = new int[length];
+        Arrays.fill(labels, -1);
+        set(labels);
+    }
+
+    private void allocate(int length) {
+        Matrix.init();
+        this.length = length;
+        buffer = Matrix.getGMath().getContext().createIntBuffer(length, CLMemory.Mem.READ_WRITE);
+    }
+
+    /**
+     * 写入新的一批标签
+     *
+     * @param labels
+     *            每个样本的类别, 个数必须与创建时相同
+     */
+    public void set(int[] labels) {
+        if (labels.length != length)
+            throw new IllegalArgumentException("标签的个数必须与创建时相同");
+        buffer.getBuffer().put(labels).position(0);
+        Matrix.getGMath().getQueue().putWriteBuffer(buffer, true);
+    }
+
+    /**
+     * 把标签读回主机
+     *
+     * @return 每个样本的类别
+     */
+    public int[] get() {
+        Matrix.getGMath().getQueue().putReadBuffer(buffer, true);
+        int[] labels = new int[length];
+        buffer.getBuffer().get(labels).position(0);
+        return labels;
+    }
+
+    /**
+     * @return 标签的个数
+     */
+    public int length() {
+        return length;
+    }
+
+    CLBuffer<IntBuffer> getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        if (!buffer.isReleased())
+            buffer.release();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        this.release();
+    }
+}
@@ -15,17 +15,23 @@ import com.hyh0.gmath.debug.Tools;
 import com.jogamp.opencl.CLBuffer;
 import com.jogamp.opencl.CLCommandQueue;
 import com.jogamp.opencl.CLContext;
+import com.jogamp.opencl.CLSubBuffer;
 
 public class Matrix implements Cloneable {
 
     private int M;
     private int N;
+    private int pitch; // 相邻两行第一个元素在缓冲区中的距离
+    private int offset; // 第一个元素在缓冲区中的位置
+    private boolean view = false; // 是否与其他矩阵共用缓冲区
     private CLBuffer<FloatBuffer> matrixBuffer;
 
     private static CLCommandQueue queue;
     private static CLContext context;
     private static GMath gMath;
     private static boolean inited = false;
+    private static int subBufferAlignment; // 子缓冲区起点需要对齐的元素数
+    private static int rowAlignment = 8; // 新矩阵的行距会被补齐到它的整数倍, 使每一行都能用对齐的float4/float8读写
 
     /*
      * =================================================================
@@ -53,6 +59,7 @@ public class Matrix implements Cloneable {
             gMath = new GMath(deviceType.TYPE);
             queue = gMath.getQueue();
             context = gMath.getContext();
+            subBufferAlignment = Math.max(1, (int) (gMath.getDevice().getMemBaseAddrAlign() / 8 / 4));
             MatrixMath.init(gMath);
             inited = true;
         }
@@ -67,13 +74,82 @@ public class Matrix implements Cloneable {
      *            矩阵的列数
      */
     public Matrix(int m, int n) {
+        allocate(m, n);
+        matrixBuffer.getBuffer().position(0);
+        queue.putWriteBuffer(matrixBuffer, true);
+    }
+
+    /*
+     * 分配 m*n 矩阵的显存, 行距补齐到rowAlignment的整数倍(列向量不需要补齐)
+     */
+    private void allocate(int m, int n) {
         if (!inited) {
             Matrix.init();
         }
-        this.matrixBuffer = context.createFloatBuffer(roundUp(16, m * n), READ_WRITE); // 当大小被16整除时,能显著提升性能
         this.M = m;
         this.N = n;
-        syncToDevice();
+        this.pitch = n == 1 ? 1 : roundUp(rowAlignment, n);
+        this.offset = 0;
+        this.matrixBuffer = context.createFloatBuffer(roundUp(16, m * pitch), READ_WRITE); // 当大小被16整除时,能显著提升性能
+    }
+
+    /**
+     * 设置新矩阵的行距对齐(元素个数), 之后创建的矩阵每一行的起点都对齐到它的整数倍
+     * 
+     * 对齐后矩阵乘法, 转置等内核可以使用对齐的向量读写, 代价是每行最多浪费 alignment-1 个元素的显存;
+     * 设置为1时不做补齐
+     * 
+     * @param alignment
+     *            行距对齐的元素个数(默认为8)
+     */
+    public static void setRowAlignment(int alignment) {
+        if (alignment <= 0)
+            throw new IllegalArgumentException("行距对齐必须是正数");
+        rowAlignment = alignment;
+    }
+
+    /**
+     * @return 新矩阵的行距对齐(元素个数)
+     */
+    public static int getRowAlignment() {
+        return rowAlignment;
+    }
+
+    /*
+     * 创建一个与parent共用显存的子矩阵, 左上角位于parent的(i0, j0)
+     * 起点满足设备的对齐要求时使用CLSubBuffer, 否则直接共用parent的缓冲区并记录偏移量
+     */
+    private Matrix(Matrix parent, int i0, int j0, int m, int n) {
+        this.M = m;
+        this.N = n;
+        this.pitch = parent.pitch;
+        this.view = true;
+        CLBuffer<FloatBuffer> root = parent.matrixBuffer;
+        int position = parent.offset + i0 * parent.pitch + j0;
+        if (root.isSubBuffer()) { // OpenCl不允许从子缓冲区再创建子缓冲区
+            CLSubBuffer<FloatBuffer> subBuffer = (CLSubBuffer<FloatBuffer>) root;
+            position += subBuffer.getOffset();
+            root = subBuffer.getParent();
+        }
+        if (position % subBufferAlignment == 0) {
+            this.matrixBuffer = root.createSubBuffer(position, (m - 1) * pitch + n, READ_WRITE);
+            this.offset = 0;
+        } else {
+            this.matrixBuffer = root;
+            this.offset = position;
+        }
+    }
+
+    /*
+     * 创建使用已有缓冲区中一段区域的矩阵 (用于MatrixPack, 缓冲区由创建者释放)
+     */
+    Matrix(CLBuffer<FloatBuffer> buffer, int offset, int m, int n, int pitch) {
+        this.M = m;
+        this.N = n;
+        this.pitch = pitch;
+        this.offset = offset;
+        this.view = true;
+        this.matrixBuffer = buffer;
     }
 
     private static int roundUp(int groupSize, int globalSize) {
@@ -124,10 +200,7 @@ public class Matrix implements Cloneable {
             if (data[i].length != n)
                 throw newIllegalArgumentException("二维数组的每一行长度应该相等");
         }
-        this.matrixBuffer = context.createFloatBuffer(m * n, READ_WRITE);
-        this.M = m;
-        this.N = n;
-        this.syncToDevice();
+        allocate(m, n);
         this.set(data);
     }
 
@@ -193,6 +266,21 @@ public class Matrix implements Cloneable {
         return matrix;
     }
 
+    /**
+     * 创建一个填充标准正态分布随机数的 m*n 的矩阵
+     * 
+     * @param m
+     *            矩阵行数
+     * @param n
+     *            矩阵列数
+     * @return 新建的矩阵
+     */
+    public static Matrix randn(int m, int n) {
+        Matrix matrix = new Matrix(m, n);
+        matrix.randomizeGaussian(0, 1);
+        return matrix;
+    }
+
     /**
      * 用二维数组创建一个矩阵
      * 
@@ -228,11 +316,23 @@ public class Matrix implements Cloneable {
         this.randomize(-1, 1);
     }
 
+    /**
+     * 用正态分布的随机数初始化矩阵
+     * 
+     * @param mean
+     *            均值
+     * @param deviation
+     *            标准差
+     */
+    public void randomizeGaussian(double mean, double deviation) {
+        gMath.fillMatrixGaussian(this, mean, deviation);
+    }
+
     /**
      * result = this + B 将当前矩阵加上另一个矩阵的结果保存在result中
      * 
      * @param B
-     *            与当前矩阵相加的矩阵
+     *            与当前矩阵相加的矩阵(可以是行向量或列向量, 会被广播到每一行或每一列)
      * @param result
      *            保存运算结果的矩阵
      * @return 保存运算结果的矩阵
@@ -257,7 +357,7 @@ public class Matrix implements Cloneable {
      * result = this - B 将当前矩阵加上减去另一个矩阵的结果保存在result中
      * 
      * @param B
-     *            与当前矩阵相减的矩阵
+     *            与当前矩阵相减的矩阵(可以是行向量或列向量, 会被广播到每一行或每一列)
      * @param result
      *            保存运算结果的矩阵
      * @return 保存运算结果的矩阵
@@ -346,7 +446,7 @@ public class Matrix implements Cloneable {
      * result = this . / B 此矩阵点除另一个矩阵
      * 
      * @param B
-     *            另一个矩阵
+     *            另一个矩阵(可以是行向量或列向量, 会被广播到每一行或每一列)
      * @param result
      *            保存结果的矩阵
      * @return 保存结果的矩阵
@@ -397,7 +497,7 @@ public class Matrix implements Cloneable {
      * 矩阵点乘 result = B . * this
      * 
      * @param B
-     *            另一个矩阵
+     *            另一个矩阵(可以是行向量或列向量, 会被广播到每一行或每一列)
      * @param result
      *            保存结果的矩阵
      * @return 保存结果的矩阵
@@ -480,6 +580,145 @@ public class Matrix implements Cloneable {
         return result;
     }
 
+    /**
+     * 原地转置当前矩阵(只适用于方阵)
+     * 
+     * @return 当前矩阵
+     */
+    public Matrix transposeEquals() {
+        return this.transpose(this);
+    }
+
+    /**
+     * LU分解
+     *
+     * @return LU分解的结果(用完后应该调用release释放显存)
+     */
+    public LUDecomposition lu() {
+        return new LUDecomposition(this);
+    }
+
+    /**
+     * Cholesky分解(只适用于对称正定矩阵)
+     *
+     * @return Cholesky分解的结果(用完后应该调用release释放显存)
+     */
+    public CholeskyDecomposition chol() {
+        return new CholeskyDecomposition(this);
+    }
+
+    /**
+     * 对称矩阵的特征值分解(当前矩阵必须是对称的)
+     *
+     * @return 特征值分解的结果(用完后应该调用release释放显存)
+     */
+    public EigenvalueDecomposition eig() {
+        return new EigenvalueDecomposition(this);
+    }
+
+    /**
+     * 奇异值分解
+     *
+     * @return 奇异值分解的结果(用完后应该调用release释放显存)
+     */
+    public SingularValueDecomposition svd() {
+        return new SingularValueDecomposition(this);
+    }
+
+    /**
+     * Frobenius范数
+     *
+     * @return 所有元素平方和的平方根
+     */
+    public double normF() {
+        return gMath.normF(this);
+    }
+
+    /**
+     * 2范数
+     *
+     * @return 最大奇异值
+     */
+    public double norm2() {
+        return new SingularValueDecomposition(this, false).norm2();
+    }
+
+    /**
+     * 2范数下的条件数
+     *
+     * @return 最大奇异值与最小奇异值的比
+     */
+    public double cond() {
+        return new SingularValueDecomposition(this, false).cond();
+    }
+
+    /**
+     * 有效数值秩
+     *
+     * @return 矩阵的秩
+     */
+    public int rank() {
+        return new SingularValueDecomposition(this, false).rank();
+    }
+
+    /**
+     * 计算行列式(只适用于方阵)
+     *
+     * @return 行列式的值
+     */
+    public double det() {
+        LUDecomposition lu = new LUDecomposition(this);
+        double det = lu.det();
+        lu.release();
+        return det;
+    }
+
+    /**
+     * QR分解
+     *
+     * @return QR分解的结果(用完后应该调用release释放显存)
+     */
+    public QRDecomposition qr() {
+        return new QRDecomposition(this);
+    }
+
+    /**
+     * 解方程组 A*X = B (A为当前矩阵). 方阵使用LU分解求解, 行数多于列数时使用QR分解求最小二乘解
+     *
+     * @param B
+     *            方程右侧的矩阵
+     * @return 保存解X的新矩阵
+     */
+    public Matrix solve(Matrix B) {
+        if (M == N) {
+            LUDecomposition lu = new LUDecomposition(this);
+            try {
+                return lu.solve(B);
+            } finally {
+                lu.release();
+            }
+        } else {
+            QRDecomposition qr = new QRDecomposition(this);
+            try {
+                return qr.solve(B);
+            } finally {
+                qr.release();
+            }
+        }
+    }
+
+    /**
+     * 求逆矩阵(只适用于非奇异的方阵)
+     *
+     * @return 保存逆矩阵的新矩阵
+     */
+    public Matrix inverse() {
+        Matrix identity = identity(M, M);
+        Matrix result = solve(identity);
+        identity.release();
+        return result;
+    }
+
     /**
      * 将矩阵复制到新的矩阵中
      * 
@@ -575,11 +814,9 @@ public class Matrix implements Cloneable {
         if (m >= this.M || n >= this.N)
             throw newIllegalArgumentException("超出矩阵范围");
 
-        int targetPosition = m * this.N + n;
-        FloatBuffer buffer = matrixBuffer.getBuffer();
-        buffer.position(targetPosition);
-        buffer.put((float) data);
-        this.syncToDevice();
+        int targetPosition = offset + m * pitch + n;
+        matrixBuffer.getBuffer().put(targetPosition, (float) data);
+        this.writeRegion(targetPosition, 1, 1);
     }
 
     /**
@@ -592,9 +829,28 @@ public class Matrix implements Cloneable {
         if (data.length != this.M || data[0].length != this.N)
             throw newIllegalArgumentException("数组和矩阵不符");
         FloatBuffer buffer = matrixBuffer.getBuffer();
-        for (double[] vs : data) {
-            for (double v : vs) {
-                buffer.put((float) v);
+        for (int m = 0; m < M; m++) {
+            for (int n = 0; n < N; n++) {
+                buffer.put(offset + m * pitch + n, (float) data[m][n]);
+            }
+        }
+        this.syncToDevice();
+    }
+
+    /**
+     * 用行优先排列的数据设置矩阵的元素,并同步到显存
+     * 
+     * @param data
+     *            从当前位置开始的 m*n 个元素 (data的位置不变)
+     */
+    public void set(FloatBuffer data) {
+        if (data.remaining() < this.M * this.N)
+            throw newIllegalArgumentException("数据个数少于矩阵的元素个数");
+        FloatBuffer buffer = matrixBuffer.getBuffer();
+        int start = data.position();
+        for (int m = 0; m < M; m++) {
+            for (int n = 0; n < N; n++) {
+                buffer.put(offset + m * pitch + n, data.get(start + m * N + n));
             }
         }
         this.syncToDevice();
@@ -612,8 +868,8 @@ public class Matrix implements Cloneable {
     public double get(int m, int n) {
         if (m >= this.M || n >= this.N)
             throw newIllegalArgumentException("超出矩阵范围");
-        this.syncFromDevice();
-        int targetPosition = m * this.N + n;
+        int targetPosition = offset + m * pitch + n;
+        this.readRegion(targetPosition, 1, 1);
         return matrixBuffer.getBuffer().get(targetPosition);
     }
 
@@ -628,7 +884,7 @@ public class Matrix implements Cloneable {
         double[][] result = new double[M][N];
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
-                result[m][n] = buffer.get();
+                result[m][n] = buffer.get(offset + m * pitch + n);
             }
         }
         return result;
@@ -715,7 +971,40 @@ public class Matrix implements Cloneable {
     }
 
     /**
-     * Get a submatrix.(There is no optimization for openCl)
+     * 获取一个与当前矩阵共用显存的子矩阵(不复制数据), 对子矩阵的修改会直接反映到当前矩阵中
+     * 
+     * 子矩阵可以像普通矩阵一样参与所有运算, 适合从一个大的数据集矩阵中切出mini-batch;
+     * 释放当前矩阵后子矩阵随之失效
+     * 
+     * @param i0
+     *            Initial row index
+     * @param i1
+     *            Final row index
+     * @param j0
+     *            Initial column index
+     * @param j1
+     *            Final column index
+     * @return A(i0:i1,j0:j1) 的视图
+     * @exception ArrayIndexOutOfBoundsException
+     *                Submatrix indices
+     */
+    public Matrix getMatrixView(int i0, int i1, int j0, int j1) {
+        if (i0 < 0 || j0 < 0 || i1 >= this.M || j1 >= this.N || i0 > i1 || j0 > j1)
+            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
+        return new Matrix(this, i0, j0, i1 - i0 + 1, j1 - j0 + 1);
+    }
+
+    /**
+     * 当前矩阵是否是另一个矩阵的视图(见 {@link #getMatrixView(int, int, int, int)})
+     * 
+     * @return 如果与其他矩阵共用显存则为true
+     */
+    public boolean isView() {
+        return view;
+    }
+
+    /**
+     * Get a submatrix.
      * 
      * @param r
      *            Array of row indices.
@@ -727,22 +1016,13 @@ public class Matrix implements Cloneable {
      */
 
     public Matrix getMatrix(int[] r, int[] c) {
-        double[][] A = this.getArrayCopy();
-        double[][] B = new double[r.length][c.length];
-        try {
-            for (int i = 0; i < r.length; i++) {
-                for (int j = 0; j < c.length; j++) {
-                    B[i][j] = A[r[i]][c[j]];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
-        }
-        return new Matrix(B);
+        Matrix B = new Matrix(r.length, c.length);
+        gMath.gather(this, r, c, B);
+        return B;
     }
 
     /**
-     * Get a submatrix.(There is no optimization for openCl)
+     * Get a submatrix.
      * 
      * @param i0
      *            Initial row index
@@ -756,22 +1036,11 @@ public class Matrix implements Cloneable {
      */
 
     public Matrix getMatrix(int i0, int i1, int[] c) {
-        double[][] A = this.getArrayCopy();
-        double[][] B = new double[i1 - i0 + 1][c.length];
-        try {
-            for (int i = i0; i <= i1; i++) {
-                for (int j = 0; j < c.length; j++) {
-                    B[i - i0][j] = A[i][c[j]];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
-        }
-        return new Matrix(B);
+        return getMatrix(range(i0, i1), c);
     }
 
     /**
-     * Get a submatrix.(There is no optimization for openCl)
+     * Get a submatrix.
      * 
      * @param r
      *            Array of row indices.
@@ -785,18 +1054,7 @@ public class Matrix implements Cloneable {
      */
 
     public Matrix getMatrix(int[] r, int j0, int j1) {
-        double[][] A = this.getArrayCopy();
-        double[][] B = new double[r.length][j1 - j0 + 1];
-        try {
-            for (int i = 0; i < r.length; i++) {
-                for (int j = j0; j <= j1; j++) {
-                    B[i][j - j0] = A[r[i]][j];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
-        }
-        return new Matrix(B);
+        return getMatrix(r, range(j0, j1));
     }
 
     /**
@@ -821,7 +1079,7 @@ public class Matrix implements Cloneable {
     }
 
     /**
-     * Set a submatrix.(There is no optimization for openCl)
+     * Set a submatrix.
      * 
      * @param r
      *            Array of row indices.
@@ -834,22 +1092,11 @@ public class Matrix implements Cloneable {
      */
 
     public void setMatrix(int[] r, int[] c, Matrix X) {
-        double[][] A = this.getArrayCopy();
-        double[][] XA = X.getArrayCopy();
-        try {
-            for (int i = 0; i < r.length; i++) {
-                for (int j = 0; j < c.length; j++) {
-                    A[r[i]][c[j]] = XA[i][j];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
-        }
-        this.set(A);
+        gMath.scatter(X, r, c, this);
     }
 
     /**
-     * Set a submatrix.(There is no optimization for openCl)
+     * Set a submatrix.
      * 
      * @param r
      *            Array of row indices.
@@ -864,22 +1111,11 @@ public class Matrix implements Cloneable {
      */
 
     public void setMatrix(int[] r, int j0, int j1, Matrix X) {
-        double[][] A = this.getArrayCopy();
-        double[][] XA = X.getArrayCopy();
-        try {
-            for (int i = 0; i < r.length; i++) {
-                for (int j = j0; j <= j1; j++) {
-                    A[r[i]][j] = XA[i][j - j0];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
-        }
-        this.set(A);
+        setMatrix(r, range(j0, j1), X);
     }
 
     /**
-     * Set a submatrix.(There is no optimization for openCl)
+     * Set a submatrix.
      * 
      * @param i0
      *            Initial row index
@@ -894,18 +1130,18 @@ public class Matrix implements Cloneable {
      */
 
     public void setMatrix(int i0, int i1, int[] c, Matrix X) {
-        double[][] A = this.getArrayCopy();
-        double[][] XA = X.getArrayCopy();
-        try {
-            for (int i = i0; i <= i1; i++) {
-                for (int j = 0; j < c.length; j++) {
-                    A[i][c[j]] = XA[i - i0][j];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
+        setMatrix(range(i0, i1), c, X);
+    }
+
+    /*
+     * 生成连续的下标 start, start + 1, ..., end
+     */
+    private static int[] range(int start, int end) {
+        int[] indices = new int[Math.max(0, end - start + 1)];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = start + i;
         }
-        this.set(A);
+        return indices;
     }
 
     /**
@@ -1058,16 +1294,14 @@ public class Matrix implements Cloneable {
 
     @Override
     public String toString() {
-        this.syncFromDevice();
-        FloatBuffer buffer = matrixBuffer.getBuffer();
-        buffer.position(0);
+        double[][] data = this.getArrayCopy();
         String result = "[";
         for (int m = 0; m < M; m++) {
             if (m != 0)
                 result += " ";
             result += "[";
             for (int n = 0; n < N; n++) {
-                result += String.format("%7.2f", buffer.get());
+                result += String.format("%7.2f", data[m][n]);
                 if (n != N - 1)
                     result += ", ";
             }
@@ -1100,13 +1334,30 @@ public class Matrix implements Cloneable {
      */
     public void release() {
         // matrixBuffer.getBuffer().clear();
-        matrixBuffer.release();
+        if (view && !matrixBuffer.isSubBuffer())
+            return; // 与原矩阵共用的缓冲区由原矩阵释放
+        if (!matrixBuffer.isReleased())
+            matrixBuffer.release();
     }
 
     protected CLBuffer<FloatBuffer> getArg() {
         return matrixBuffer;
     }
 
+    /**
+     * @return 第一个元素在缓冲区中的位置
+     */
+    protected int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return 相邻两行在缓冲区中的距离(元素个数)
+     */
+    protected int getPitch() {
+        return pitch;
+    }
+
     protected static GMath getGMath() {
         return Matrix.gMath;
     }
@@ -1121,16 +1372,46 @@ public class Matrix implements Cloneable {
      * 将数据从主机端同步到设备端
      */
     private void syncToDevice() {
-        matrixBuffer.getBuffer().position(0);
-        queue.putWriteBuffer(matrixBuffer, true);
+        writeRegion(offset, M, N);
     }
 
     /**
      * 将数据从设备端同步到主机端
      */
     private void syncFromDevice() {
+        readRegion(offset, M, N);
+    }
+
+    /**
+     * 把主机端缓冲区的一个区域写入设备端(只传输矩阵所占的区域, 不会覆盖共用缓冲区的其他矩阵)
+     * 
+     * @param position
+     *            区域第一个元素在缓冲区中的位置
+     * @param rows
+     *            区域的行数
+     * @param columns
+     *            区域的列数
+     */
+    private void writeRegion(int position, int rows, int columns) {
+        matrixBuffer.getBuffer().position(0);
+        queue.putWriteBufferRect(matrixBuffer, position * 4, 0, 0, position * 4, 0, 0, columns * 4, rows, 1,
+                pitch * 4L, 0, pitch * 4L, 0, true, null, null);
+    }
+
+    /**
+     * 把设备端缓冲区的一个区域读到主机端
+     * 
+     * @param position
+     *            区域第一个元素在缓冲区中的位置
+     * @param rows
+     *            区域的行数
+     * @param columns
+     *            区域的列数
+     */
+    private void readRegion(int position, int rows, int columns) {
         matrixBuffer.getBuffer().position(0);
-        queue.putReadBuffer(matrixBuffer, true);
+        queue.putReadBufferRect(matrixBuffer, position * 4, 0, 0, position * 4, 0, 0, columns * 4, rows, 1,
+                pitch * 4L, 0, pitch * 4L, 0, true, null, null);
     }
 
     /**
@@ -1,5 +1,9 @@
 package com.hyh0.gmath;
 
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
 public class MatrixMath {
     private static GMath gMath = null;
 
@@ -639,4 +643,829 @@ public class MatrixMath {
         gMath.pow(base, input, result);
         return result;
     }
+
+    /**
+     * Y += alpha * X (单个内核, 不需要临时矩阵, 例如 axpy(-lr, dW, W) 完成一步梯度下降)
+     * 
+     * @param alpha
+     *            X的系数
+     * @param X
+     *            输入矩阵
+     * @param Y
+     *            输入矩阵, 运算后保存结果
+     * @return 保存运算结果的矩阵Y
+     */
+    public static Matrix axpy(double alpha, Matrix X, Matrix Y) {
+        gMath.axpby(alpha, X, 1, Y);
+        return Y;
+    }
+
+    /**
+     * Y = alpha * X + beta * Y (单个内核)
+     * 
+     * @param alpha
+     *            X的系数
+     * @param X
+     *            输入矩阵
+     * @param beta
+     *            Y原有值的系数
+     * @param Y
+     *            输入矩阵, 运算后保存结果
+     * @return 保存运算结果的矩阵Y
+     */
+    public static Matrix axpby(double alpha, Matrix X, double beta, Matrix Y) {
+        gMath.axpby(alpha, X, beta, Y);
+        return Y;
+    }
+
+    /**
+     * 逐元素乘加 result = A .* B + C (单个内核, 只舍入一次)
+     * 
+     * @param A
+     *            输入矩阵A
+     * @param B
+     *            输入矩阵B
+     * @param C
+     *            输入矩阵C
+     * @param result
+     *            保存运算结果的矩阵(可以与输入矩阵相同)
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix fma(Matrix A, Matrix B, Matrix C, Matrix result) {
+        gMath.fma(A, B, C, result);
+        return result;
+    }
+
+    /**
+     * 线性插值 result = A + t * (B - A) (单个内核, 例如滑动平均 lerp(avg, x, 1 - decay, avg))
+     * 
+     * @param A
+     *            t为0时的值
+     * @param B
+     *            t为1时的值
+     * @param t
+     *            插值系数
+     * @param result
+     *            保存运算结果的矩阵(可以与输入矩阵相同)
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix lerp(Matrix A, Matrix B, double t, Matrix result) {
+        gMath.lerp(A, B, t, result);
+        return result;
+    }
+
+    /**
+     * 带动量SGD的一步更新, 一个内核完成 (见 {@link com.hyh0.gmath.optim.SGD})
+     * 
+     * @param param
+     *            参数, 运算后保存更新的值
+     * @param grad
+     *            梯度
+     * @param velocity
+     *            速度, 运算后保存更新的值
+     * @param lr
+     *            学习率
+     * @param momentum
+     *            动量系数
+     * @param nesterov
+     *            是否使用Nesterov动量
+     * @param weightDecay
+     *            L2正则化系数
+     */
+    public static void sgdMomentum(Matrix param, Matrix grad, Matrix velocity, double lr, double momentum,
+            boolean nesterov, double weightDecay) {
+        gMath.momentumUpdate(param, grad, velocity, lr, momentum, nesterov, weightDecay);
+    }
+
+    /**
+     * 多张量的带动量SGD, 一次启动更新整组参数
+     */
+    public static void sgdMomentum(MatrixPack params, MatrixPack grads, MatrixPack velocities, double lr,
+            double momentum, boolean nesterov, double weightDecay) {
+        gMath.momentumUpdate(params, grads, velocities, lr, momentum, nesterov, weightDecay);
+    }
+
+    /**
+     * Adam的一步更新, 一个内核完成 (见 {@link com.hyh0.gmath.optim.Adam})
+     * 
+     * @param param
+     *            参数, 运算后保存更新的值
+     * @param grad
+     *            梯度
+     * @param m
+     *            一阶矩, 运算后保存更新的值
+     * @param v
+     *            二阶矩, 运算后保存更新的值
+     * @param lr
+     *            学习率
+     * @param beta1
+     *            一阶矩的衰减率
+     * @param beta2
+     *            二阶矩的衰减率
+     * @param epsilon
+     *            防止除以0的小常数
+     * @param weightDecay
+     *            L2正则化系数
+     * @param step
+     *            当前是第几步(从1开始)
+     */
+    public static void adam(Matrix param, Matrix grad, Matrix m, Matrix v, double lr, double beta1, double beta2,
+            double epsilon, double weightDecay, int step) {
+        gMath.adamUpdate(param, grad, m, v, lr, beta1, beta2, epsilon, weightDecay, step);
+    }
+
+    /**
+     * 多张量的Adam, 一次启动更新整组参数
+     */
+    public static void adam(MatrixPack params, MatrixPack grads, MatrixPack m, MatrixPack v, double lr,
+            double beta1, double beta2, double epsilon, double weightDecay, int step) {
+        gMath.adamUpdate(params, grads, m, v, lr, beta1, beta2, epsilon, weightDecay, step);
+    }
+
+    /**
+     * RMSProp的一步更新, 一个内核完成 (见 {@link com.hyh0.gmath.optim.RMSProp})
+     * 
+     * @param param
+     *            参数, 运算后保存更新的值
+     * @param grad
+     *            梯度
+     * @param meanSquare
+     *            梯度平方的滑动平均, 运算后保存更新的值
+     * @param lr
+     *            学习率
+     * @param decay
+     *            滑动平均的衰减率
+     * @param epsilon
+     *            防止除以0的小常数
+     * @param weightDecay
+     *            L2正则化系数
+     */
+    public static void rmsProp(Matrix param, Matrix grad, Matrix meanSquare, double lr, double decay,
+            double epsilon, double weightDecay) {
+        gMath.rmsPropUpdate(param, grad, meanSquare, lr, decay, epsilon, weightDecay);
+    }
+
+    /**
+     * 多张量的RMSProp, 一次启动更新整组参数
+     */
+    public static void rmsProp(MatrixPack params, MatrixPack grads, MatrixPack meanSquares, double lr,
+            double decay, double epsilon, double weightDecay) {
+        gMath.rmsPropUpdate(params, grads, meanSquares, lr, decay, epsilon, weightDecay);
+    }
+
+    /**
+     * 广义矩阵乘法 C = alpha * A * B + beta * C
+     * 
+     * @param alpha
+     *            乘积的系数
+     * @param A
+     *            矩阵A
+     * @param B
+     *            矩阵B
+     * @param beta
+     *            C原有值的系数(为0时不读取C)
+     * @param C
+     *            保存运算结果的矩阵
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix gemm(double alpha, Matrix A, Matrix B, double beta, Matrix C) {
+        gMath.multiply(alpha, A, B, beta, C);
+        return C;
+    }
+
+    /**
+     * 广义矩阵乘法 C = alpha * op(A) * op(B) + beta * C, op(X)在对应的参数为true时是X', 否则是X
+     * 
+     * 转置的操作数直接按转置的方式读取, 不会生成转置矩阵
+     * 
+     * @param alpha
+     *            乘积的系数
+     * @param A
+     *            矩阵A
+     * @param transA
+     *            是否使用A的转置
+     * @param B
+     *            矩阵B
+     * @param transB
+     *            是否使用B的转置
+     * @param beta
+     *            C原有值的系数(为0时不读取C)
+     * @param C
+     *            保存运算结果的矩阵
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix gemm(double alpha, Matrix A, boolean transA, Matrix B, boolean transB, double beta,
+            Matrix C) {
+        gMath.multiply(alpha, A, transA, B, transB, beta, C);
+        return C;
+    }
+
+    /**
+     * 计算Gram矩阵 result = X' * X 的一侧三角部分 (对称秩k更新, 计算量约为 transpose + gemm 的一半)
+     * 
+     * @param X
+     *            k*n的矩阵(直接按行读取, 不需要转置)
+     * @param result
+     *            n*n的矩阵, 保存结果(另一侧三角的元素不会被修改)
+     * @param upper
+     *            计算上三角(否则为下三角)
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix syrk(Matrix X, Matrix result, boolean upper) {
+        gMath.syrk(1, X, 0, result, upper);
+        return result;
+    }
+
+    /**
+     * 计算Gram矩阵 result = X' * X
+     * 
+     * @param X
+     *            k*n的矩阵(直接按行读取, 不需要转置)
+     * @param result
+     *            n*n的矩阵, 保存结果
+     * @param upper
+     *            计算上三角(否则为下三角)
+     * @param symmetrize
+     *            是否把算出的三角部分复制到另一侧, 得到完整的对称矩阵
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix syrk(Matrix X, Matrix result, boolean upper, boolean symmetrize) {
+        gMath.syrk(1, X, 0, result, upper);
+        if (symmetrize)
+            gMath.symmetrize(result, upper);
+        return result;
+    }
+
+    /**
+     * softmax交叉熵损失, 损失与梯度在一个按行并行的内核中求出
+     * 
+     * @param logits
+     *            m*n的矩阵, 每行是一个样本在n个类别上的得分
+     * @param labels
+     *            m个样本的类别, 保存在显存中
+     * @param gradOut
+     *            m*n的矩阵, 保存平均损失对logits的梯度 (为null时只计算损失, 可以就是logits, 此时梯度覆盖logits)
+     * @return 所有样本的平均损失
+     */
+    public static double softmaxCrossEntropy(Matrix logits, Labels labels, Matrix gradOut) {
+        return gMath.softmaxCrossEntropy(logits, labels, gradOut);
+    }
+
+    /**
+     * 计算两组行向量两两之间的距离 (点积部分用矩阵乘法计算, 每行的范数只计算一次)
+     * 
+     * @param X
+     *            m*d的矩阵
+     * @param Y
+     *            n*d的矩阵
+     * @param metric
+     *            距离的种类
+     * @param result
+     *            m*n的矩阵, result[i][j]是X的第i行与Y的第j行的距离
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix pairwiseDistances(Matrix X, Matrix Y, DistanceMetric metric, Matrix result) {
+        gMath.pairwiseDistances(X, Y, metric, result);
+        return result;
+    }
+
+    /**
+     * 按平方欧氏距离搜索k近邻, 只保留每个查询的k个候选, 不生成完整的距离矩阵
+     * 
+     * @param X
+     *            m*d的查询矩阵
+     * @param Y
+     *            n*d的数据矩阵
+     * @param k
+     *            近邻的个数
+     * @return 每个查询的k个近邻的距离和行号
+     */
+    public static NearestNeighbors knn(Matrix X, Matrix Y, int k) {
+        return gMath.knn(X, Y, k, DistanceMetric.SQUARED_EUCLIDEAN);
+    }
+
+    /**
+     * 搜索k近邻, 只保留每个查询的k个候选, 不生成完整的距离矩阵
+     * 
+     * @param X
+     *            m*d的查询矩阵
+     * @param Y
+     *            n*d的数据矩阵
+     * @param k
+     *            近邻的个数
+     * @param metric
+     *            距离的种类
+     * @return 每个查询的k个近邻的距离和行号
+     */
+    public static NearestNeighbors knn(Matrix X, Matrix Y, int k, DistanceMetric metric) {
+        return gMath.knn(X, Y, k, metric);
+    }
+
+    /**
+     * 把每个点分到最近的中心 (聚类的分配步骤, 在设备上完成)
+     * 
+     * @param X
+     *            n*d的矩阵, 每行一个点
+     * @param centroids
+     *            k*d的矩阵, 每行一个中心
+     * @param labels
+     *            n个标签, 保存每个点所属的中心
+     * @param distances
+     *            n*1的矩阵, 保存每个点到所属中心的距离 (为null时不计算)
+     * @return 标签改变的点的个数
+     */
+    public static int assignClusters(Matrix X, Matrix centroids, Labels labels, Matrix distances) {
+        return gMath.assignClusters(X, centroids, labels, distances);
+    }
+
+    /**
+     * 按标签求每一类的点的和与个数 (分段归约, 在设备上完成)
+     * 
+     * @param X
+     *            n*d的矩阵, 每行一个点
+     * @param labels
+     *            n个标签
+     * @param sums
+     *            k*d的矩阵, 保存每一类的点的和
+     * @param counts
+     *            k*1的矩阵, 保存每一类的点的个数
+     */
+    public static void clusterSums(Matrix X, Labels labels, Matrix sums, Matrix counts) {
+        gMath.clusterSums(X, labels, sums, counts);
+    }
+
+    /**
+     * 用每一类的和与个数更新中心
+     * 
+     * @param centroids
+     *            k*d的矩阵, 每行一个中心
+     * @param sums
+     *            k*d的矩阵, 每一类的点的和
+     * @param counts
+     *            k*1的矩阵, 每一类的点的个数
+     * @param totals
+     *            k*1的矩阵, 之前各批中每一类的点的总数 (小批量模式; 为null时中心直接取平均值)
+     * @return 所有中心移动距离的平方和
+     */
+    public static double updateCentroids(Matrix centroids, Matrix sums, Matrix counts, Matrix totals) {
+        return gMath.updateCentroids(centroids, sums, counts, totals);
+    }
+
+    /**
+     * k-means++初始化, 随机数和加权抽样都在设备上完成
+     * 
+     * @param X
+     *            n*d的矩阵, 每行一个点
+     * @param centroids
+     *            k*d的矩阵, 保存选出的中心
+     * @param seed
+     *            随机数种子
+     * @return centroids
+     */
+    public static Matrix kMeansPlusPlus(Matrix X, Matrix centroids, int seed) {
+        gMath.kMeansPlusPlus(X, centroids, seed);
+        return centroids;
+    }
+
+    /**
+     * 全连接层的前向计算 Y = activation(X * W + b), 乘法, 偏置和激活函数在同一个内核中完成
+     * 
+     * @param X
+     *            m*n的输入
+     * @param W
+     *            n*p的权重
+     * @param b
+     *            p个元素的偏置向量(为null时不加偏置)
+     * @param activation
+     *            激活函数
+     * @param Y
+     *            m*p的矩阵, 保存结果
+     * @return Y
+     */
+    public static Matrix dense(Matrix X, Matrix W, Matrix b, Activation activation, Matrix Y) {
+        gMath.denseForward(X, W, b, activation, Y, null);
+        return Y;
+    }
+
+    /**
+     * 全连接层的前向计算 Y = activation(X * W + b), 同时保存激活前的值 (使用GELU并且需要反向传播时)
+     * 
+     * @param X
+     *            m*n的输入
+     * @param W
+     *            n*p的权重
+     * @param b
+     *            p个元素的偏置向量(为null时不加偏置)
+     * @param activation
+     *            激活函数
+     * @param Y
+     *            m*p的矩阵, 保存结果
+     * @param Z
+     *            m*p的矩阵, 保存激活前的值 X * W + b
+     * @return Y
+     */
+    public static Matrix dense(Matrix X, Matrix W, Matrix b, Activation activation, Matrix Y, Matrix Z) {
+        gMath.denseForward(X, W, b, activation, Y, Z);
+        return Y;
+    }
+
+    /**
+     * 全连接层的反向传播, 激活函数的导数在乘法内核读取gradY时计算, 偏置的梯度与权重的梯度在同一个内核中求出,
+     * X'和W'由内核直接按转置读取, 不需要另外保存转置矩阵
+     * 
+     * @param gradY
+     *            m*p, 对层输出的梯度
+     * @param cache
+     *            m*p, 前向计算的输出Y (使用GELU时为前向保存的激活前的值Z)
+     * @param activation
+     *            前向计算使用的激活函数
+     * @param X
+     *            m*n, 前向计算的输入
+     * @param W
+     *            n*p, 前向计算的权重
+     * @param gradX
+     *            m*n的矩阵, 保存对输入的梯度(为null时不计算, 比如第一层)
+     * @param gradW
+     *            n*p的矩阵, 保存对权重的梯度
+     * @param gradB
+     *            p个元素的向量, 保存对偏置的梯度(为null时不计算)
+     */
+    public static void denseBackward(Matrix gradY, Matrix cache, Activation activation, Matrix X, Matrix W,
+            Matrix gradX, Matrix gradW, Matrix gradB) {
+        gMath.denseBackwardWeights(X, gradY, cache, activation, gradW, gradB, 0);
+        if (gradX != null)
+            gMath.denseBackwardInput(gradY, cache, activation, W, gradX);
+    }
+
+    /**
+     * 用Strassen-Winograd算法计算 C = A * B (适合8k以上的方阵, 比普通乘法少约1/8的计算量, 但误差略大)
+     * 
+     * @param A
+     *            矩阵A
+     * @param B
+     *            矩阵B
+     * @param C
+     *            保存运算结果的矩阵(不能与A, B的显存重叠)
+     * @return 保存运算结果的矩阵
+     */
+    public static Matrix strassen(Matrix A, Matrix B, Matrix C) {
+        gMath.multiplyStrassen(A, B, C);
+        return C;
+    }
+
+    /**
+     * Strassen-Winograd算法相对于普通乘法的误差
+     * 
+     * @param A
+     *            矩阵A
+     * @param B
+     *            矩阵B
+     * @return 相对误差 ||S - C||F / ||C||F
+     */
+    public static double strassenError(Matrix A, Matrix B) {
+        return gMath.strassenError(A, B);
+    }
+
+    /**
+     * 设置矩阵乘法自动使用Strassen-Winograd算法的大小
+     * 
+     * @param threshold
+     *            三个维度都不小于它时使用(默认8192), 0表示不自动使用
+     */
+    public static void setStrassenThreshold(int threshold) {
+        gMath.setStrassenThreshold(threshold);
+    }
+
+    /**
+     * 设置Strassen-Winograd递归的终止大小
+     * 
+     * @param cutoff
+     *            任一维度不大于它时改用普通乘法(默认2048)
+     */
+    public static void setStrassenCutoff(int cutoff) {
+        gMath.setStrassenCutoff(cutoff);
+    }
+
+    /**
+     * 核外矩阵乘法 c = a * b, 用于放不进显存的大矩阵
+     * 
+     * 矩阵按块从主机内存流经显存, 上传, 计算和下载在不同的队列上重叠进行. 一个缓冲区不能超过2GB,
+     * 更大的矩阵请使用按行分段或文件的版本
+     * 
+     * @param a
+     *            按行优先保存的m*k矩阵(直接缓冲区)
+     * @param b
+     *            按行优先保存的k*n矩阵(直接缓冲区)
+     * @param c
+     *            保存结果的m*n矩阵(直接缓冲区)
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长(显存中同时保存6个块, 通常取2048~8192)
+     */
+    public static void multiplyOutOfCore(FloatBuffer a, FloatBuffer b, FloatBuffer c, int m, int k, int n,
+            int tileSize) {
+        gMath.multiplyOutOfCore(a, b, c, m, k, n, tileSize);
+    }
+
+    /**
+     * 核外矩阵乘法 c = a * b, 每个矩阵按行分成若干个直接缓冲区, 总大小不受单个缓冲区2GB的限制
+     * 
+     * @param a
+     *            m*k的矩阵按行分成的段(除最后一段外每段保存整数行)
+     * @param b
+     *            k*n的矩阵按行分成的段
+     * @param c
+     *            保存结果的m*n矩阵按行分成的段
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长(显存中同时保存6个块, 通常取2048~8192)
+     */
+    public static void multiplyOutOfCore(FloatBuffer[] a, FloatBuffer[] b, FloatBuffer[] c, int m, int k, int n,
+            int tileSize) {
+        gMath.multiplyOutOfCore(a, b, c, m, k, n, tileSize);
+    }
+
+    /**
+     * 核外矩阵乘法 c = a * b, 三个矩阵按行优先保存在文件中(本机字节序的float), 按段映射到内存后流经显存
+     * 
+     * @param a
+     *            保存m*k矩阵的文件
+     * @param b
+     *            保存k*n矩阵的文件
+     * @param c
+     *            保存结果的文件(必须以读写方式打开)
+     * @param m
+     *            a的行数
+     * @param k
+     *            a的列数(b的行数)
+     * @param n
+     *            b的列数
+     * @param tileSize
+     *            块的边长(显存中同时保存6个块, 通常取2048~8192)
+     * @throws IOException
+     *             映射文件失败
+     */
+    public static void multiplyOutOfCore(FileChannel a, FileChannel b, FileChannel c, int m, int k, int n,
+            int tileSize) throws IOException {
+        gMath.multiplyOutOfCore(a, b, c, m, k, n, tileSize);
+    }
+
+    /**
+     * 三角方程组分块求解时每块的大小
+     */
+    private static final int TRIANGULAR_BLOCK = 64;
+
+    /**
+     * 解三角方程组 T * X = B, 结果保存在B中
+     * 
+     * 按 {@value #TRIANGULAR_BLOCK} 行分块: 对角块用三角求解内核, 其余部分用矩阵乘法更新, 大部分计算量都在矩阵乘法中
+     * 
+     * @param T
+     *            三角矩阵(方阵, 另一半的元素不会被读取)
+     * @param B
+     *            方程右侧的矩阵, 运算后保存结果
+     * @param lower
+     *            T是否是下三角矩阵(否则为上三角矩阵)
+     * @param unitDiagonal
+     *            是否把T的对角线视为1
+     * @return 保存运算结果的矩阵B
+     */
+    public static Matrix solveTriangular(Matrix T, Matrix B, boolean lower, boolean unitDiagonal) {
+        return solveTriangular(T, B, lower, false, unitDiagonal);
+    }
+
+    /**
+     * 解三角方程组 op(T) * X = B, op(T)在transpose为true时是T', 否则是T, 结果保存在B中
+     * 
+     * 转置时对角块的求解和矩阵乘法都直接按转置的方式读取T, 不会生成转置矩阵
+     * 
+     * @param T
+     *            三角矩阵(方阵, 另一半的元素不会被读取)
+     * @param B
+     *            方程右侧的矩阵, 运算后保存结果
+     * @param lower
+     *            T(而不是op(T))是否是下三角矩阵
+     * @param transpose
+     *            是否解转置的方程组
+     * @param unitDiagonal
+     *            是否把T的对角线视为1
+     * @return 保存运算结果的矩阵B
+     */
+    public static Matrix solveTriangular(Matrix T, Matrix B, boolean lower, boolean transpose,
+            boolean unitDiagonal) {
+        int n = T.getRowDimension();
+        if (n != T.getColumnDimension() || n != B.getRowDimension())
+            throw new IllegalArgumentException("矩阵的大小不符合解三角方程组的条件");
+        int columns = B.getColumnDimension();
+        if (n <= TRIANGULAR_BLOCK) {
+            gMath.triangularSolve(T, B, lower, transpose, unitDiagonal);
+            return B;
+        }
+        // op(T)是下三角时从上往下解, 上三角时从下往上解
+        boolean forward = lower != transpose;
+        for (int step = 0; step < n; step += TRIANGULAR_BLOCK) {
+            int blockSize = Math.min(TRIANGULAR_BLOCK, n - step);
+            int j0 = forward ? step : n - step - blockSize;
+            int j1 = j0 + blockSize - 1;
+            Matrix diagonalBlock = T.getMatrixView(j0, j1, j0, j1);
+            Matrix solved = B.getMatrixView(j0, j1, 0, columns - 1);
+            gMath.triangularSolve(diagonalBlock, solved, lower, transpose, unitDiagonal);
+            // rest -= op(T)(rest的行, j0:j1) * solved, 转置时取T中对称位置的块
+            Matrix rest = null, coupling = null;
+            if (forward && j1 < n - 1) {
+                rest = B.getMatrixView(j1 + 1, n - 1, 0, columns - 1);
+                coupling = transpose ? T.getMatrixView(j0, j1, j1 + 1, n - 1) : T.getMatrixView(j1 + 1, n - 1, j0, j1);
+            } else if (!forward && j0 > 0) {
+                rest = B.getMatrixView(0, j0 - 1, 0, columns - 1);
+                coupling = transpose ? T.getMatrixView(j0, j1, 0, j0 - 1) : T.getMatrixView(0, j0 - 1, j0, j1);
+            }
+            if (rest != null) {
+                gMath.multiply(-1, coupling, transpose, solved, false, 1, rest);
+                rest.release();
+                coupling.release();
+            }
+            diagonalBlock.release();
+            solved.release();
+        }
+        return B;
+    }
+
+    /**
+     * 随机化的截断奇异值分解, 只求前k个奇异值和奇异向量
+     * 
+     * 用高斯随机矩阵对A的列空间采样 Y = A*Omega, 经过powerIters次幂迭代 Y = A*(A'*Y) 提高精度后正交化得到Q,
+     * 再对小矩阵 B = Q'*A 做奇异值分解. 计算量主要是 O(m*n*(k+oversample)) 的矩阵乘法
+     * 
+     * @param A
+     *            要分解的矩阵
+     * @param k
+     *            需要的奇异值个数
+     * @param oversample
+     *            额外的采样列数(通常取5到10)
+     * @param powerIters
+     *            幂迭代次数(奇异值衰减较慢时取1到2)
+     * @return 只包含前k个奇异值和奇异向量的分解(U为m*k, V为n*k)
+     */
+    public static SingularValueDecomposition randomizedSvd(Matrix A, int k, int oversample, int powerIters) {
+        int m = A.getRowDimension();
+        int n = A.getColumnDimension();
+        int l = Math.min(k + oversample, Math.min(m, n));
+        if (k <= 0 || k > l)
+            throw new IllegalArgumentException("k必须在1到min(m, n)之间");
+
+        // A'只通过转置的矩阵乘法读取, 不生成n*m的转置矩阵
+        Matrix omega = Matrix.randn(n, l);
+        Matrix Y = new Matrix(m, l);
+        gMath.multiply(A, omega, Y);
+        omega.release();
+        Matrix Z = new Matrix(n, l);
+        for (int i = 0; i < powerIters; i++) {
+            // 每次相乘前重新正交化, 避免小奇异值方向被舍入误差淹没
+            Matrix Q = orthonormalize(Y);
+            gMath.multiply(1, A, true, Q, false, 0, Z);
+            Q.release();
+            Q = orthonormalize(Z);
+            gMath.multiply(A, Q, Y);
+            Q.release();
+        }
+        Z.release();
+        Matrix Q = orthonormalize(Y);
+        Y.release();
+
+        // B = Q' * A
+        Matrix B = new Matrix(l, n);
+        gMath.multiply(1, Q, true, A, false, 0, B);
+        SingularValueDecomposition svd = new SingularValueDecomposition(B);
+        B.release();
+
+        Matrix UB = svd.getU();
+        Matrix VB = svd.getV();
+        double[] sAll = svd.getSingularValues();
+        svd.release();
+        Matrix UAll = new Matrix(m, l);
+        gMath.multiply(Q, UB, UAll);
+        Q.release();
+        UB.release();
+
+        Matrix U = UAll.getMatrix(0, m - 1, 0, k - 1);
+        Matrix V = VB.getMatrix(0, n - 1, 0, k - 1);
+        UAll.release();
+        VB.release();
+        double[] s = new double[k];
+        System.arraycopy(sAll, 0, s, 0, k);
+        return new SingularValueDecomposition(U, s, V);
+    }
+
+    /*
+     * 用QR分解求列空间的一组标准正交基
+     */
+    private static Matrix orthonormalize(Matrix Y) {
+        QRDecomposition qr = new QRDecomposition(Y);
+        Matrix Q = qr.getQ();
+        qr.release();
+        return Q;
+    }
+
+    /**
+     * 两个列向量的点积
+     * 
+     * @param x
+     *            列向量x
+     * @param y
+     *            列向量y
+     * @return x'y
+     */
+    public static double dot(Matrix x, Matrix y) {
+        return gMath.dot(x, y);
+    }
+
+    /**
+     * 用共轭梯度法解对称正定方程组 A*x = b, 全部计算在设备上完成, 每次迭代只读回一个残差值
+     * 
+     * @param A
+     *            对称正定矩阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public static int cg(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations) {
+        return gMath.conjugateGradient(A, b, x, tolerance, maxIterations, false);
+    }
+
+    /**
+     * 用共轭梯度法解对称正定方程组 A*x = b
+     * 
+     * @param A
+     *            对称正定矩阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @param jacobi
+     *            是否使用Jacobi(对角线)预处理, 对角线元素相差悬殊时能明显减少迭代次数
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public static int cg(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations, boolean jacobi) {
+        return gMath.conjugateGradient(A, b, x, tolerance, maxIterations, jacobi);
+    }
+
+    /**
+     * 用BiCGSTAB法解一般(非对称)的方程组 A*x = b, 全部计算在设备上完成, 每次迭代只读回一个残差值
+     * 
+     * @param A
+     *            方阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public static int bicgstab(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations) {
+        return gMath.biCGStab(A, b, x, tolerance, maxIterations, false);
+    }
+
+    /**
+     * 用BiCGSTAB法解一般(非对称)的方程组 A*x = b
+     * 
+     * @param A
+     *            方阵
+     * @param b
+     *            方程右侧的列向量
+     * @param x
+     *            初始值, 运算后保存解
+     * @param tolerance
+     *            收敛条件 ||b - A*x|| &lt;= tolerance * ||b||
+     * @param maxIterations
+     *            最大迭代次数
+     * @param jacobi
+     *            是否使用Jacobi(对角线)预处理
+     * @return 迭代次数, 没有收敛时为 -1
+     */
+    public static int bicgstab(Matrix A, Matrix b, Matrix x, double tolerance, int maxIterations, boolean jacobi) {
+        return gMath.biCGStab(A, b, x, tolerance, maxIterations, jacobi);
+    }
 }
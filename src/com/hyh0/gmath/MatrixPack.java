@@ -0,0 +1,162 @@
+package com.hyh0.gmath;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.opencl.CLBuffer;
+import com.jogamp.opencl.CLCommandQueue;
+import com.jogamp.opencl.CLContext;
+import com.jogamp.opencl.CLMemory;
+
+/**
+ * 连续保存在同一个设备缓冲区中的一组矩阵
+ *
+ * 每个矩阵的用法与普通矩阵相同(它们是缓冲区的视图), 但多张量内核可以在一次启动中处理整组矩阵,
+ * 例如 {@link MatrixMath} 中的优化器更新. 用同一组大小创建的矩阵组布局完全相同
+ */
+public class MatrixPack {
+    private static final int ALIGNMENT = 16; // 每个矩阵的起点对齐的元素个数
+
+    private CLBuffer<FloatBuffer> buffer;
+    private CLBuffer<IntBuffer> table; // 每个矩阵5个整数: 偏移, 行距, 行数, 列数, 第一个float4的序号
+    private Matrix[] matrices;
+    private int quads; // 所有矩阵的float4个数之和
+
+    /**
+     * 创建一组矩阵, 元素全部初始化为0
+     *
+     * @param rows
+     *            每个矩阵的行数
+     * @param columns
+     *            每个矩阵的列数
+     */
+    public MatrixPack(int[] rows, int[] columns) {
+        if (rows.length != columns.length || rows.length == 0)
+            throw new IllegalArgumentException("行数与列数的个数必须相同且不为0");
+        Matrix.init();
+        GMath gMath = Matrix.getGMath();
+        CLContext context = gMath.getContext();
+        CLCommandQueue queue = gMath.getQueue();
+
+        int count = rows.length;
+        int[] layout = new int[count * 5];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (rows[i] <= 0 || columns[i] <= 0)
+                throw new IllegalArgumentException("矩阵的大小必须是正数");
+            int pitch = columns[i] == 1 ? 1 : roundUp(Matrix.getRowAlignment(), columns[i]);
+            layout[i * 5] = size;
+            layout[i * 5 + 1] = pitch;
+            layout[i * 5 + 2] = rows[i];
+            layout[i * 5 + 3] = columns[i];
+            layout[i * 5 + 4] = quads;
+            quads += rows[i] * ((columns[i] + 3) / 4);
+            size = roundUp(ALIGNMENT, size + (rows[i] - 1) * pitch + columns[i]);
+        }
+
+        buffer = context.createFloatBuffer(size, CLMemory.Mem.READ_WRITE);
+        queue.putWriteBuffer(buffer, false);
+        table = context.createIntBuffer(layout.length, CLMemory.Mem.READ_ONLY);
+        table.getBuffer().put(layout).position(0);
+        queue.putWriteBuffer(table, true);
+
+        matrices = new Matrix[count];
+        for (int i = 0; i < count; i++) {
+            matrices[i] = new Matrix(buffer, layout[i * 5], rows[i], columns[i], layout[i * 5 + 1]);
+        }
+    }
+
+    /**
+     * 创建一组与另一组矩阵大小相同的矩阵(例如梯度和优化器的状态), 元素全部初始化为0
+     *
+     * @param layout
+     *            作为参照的矩阵组
+     */
+    public MatrixPack(MatrixPack layout) {
+        this(layout.getRowDimensions(), layout.getColumnDimensions());
+    }
+
+    private static int roundUp(int alignment, int size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * 获取组中的一个矩阵 (与矩阵组共用显存, 不需要单独释放)
+     *
+     * @param index
+     *            矩阵的序号
+     * @return 矩阵
+     */
+    public Matrix get(int index) {
+        return matrices[index];
+    }
+
+    /**
+     * @return 矩阵的个数
+     */
+    public int size() {
+        return matrices.length;
+    }
+
+    /**
+     * 两组矩阵的布局是否相同(个数和每个矩阵的大小都相同)
+     *
+     * @param other
+     *            另一组矩阵
+     * @return 布局相同时为true
+     */
+    public boolean hasSameLayout(MatrixPack other) {
+        if (other.matrices.length != matrices.length)
+            return false;
+        for (int i = 0; i < matrices.length; i++) {
+            if (matrices[i].getRowDimension() != other.matrices[i].getRowDimension()
+                    || matrices[i].getColumnDimension() != other.matrices[i].getColumnDimension())
+                return false;
+        }
+        return true;
+    }
+
+    private int[] getRowDimensions() {
+        int[] rows = new int[matrices.length];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = matrices[i].getRowDimension();
+        }
+        return rows;
+    }
+
+    private int[] getColumnDimensions() {
+        int[] columns = new int[matrices.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = matrices[i].getColumnDimension();
+        }
+        return columns;
+    }
+
+    CLBuffer<FloatBuffer> getBuffer() {
+        return buffer;
+    }
+
+    CLBuffer<IntBuffer> getTable() {
+        return table;
+    }
+
+    int getQuads() {
+        return quads;
+    }
+
+    /**
+     * 释放显存空间 (组中所有的矩阵都不能再使用)
+     */
+    public void release() {
+        if (!buffer.isReleased())
+            buffer.release();
+        if (!table.isReleased())
+            table.release();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        this.release();
+    }
+}
@@ -0,0 +1,53 @@
+package com.hyh0.gmath;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按大小缓存临时矩阵的显存池, 避免在递归算法中反复申请和释放显存
+ *
+ * 从池中取出的矩阵内容是不确定的, 使用者必须先完整写入再读取
+ */
+class MatrixPool {
+    private Map<Long, ArrayDeque<Matrix>> free = new HashMap<Long, ArrayDeque<Matrix>>();
+
+    /**
+     * 取出一个 m*n 的矩阵, 池中没有时新建
+     */
+    Matrix acquire(int m, int n) {
+        ArrayDeque<Matrix> matrices = free.get(key(m, n));
+        if (matrices == null || matrices.isEmpty())
+            return new Matrix(m, n);
+        return matrices.pop();
+    }
+
+    /**
+     * 把用完的矩阵放回池中
+     */
+    void recycle(Matrix matrix) {
+        long key = key(matrix.getRowDimension(), matrix.getColumnDimension());
+        ArrayDeque<Matrix> matrices = free.get(key);
+        if (matrices == null) {
+            matrices = new ArrayDeque<Matrix>();
+            free.put(key, matrices);
+        }
+        matrices.push(matrix);
+    }
+
+    /**
+     * 释放池中所有的矩阵
+     */
+    void clear() {
+        for (ArrayDeque<Matrix> matrices : free.values()) {
+            for (Matrix matrix : matrices) {
+                matrix.release();
+            }
+        }
+        free.clear();
+    }
+
+    private static long key(int m, int n) {
+        return ((long) m << 32) | n;
+    }
+}
@@ -0,0 +1,43 @@
+package com.hyh0.gmath;
+
+/**
+ * k近邻搜索的结果: 每个查询(X的一行)在Y中最近的k行, 按距离升序排列
+ */
+public class NearestNeighbors {
+    private Matrix distances;
+    private int[][] indices;
+
+    NearestNeighbors(Matrix distances, int[][] indices) {
+        this.distances = distances;
+        this.indices = indices;
+    }
+
+    /**
+     * 获取近邻的距离
+     *
+     * @return m*k的矩阵, 第i行是第i个查询到它的k个近邻的距离 (与结果共用显存)
+     */
+    public Matrix getDistances() {
+        return distances;
+    }
+
+    /**
+     * 获取近邻在Y中的行号
+     *
+     * @return m*k的数组, 第i行是第i个查询的k个近邻的行号
+     */
+    public int[][] getIndices() {
+        int[][] copy = new int[indices.length][];
+        for (int i = 0; i < indices.length; i++) {
+            copy[i] = indices[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        distances.release();
+    }
+}
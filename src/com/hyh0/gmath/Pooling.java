@@ -0,0 +1,145 @@
+package com.hyh0.gmath;
+
+/**
+ * 二维池化层的几何描述与计算 (最大池化和平均池化)
+ *
+ * 每个通道独立地在 R*S 的窗口上取最大值或平均值, 输出是 N*C*P*Q 的张量, 其中 P = (H + 2*padding - R) / stride + 1,
+ * Q同理. 补0的位置不参与计算, 平均值只除以窗口中位于输入内的元素个数.
+ * 最大池化的反向计算从输入中重新找出每个窗口的最大值, 前向计算不需要保存最大值的位置
+ */
+public class Pooling {
+    private final TensorShape input;
+    private final TensorShape output;
+    private final int windowHeight;
+    private final int windowWidth;
+    private final int stride;
+    private final int padding;
+
+    /**
+     * @param input
+     *            输入张量的形状
+     * @param windowHeight
+     *            窗口的高
+     * @param windowWidth
+     *            窗口的宽
+     * @param stride
+     *            步长
+     * @param padding
+     *            四周补0的宽度 (必须小于窗口的大小)
+     */
+    public Pooling(TensorShape input, int windowHeight, int windowWidth, int stride, int padding) {
+        if (windowHeight <= 0 || windowWidth <= 0 || stride <= 0 || padding < 0 || padding >= windowHeight
+                || padding >= windowWidth)
+            throw new IllegalArgumentException("池化的参数不合法");
+        if (input.getHeight() + 2 * padding < windowHeight || input.getWidth() + 2 * padding < windowWidth)
+            throw new IllegalArgumentException("窗口比补0后的输入大");
+        int p = (input.getHeight() + 2 * padding - windowHeight) / stride + 1;
+        int q = (input.getWidth() + 2 * padding - windowWidth) / stride + 1;
+        this.input = input;
+        this.output = new TensorShape(input.getBatchSize(), input.getChannels(), p, q);
+        this.windowHeight = windowHeight;
+        this.windowWidth = windowWidth;
+        this.stride = stride;
+        this.padding = padding;
+    }
+
+    /**
+     * 最大池化
+     *
+     * @param input
+     *            输入张量
+     * @param output
+     *            保存结果的张量
+     * @return output
+     */
+    public Matrix max(Matrix input, Matrix output) {
+        Matrix.getGMath().pool(this, input, output, false);
+        return output;
+    }
+
+    /**
+     * 最大池化的反向计算, 梯度只传给每个窗口的最大值 (有相同的最大值时传给第一个)
+     *
+     * @param input
+     *            前向计算的输入
+     * @param gradOutput
+     *            对输出的梯度
+     * @param gradInput
+     *            保存对输入的梯度
+     * @return gradInput
+     */
+    public Matrix maxBackward(Matrix input, Matrix gradOutput, Matrix gradInput) {
+        Matrix.getGMath().poolBackward(this, input, gradOutput, gradInput, false);
+        return gradInput;
+    }
+
+    /**
+     * 平均池化
+     *
+     * @param input
+     *            输入张量
+     * @param output
+     *            保存结果的张量
+     * @return output
+     */
+    public Matrix average(Matrix input, Matrix output) {
+        Matrix.getGMath().pool(this, input, output, true);
+        return output;
+    }
+
+    /**
+     * 平均池化的反向计算
+     *
+     * @param gradOutput
+     *            对输出的梯度
+     * @param gradInput
+     *            保存对输入的梯度
+     * @return gradInput
+     */
+    public Matrix averageBackward(Matrix gradOutput, Matrix gradInput) {
+        Matrix.getGMath().poolBackward(this, gradInput, gradOutput, gradInput, true);
+        return gradInput;
+    }
+
+    /**
+     * @return 输入张量的形状
+     */
+    public TensorShape getInputShape() {
+        return input;
+    }
+
+    /**
+     * @return 输出张量的形状
+     */
+    public TensorShape getOutputShape() {
+        return output;
+    }
+
+    /**
+     * @return 窗口的高R
+     */
+    public int getWindowHeight() {
+        return windowHeight;
+    }
+
+    /**
+     * @return 窗口的宽S
+     */
+    public int getWindowWidth() {
+        return windowWidth;
+    }
+
+    /**
+     * @return 步长
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return 补0的宽度
+     */
+    public int getPadding() {
+        return padding;
+    }
+}
@@ -0,0 +1,275 @@
+package com.hyh0.gmath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分块Householder QR分解 (接口与JAMA的QRDecomposition类似)
+ *
+ * 对 m*n (m&gt;=n) 的矩阵A, 求得正交矩阵Q和上三角矩阵R, 使 A = Q*R
+ *
+ * 每次取出 {@value #BLOCK} 列的面板在主机端用双精度求Householder向量, 把面板内的反射累积成紧凑WY形式
+ * H1*H2*...*Hk = I - V*T*V', 然后用三次矩阵乘法把它作用到右侧的子矩阵上. Householder向量保存在R的下方(对角线视为1),
+ * 每块的T保存在主机端
+ */
+public class QRDecomposition {
+    /**
+     * 面板的列数
+     */
+    private static final int BLOCK = 32;
+
+    private Matrix QR;
+    private int m, n;
+    private double[] Rdiag;
+    private List<double[][]> blockT = new ArrayList<double[][]>();
+
+    /**
+     * QR分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            要分解的矩阵
+     */
+    public QRDecomposition(Matrix A) {
+        m = A.getRowDimension();
+        n = A.getColumnDimension();
+        QR = A.copy();
+        int k = Math.min(m, n);
+        Rdiag = new double[n];
+        for (int k0 = 0; k0 < k; k0 += BLOCK) {
+            int kb = Math.min(BLOCK, k - k0);
+            int k1 = k0 + kb - 1;
+
+            // 在主机端分解面板 QR(k0:m-1, k0:k1)
+            Matrix panel = QR.getMatrixView(k0, m - 1, k0, k1);
+            double[][] p = panel.getArrayCopy();
+            double[] tau = new double[kb];
+            for (int j = 0; j < kb; j++) {
+                double alpha = p[j][j];
+                double xnorm = 0;
+                for (int i = j + 1; i < p.length; i++) {
+                    xnorm = Math.hypot(xnorm, p[i][j]);
+                }
+                if (xnorm == 0.0) {
+                    tau[j] = 0.0;
+                    Rdiag[k0 + j] = alpha;
+                    continue;
+                }
+                double beta = alpha >= 0 ? -Math.hypot(alpha, xnorm) : Math.hypot(alpha, xnorm);
+                tau[j] = (beta - alpha) / beta;
+                double scale = 1.0 / (alpha - beta);
+                for (int i = j + 1; i < p.length; i++) {
+                    p[i][j] *= scale;
+                }
+                p[j][j] = beta;
+                Rdiag[k0 + j] = beta;
+                // 把 Hj = I - tau*v*v' 作用到面板右侧的列上
+                for (int c = j + 1; c < kb; c++) {
+                    double s = p[j][c];
+                    for (int i = j + 1; i < p.length; i++) {
+                        s += p[i][j] * p[i][c];
+                    }
+                    s *= tau[j];
+                    p[j][c] -= s;
+                    for (int i = j + 1; i < p.length; i++) {
+                        p[i][c] -= s * p[i][j];
+                    }
+                }
+            }
+            panel.set(p);
+            panel.release();
+
+            double[][] T = triangularFactor(p, tau);
+            blockT.add(T);
+
+            if (k1 < n - 1) {
+                Matrix A22 = QR.getMatrixView(k0, m - 1, k1 + 1, n - 1);
+                applyBlock(blockT.size() - 1, A22, true);
+                A22.release();
+            }
+        }
+    }
+
+    /**
+     * 把第block块的反射 I - V*T*V' (transpose为true时为 I - V*T'*V') 作用到target上
+     *
+     * @param target
+     *            从该块的第一行开始的子矩阵, 运算后保存结果
+     */
+    private void applyBlock(int block, Matrix target, boolean transpose) {
+        int k0 = block * BLOCK;
+        double[][] T = blockT.get(block);
+        Matrix panel = QR.getMatrixView(k0, m - 1, k0, k0 + T.length - 1);
+        applyReflectors(panel, T, target, transpose);
+        panel.release();
+    }
+
+    /**
+     * 由Householder向量和系数计算紧凑WY形式的上三角矩阵T, 使 H1*H2*...*Hk = I - V*T*V'
+     *
+     * @param p
+     *            第j列的j行以下保存第j个Householder向量(对角线视为1, 上方视为0)
+     * @param tau
+     *            每个反射的系数
+     * @return k*k的上三角矩阵T
+     */
+    static double[][] triangularFactor(double[][] p, double[] tau) {
+        int kb = tau.length;
+        double[][] T = new double[kb][kb];
+        // T(0:j-1, j) = -tau(j) * T(0:j-1, 0:j-1) * V(:, 0:j-1)' * v(j)
+        for (int j = 0; j < kb; j++) {
+            T[j][j] = tau[j];
+            double[] w = new double[j];
+            for (int i = 0; i < j; i++) {
+                double s = p[j][i]; // V(j, i) * V(j, j), V(j, j) = 1
+                for (int l = j + 1; l < p.length; l++) {
+                    s += p[l][i] * p[l][j];
+                }
+                w[i] = s;
+            }
+            for (int i = 0; i < j; i++) {
+                double s = 0;
+                for (int l = i; l < j; l++) {
+                    s += T[i][l] * w[l];
+                }
+                T[i][j] = -tau[j] * s;
+            }
+        }
+        return T;
+    }
+
+    /**
+     * 把一组反射 I - V*T*V' (transpose为true时为 I - V*T'*V') 作用到target上, 全部在设备上用矩阵乘法完成
+     *
+     * @param panel
+     *            下三角部分保存Householder向量的矩阵(对角线视为1, 上方视为0), 行数与target相同
+     * @param T
+     *            紧凑WY形式的上三角矩阵
+     * @param target
+     *            运算后保存结果
+     */
+    static void applyReflectors(Matrix panel, double[][] T, Matrix target, boolean transpose) {
+        GMath gMath = Matrix.getGMath();
+        int kb = T.length;
+        int rows = panel.getRowDimension();
+        int columns = target.getColumnDimension();
+
+        Matrix V = new Matrix(rows, kb);
+        gMath.triangle(panel, V, true, true);
+        Matrix VT = new Matrix(kb, rows);
+        gMath.transpose(V, VT);
+        double[][] tData = new double[kb][kb];
+        for (int i = 0; i < kb; i++) {
+            for (int j = 0; j < kb; j++) {
+                tData[i][j] = transpose ? T[j][i] : T[i][j];
+            }
+        }
+        Matrix TMatrix = new Matrix(tData);
+
+        // target -= V * (T * (V' * target))
+        Matrix W = new Matrix(kb, columns);
+        Matrix TW = new Matrix(kb, columns);
+        gMath.multiply(VT, target, W);
+        gMath.multiply(TMatrix, W, TW);
+        gMath.multiply(-1, V, TW, 1, target);
+
+        V.release();
+        VT.release();
+        TMatrix.release();
+        W.release();
+        TW.release();
+    }
+
+    /**
+     * 矩阵是否列满秩
+     *
+     * @return 如果R的对角线上没有0则为true
+     */
+    public boolean isFullRank() {
+        for (int j = 0; j < n; j++) {
+            if (j >= m || Rdiag[j] == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获取Householder向量 (单位下梯形矩阵, 第j列是第j个反射的向量)
+     *
+     * @return m*min(m,n)的矩阵
+     */
+    public Matrix getH() {
+        Matrix H = new Matrix(m, Math.min(m, n));
+        Matrix.getGMath().triangle(QR, H, true, true);
+        return H;
+    }
+
+    /**
+     * 获取上三角因子R
+     *
+     * @return min(m,n)*n的矩阵
+     */
+    public Matrix getR() {
+        Matrix R = new Matrix(Math.min(m, n), n);
+        Matrix.getGMath().triangle(QR, R, false, false);
+        return R;
+    }
+
+    /**
+     * 获取正交因子Q (经济型)
+     *
+     * @return m*min(m,n)的矩阵
+     */
+    public Matrix getQ() {
+        int k = Math.min(m, n);
+        Matrix Q = Matrix.identity(m, k);
+        for (int block = blockT.size() - 1; block >= 0; block--) {
+            int k0 = block * BLOCK;
+            Matrix target = Q.getMatrixView(k0, m - 1, k0, k - 1);
+            applyBlock(block, target, false);
+            target.release();
+        }
+        return Q;
+    }
+
+    /**
+     * 求方程组 A*X = B 的最小二乘解
+     *
+     * @param B
+     *            行数与A相同的矩阵
+     * @return 使 ||A*X - B|| 最小的X
+     * @exception IllegalArgumentException
+     *                矩阵的行数不符
+     * @exception RuntimeException
+     *                矩阵不是列满秩的
+     */
+    public Matrix solve(Matrix B) {
+        if (B.getRowDimension() != m) {
+            throw new IllegalArgumentException("矩阵的行数不符");
+        }
+        if (!this.isFullRank()) {
+            throw new RuntimeException("矩阵不是列满秩的");
+        }
+        int columns = B.getColumnDimension();
+        // Y = Q' * B
+        Matrix Y = B.copy();
+        for (int block = 0; block < blockT.size(); block++) {
+            Matrix target = Y.getMatrixView(block * BLOCK, m - 1, 0, columns - 1);
+            applyBlock(block, target, true);
+            target.release();
+        }
+        // R * X = Y(0:n-1, :)
+        Matrix X = Y.getMatrix(0, n - 1, 0, columns - 1);
+        Y.release();
+        Matrix R = QR.getMatrixView(0, n - 1, 0, n - 1);
+        MatrixMath.solveTriangular(R, X, false, false);
+        R.release();
+        return X;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        QR.release();
+    }
+}
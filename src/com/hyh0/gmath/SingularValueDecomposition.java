@@ -0,0 +1,209 @@
+package com.hyh0.gmath;
+
+/**
+ * 奇异值分解 (接口与JAMA的SingularValueDecomposition类似)
+ *
+ * 对 m*n 的矩阵A, 求得 U (m*k), S (k*k) 和 V (n*k), 使 A = U*S*V', 其中 k = min(m, n)
+ *
+ * 在设备上用对称秩k更新计算Gram矩阵 A'*A (不需要转置A), 用 {@link EigenvalueDecomposition} 求它的特征值分解,
+ * 再用一次矩阵乘法得到另一侧的奇异向量. m&lt;n 时转置一次, 对较小一侧的 A*A' 做同样的计算.
+ * 由于Gram矩阵使条件数平方, 小于 sqrt(eps)*最大奇异值 的奇异值精度较低
+ */
+public class SingularValueDecomposition {
+    private int m, n;
+    private double[] s; // 奇异值(降序)
+    private Matrix U = null, V = null;
+
+    /**
+     * 奇异值分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            要分解的矩阵
+     */
+    public SingularValueDecomposition(Matrix A) {
+        this(A, true);
+    }
+
+    /**
+     * 奇异值分解 (原矩阵不会被修改)
+     *
+     * @param A
+     *            要分解的矩阵
+     * @param computeVectors
+     *            是否计算奇异向量(只需要奇异值时, 比如求范数和秩, 可以省去大部分计算)
+     */
+    public SingularValueDecomposition(Matrix A, boolean computeVectors) {
+        m = A.getRowDimension();
+        n = A.getColumnDimension();
+        if (m >= n) {
+            factor(A, computeVectors, false);
+        } else {
+            // A' 的左右奇异向量就是 A 的右左奇异向量
+            Matrix AT = new Matrix(n, m);
+            Matrix.getGMath().transpose(A, AT);
+            factor(AT, computeVectors, true);
+            AT.release();
+        }
+    }
+
+    /*
+     * 分解 r*k (r >= k) 的矩阵A, transposed 为true时A是原矩阵的转置, 左右奇异向量交换
+     */
+    private void factor(Matrix A, boolean computeVectors, boolean transposed) {
+        GMath gMath = Matrix.getGMath();
+        int r = A.getRowDimension();
+        int k = A.getColumnDimension();
+
+        // G = A'*A, 内核按行读取A, 只算上三角再复制到下三角
+        Matrix G = new Matrix(k, k);
+        gMath.syrk(1, A, 0, G, true);
+        gMath.symmetrize(G, true);
+        EigenvalueDecomposition eig = new EigenvalueDecomposition(G, computeVectors);
+        G.release();
+
+        double[] lambda = eig.getRealEigenvalues();
+        s = new double[k];
+        for (int i = 0; i < k; i++) {
+            s[i] = Math.sqrt(Math.max(lambda[k - 1 - i], 0.0));
+        }
+
+        if (computeVectors) {
+            // 特征值是升序的, 把特征向量的列反过来
+            int[] rows = new int[k], columns = new int[k];
+            for (int i = 0; i < k; i++) {
+                rows[i] = i;
+                columns[i] = k - 1 - i;
+            }
+            Matrix eigenvectors = eig.getV();
+            Matrix W = eigenvectors.getMatrix(rows, columns);
+            eigenvectors.release();
+
+            // 另一侧 = A * W * S^-1, 零奇异值对应的列置为0
+            double[][] inverse = new double[k][k];
+            for (int i = 0; i < k; i++) {
+                inverse[i][i] = s[i] == 0.0 ? 0.0 : 1.0 / s[i];
+            }
+            Matrix SInverse = new Matrix(inverse);
+            Matrix WS = new Matrix(k, k);
+            gMath.multiply(W, SInverse, WS);
+            Matrix other = new Matrix(r, k);
+            gMath.multiply(A, WS, other);
+            SInverse.release();
+            WS.release();
+            if (transposed) {
+                U = W;
+                V = other;
+            } else {
+                V = W;
+                U = other;
+            }
+        }
+        eig.release();
+    }
+
+    /*
+     * 由已经算好的结果构造(用于截断的奇异值分解)
+     */
+    SingularValueDecomposition(Matrix U, double[] s, Matrix V) {
+        this.m = U.getRowDimension();
+        this.n = V.getRowDimension();
+        this.U = U;
+        this.s = s;
+        this.V = V;
+    }
+
+    /**
+     * 获取左奇异向量
+     *
+     * @return U
+     */
+    public Matrix getU() {
+        checkVectors();
+        return U.copy();
+    }
+
+    /**
+     * 获取右奇异向量
+     *
+     * @return V
+     */
+    public Matrix getV() {
+        checkVectors();
+        return V.copy();
+    }
+
+    /**
+     * 获取奇异值(降序)
+     *
+     * @return 奇异值
+     */
+    public double[] getSingularValues() {
+        return s.clone();
+    }
+
+    /**
+     * 获取奇异值组成的对角矩阵
+     *
+     * @return S
+     */
+    public Matrix getS() {
+        double[][] data = new double[s.length][s.length];
+        for (int i = 0; i < s.length; i++) {
+            data[i][i] = s[i];
+        }
+        return new Matrix(data);
+    }
+
+    /**
+     * 2范数
+     *
+     * @return 最大奇异值
+     */
+    public double norm2() {
+        return s[0];
+    }
+
+    /**
+     * 2范数下的条件数
+     *
+     * @return 最大奇异值与最小奇异值的比
+     */
+    public double cond() {
+        return s[0] / s[s.length - 1];
+    }
+
+    /**
+     * 有效数值秩
+     *
+     * 单精度的Gram矩阵使小奇异值的误差约为 sqrt(eps) 量级, 因此阈值取 s[0]*sqrt(eps*sqrt(max(m,n)))
+     *
+     * @return 大于阈值的奇异值个数
+     */
+    public int rank() {
+        double eps = Math.ulp(1.0f);
+        double tol = s[0] * Math.sqrt(eps * Math.sqrt(Math.max(m, n)));
+        int r = 0;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] > tol) {
+                r++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        if (U != null)
+            U.release();
+        if (V != null)
+            V.release();
+    }
+
+    private void checkVectors() {
+        if (U == null) {
+            throw new IllegalStateException("分解时没有计算奇异向量");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.hyh0.gmath;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.opencl.CLBuffer;
+import com.jogamp.opencl.CLCommandQueue;
+import com.jogamp.opencl.CLContext;
+import com.jogamp.opencl.CLMemory;
+
+/**
+ * 保存在显存中的CSR(压缩行)格式稀疏矩阵
+ *
+ * 第m行的非零元素是 values[rowPointers[m]] 到 values[rowPointers[m+1]-1], 它们的列号保存在columnIndices中,
+ * 三个数组各占一个设备缓冲区. 同一行的列号不要求有序, 但不能重复
+ */
+public class SparseMatrix {
+    private int M;
+    private int N;
+    private int nonZeros;
+    private CLBuffer<IntBuffer> rowPointers;
+    private CLBuffer<IntBuffer> columnIndices;
+    private CLBuffer<FloatBuffer> values;
+
+    /**
+     * 由主机端的CSR数组创建稀疏矩阵
+     *
+     * @param m
+     *            矩阵的行数
+     * @param n
+     *            矩阵的列数
+     * @param rowPointers
+     *            每行第一个非零元素的位置(长度为m+1, rowPointers[0] = 0, rowPointers[m] = 非零元素个数)
+     * @param columnIndices
+     *            每个非零元素的列号
+     * @param values
+     *            非零元素的值
+     * @exception IllegalArgumentException
+     *                数组不是合法的CSR格式
+     */
+    public SparseMatrix(int m, int n, int[] rowPointers, int[] columnIndices, double[] values) {
+        if (m <= 0 || n <= 0)
+            throw new IllegalArgumentException("矩阵的大小必须是正数");
+        if (rowPointers.length != m + 1 || rowPointers[0] != 0)
+            throw new IllegalArgumentException("rowPointers的长度必须是m+1, 并且从0开始");
+        int nnz = rowPointers[m];
+        if (columnIndices.length != nnz || values.length != nnz)
+            throw new IllegalArgumentException("columnIndices与values的长度必须等于rowPointers[m]");
+        for (int i = 0; i < m; i++) {
+            if (rowPointers[i] > rowPointers[i + 1])
+                throw new IllegalArgumentException("rowPointers必须是非递减的");
+        }
+        for (int j : columnIndices) {
+            if (j < 0 || j >= n)
+                throw new IllegalArgumentException("列号超出矩阵范围: " + j);
+        }
+
+        allocate(m, n, nnz);
+        CLCommandQueue queue = Matrix.getGMath().getQueue();
+        this.rowPointers.getBuffer().put(rowPointers).position(0);
+        queue.putWriteBuffer(this.rowPointers, false);
+        if (nnz > 0) {
+            this.columnIndices.getBuffer().put(columnIndices).position(0);
+            FloatBuffer data = this.values.getBuffer();
+            for (double value : values) {
+                data.put((float) value);
+            }
+            data.position(0);
+            queue.putWriteBuffer(this.columnIndices, false);
+            queue.putWriteBuffer(this.values, false);
+        }
+        queue.finish();
+    }
+
+    /**
+     * 把稠密矩阵转换成稀疏矩阵, 统计非零元素, 求行指针和复制非零元素都在设备上完成
+     *
+     * @param dense
+     *            稠密矩阵(不会被修改)
+     */
+    public SparseMatrix(Matrix dense) {
+        Matrix.getGMath().toSparse(dense, this);
+    }
+
+    /*
+     * 申请显存 (非零元素个数为0时仍分配一个元素, OpenCl不允许大小为0的缓冲区)
+     */
+    void allocate(int m, int n, int nnz) {
+        Matrix.init();
+        CLContext context = Matrix.getGMath().getContext();
+        this.M = m;
+        this.N = n;
+        this.nonZeros = nnz;
+        if (rowPointers == null)
+            rowPointers = context.createIntBuffer(m + 1, CLMemory.Mem.READ_WRITE);
+        columnIndices = context.createIntBuffer(Math.max(1, nnz), CLMemory.Mem.READ_WRITE);
+        values = context.createFloatBuffer(Math.max(1, nnz), CLMemory.Mem.READ_WRITE);
+    }
+
+    /*
+     * 只申请行指针, 用于在设备上统计非零元素之后再申请其余的缓冲区
+     */
+    void allocateRowPointers(int m) {
+        Matrix.init();
+        rowPointers = Matrix.getGMath().getContext().createIntBuffer(m + 1, CLMemory.Mem.READ_WRITE);
+    }
+
+    /**
+     * 转换成稠密矩阵
+     *
+     * @return 新的稠密矩阵
+     */
+    public Matrix toDense() {
+        Matrix result = new Matrix(M, N);
+        Matrix.getGMath().toDense(this, result);
+        return result;
+    }
+
+    /**
+     * 转换成稠密矩阵, 结果保存在result中
+     *
+     * @param result
+     *            与稀疏矩阵大小相同的矩阵
+     * @return result
+     */
+    public Matrix toDense(Matrix result) {
+        Matrix.getGMath().toDense(this, result);
+        return result;
+    }
+
+    /**
+     * 稀疏矩阵乘稠密矩阵 C = A * B (B是列向量时使用专门的SpMV内核)
+     *
+     * @param B
+     *            稠密矩阵
+     * @param C
+     *            保存结果的矩阵
+     * @return C
+     */
+    public Matrix times(Matrix B, Matrix C) {
+        Matrix.getGMath().multiply(1, this, B, 0, C);
+        return C;
+    }
+
+    /**
+     * 稀疏矩阵乘稠密矩阵
+     *
+     * @param B
+     *            稠密矩阵
+     * @return 新的矩阵 A * B
+     */
+    public Matrix times(Matrix B) {
+        Matrix C = new Matrix(M, B.getColumnDimension());
+        Matrix.getGMath().multiply(1, this, B, 0, C);
+        return C;
+    }
+
+    /**
+     * 广义乘法 C = alpha * A * B + beta * C
+     *
+     * @param alpha
+     *            乘积的系数
+     * @param B
+     *            稠密矩阵
+     * @param beta
+     *            C原有值的系数(为0时不读取C)
+     * @param C
+     *            保存结果的矩阵
+     * @return C
+     */
+    public Matrix times(double alpha, Matrix B, double beta, Matrix C) {
+        Matrix.getGMath().multiply(alpha, this, B, beta, C);
+        return C;
+    }
+
+    /**
+     * @return 行数
+     */
+    public int getRowDimension() {
+        return M;
+    }
+
+    /**
+     * @return 列数
+     */
+    public int getColumnDimension() {
+        return N;
+    }
+
+    /**
+     * @return 非零元素的个数
+     */
+    public int getNonZeros() {
+        return nonZeros;
+    }
+
+    CLBuffer<IntBuffer> getRowPointers() {
+        return rowPointers;
+    }
+
+    CLBuffer<IntBuffer> getColumnIndices() {
+        return columnIndices;
+    }
+
+    CLBuffer<FloatBuffer> getValues() {
+        return values;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        for (CLMemory<?> buffer : new CLMemory<?>[] { rowPointers, columnIndices, values }) {
+            if (buffer != null && !buffer.isReleased())
+                buffer.release();
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        this.release();
+    }
+}
@@ -0,0 +1,90 @@
+package com.hyh0.gmath;
+
+/**
+ * 一批NCHW格式张量的形状 (样本数, 通道数, 高, 宽)
+ *
+ * 张量保存在普通的 {@link Matrix} 中: 每个样本一行, 第n个样本的元素 (c, h, w) 位于第n行的第 (c*H + h)*W + w 列,
+ * 所以矩阵是 N * (C*H*W) 的. 卷积和池化只按这个形状解释矩阵, 不需要额外的显存
+ */
+public class TensorShape {
+    private final int n, c, h, w;
+
+    /**
+     * @param n
+     *            样本数
+     * @param c
+     *            通道数
+     * @param h
+     *            高
+     * @param w
+     *            宽
+     */
+    public TensorShape(int n, int c, int h, int w) {
+        if (n <= 0 || c <= 0 || h <= 0 || w <= 0)
+            throw new IllegalArgumentException("张量的每个维度都必须是正数");
+        this.n = n;
+        this.c = c;
+        this.h = h;
+        this.w = w;
+    }
+
+    /**
+     * @return 样本数
+     */
+    public int getBatchSize() {
+        return n;
+    }
+
+    /**
+     * @return 通道数
+     */
+    public int getChannels() {
+        return c;
+    }
+
+    /**
+     * @return 高
+     */
+    public int getHeight() {
+        return h;
+    }
+
+    /**
+     * @return 宽
+     */
+    public int getWidth() {
+        return w;
+    }
+
+    /**
+     * @return 每个样本的元素个数 C*H*W (保存张量的矩阵的列数)
+     */
+    public int getSampleSize() {
+        return c * h * w;
+    }
+
+    /**
+     * 创建保存这个形状的张量的矩阵, 元素全部初始化为0
+     *
+     * @return N * (C*H*W) 的矩阵
+     */
+    public Matrix createMatrix() {
+        return new Matrix(n, getSampleSize());
+    }
+
+    /**
+     * 矩阵的大小是否与这个形状相符
+     *
+     * @param matrix
+     *            保存张量的矩阵
+     * @return 矩阵是 N * (C*H*W) 的时为true
+     */
+    public boolean matches(Matrix matrix) {
+        return matrix.getRowDimension() == n && matrix.getColumnDimension() == getSampleSize();
+    }
+
+    @Override
+    public String toString() {
+        return n + "*" + c + "*" + h + "*" + w;
+    }
+}
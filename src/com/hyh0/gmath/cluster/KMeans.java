@@ -0,0 +1,309 @@
+package com.hyh0.gmath.cluster;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Random;
+
+import com.hyh0.gmath.Labels;
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixMath;
+
+/**
+ * 在设备上运行的k-means聚类
+ *
+ * 分配(距离和最小值), 按类别累加中心(分段归约), 更新中心和收敛判断都是 {@link Matrix} 缓冲区上的内核,
+ * 每次迭代只把标签改变的个数和中心移动的距离读回主机. 中心用k-means++初始化, 随机数由设备产生.
+ * 数据放不进显存时可以使用小批量模式 {@link #fitMiniBatch}, 每次从主机上随机抽取一批点上传,
+ * 主机上的数据可以分成若干段, 也可以直接映射文件, 所以点的总数不受单个缓冲区2GB的限制
+ */
+public class KMeans {
+    private final int k;
+    private int maxIterations = 300;
+    private double tolerance = 1e-8;
+    private int seed = new Random().nextInt();
+    private Matrix centroids;
+    private Labels labels;
+    private double inertia;
+    private int iterations;
+
+    /**
+     * @param k
+     *            类别的个数
+     */
+    public KMeans(int k) {
+        if (k <= 0)
+            throw new IllegalArgumentException("类别的个数必须是正数");
+        this.k = k;
+    }
+
+    /**
+     * @param maxIterations
+     *            最大迭代次数(默认300, 小批量模式下是批数)
+     * @return 当前对象
+     */
+    public KMeans setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    /**
+     * @param tolerance
+     *            中心移动距离的平方和不超过它时认为已经收敛(默认1e-8)
+     * @return 当前对象
+     */
+    public KMeans setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * @param seed
+     *            k-means++初始化和小批量抽样的随机数种子
+     * @return 当前对象
+     */
+    public KMeans setSeed(int seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * 对显存中的数据聚类 (Lloyd算法)
+     *
+     * 标签不再改变或者中心移动的距离足够小时停止
+     *
+     * @param X
+     *            n*d的矩阵, 每行一个点
+     * @return 当前对象
+     */
+    public KMeans fit(Matrix X) {
+        int n = X.getRowDimension();
+        int d = X.getColumnDimension();
+        release();
+        centroids = MatrixMath.kMeansPlusPlus(X, new Matrix(k, d), seed);
+        labels = new Labels(n);
+        Matrix sums = new Matrix(k, d);
+        Matrix counts = new Matrix(k, 1);
+        for (iterations = 0; iterations < maxIterations;) {
+            int changes = MatrixMath.assignClusters(X, centroids, labels, null);
+            iterations++;
+            if (changes == 0)
+                break;
+            MatrixMath.clusterSums(X, labels, sums, counts);
+            if (MatrixMath.updateCentroids(centroids, sums, counts, null) <= tolerance)
+                break;
+        }
+        sums.release();
+        counts.release();
+        inertia = inertia(X, labels);
+        return this;
+    }
+
+    /**
+     * 小批量k-means: 数据保存在主机上, 每次随机抽取batchSize个点上传到显存, 用这一批更新中心
+     * (每个中心是所有分到它的点的平均值, 与见过的点的总数成比例地越来越稳定)
+     *
+     * 显存中只有一批点, 所以数据可以远大于显存
+     *
+     * @param data
+     *            行优先排列的n*d个元素 (从当前位置开始, 位置不变)
+     * @param d
+     *            每个点的维数
+     * @param batchSize
+     *            每批的点数
+     * @return 当前对象
+     */
+    public KMeans fitMiniBatch(FloatBuffer data, int d, int batchSize) {
+        if (d <= 0)
+            throw new IllegalArgumentException("点的维数必须是正数");
+        FloatBuffer block = data.slice();
+        block.limit(data.remaining() / d * d);
+        return fitMiniBatch(new FloatBuffer[] { block }, d, batchSize);
+    }
+
+    /**
+     * 小批量k-means, 数据按行分成若干段, 每段是一个保存连续若干整点(行优先)的缓冲区
+     *
+     * @param blocks
+     *            各段的数据 (从各自的当前位置开始, 位置不变), 每段剩余的元素个数必须是d的整数倍
+     * @param d
+     *            每个点的维数
+     * @param batchSize
+     *            每批的点数
+     * @return 当前对象
+     * @see #fitMiniBatch(FloatBuffer, int, int)
+     */
+    public KMeans fitMiniBatch(FloatBuffer[] blocks, int d, int batchSize) {
+        if (d <= 0)
+            throw new IllegalArgumentException("点的维数必须是正数");
+        FloatBuffer[] views = new FloatBuffer[blocks.length];
+        long[] ends = new long[blocks.length];
+        long n = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i].remaining() % d != 0)
+                throw new IllegalArgumentException("每段必须保存整数个点: 第" + i + "段");
+            views[i] = blocks[i].slice();
+            n += blocks[i].remaining() / d;
+            ends[i] = n;
+        }
+        if (batchSize <= 0 || batchSize > n)
+            throw new IllegalArgumentException("每批的点数必须在1到点的个数之间");
+        if ((long) batchSize * d > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("一批点的元素个数不能超过Integer.MAX_VALUE: " + batchSize + "*" + d);
+        release();
+        Random random = new Random(seed);
+        float[] staging = new float[batchSize * d];
+        Matrix batch = new Matrix(batchSize, d);
+        labels = new Labels(batchSize);
+        Matrix sums = new Matrix(k, d);
+        Matrix counts = new Matrix(k, 1);
+        Matrix totals = new Matrix(k, 1);
+
+        sample(views, ends, d, random, staging, batch);
+        centroids = MatrixMath.kMeansPlusPlus(batch, new Matrix(k, d), seed);
+        for (iterations = 0; iterations < maxIterations;) {
+            if (iterations > 0)
+                sample(views, ends, d, random, staging, batch);
+            MatrixMath.assignClusters(batch, centroids, labels, null);
+            MatrixMath.clusterSums(batch, labels, sums, counts);
+            double shift = MatrixMath.updateCentroids(centroids, sums, counts, totals);
+            totals.plusEquals(counts);
+            iterations++;
+            if (shift <= tolerance)
+                break;
+        }
+        inertia = inertia(batch, labels);
+        batch.release();
+        sums.release();
+        counts.release();
+        totals.release();
+        labels.release();
+        labels = null;
+        return this;
+    }
+
+    /**
+     * 小批量k-means, 数据是文件中行优先排列的float (本机字节序), 按不超过2GB的段只读映射到内存
+     *
+     * @param file
+     *            保存数据的文件, 点的个数是 文件大小/(4*d)
+     * @param d
+     *            每个点的维数
+     * @param batchSize
+     *            每批的点数
+     * @return 当前对象
+     * @throws IOException
+     *             映射文件失败
+     * @see #fitMiniBatch(FloatBuffer, int, int)
+     */
+    public KMeans fitMiniBatch(FileChannel file, int d, int batchSize) throws IOException {
+        if (d <= 0)
+            throw new IllegalArgumentException("点的维数必须是正数");
+        long n = file.size() / 4 / d;
+        long blockRows = Math.max(1, Integer.MAX_VALUE / 4 / d);
+        FloatBuffer[] blocks = new FloatBuffer[(int) ((n + blockRows - 1) / blockRows)];
+        for (int i = 0; i < blocks.length; i++) {
+            long count = Math.min(blockRows, n - i * blockRows);
+            blocks[i] = file.map(MapMode.READ_ONLY, i * blockRows * d * 4, count * d * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        return fitMiniBatch(blocks, d, batchSize);
+    }
+
+    /*
+     * 随机抽取batch的行数个点上传到batch, ends[i]是前i+1段的点数之和
+     */
+    private static void sample(FloatBuffer[] blocks, long[] ends, int d, Random random, float[] staging,
+            Matrix batch) {
+        long n = ends[ends.length - 1];
+        for (int i = 0; i < batch.getRowDimension(); i++) {
+            long row = n <= Integer.MAX_VALUE ? random.nextInt((int) n) : (long) (random.nextDouble() * n);
+            int block = 0;
+            while (row >= ends[block])
+                block++;
+            long start = (row - (block == 0 ? 0 : ends[block - 1])) * d;
+            blocks[block].position((int) start);
+            blocks[block].get(staging, i * d, d);
+        }
+        batch.set(FloatBuffer.wrap(staging));
+    }
+
+    /*
+     * 所有点到所属中心的距离的平方和
+     */
+    private double inertia(Matrix X, Labels labels) {
+        Matrix distances = new Matrix(X.getRowDimension(), 1);
+        MatrixMath.assignClusters(X, centroids, labels, distances);
+        double norm = distances.normF();
+        distances.release();
+        return norm * norm;
+    }
+
+    /**
+     * 把点分到最近的中心
+     *
+     * @param X
+     *            n*d的矩阵, 每行一个点
+     * @return 每个点所属的中心 (保存在显存中)
+     */
+    public Labels predict(Matrix X) {
+        checkFitted();
+        Labels result = new Labels(X.getRowDimension());
+        MatrixMath.assignClusters(X, centroids, result, null);
+        return result;
+    }
+
+    /**
+     * 获取中心
+     *
+     * @return k*d的矩阵, 每行一个中心
+     */
+    public Matrix getCentroids() {
+        checkFitted();
+        return centroids.copy();
+    }
+
+    /**
+     * 获取训练数据的标签 (只有 {@link #fit(Matrix)} 之后可用)
+     *
+     * @return 每个点所属的中心
+     */
+    public int[] getLabels() {
+        if (labels == null)
+            throw new IllegalStateException("只有fit(Matrix)之后才保存训练数据的标签");
+        return labels.get();
+    }
+
+    /**
+     * @return 所有点到所属中心的距离的平方和 (小批量模式下为最后一批的值)
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * @return 实际的迭代次数
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * 释放显存空间
+     */
+    public void release() {
+        if (centroids != null)
+            centroids.release();
+        if (labels != null)
+            labels.release();
+        centroids = null;
+        labels = null;
+    }
+
+    private void checkFitted() {
+        if (centroids == null)
+            throw new IllegalStateException("还没有训练");
+    }
+}
@@ -0,0 +1,83 @@
+package com.hyh0.gmath.optim;
+
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixMath;
+import com.hyh0.gmath.MatrixPack;
+
+/**
+ * Adam: 用梯度的一阶矩和二阶矩的滑动估计(经过偏差修正)自适应地调整每个参数的步长
+ *
+ * m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2, p -= lr * m' / (sqrt(v') + epsilon)
+ */
+public class Adam extends Optimizer {
+    private double beta1 = 0.9;
+    private double beta2 = 0.999;
+    private double epsilon = 1e-8;
+    private Matrix[] m, v;
+    private MatrixPack packedM, packedV;
+
+    /**
+     * @param learningRate
+     *            学习率(常用0.001)
+     * @param parameters
+     *            要优化的参数
+     */
+    public Adam(double learningRate, Matrix... parameters) {
+        super(learningRate, parameters);
+        m = createState();
+        v = createState();
+    }
+
+    /**
+     * @param learningRate
+     *            学习率(常用0.001)
+     * @param parameters
+     *            要优化的参数(整组一次更新)
+     */
+    public Adam(double learningRate, MatrixPack parameters) {
+        super(learningRate, parameters);
+        packedM = createPackedState();
+        packedV = createPackedState();
+    }
+
+    /**
+     * @param beta1
+     *            一阶矩的衰减率(默认0.9)
+     * @param beta2
+     *            二阶矩的衰减率(默认0.999)
+     * @return 当前优化器
+     */
+    public Adam setBetas(double beta1, double beta2) {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        return this;
+    }
+
+    /**
+     * @param epsilon
+     *            防止除以0的小常数(默认1e-8)
+     * @return 当前优化器
+     */
+    public Adam setEpsilon(double epsilon) {
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    @Override
+    protected void update(int index, Matrix parameter, Matrix gradient, int step) {
+        MatrixMath.adam(parameter, gradient, m[index], v[index], learningRate, beta1, beta2, epsilon, weightDecay,
+                step);
+    }
+
+    @Override
+    protected void update(MatrixPack parameters, MatrixPack gradients, int step) {
+        MatrixMath.adam(parameters, gradients, packedM, packedV, learningRate, beta1, beta2, epsilon, weightDecay,
+                step);
+    }
+
+    @Override
+    public void release() {
+        releaseState(m, packedM);
+        releaseState(v, packedV);
+    }
+}
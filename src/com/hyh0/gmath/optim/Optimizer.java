@@ -0,0 +1,154 @@
+package com.hyh0.gmath.optim;
+
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixPack;
+
+/**
+ * 优化器的基类
+ *
+ * 参数可以是一组独立的矩阵(每个矩阵启动一次更新内核), 也可以是一个 {@link MatrixPack}(整组参数只启动一次内核,
+ * 梯度也必须是布局相同的MatrixPack). 每个内核一次读取参数, 梯度和状态并写回, 不产生临时矩阵.
+ * 优化器的状态(动量, 矩估计等)在创建时分配, 初始为0
+ */
+public abstract class Optimizer {
+    private final Matrix[] parameters;
+    private final MatrixPack packedParameters;
+    protected double learningRate;
+    protected double weightDecay = 0;
+    private int step = 0;
+
+    /**
+     * @param learningRate
+     *            学习率
+     * @param parameters
+     *            要优化的参数
+     */
+    protected Optimizer(double learningRate, Matrix... parameters) {
+        if (parameters.length == 0)
+            throw new IllegalArgumentException("没有要优化的参数");
+        this.learningRate = learningRate;
+        this.parameters = parameters.clone();
+        this.packedParameters = null;
+    }
+
+    /**
+     * @param learningRate
+     *            学习率
+     * @param parameters
+     *            要优化的参数(整组一次更新)
+     */
+    protected Optimizer(double learningRate, MatrixPack parameters) {
+        this.learningRate = learningRate;
+        this.parameters = null;
+        this.packedParameters = parameters;
+    }
+
+    /**
+     * 用梯度更新一次参数
+     *
+     * @param gradients
+     *            与参数一一对应的梯度
+     */
+    public void step(Matrix... gradients) {
+        if (parameters == null)
+            throw new IllegalStateException("参数是MatrixPack, 梯度也必须是MatrixPack");
+        if (gradients.length != parameters.length)
+            throw new IllegalArgumentException("梯度与参数的个数不同");
+        step++;
+        for (int i = 0; i < parameters.length; i++) {
+            update(i, parameters[i], gradients[i], step);
+        }
+    }
+
+    /**
+     * 用梯度更新一次整组参数 (只启动一次内核)
+     *
+     * @param gradients
+     *            与参数布局相同的梯度
+     */
+    public void step(MatrixPack gradients) {
+        if (packedParameters == null)
+            throw new IllegalStateException("参数不是MatrixPack");
+        step++;
+        update(packedParameters, gradients, step);
+    }
+
+    /**
+     * 更新第index个参数
+     */
+    protected abstract void update(int index, Matrix parameter, Matrix gradient, int step);
+
+    /**
+     * 更新整组参数
+     */
+    protected abstract void update(MatrixPack parameters, MatrixPack gradients, int step);
+
+    /**
+     * 创建与每个参数大小相同的0矩阵 (参数是MatrixPack时返回null)
+     */
+    protected Matrix[] createState() {
+        if (parameters == null)
+            return null;
+        Matrix[] state = new Matrix[parameters.length];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = new Matrix(parameters[i].getRowDimension(), parameters[i].getColumnDimension());
+        }
+        return state;
+    }
+
+    /**
+     * 创建与参数布局相同的0矩阵组 (参数不是MatrixPack时返回null)
+     */
+    protected MatrixPack createPackedState() {
+        return packedParameters == null ? null : new MatrixPack(packedParameters);
+    }
+
+    /**
+     * 释放状态占用的显存
+     */
+    protected static void releaseState(Matrix[] state, MatrixPack packedState) {
+        if (state != null) {
+            for (Matrix matrix : state) {
+                matrix.release();
+            }
+        }
+        if (packedState != null)
+            packedState.release();
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    /**
+     * @param learningRate
+     *            新的学习率(用于学习率衰减)
+     */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    /**
+     * @param weightDecay
+     *            L2正则化系数, 更新前加到梯度上(默认为0)
+     */
+    public void setWeightDecay(double weightDecay) {
+        this.weightDecay = weightDecay;
+    }
+
+    /**
+     * @return 已经更新的次数
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * 释放优化器状态占用的显存 (参数本身不会被释放)
+     */
+    public abstract void release();
+}
@@ -0,0 +1,74 @@
+package com.hyh0.gmath.optim;
+
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixMath;
+import com.hyh0.gmath.MatrixPack;
+
+/**
+ * RMSProp: 用梯度平方的滑动平均归一化步长
+ *
+ * s = decay * s + (1 - decay) * g^2, p -= lr * g / (sqrt(s) + epsilon)
+ */
+public class RMSProp extends Optimizer {
+    private double decay = 0.9;
+    private double epsilon = 1e-8;
+    private Matrix[] meanSquares;
+    private MatrixPack packedMeanSquares;
+
+    /**
+     * @param learningRate
+     *            学习率(常用0.001)
+     * @param parameters
+     *            要优化的参数
+     */
+    public RMSProp(double learningRate, Matrix... parameters) {
+        super(learningRate, parameters);
+        meanSquares = createState();
+    }
+
+    /**
+     * @param learningRate
+     *            学习率(常用0.001)
+     * @param parameters
+     *            要优化的参数(整组一次更新)
+     */
+    public RMSProp(double learningRate, MatrixPack parameters) {
+        super(learningRate, parameters);
+        packedMeanSquares = createPackedState();
+    }
+
+    /**
+     * @param decay
+     *            滑动平均的衰减率(默认0.9)
+     * @return 当前优化器
+     */
+    public RMSProp setDecay(double decay) {
+        this.decay = decay;
+        return this;
+    }
+
+    /**
+     * @param epsilon
+     *            防止除以0的小常数(默认1e-8)
+     * @return 当前优化器
+     */
+    public RMSProp setEpsilon(double epsilon) {
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    @Override
+    protected void update(int index, Matrix parameter, Matrix gradient, int step) {
+        MatrixMath.rmsProp(parameter, gradient, meanSquares[index], learningRate, decay, epsilon, weightDecay);
+    }
+
+    @Override
+    protected void update(MatrixPack parameters, MatrixPack gradients, int step) {
+        MatrixMath.rmsProp(parameters, gradients, packedMeanSquares, learningRate, decay, epsilon, weightDecay);
+    }
+
+    @Override
+    public void release() {
+        releaseState(meanSquares, packedMeanSquares);
+    }
+}
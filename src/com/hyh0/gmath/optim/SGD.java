@@ -0,0 +1,72 @@
+package com.hyh0.gmath.optim;
+
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixMath;
+import com.hyh0.gmath.MatrixPack;
+
+/**
+ * 带动量的随机梯度下降: v = momentum * v + g, p -= lr * v
+ *
+ * 使用Nesterov动量时 p -= lr * (g + momentum * v). 动量为0时就是普通的SGD
+ */
+public class SGD extends Optimizer {
+    private double momentum;
+    private boolean nesterov = false;
+    private Matrix[] velocities;
+    private MatrixPack packedVelocities;
+
+    /**
+     * @param learningRate
+     *            学习率
+     * @param momentum
+     *            动量系数(常用0.9)
+     * @param parameters
+     *            要优化的参数
+     */
+    public SGD(double learningRate, double momentum, Matrix... parameters) {
+        super(learningRate, parameters);
+        this.momentum = momentum;
+        velocities = createState();
+    }
+
+    /**
+     * @param learningRate
+     *            学习率
+     * @param momentum
+     *            动量系数(常用0.9)
+     * @param parameters
+     *            要优化的参数(整组一次更新)
+     */
+    public SGD(double learningRate, double momentum, MatrixPack parameters) {
+        super(learningRate, parameters);
+        this.momentum = momentum;
+        packedVelocities = createPackedState();
+    }
+
+    /**
+     * @param nesterov
+     *            是否使用Nesterov动量(默认为false)
+     * @return 当前优化器
+     */
+    public SGD setNesterov(boolean nesterov) {
+        this.nesterov = nesterov;
+        return this;
+    }
+
+    @Override
+    protected void update(int index, Matrix parameter, Matrix gradient, int step) {
+        MatrixMath.sgdMomentum(parameter, gradient, velocities[index], learningRate, momentum, nesterov,
+                weightDecay);
+    }
+
+    @Override
+    protected void update(MatrixPack parameters, MatrixPack gradients, int step) {
+        MatrixMath.sgdMomentum(parameters, gradients, packedVelocities, learningRate, momentum, nesterov,
+                weightDecay);
+    }
+
+    @Override
+    public void release() {
+        releaseState(velocities, packedVelocities);
+    }
+}
@@ -0,0 +1,1302 @@
+package com.hyh0.gmath.samples;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.hyh0.gmath.Activation;
+import com.hyh0.gmath.CholeskyDecomposition;
+import com.hyh0.gmath.Convolution;
+import com.hyh0.gmath.DistanceMetric;
+import com.hyh0.gmath.EigenvalueDecomposition;
+import com.hyh0.gmath.Labels;
+import com.hyh0.gmath.LUDecomposition;
+import com.hyh0.gmath.Matrix;
+import com.hyh0.gmath.MatrixMath;
+import com.hyh0.gmath.MatrixPack;
+import com.hyh0.gmath.NearestNeighbors;
+import com.hyh0.gmath.Pooling;
+import com.hyh0.gmath.QRDecomposition;
+import com.hyh0.gmath.SingularValueDecomposition;
+import com.hyh0.gmath.SparseMatrix;
+import com.hyh0.gmath.TensorShape;
+import com.hyh0.gmath.cluster.KMeans;
+
+/**
+ * 把设备上的算法与主机端的双精度参考实现对比
+ *
+ * 每项检查都在较小的规模上运行, 尺寸特意取为不是8的倍数, 并且输入放在带行跨度的子矩阵视图中,
+ * 另外还检查奇异/非正定等异常输入. 设备端是单精度, 所以误差按单精度放宽
+ */
+class ReferenceCheck {
+
+    static final Random random = new Random(20161019);
+    static int failures = 0;
+    // 优化器检查的超参数
+    static final String[] OPTIMIZERS = { "动量", "Nesterov动量", "Adam", "RMSProp" };
+    static final double LR = 0.01, MOMENTUM = 0.9, BETA1 = 0.9, BETA2 = 0.999, DECAY = 0.9, EPSILON = 1e-8,
+            WEIGHT_DECAY = 0.01;
+    // GELU的tanh近似中的常数
+    static final double GELU_K0 = Math.sqrt(2 / Math.PI), GELU_K1 = 0.044715;
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("正在初始化OpenCl....");
+        Matrix.init();
+        System.out.println("初始化完成\n");
+
+        checkLU();
+        checkCholesky();
+        checkQR();
+        checkEigen();
+        checkSVD();
+        checkRandomizedSVD();
+        checkKrylov();
+        checkGemvGevm();
+        checkTransposedOperands();
+        checkStrassen();
+        checkOutOfCore();
+        checkSparse();
+        checkSyrk();
+        checkOptimizers();
+        checkDense();
+        checkSoftmaxCrossEntropy();
+        checkConvolution();
+        checkPooling();
+        checkNearestNeighbors();
+        checkKMeans();
+
+        if (failures == 0)
+            System.out.println("\n全部检查通过");
+        else
+            System.out.println("\n" + failures + "项检查失败");
+        Matrix.releaseAll();
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    static void checkLU() {
+        System.out.println("LU分解:");
+        int[][] shapes = { { 37, 37 }, { 77, 77 }, { 45, 30 }, { 30, 45 } };
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1];
+            double[][] a = randomArray(m, n);
+            Matrix A = pitched(a);
+            LUDecomposition lu = new LUDecomposition(A);
+            Matrix L = lu.getL();
+            Matrix U = lu.getU();
+            double[][] lu0 = multiply(L.getArrayCopy(), U.getArrayCopy());
+            check(m + "*" + n + " L*U = A(piv,:)", maxError(rows(a, lu.getPivot()), lu0), 1e-4 * n);
+            L.release();
+            U.release();
+            if (m == n) {
+                check(m + "*" + n + " det", Math.abs(lu.det() / det(a) - 1), 1e-3 * n);
+                double[][] b = randomArray(m, 3);
+                Matrix X = lu.solve(pitched(b));
+                check(m + "*" + n + " A*X = B", maxError(b, multiply(a, X.getArrayCopy())), 1e-4 * n);
+                X.release();
+            }
+            lu.release();
+        }
+
+        // 有一列全为0的矩阵, 消元时这一列始终是0, U的对角线上会出现精确的0
+        double[][] a = randomArray(20, 20);
+        for (int i = 0; i < 20; i++)
+            a[i][7] = 0;
+        LUDecomposition lu = new LUDecomposition(pitched(a));
+        check("奇异矩阵 isNonsingular", !lu.isNonsingular());
+        check("奇异矩阵 det", lu.det() == 0);
+        try {
+            lu.solve(new Matrix(20, 1, 1));
+            check("奇异矩阵 solve抛出异常", false);
+        } catch (RuntimeException e) {
+            check("奇异矩阵 solve抛出异常", true);
+        }
+        lu.release();
+    }
+
+    static void checkCholesky() {
+        System.out.println("Cholesky分解:");
+        for (int n : new int[] { 37, 77 }) {
+            double[][] a = spd(n);
+            // 只应该读取下三角, 上三角填入无关的数据
+            double[][] lower = randomArray(n, n);
+            for (int i = 0; i < n; i++)
+                for (int j = 0; j <= i; j++)
+                    lower[i][j] = a[i][j];
+            CholeskyDecomposition chol = new CholeskyDecomposition(pitched(lower));
+            check(n + "*" + n + " isSPD", chol.isSPD());
+            Matrix L = chol.getL();
+            double[][] l = L.getArrayCopy();
+            L.release();
+            check(n + "*" + n + " L*L' = A", maxError(a, multiply(l, transpose(l))), 1e-4 * n);
+            check(n + "*" + n + " logDet", Math.abs(chol.logDet() - Math.log(det(a))), 1e-4 * n);
+            double[][] b = randomArray(n, 5);
+            Matrix X = chol.solve(pitched(b));
+            check(n + "*" + n + " A*X = B", maxError(b, multiply(a, X.getArrayCopy())), 1e-4 * n);
+            X.release();
+            double[][] y = randomArray(n, 3);
+            X = chol.backSubstitute(pitched(y));
+            check(n + "*" + n + " L'*X = Y", maxError(y, multiply(transpose(l), X.getArrayCopy())), 1e-4 * n);
+            X.release();
+            try {
+                chol.solve(new Matrix(n + 1, 1));
+                check(n + "*" + n + " 行数不符时抛出异常", false);
+            } catch (IllegalArgumentException e) {
+                check(n + "*" + n + " 行数不符时抛出异常", true);
+            }
+            chol.release();
+        }
+
+        // 第二个对角块中出现负的主元
+        double[][] a = spd(77);
+        a[70][70] = -1;
+        CholeskyDecomposition chol = new CholeskyDecomposition(pitched(a));
+        check("非正定矩阵 isSPD", !chol.isSPD());
+        try {
+            chol.solve(new Matrix(77, 1, 1));
+            check("非正定矩阵 solve抛出异常", false);
+        } catch (RuntimeException e) {
+            check("非正定矩阵 solve抛出异常", true);
+        }
+        chol.release();
+    }
+
+    static void checkQR() {
+        System.out.println("QR分解:");
+        int[][] shapes = { { 37, 37 }, { 77, 45 }, { 30, 45 } };
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1], k = Math.min(m, n);
+            double[][] a = randomArray(m, n);
+            QRDecomposition qr = new QRDecomposition(pitched(a));
+            Matrix Q = qr.getQ();
+            Matrix R = qr.getR();
+            double[][] q = Q.getArrayCopy();
+            check(m + "*" + n + " Q*R = A", maxError(a, multiply(q, R.getArrayCopy())), 1e-4 * m);
+            check(m + "*" + n + " Q'*Q = I", maxError(identity(k), multiply(transpose(q), q)), 1e-4 * m);
+            Q.release();
+            R.release();
+            if (m >= n) {
+                // 最小二乘解满足法方程 A'*(A*X - B) = 0
+                double[][] b = randomArray(m, 3);
+                Matrix X = qr.solve(pitched(b));
+                double[][] r = multiply(a, X.getArrayCopy());
+                for (int i = 0; i < m; i++)
+                    for (int j = 0; j < 3; j++)
+                        r[i][j] -= b[i][j];
+                check(m + "*" + n + " A'*(A*X - B) = 0", maxError(new double[n][3], multiply(transpose(a), r)),
+                        1e-4 * m);
+                X.release();
+            }
+            qr.release();
+        }
+
+        // 有一列全为0的矩阵, 反射不会改变这一列, R的对角线上会出现精确的0
+        double[][] a = randomArray(40, 20);
+        for (int i = 0; i < 40; i++)
+            a[i][5] = 0;
+        QRDecomposition qr = new QRDecomposition(pitched(a));
+        check("秩亏矩阵 isFullRank", !qr.isFullRank());
+        try {
+            qr.solve(new Matrix(40, 1, 1));
+            check("秩亏矩阵 solve抛出异常", false);
+        } catch (RuntimeException e) {
+            check("秩亏矩阵 solve抛出异常", true);
+        }
+        qr.release();
+    }
+
+    static void checkEigen() {
+        System.out.println("对称特征值分解:");
+        for (int n : new int[] { 37, 77 }) {
+            double[][] a = randomArray(n, n);
+            for (int i = 0; i < n; i++)
+                for (int j = 0; j < i; j++)
+                    a[i][j] = a[j][i];
+            EigenvalueDecomposition eig = new EigenvalueDecomposition(pitched(a));
+            double[] d = eig.getRealEigenvalues();
+            Matrix V = eig.getV();
+            double[][] v = V.getArrayCopy();
+            V.release();
+            double[][] vd = new double[n][n];
+            double trace = 0, sum = 0, order = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++)
+                    vd[i][j] = v[i][j] * d[j];
+                trace += a[i][i];
+                sum += d[i];
+                if (i > 0)
+                    order = Math.max(order, d[i - 1] - d[i]);
+            }
+            check(n + "*" + n + " A*V = V*D", maxError(multiply(a, v), vd), 1e-4 * n);
+            check(n + "*" + n + " V'*V = I", maxError(identity(n), multiply(transpose(v), v)), 1e-4 * n);
+            check(n + "*" + n + " 特征值之和等于迹", Math.abs(trace - sum), 1e-4 * n);
+            check(n + "*" + n + " 特征值升序", order, 0);
+            eig.release();
+
+            EigenvalueDecomposition values = new EigenvalueDecomposition(pitched(a), false);
+            check(n + "*" + n + " 只求特征值", maxError(d, values.getRealEigenvalues()), 1e-4 * n);
+            try {
+                values.getV();
+                check(n + "*" + n + " 没有特征向量时getV抛出异常", false);
+            } catch (IllegalStateException e) {
+                check(n + "*" + n + " 没有特征向量时getV抛出异常", true);
+            }
+            values.release();
+        }
+        try {
+            new EigenvalueDecomposition(new Matrix(5, 7));
+            check("非方阵抛出异常", false);
+        } catch (IllegalArgumentException e) {
+            check("非方阵抛出异常", true);
+        }
+    }
+
+    static void checkSVD() {
+        System.out.println("奇异值分解:");
+        int[][] shapes = { { 50, 37 }, { 37, 50 }, { 45, 45 } };
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1], k = Math.min(m, n);
+            double[][] a = randomArray(m, n);
+            SingularValueDecomposition svd = new SingularValueDecomposition(pitched(a));
+            Matrix U = svd.getU();
+            Matrix V = svd.getV();
+            double[][] u = U.getArrayCopy();
+            double[][] v = V.getArrayCopy();
+            U.release();
+            V.release();
+            double[] s = svd.getSingularValues();
+            double[][] us = new double[m][k];
+            for (int i = 0; i < m; i++)
+                for (int j = 0; j < k; j++)
+                    us[i][j] = u[i][j] * s[j];
+            double frobenius = 0, squares = 0, order = 0;
+            for (int i = 0; i < m; i++)
+                for (int j = 0; j < n; j++)
+                    frobenius += a[i][j] * a[i][j];
+            for (int i = 0; i < k; i++) {
+                squares += s[i] * s[i];
+                if (i > 0)
+                    order = Math.max(order, s[i] - s[i - 1]);
+            }
+            String name = m + "*" + n;
+            check(name + " U*S*V' = A", maxError(a, multiply(us, transpose(v))), 1e-4 * k);
+            check(name + " U'*U = I", maxError(identity(k), multiply(transpose(u), u)), 1e-4 * k);
+            check(name + " V'*V = I", maxError(identity(k), multiply(transpose(v), v)), 1e-4 * k);
+            check(name + " 奇异值的平方和等于||A||F^2", Math.abs(squares / frobenius - 1), 1e-4);
+            check(name + " 奇异值降序", order, 0);
+            svd.release();
+        }
+
+        // 秩为5的矩阵
+        double[][] a = multiply(randomArray(45, 5), randomArray(5, 30));
+        SingularValueDecomposition svd = new SingularValueDecomposition(pitched(a), false);
+        check("秩亏矩阵 rank() = 5", svd.rank() == 5);
+        try {
+            svd.getU();
+            check("没有奇异向量时getU抛出异常", false);
+        } catch (IllegalStateException e) {
+            check("没有奇异向量时getU抛出异常", true);
+        }
+        svd.release();
+    }
+
+    static void checkRandomizedSVD() {
+        System.out.println("随机化的奇异值分解:");
+        // A = U0*S0*V0', 奇异值按0.7的比例衰减, 前k个奇异值和奇异向量与主机端构造的一致
+        int[][] shapes = { { 203, 97 }, { 97, 203 } };
+        int k = 8;
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1], r = Math.min(m, n);
+            double[][] u0 = orthonormalColumns(m, r), v0 = orthonormalColumns(n, r);
+            double[] s0 = new double[r];
+            double[][] us0 = new double[m][r];
+            for (int j = 0; j < r; j++) {
+                s0[j] = Math.pow(0.7, j);
+                for (int i = 0; i < m; i++)
+                    us0[i][j] = u0[i][j] * s0[j];
+            }
+            double[][] a = multiply(us0, transpose(v0));
+            SingularValueDecomposition svd = MatrixMath.randomizedSvd(pitched(a), k, 8, 1);
+            Matrix U = svd.getU();
+            Matrix V = svd.getV();
+            double[][] u = U.getArrayCopy();
+            double[][] v = V.getArrayCopy();
+            U.release();
+            V.release();
+            double[] s = svd.getSingularValues();
+            svd.release();
+            double[][] us = new double[m][k];
+            for (int i = 0; i < m; i++)
+                for (int j = 0; j < k; j++)
+                    us[i][j] = u[i][j] * s[j];
+            double[] expected = new double[k];
+            System.arraycopy(s0, 0, expected, 0, k);
+            String name = m + "*" + n + " k = " + k;
+            check(name + " 奇异值", maxError(expected, s), 1e-4);
+            check(name + " A*V = U*S", maxError(us, multiply(a, v)), 1e-3);
+            check(name + " U'*U = I", maxError(identity(k), multiply(transpose(u), u)), 1e-4 * k);
+            check(name + " V'*V = I", maxError(identity(k), multiply(transpose(v), v)), 1e-4 * k);
+        }
+    }
+
+    static void checkKrylov() {
+        System.out.println("Krylov迭代法:");
+        for (int n : new int[] { 37, 77 }) {
+            double[][] a = spd(n);
+            double[][] b = randomArray(n, 1);
+            Matrix x = pitched(new double[n][1]);
+            int iterations = MatrixMath.cg(pitched(a), pitched(b), x, 1e-5, 500);
+            check(n + "阶 CG收敛", iterations >= 0);
+            check(n + "阶 CG ||b - A*x|| / ||b||", residual(a, x, b), 1e-4);
+
+            // 对角线相差悬殊的对称正定矩阵 D*A*D
+            double[][] scaled = new double[n][n];
+            for (int i = 0; i < n; i++)
+                for (int j = 0; j < n; j++)
+                    scaled[i][j] = a[i][j] * (1 + i % 10 * 10) * (1 + j % 10 * 10);
+            x = pitched(new double[n][1]);
+            iterations = MatrixMath.cg(pitched(scaled), pitched(b), x, 1e-5, 500, true);
+            check(n + "阶 Jacobi预处理CG收敛", iterations >= 0);
+            check(n + "阶 Jacobi预处理CG ||b - A*x|| / ||b||", residual(scaled, x, b), 1e-4);
+
+            // 对角占优的非对称矩阵
+            double[][] general = randomArray(n, n);
+            for (int i = 0; i < n; i++)
+                general[i][i] += n;
+            x = pitched(new double[n][1]);
+            iterations = MatrixMath.bicgstab(pitched(general), pitched(b), x, 1e-5, 500);
+            check(n + "阶 BiCGSTAB收敛", iterations >= 0);
+            check(n + "阶 BiCGSTAB ||b - A*x|| / ||b||", residual(general, x, b), 1e-4);
+            x = pitched(new double[n][1]);
+            iterations = MatrixMath.bicgstab(pitched(scaled), pitched(b), x, 1e-5, 500, true);
+            check(n + "阶 Jacobi预处理BiCGSTAB收敛", iterations >= 0);
+            check(n + "阶 Jacobi预处理BiCGSTAB ||b - A*x|| / ||b||", residual(scaled, x, b), 1e-4);
+
+            x = pitched(new double[n][1]);
+            check(n + "阶 没有收敛时返回-1", MatrixMath.cg(pitched(a), pitched(b), x, 1e-5, 1) == -1);
+        }
+    }
+
+    static void checkGemvGevm() {
+        System.out.println("矩阵向量乘法:");
+        // 行数较多时向量矩阵乘法把行分给多组工作组, 再做第二遍归约
+        int[][] shapes = { { 45, 37 }, { 3001, 37 }, { 2999, 5 }, { 77, 1003 } };
+        for (int[] shape : shapes) {
+            int n = shape[0], p = shape[1];
+            String name = "1*" + n + " * " + n + "*" + p;
+            double[][] x = randomArray(1, n);
+            double[][] a = randomArray(n, p);
+            double[][] y = randomArray(1, p);
+            double[][] expected = multiply(x, a);
+            for (int j = 0; j < p; j++)
+                expected[0][j] = 2 * expected[0][j] + 0.5 * y[0][j];
+            Matrix Y = pitched(y);
+            MatrixMath.gemm(2, pitched(x), pitched(a), 0.5, Y);
+            check(name + " y = 2*x*A + 0.5*y", maxError(expected, Y.getArrayCopy()), 1e-5 * n);
+
+            double[][] v = transpose(randomArray(1, p));
+            Matrix V = pitched(new double[n][1]);
+            MatrixMath.gemm(1, pitched(a), pitched(v), 0, V);
+            check(n + "*" + p + " * " + p + "*1", maxError(multiply(a, v), V.getArrayCopy()), 1e-5 * p);
+        }
+    }
+
+    static void checkTransposedOperands() {
+        System.out.println("转置的操作数:");
+        int m = 45, k = 37, n = 61;
+        double[][] a = randomArray(m, k), b = randomArray(k, n), c = randomArray(m, n);
+        double[][] expected = multiply(a, b);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < n; j++)
+                expected[i][j] = 2 * expected[i][j] + 0.5 * c[i][j];
+        for (int flags = 1; flags < 4; flags++) {
+            boolean transA = (flags & 1) != 0, transB = (flags & 2) != 0;
+            Matrix C = pitched(c);
+            MatrixMath.gemm(2, pitched(transA ? transpose(a) : a), transA, pitched(transB ? transpose(b) : b),
+                    transB, 0.5, C);
+            check("C = 2*" + (transA ? "A'" : "A") + "*" + (transB ? "B'" : "B") + " + 0.5*C",
+                    maxError(expected, C.getArrayCopy()), 1e-5 * k);
+        }
+
+        // 超过一个分块, 两种三角矩阵都按转置求解, 传入的矩阵另一半是无关的数据, 不应该被读取
+        int size = 150;
+        double[][] t = randomArray(size, size);
+        for (int i = 0; i < size; i++)
+            t[i][i] = size;
+        for (boolean lower : new boolean[] { true, false }) {
+            double[][] triangle = new double[size][size];
+            for (int i = 0; i < size; i++)
+                for (int j = 0; j < size; j++)
+                    if (i == j || (i > j) == lower)
+                        triangle[i][j] = t[i][j];
+            double[][] rhs = randomArray(size, 7);
+            Matrix X = pitched(rhs);
+            MatrixMath.solveTriangular(pitched(t), X, lower, true, false);
+            check((lower ? "L'" : "U'") + "*X = B " + size + "*" + size,
+                    maxError(rhs, multiply(transpose(triangle), X.getArrayCopy())), 1e-5 * size);
+        }
+    }
+
+    static void checkStrassen() {
+        System.out.println("Strassen-Winograd乘法:");
+        // 把递归的终止大小调小, 使小矩阵也会递归几层, 奇数维度会被剥离
+        MatrixMath.setStrassenCutoff(16);
+        int[][] shapes = { { 64, 64, 64 }, { 77, 45, 61 }, { 131, 99, 67 } };
+        for (int[] shape : shapes) {
+            int m = shape[0], k = shape[1], n = shape[2];
+            double[][] a = randomArray(m, k);
+            double[][] b = randomArray(k, n);
+            Matrix C = pitched(new double[m][n]);
+            MatrixMath.strassen(pitched(a), pitched(b), C);
+            check(m + "*" + k + " * " + k + "*" + n, maxError(multiply(a, b), C.getArrayCopy()), 1e-5 * k);
+        }
+
+        // 同一个矩阵中不相交的子矩阵可以分别作为输入和结果
+        double[][] a = randomArray(45, 45);
+        double[][] b = randomArray(45, 45);
+        Matrix parent = new Matrix(45, 140);
+        Matrix A = parent.getMatrixView(0, 44, 0, 44);
+        Matrix B = parent.getMatrixView(0, 44, 47, 91);
+        Matrix C = parent.getMatrixView(0, 44, 95, 139);
+        A.set(a);
+        B.set(b);
+        MatrixMath.strassen(A, B, C);
+        check("同一矩阵中不相交的子矩阵", maxError(multiply(a, b), C.getArrayCopy()), 1e-5 * 45);
+
+        // 参数错误时抛出普通的异常, 不会释放context
+        try {
+            MatrixMath.strassen(A, B, parent.getMatrixView(0, 44, 40, 84));
+            check("结果与输入重叠时抛出异常", false);
+        } catch (IllegalArgumentException e) {
+            check("结果与输入重叠时抛出异常", true);
+        }
+        try {
+            MatrixMath.setStrassenCutoff(0);
+            check("cutoff为0时抛出异常", false);
+        } catch (IllegalArgumentException e) {
+            check("cutoff为0时抛出异常", true);
+        }
+        check("抛出异常后仍然可以计算", maxError(a, A.getArrayCopy()), 0);
+        parent.release();
+        MatrixMath.setStrassenCutoff(2048);
+    }
+
+    static void checkOutOfCore() throws IOException {
+        System.out.println("核外矩阵乘法:");
+        // 块的边长取16, 使每个维度都有多个块, 最后一块不满
+        int m = 77, k = 45, n = 61, tileSize = 16;
+        double[][] a = randomArray(m, k);
+        double[][] b = randomArray(k, n);
+        double[][] expected = multiply(a, b);
+
+        FloatBuffer c = directBuffer(new double[m][n], 0, m);
+        MatrixMath.multiplyOutOfCore(directBuffer(a, 0, m), directBuffer(b, 0, k), c, m, k, n, tileSize);
+        check("单个缓冲区", maxError(expected, toArray(c, m, n)), 1e-5 * k);
+
+        // 按行分段, 段的边界与块的边界不对齐, 一个块会跨越两段
+        FloatBuffer[] aBlocks = { directBuffer(a, 0, 10), directBuffer(a, 10, 40), directBuffer(a, 40, m) };
+        FloatBuffer[] bBlocks = { directBuffer(b, 0, 23), directBuffer(b, 23, k) };
+        double[][] zeros = new double[m][n];
+        FloatBuffer[] cBlocks = { directBuffer(zeros, 0, 7), directBuffer(zeros, 7, 50), directBuffer(zeros, 50, m) };
+        MatrixMath.multiplyOutOfCore(aBlocks, bBlocks, cBlocks, m, k, n, tileSize);
+        double[][] result = new double[m][];
+        int row = 0;
+        for (FloatBuffer block : cBlocks) {
+            int rows = block.remaining() / n;
+            double[][] part = toArray(block, rows, n);
+            for (int i = 0; i < rows; i++)
+                result[row++] = part[i];
+        }
+        check("按行分段的缓冲区", maxError(expected, result), 1e-5 * k);
+
+        // 内存映射文件
+        File aFile = writeFile(a), bFile = writeFile(b), cFile = File.createTempFile("gmath", ".bin");
+        RandomAccessFile aIn = new RandomAccessFile(aFile, "r"), bIn = new RandomAccessFile(bFile, "r");
+        RandomAccessFile cOut = new RandomAccessFile(cFile, "rw");
+        MatrixMath.multiplyOutOfCore(aIn.getChannel(), bIn.getChannel(), cOut.getChannel(), m, k, n, tileSize);
+        FloatBuffer mapped = cOut.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) m * n * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        check("内存映射文件", maxError(expected, toArray(mapped, m, n)), 1e-5 * k);
+        aIn.close();
+        bIn.close();
+        cOut.close();
+        aFile.delete();
+        bFile.delete();
+        cFile.delete();
+    }
+
+    static void checkSparse() {
+        System.out.println("CSR稀疏矩阵:");
+        int m = 77, n = 45;
+        // 大约10%的非零元素, 每隔7行有一个空行, 每行的列号倒序排列(不要求有序)
+        double[][] a = new double[m][n];
+        int[] rowPointers = new int[m + 1];
+        List<Integer> columns = new ArrayList<Integer>();
+        List<Double> values = new ArrayList<Double>();
+        for (int i = 0; i < m; i++) {
+            for (int j = n - 1; j >= 0; j--) {
+                if (i % 7 != 3 && random.nextDouble() < 0.1) {
+                    a[i][j] = random.nextDouble() * 2 - 1;
+                    columns.add(j);
+                    values.add(a[i][j]);
+                }
+            }
+            rowPointers[i + 1] = columns.size();
+        }
+        int[] columnIndices = new int[columns.size()];
+        double[] data = new double[values.size()];
+        for (int i = 0; i < data.length; i++) {
+            columnIndices[i] = columns.get(i);
+            data[i] = values.get(i);
+        }
+        SparseMatrix A = new SparseMatrix(m, n, rowPointers, columnIndices, data);
+        Matrix dense = A.toDense();
+        check("toDense", maxError(a, dense.getArrayCopy()), 0);
+
+        double[][] x = randomArray(n, 1);
+        check("SpMV A*x", maxError(multiply(a, x), A.times(pitched(x)).getArrayCopy()), 1e-5 * n);
+        double[][] b = randomArray(n, 13);
+        double[][] c = randomArray(m, 13);
+        double[][] expected = multiply(a, b);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < 13; j++)
+                expected[i][j] = 2 * expected[i][j] - c[i][j];
+        Matrix C = pitched(c);
+        A.times(2, pitched(b), -1, C);
+        check("SpMM C = 2*A*B - C", maxError(expected, C.getArrayCopy()), 1e-5 * n);
+
+        // 在设备上从稠密矩阵转换, 再转换回来
+        SparseMatrix converted = new SparseMatrix(pitched(a));
+        check("稠密矩阵转换后的非零元素个数", converted.getNonZeros() == data.length);
+        check("稠密矩阵转换后再转换回来", maxError(a, converted.toDense().getArrayCopy()), 0);
+        SparseMatrix empty = new SparseMatrix(new Matrix(9, 11));
+        check("全0矩阵的非零元素个数", empty.getNonZeros() == 0);
+        check("全0矩阵 A*x", maxError(new double[9][1], empty.times(new Matrix(11, 1, 1)).getArrayCopy()), 0);
+        A.release();
+        converted.release();
+        empty.release();
+    }
+
+    static void checkSyrk() {
+        System.out.println("对称秩k更新:");
+        int[][] shapes = { { 45, 37 }, { 13, 77 }, { 100, 8 } };
+        for (int[] shape : shapes) {
+            int k = shape[0], n = shape[1];
+            double[][] x = randomArray(k, n);
+            double[][] expected = multiply(transpose(x), x);
+            for (boolean upper : new boolean[] { true, false }) {
+                String name = k + "*" + n + (upper ? " 上三角" : " 下三角");
+                // 另一侧三角中原有的数据不应该被修改
+                double[][] c = randomArray(n, n);
+                Matrix C = pitched(c);
+                MatrixMath.syrk(pitched(x), C, upper);
+                double[][] result = C.getArrayCopy();
+                double computed = 0, untouched = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        if (upper ? j >= i : j <= i)
+                            computed = Math.max(computed, Math.abs(result[i][j] - expected[i][j]));
+                        else
+                            untouched = Math.max(untouched, Math.abs(result[i][j] - (float) c[i][j]));
+                    }
+                }
+                check(name + " X'*X", computed, 1e-5 * k);
+                check(name + " 另一侧不变", untouched, 0);
+
+                C = pitched(c);
+                MatrixMath.syrk(pitched(x), C, upper, true);
+                check(name + " 对称化", maxError(expected, C.getArrayCopy()), 1e-5 * k);
+            }
+        }
+    }
+
+    static void checkOptimizers() {
+        System.out.println("优化器:");
+        // 矩阵组中有列向量和1*1的矩阵, 列数不是4的倍数时最后一个float4不满
+        int[] rows = { 3, 1, 7, 2, 13 }, columns = { 5, 1, 1, 9, 6 };
+        for (int kind = 0; kind < OPTIMIZERS.length; kind++) {
+            double[][] p = randomArray(13, 7), s1 = new double[13][7], s2 = new double[13][7];
+            Matrix P = pitched(p), S1 = pitched(s1), S2 = pitched(s2);
+            MatrixPack params = new MatrixPack(rows, columns), grads = new MatrixPack(params);
+            MatrixPack first = new MatrixPack(params), second = new MatrixPack(params);
+            double[][][] pp = new double[rows.length][][], ss1 = new double[rows.length][][],
+                    ss2 = new double[rows.length][][];
+            for (int i = 0; i < rows.length; i++) {
+                pp[i] = randomArray(rows[i], columns[i]);
+                ss1[i] = new double[rows[i]][columns[i]];
+                ss2[i] = new double[rows[i]][columns[i]];
+                params.get(i).set(pp[i]);
+            }
+            // 连续3步, Adam的偏差修正每步不同
+            for (int step = 1; step <= 3; step++) {
+                double[][] g = randomArray(13, 7);
+                optimizerStep(kind, p, g, s1, s2, step);
+                Matrix G = pitched(g);
+                if (kind < 2)
+                    MatrixMath.sgdMomentum(P, G, S1, LR, MOMENTUM, kind == 1, WEIGHT_DECAY);
+                else if (kind == 2)
+                    MatrixMath.adam(P, G, S1, S2, LR, BETA1, BETA2, EPSILON, WEIGHT_DECAY, step);
+                else
+                    MatrixMath.rmsProp(P, G, S1, LR, DECAY, EPSILON, WEIGHT_DECAY);
+
+                for (int i = 0; i < rows.length; i++) {
+                    double[][] gg = randomArray(rows[i], columns[i]);
+                    grads.get(i).set(gg);
+                    optimizerStep(kind, pp[i], gg, ss1[i], ss2[i], step);
+                }
+                if (kind < 2)
+                    MatrixMath.sgdMomentum(params, grads, first, LR, MOMENTUM, kind == 1, WEIGHT_DECAY);
+                else if (kind == 2)
+                    MatrixMath.adam(params, grads, first, second, LR, BETA1, BETA2, EPSILON, WEIGHT_DECAY, step);
+                else
+                    MatrixMath.rmsProp(params, grads, first, LR, DECAY, EPSILON, WEIGHT_DECAY);
+            }
+            double error = Math.max(maxError(p, P.getArrayCopy()), maxError(s1, S1.getArrayCopy()));
+            if (kind == 2)
+                error = Math.max(error, maxError(s2, S2.getArrayCopy()));
+            check(OPTIMIZERS[kind] + " 单个矩阵", error, 1e-5);
+            error = 0;
+            for (int i = 0; i < rows.length; i++) {
+                error = Math.max(error, maxError(pp[i], params.get(i).getArrayCopy()));
+                error = Math.max(error, maxError(ss1[i], first.get(i).getArrayCopy()));
+                if (kind == 2)
+                    error = Math.max(error, maxError(ss2[i], second.get(i).getArrayCopy()));
+            }
+            check(OPTIMIZERS[kind] + " 矩阵组", error, 1e-5);
+            params.release();
+            grads.release();
+            first.release();
+            second.release();
+        }
+
+        // 参数错误时抛出普通的异常, 不会释放context
+        Matrix P = pitched(randomArray(3, 5)), G = pitched(randomArray(3, 5));
+        try {
+            MatrixMath.adam(P, G, pitched(new double[3][5]), pitched(new double[3][5]), LR, BETA1, BETA2, EPSILON,
+                    0, 0);
+            check("Adam的step为0时抛出异常", false);
+        } catch (IllegalArgumentException e) {
+            check("Adam的step为0时抛出异常", true);
+        }
+        MatrixPack a = new MatrixPack(rows, columns), b = new MatrixPack(new int[] { 3 }, new int[] { 5 });
+        try {
+            MatrixMath.rmsProp(a, b, a, LR, DECAY, EPSILON, 0);
+            check("矩阵组的布局不同时抛出异常", false);
+        } catch (IllegalArgumentException e) {
+            check("矩阵组的布局不同时抛出异常", true);
+        }
+        a.release();
+        b.release();
+    }
+
+    /**
+     * 在主机端按优化器内核的公式更新一步, s1是速度, 一阶矩或梯度平方的滑动平均, s2是Adam的二阶矩
+     */
+    static void optimizerStep(int kind, double[][] p, double[][] g, double[][] s1, double[][] s2, int step) {
+        for (int i = 0; i < p.length; i++) {
+            for (int j = 0; j < p[i].length; j++) {
+                double grad = g[i][j] + WEIGHT_DECAY * p[i][j];
+                if (kind < 2) {
+                    s1[i][j] = MOMENTUM * s1[i][j] + grad;
+                    p[i][j] -= LR * (kind == 1 ? grad + MOMENTUM * s1[i][j] : s1[i][j]);
+                } else if (kind == 2) {
+                    s1[i][j] = BETA1 * s1[i][j] + (1 - BETA1) * grad;
+                    s2[i][j] = BETA2 * s2[i][j] + (1 - BETA2) * grad * grad;
+                    double m = s1[i][j] / (1 - Math.pow(BETA1, step));
+                    double v = s2[i][j] / (1 - Math.pow(BETA2, step));
+                    p[i][j] -= LR * m / (Math.sqrt(v) + EPSILON);
+                } else {
+                    s1[i][j] = DECAY * s1[i][j] + (1 - DECAY) * grad * grad;
+                    p[i][j] -= LR * grad / (Math.sqrt(s1[i][j]) + EPSILON);
+                }
+            }
+        }
+    }
+
+    static void checkDense() {
+        System.out.println("全连接层:");
+        int m = 37, n = 29, p = 19;
+        for (Activation activation : Activation.values()) {
+            double[][] x = randomArray(m, n), w = randomArray(n, p), b = randomArray(p, 1), gradY = randomArray(m, p);
+            // 主机端: Z = X*W + b, Y = f(Z), dZ = gradY .* f'(Z)
+            double[][] z = multiply(x, w), y = new double[m][p], dz = new double[m][p];
+            double[][] gradB = new double[p][1];
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < p; j++) {
+                    z[i][j] += b[j][0];
+                    y[i][j] = activate(activation, z[i][j]);
+                    dz[i][j] = gradY[i][j] * activationGradient(activation, z[i][j], y[i][j]);
+                    gradB[j][0] += dz[i][j];
+                }
+            }
+            double[][] gradW = multiply(transpose(x), dz), gradX = multiply(dz, transpose(w));
+
+            Matrix X = pitched(x), W = pitched(w), B = pitched(b);
+            Matrix Y = pitched(new double[m][p]), Z = pitched(new double[m][p]);
+            MatrixMath.dense(X, W, B, activation, Y, Z);
+            check(activation + " 前向", maxError(y, Y.getArrayCopy()), 1e-5 * n);
+            check(activation + " 激活前的值", maxError(z, Z.getArrayCopy()), 1e-5 * n);
+            // GELU的导数需要激活前的值, 其他激活函数使用输出
+            Matrix cache = activation == Activation.GELU ? Z : Y;
+            Matrix GX = pitched(new double[m][n]), GW = pitched(new double[n][p]), GB = pitched(new double[p][1]);
+            MatrixMath.denseBackward(pitched(gradY), cache, activation, X, W, GX, GW, GB);
+            check(activation + " 对输入的梯度", maxError(gradX, GX.getArrayCopy()), 1e-5 * p);
+            check(activation + " 对权重的梯度", maxError(gradW, GW.getArrayCopy()), 1e-5 * m);
+            check(activation + " 对偏置的梯度", maxError(gradB, GB.getArrayCopy()), 1e-5 * m);
+        }
+    }
+
+    /**
+     * 激活函数 f(z), 与内核中的定义相同
+     */
+    static double activate(Activation activation, double z) {
+        switch (activation) {
+        case SIGMOID:
+            return 1 / (1 + Math.exp(-z));
+        case TANH:
+            return Math.tanh(z);
+        case RELU:
+            return Math.max(z, 0);
+        case GELU:
+            return 0.5 * z * (1 + Math.tanh(GELU_K0 * (z + GELU_K1 * z * z * z)));
+        default:
+            return z;
+        }
+    }
+
+    /**
+     * 激活函数在z处的导数, y = f(z)
+     */
+    static double activationGradient(Activation activation, double z, double y) {
+        switch (activation) {
+        case SIGMOID:
+            return y * (1 - y);
+        case TANH:
+            return 1 - y * y;
+        case RELU:
+            return z > 0 ? 1 : 0;
+        case GELU:
+            double t = Math.tanh(GELU_K0 * (z + GELU_K1 * z * z * z));
+            return 0.5 * (1 + t) + 0.5 * z * (1 - t * t) * GELU_K0 * (1 + 3 * GELU_K1 * z * z);
+        default:
+            return 1;
+        }
+    }
+
+    static void checkSoftmaxCrossEntropy() {
+        System.out.println("softmax交叉熵:");
+        // 类别数少于和多于一个工作组的大小, 标签为-1或n的行被忽略
+        int m = 37;
+        for (int n : new int[] { 11, 1003 }) {
+            double[][] x = randomArray(m, n);
+            int[] labels = new int[m];
+            for (int i = 0; i < m; i++)
+                labels[i] = i % 9 == 4 ? -1 : i % 9 == 7 ? n : random.nextInt(n);
+            double loss = 0;
+            double[][] grad = new double[m][n];
+            for (int i = 0; i < m; i++) {
+                if (labels[i] < 0 || labels[i] >= n)
+                    continue;
+                double max = Double.NEGATIVE_INFINITY, sum = 0;
+                for (int j = 0; j < n; j++)
+                    max = Math.max(max, x[i][j]);
+                for (int j = 0; j < n; j++)
+                    sum += Math.exp(x[i][j] - max);
+                loss += (Math.log(sum) - (x[i][labels[i]] - max)) / m;
+                for (int j = 0; j < n; j++)
+                    grad[i][j] = (Math.exp(x[i][j] - max) / sum - (j == labels[i] ? 1 : 0)) / m;
+            }
+
+            Labels L = new Labels(labels);
+            Matrix X = pitched(x), G = pitched(new double[m][n]);
+            check(m + "*" + n + " 只计算损失", Math.abs(MatrixMath.softmaxCrossEntropy(X, L, null) / loss - 1), 1e-5);
+            double result = MatrixMath.softmaxCrossEntropy(X, L, G);
+            check(m + "*" + n + " 损失", Math.abs(result / loss - 1), 1e-5);
+            check(m + "*" + n + " 梯度", maxError(grad, G.getArrayCopy()), 1e-6);
+            // 梯度直接覆盖logits
+            result = MatrixMath.softmaxCrossEntropy(X, L, X);
+            check(m + "*" + n + " 原地计算的损失", Math.abs(result / loss - 1), 1e-5);
+            check(m + "*" + n + " 原地计算的梯度", maxError(grad, X.getArrayCopy()), 1e-6);
+            L.release();
+        }
+    }
+
+    static void checkConvolution() {
+        System.out.println("卷积:");
+        // { N, C, H, W, K, R, S, stride, padding }
+        int[][] configs = { { 3, 3, 11, 9, 5, 3, 2, 2, 1 }, { 2, 4, 7, 13, 3, 1, 1, 1, 0 },
+                { 1, 2, 9, 9, 6, 5, 5, 1, 2 } };
+        for (int[] g : configs) {
+            int N = g[0], C = g[1], H = g[2], W = g[3], K = g[4], R = g[5], S = g[6], stride = g[7], pad = g[8];
+            Convolution conv = new Convolution(new TensorShape(N, C, H, W), K, R, S, stride, pad);
+            int P = conv.getOutputShape().getHeight(), Q = conv.getOutputShape().getWidth();
+            String name = N + "*" + C + "*" + H + "*" + W + " 卷积核" + K + "*" + R + "*" + S + " 步长" + stride
+                    + " 补0" + pad;
+            double[][] in = randomArray(N, C * H * W);
+            double[][] weights = randomArray(K, C * R * S);
+            double[][] bias = randomArray(K, 1);
+            double[][] gradOut = randomArray(N, K * P * Q);
+
+            double[][] out = new double[N][K * P * Q];
+            double[][] gradIn = new double[N][C * H * W];
+            double[][] gradWeights = new double[K][C * R * S];
+            double[][] gradBias = new double[K][1];
+            for (int n = 0; n < N; n++)
+                for (int k = 0; k < K; k++)
+                    for (int p = 0; p < P; p++)
+                        for (int q = 0; q < Q; q++) {
+                            int o = (k * P + p) * Q + q;
+                            out[n][o] = bias[k][0];
+                            gradBias[k][0] += gradOut[n][o];
+                            for (int c = 0; c < C; c++)
+                                for (int r = 0; r < R; r++)
+                                    for (int t = 0; t < S; t++) {
+                                        int h = p * stride - pad + r, w = q * stride - pad + t;
+                                        if (h < 0 || h >= H || w < 0 || w >= W)
+                                            continue;
+                                        int i = (c * H + h) * W + w, j = (c * R + r) * S + t;
+                                        out[n][o] += weights[k][j] * in[n][i];
+                                        gradIn[n][i] += weights[k][j] * gradOut[n][o];
+                                        gradWeights[k][j] += gradOut[n][o] * in[n][i];
+                                    }
+                        }
+
+            Matrix input = pitched(in), W0 = pitched(weights), gradOutput = pitched(gradOut);
+            Matrix output = pitched(new double[N][K * P * Q]);
+            conv.forward(input, W0, pitched(bias), output);
+            check(name + " 前向", maxError(out, output.getArrayCopy()), 1e-5 * C * R * S);
+            Matrix gradInput = pitched(new double[N][C * H * W]);
+            conv.backwardData(gradOutput, W0, gradInput);
+            check(name + " 对输入的梯度", maxError(gradIn, gradInput.getArrayCopy()), 1e-5 * K * R * S);
+            Matrix gW = pitched(new double[K][C * R * S]), gB = pitched(new double[K][1]);
+            conv.backwardFilter(input, gradOutput, gW, gB);
+            check(name + " 对卷积核的梯度", maxError(gradWeights, gW.getArrayCopy()), 1e-5 * N * P * Q);
+            check(name + " 对偏置的梯度", maxError(gradBias, gB.getArrayCopy()), 1e-5 * N * P * Q);
+        }
+    }
+
+    static void checkPooling() {
+        System.out.println("池化:");
+        // { N, C, H, W, R, S, stride, padding }
+        int[][] configs = { { 3, 2, 11, 9, 3, 3, 2, 1 }, { 2, 3, 8, 6, 2, 2, 2, 0 }, { 1, 1, 7, 7, 3, 2, 1, 1 } };
+        for (int[] g : configs) {
+            int N = g[0], C = g[1], H = g[2], W = g[3], R = g[4], S = g[5], stride = g[6], pad = g[7];
+            Pooling pool = new Pooling(new TensorShape(N, C, H, W), R, S, stride, pad);
+            int P = pool.getOutputShape().getHeight(), Q = pool.getOutputShape().getWidth();
+            String name = N + "*" + C + "*" + H + "*" + W + " 窗口" + R + "*" + S + " 步长" + stride + " 补0" + pad;
+            double[][] in = randomArray(N, C * H * W);
+            double[][] gradOut = randomArray(N, C * P * Q);
+
+            double[][] maximum = new double[N][C * P * Q], mean = new double[N][C * P * Q];
+            double[][] gradMax = new double[N][C * H * W], gradMean = new double[N][C * H * W];
+            for (int n = 0; n < N; n++)
+                for (int c = 0; c < C; c++)
+                    for (int p = 0; p < P; p++)
+                        for (int q = 0; q < Q; q++) {
+                            int o = (c * P + p) * Q + q;
+                            int h0 = Math.max(p * stride - pad, 0), h1 = Math.min(p * stride - pad + R, H);
+                            int w0 = Math.max(q * stride - pad, 0), w1 = Math.min(q * stride - pad + S, W);
+                            int first = -1, count = (h1 - h0) * (w1 - w0);
+                            for (int h = h0; h < h1; h++)
+                                for (int w = w0; w < w1; w++) {
+                                    int i = (c * H + h) * W + w;
+                                    mean[n][o] += in[n][i] / count;
+                                    gradMean[n][i] += gradOut[n][o] / count;
+                                    if (first < 0 || in[n][i] > in[n][first])
+                                        first = i;
+                                }
+                            maximum[n][o] = in[n][first];
+                            gradMax[n][first] += gradOut[n][o];
+                        }
+
+            Matrix input = pitched(in), gradOutput = pitched(gradOut);
+            Matrix output = pitched(new double[N][C * P * Q]);
+            pool.max(input, output);
+            check(name + " 最大池化", maxError(maximum, output.getArrayCopy()), 1e-6);
+            Matrix gradInput = pitched(new double[N][C * H * W]);
+            pool.maxBackward(input, gradOutput, gradInput);
+            check(name + " 最大池化的梯度", maxError(gradMax, gradInput.getArrayCopy()), 1e-5 * R * S);
+            pool.average(input, output);
+            check(name + " 平均池化", maxError(mean, output.getArrayCopy()), 1e-6 * R * S);
+            gradInput = pitched(new double[N][C * H * W]);
+            pool.averageBackward(gradOutput, gradInput);
+            check(name + " 平均池化的梯度", maxError(gradMean, gradInput.getArrayCopy()), 1e-5 * R * S);
+        }
+    }
+
+    static void checkNearestNeighbors() {
+        System.out.println("距离和k近邻:");
+        // 第二组有多个查询块, 每个查询块的距离分多段合并
+        int[][] shapes = { { 37, 301, 13 }, { 1100, 5000, 8 } };
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1], d = shape[2];
+            double[][] x = randomArray(m, d), y = randomArray(n, d);
+            // 全0的行的余弦距离是1
+            x[5] = new double[d];
+            y[17] = new double[d];
+            Matrix X = pitched(x), Y = pitched(y);
+            for (DistanceMetric metric : DistanceMetric.values()) {
+                double[][] expected = distances(x, y, metric);
+                Matrix D = pitched(new double[m][n]);
+                MatrixMath.pairwiseDistances(X, Y, metric, D);
+                check(metric + " 距离矩阵 " + m + "*" + n, maxError(expected, D.getArrayCopy()), 1e-5 * d);
+                D.release();
+
+                for (int k : new int[] { 1, 10 }) {
+                    NearestNeighbors result = MatrixMath.knn(X, Y, k, metric);
+                    double[][] distances = result.getDistances().getArrayCopy();
+                    int[][] indices = result.getIndices();
+                    // 近邻的距离与主机端一致, 行号不重复, 并且与主机端排序后的前k个距离相同 (距离相等时行号可以不同)
+                    double error = 0;
+                    boolean valid = true;
+                    for (int i = 0; i < m; i++) {
+                        double[] sorted = expected[i].clone();
+                        Arrays.sort(sorted);
+                        for (int j = 0; j < k; j++) {
+                            int row = indices[i][j];
+                            valid &= row >= 0 && row < n;
+                            for (int l = 0; l < j; l++)
+                                valid &= indices[i][l] != row;
+                            if (!valid)
+                                break;
+                            error = Math.max(error, Math.abs(distances[i][j] - expected[i][row]));
+                            error = Math.max(error, Math.abs(distances[i][j] - sorted[j]));
+                        }
+                    }
+                    check(metric + " " + m + "*" + n + " k = " + k + " 行号", valid);
+                    check(metric + " " + m + "*" + n + " k = " + k + " 距离", error, 1e-5 * d);
+                    result.release();
+                }
+            }
+            X.release();
+            Y.release();
+        }
+    }
+
+    static void checkKMeans() throws IOException {
+        System.out.println("k-means:");
+        // 4个相距很远的中心, 每个点是某个中心加上[-0.5, 0.5]的噪声
+        int k = 4, d = 5, n = 1003;
+        double[][] points = randomArray(n, d);
+        double[][] means = new double[k][d];
+        int[] sizes = new int[k];
+        for (int i = 0; i < n; i++) {
+            int c = i % k;
+            sizes[c]++;
+            for (int j = 0; j < d; j++) {
+                points[i][j] = points[i][j] * 0.5 + (j == c ? 10 : 0);
+                means[c][j] += points[i][j];
+            }
+        }
+        for (int c = 0; c < k; c++)
+            for (int j = 0; j < d; j++)
+                means[c][j] /= sizes[c];
+
+        Matrix X = pitched(points);
+        KMeans kMeans = new KMeans(k).setSeed(7).fit(X);
+        double[][] centroids = kMeans.getCentroids().getArrayCopy();
+        int[] labels = kMeans.getLabels();
+        // 收敛后每个点属于最近的中心, 标签与主机端一致, 惯量是主机端算出的距离平方和
+        boolean consistent = true;
+        double inertia = 0;
+        for (int i = 0; i < n; i++) {
+            double[] distance = distances(new double[][] { points[i] }, centroids, DistanceMetric.SQUARED_EUCLIDEAN)[0];
+            int nearest = 0;
+            for (int c = 1; c < k; c++)
+                if (distance[c] < distance[nearest])
+                    nearest = c;
+            consistent &= labels[i] == nearest;
+            inertia += distance[labels[i]];
+        }
+        check("标签是最近的中心", consistent);
+        check("惯量", Math.abs(kMeans.getInertia() - inertia) / inertia, 1e-4);
+        check("中心", centroidError(means, centroids), 1e-4);
+        kMeans.release();
+
+        // 类别数*维数放不进局部内存时按块归约, 标签为-1的点不参与计算
+        int clusters = 200, columns = 90, count = 3001;
+        double[][] data = randomArray(count, columns);
+        int[] groups = new int[count];
+        double[][] sums = new double[clusters][columns];
+        double[] counts = new double[clusters];
+        Random random = new Random(11);
+        for (int i = 0; i < count; i++) {
+            groups[i] = random.nextInt(clusters + 1) - 1;
+            if (groups[i] < 0)
+                continue;
+            counts[groups[i]]++;
+            for (int j = 0; j < columns; j++)
+                sums[groups[i]][j] += data[i][j];
+        }
+        Matrix S = pitched(new double[clusters][columns]);
+        Matrix C = pitched(new double[clusters][1]);
+        Labels L = new Labels(groups);
+        MatrixMath.clusterSums(pitched(data), L, S, C);
+        double[][] c = C.getArrayCopy();
+        double countError = 0;
+        for (int i = 0; i < clusters; i++)
+            countError = Math.max(countError, Math.abs(c[i][0] - counts[i]));
+        check("按块归约 和", maxError(sums, S.getArrayCopy()), 1e-4 * count / clusters);
+        check("按块归约 个数", countError, 0);
+        L.release();
+
+        // 小批量模式: 单个缓冲区(从第1个点开始), 按行分段的缓冲区和内存映射文件
+        KMeans miniBatch = new KMeans(k).setSeed(7).setMaxIterations(200);
+        FloatBuffer buffer = directBuffer(points, 0, n);
+        buffer.position(d);
+        miniBatch.fitMiniBatch(buffer, d, 100);
+        check("小批量 单个缓冲区 位置不变", buffer.position() == d);
+        check("小批量 单个缓冲区", centroidError(means, miniBatch.getCentroids().getArrayCopy()), 0.05);
+
+        FloatBuffer[] blocks = { directBuffer(points, 0, 300), directBuffer(points, 300, 301),
+                directBuffer(points, 301, n) };
+        miniBatch.fitMiniBatch(blocks, d, 100);
+        check("小批量 按行分段", centroidError(means, miniBatch.getCentroids().getArrayCopy()), 0.05);
+
+        File file = writeFile(points);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        miniBatch.fitMiniBatch(in.getChannel(), d, 100);
+        check("小批量 内存映射文件", centroidError(means, miniBatch.getCentroids().getArrayCopy()), 0.05);
+        in.close();
+        file.delete();
+        miniBatch.release();
+    }
+
+    /**
+     * 在一个更大的矩阵中取出子矩阵视图并写入数据, 使数据带有偏移量和行跨度
+     */
+    static Matrix pitched(double[][] data) {
+        int m = data.length, n = data[0].length;
+        Matrix parent = Matrix.random(m + 3, n + 5);
+        Matrix view = parent.getMatrixView(1, m, 2, n + 1);
+        view.set(data);
+        return view;
+    }
+
+    /**
+     * 把第row0行到第row1行(不包括)按行优先复制到直接缓冲区
+     */
+    static FloatBuffer directBuffer(double[][] data, int row0, int row1) {
+        int n = data[0].length;
+        FloatBuffer buffer = ByteBuffer.allocateDirect((row1 - row0) * n * 4).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        for (int i = row0; i < row1; i++)
+            for (int j = 0; j < n; j++)
+                buffer.put((float) data[i][j]);
+        buffer.rewind();
+        return buffer;
+    }
+
+    static double[][] toArray(FloatBuffer buffer, int m, int n) {
+        double[][] data = new double[m][n];
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < n; j++)
+                data[i][j] = buffer.get(buffer.position() + i * n + j);
+        return data;
+    }
+
+    /**
+     * 把矩阵按行优先, 本机字节序写入临时文件
+     */
+    static File writeFile(double[][] data) throws IOException {
+        File file = File.createTempFile("gmath", ".bin");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FloatBuffer buffer = directBuffer(data, 0, data.length);
+        ByteBuffer bytes = ByteBuffer.allocate(buffer.remaining() * 4).order(ByteOrder.nativeOrder());
+        bytes.asFloatBuffer().put(buffer);
+        out.getChannel().write(bytes);
+        out.close();
+        return file;
+    }
+
+    static double[][] randomArray(int m, int n) {
+        double[][] a = new double[m][n];
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < n; j++)
+                a[i][j] = random.nextDouble() * 2 - 1;
+        return a;
+    }
+
+    static double[][] multiply(double[][] a, double[][] b) {
+        int m = a.length, l = b.length, n = b[0].length;
+        double[][] c = new double[m][n];
+        for (int i = 0; i < m; i++)
+            for (int k = 0; k < l; k++)
+                for (int j = 0; j < n; j++)
+                    c[i][j] += a[i][k] * b[k][j];
+        return c;
+    }
+
+    /**
+     * 对称正定矩阵 M*M' + n*I
+     */
+    static double[][] spd(int n) {
+        double[][] m = randomArray(n, n);
+        double[][] a = multiply(m, transpose(m));
+        for (int i = 0; i < n; i++)
+            a[i][i] += n;
+        return a;
+    }
+
+    /**
+     * 对随机矩阵的列做Gram-Schmidt正交化, 得到m*n的列正交矩阵
+     */
+    static double[][] orthonormalColumns(int m, int n) {
+        double[][] q = randomArray(m, n);
+        for (int j = 0; j < n; j++) {
+            for (int l = 0; l < j; l++) {
+                double dot = 0;
+                for (int i = 0; i < m; i++)
+                    dot += q[i][l] * q[i][j];
+                for (int i = 0; i < m; i++)
+                    q[i][j] -= dot * q[i][l];
+            }
+            double norm = 0;
+            for (int i = 0; i < m; i++)
+                norm += q[i][j] * q[i][j];
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < m; i++)
+                q[i][j] /= norm;
+        }
+        return q;
+    }
+
+    static double[][] identity(int n) {
+        double[][] a = new double[n][n];
+        for (int i = 0; i < n; i++)
+            a[i][i] = 1;
+        return a;
+    }
+
+    static double[][] transpose(double[][] a) {
+        double[][] t = new double[a[0].length][a.length];
+        for (int i = 0; i < a.length; i++)
+            for (int j = 0; j < a[0].length; j++)
+                t[j][i] = a[i][j];
+        return t;
+    }
+
+    static double[][] rows(double[][] a, int[] index) {
+        double[][] r = new double[index.length][];
+        for (int i = 0; i < index.length; i++)
+            r[i] = a[index[i]].clone();
+        return r;
+    }
+
+    /**
+     * 高斯消元求行列式(双精度)
+     */
+    static double det(double[][] a) {
+        int n = a.length;
+        double[][] p = new double[n][];
+        for (int i = 0; i < n; i++)
+            p[i] = a[i].clone();
+        double d = 1;
+        for (int j = 0; j < n; j++) {
+            int pivot = j;
+            for (int i = j + 1; i < n; i++)
+                if (Math.abs(p[i][j]) > Math.abs(p[pivot][j]))
+                    pivot = i;
+            if (pivot != j) {
+                double[] t = p[pivot];
+                p[pivot] = p[j];
+                p[j] = t;
+                d = -d;
+            }
+            d *= p[j][j];
+            if (p[j][j] == 0)
+                return 0;
+            for (int i = j + 1; i < n; i++) {
+                double f = p[i][j] / p[j][j];
+                for (int c = j; c < n; c++)
+                    p[i][c] -= f * p[j][c];
+            }
+        }
+        return d;
+    }
+
+    /**
+     * 相对残差 ||b - A*x|| / ||b||
+     */
+    static double residual(double[][] a, Matrix x, double[][] b) {
+        double[][] ax = multiply(a, x.getArrayCopy());
+        double r = 0, norm = 0;
+        for (int i = 0; i < b.length; i++) {
+            r += (b[i][0] - ax[i][0]) * (b[i][0] - ax[i][0]);
+            norm += b[i][0] * b[i][0];
+        }
+        return Math.sqrt(r / norm);
+    }
+
+    /**
+     * x的每一行与y的每一行的距离
+     */
+    static double[][] distances(double[][] x, double[][] y, DistanceMetric metric) {
+        double[][] result = new double[x.length][y.length];
+        for (int i = 0; i < x.length; i++) {
+            for (int j = 0; j < y.length; j++) {
+                double dot = 0, xx = 0, yy = 0;
+                for (int l = 0; l < x[i].length; l++) {
+                    dot += x[i][l] * y[j][l];
+                    xx += x[i][l] * x[i][l];
+                    yy += y[j][l] * y[j][l];
+                }
+                if (metric == DistanceMetric.COSINE)
+                    result[i][j] = xx == 0 || yy == 0 ? 1 : 1 - dot / Math.sqrt(xx * yy);
+                else
+                    result[i][j] = xx + yy - 2 * dot;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 每个期望的中心到最近的实际中心的距离的最大值
+     */
+    static double centroidError(double[][] expected, double[][] actual) {
+        double error = 0;
+        for (double[] distance : distances(expected, actual, DistanceMetric.SQUARED_EUCLIDEAN)) {
+            double nearest = Double.MAX_VALUE;
+            for (double value : distance)
+                nearest = Math.min(nearest, value);
+            error = Math.max(error, Math.sqrt(Math.max(nearest, 0)));
+        }
+        return error;
+    }
+
+    static double maxError(double[][] expected, double[][] actual) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++)
+            for (int j = 0; j < expected[0].length; j++)
+                error = Math.max(error, Math.abs(expected[i][j] - actual[i][j]));
+        return error;
+    }
+
+    static double maxError(double[] expected, double[] actual) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++)
+            error = Math.max(error, Math.abs(expected[i] - actual[i]));
+        return error;
+    }
+
+    static void check(String name, double error, double tolerance) {
+        boolean passed = error <= tolerance;
+        System.out.println("  " + (passed ? "通过" : "失败") + "  " + name + "  误差: " + error);
+        if (!passed)
+            failures++;
+    }
+
+    static void check(String name, boolean passed) {
+        System.out.println("  " + (passed ? "通过" : "失败") + "  " + name);
+        if (!passed)
+            failures++;
+    }
+}